@@ -22,28 +22,189 @@ package org.openmuc.jmbus;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 abstract class AbstractWMBusSap implements WMBusSap {
 
     final static int BUFFER_LENGTH = 1000;
+    // time in ms to wait for a response of the transceiver while it is configured
+    final static int CONFIG_TIMEOUT = 500;
+    private final static int CONFIG_POLL_INTERVAL = 2;
+    // time in ms to wait before the serial port is polled again if no bytes were available
+    private final static int RECEIVE_POLL_INTERVAL = 10;
     final byte[] outputBuffer = new byte[BUFFER_LENGTH];
     final byte[] inputBuffer = new byte[BUFFER_LENGTH];
 
     final WMBusListener listener;
     final WMBusMode mode;
 
-    SerialTransceiver serialTransceiver;
+    final Transceiver transceiver;
 
     final HashMap<String, byte[]> keyMap = new HashMap<String, byte[]>();
+    volatile KeyTable keyTable = KeyTable.empty();
+    volatile AddressFilter addressFilter;
+    volatile NegativeKeyCache negativeKeyCache;
+    volatile DecoderRegistry decoderRegistry = DecoderRegistry.getDefault();
+    final ReceiveLatencies latencies = new ReceiveLatencies();
     volatile boolean closed = true;
+    private boolean rawFrameMode = false;
 
     DataOutputStream os;
     DataInputStream is;
 
-    AbstractWMBusSap(WMBusMode mode, WMBusListener listener) {
+    ExecutorService executor;
+
+    private MessageReceiver receiver;
+
+    private class MessageReceiver extends Thread {
+
+        private final WMBusFramer framer = new WMBusFramer(new FrameHandler(), rawFrameMode);
+
+        @Override
+        public void run() {
+
+            try {
+                while (!closed) {
+
+                    if (is.available() > 0) {
+                        int numBytesRead = is.read(inputBuffer);
+                        framer.feed(inputBuffer, 0, numBytesRead, System.currentTimeMillis());
+                    }
+                    else {
+                        framer.checkTimeout(System.currentTimeMillis());
+                        try {
+                            Thread.sleep(RECEIVE_POLL_INTERVAL);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+
+                }
+
+            } catch (final Exception e) {
+                close();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.stoppedListening(new IOException(e));
+                    }
+                });
+
+            } finally {
+                executor.shutdown();
+            }
+
+        }
+    }
+
+    /**
+     * Receives the bytes of a TCP connection from the event loop thread.
+     */
+    private class TcpReceiver implements TcpTransceiver.Receiver {
+
+        private final WMBusFramer framer = new WMBusFramer(new FrameHandler(), rawFrameMode);
+
+        @Override
+        public void bytesReceived(byte[] bytes, int offset, int length, long now) {
+            framer.feed(bytes, offset, length, now);
+        }
+
+        @Override
+        public void idle(long now) {
+            framer.checkTimeout(now);
+        }
+
+        @Override
+        public void connectionLost(final IOException e) {
+            if (closed) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.stoppedListening(e);
+                }
+            });
+            close();
+        }
+    }
+
+    private class FrameHandler implements WMBusFramer.Handler {
+
+        @Override
+        public boolean accept(long address) {
+            AddressFilter filter = addressFilter;
+            if (filter != null && !filter.accept(address)) {
+                return false;
+            }
+            NegativeKeyCache cache = negativeKeyCache;
+            return cache == null || !cache.contains(address, System.currentTimeMillis());
+        }
+
+        @Override
+        public void frameReceived(final byte[] frame, int rssi, final long firstByteNanos) {
+            final long framedNanos = System.nanoTime();
+            latencies.record(ReceiveLatencies.Stage.FRAMING, framedNanos - firstByteNanos);
+            final Integer signalStrengthInDBm = toSignalStrengthInDBm(rssi);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    latencies.record(ReceiveLatencies.Stage.QUEUE_WAIT, start - framedNanos);
+                    WMBusMessage message = new WMBusMessage(frame, signalStrengthInDBm, keyMap, decoderRegistry,
+                            firstByteNanos, framedNanos, latencies);
+                    message.keyTable = keyTable;
+                    message.negativeKeyCache = negativeKeyCache;
+                    listener.newMessage(message);
+                    latencies.record(ReceiveLatencies.Stage.LISTENER, System.nanoTime() - start);
+                }
+            });
+        }
+
+        @Override
+        public void bytesDiscarded(final byte[] bytes) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.discardedBytes(bytes);
+                }
+            });
+            discarded();
+        }
+    }
+
+    AbstractWMBusSap(WMBusMode mode, WMBusListener listener, Transceiver transceiver) {
         this.listener = listener;
         this.mode = mode;
+        this.transceiver = transceiver;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!closed) {
+            return;
+        }
+        transceiver.open();
+        os = transceiver.getOutputStream();
+        is = transceiver.getInputStream();
+        try {
+            initializeWirelessTransceiver(mode);
+        } catch (IOException e) {
+            transceiver.close();
+            throw e;
+        }
+        executor = Executors.newSingleThreadExecutor();
+        closed = false;
+        if (transceiver instanceof TcpTransceiver) {
+            receiver = null;
+            ((TcpTransceiver) transceiver).setReceiver(new TcpReceiver());
+        }
+        else {
+            receiver = new MessageReceiver();
+            receiver.start();
+        }
     }
 
     @Override
@@ -52,12 +213,40 @@ abstract class AbstractWMBusSap implements WMBusSap {
             return;
         }
         closed = true;
-        serialTransceiver.close();
+        transceiver.close();
+        if (receiver == null) {
+            // in case of a TCP connection there is no receiving thread that shuts down the executor
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void setRawFrameMode(boolean rawFrameMode) {
+        if (!closed) {
+            throw new IllegalStateException(
+                    "Raw frame mode can only be changed while the service access point is closed.");
+        }
+        if (rawFrameMode && !supportsRawFrames()) {
+            throw new UnsupportedOperationException("Raw frame mode is not supported by " + getClass().getSimpleName()
+                    + " because the transceiver is not configured to forward frames with CRCs.");
+        }
+        this.rawFrameMode = rawFrameMode;
+    }
+
+    @Override
+    public void setDecoderRegistry(DecoderRegistry decoderRegistry) {
+        this.decoderRegistry = decoderRegistry;
+    }
+
+    @Override
+    public ReceiveLatencies getReceiveLatencies() {
+        return latencies;
     }
 
     @Override
     public void setKey(SecondaryAddress address, byte[] key) {
         keyMap.put(HexConverter.toShortHexString(address.asByteArray()), key);
+        clearNegativeKeyCache();
     }
 
     @Override
@@ -65,4 +254,85 @@ abstract class AbstractWMBusSap implements WMBusSap {
         keyMap.remove(HexConverter.toShortHexString(address.asByteArray()));
     }
 
+    @Override
+    public void setKeyTable(KeyTable keyTable) {
+        this.keyTable = keyTable == null ? KeyTable.empty() : keyTable;
+        clearNegativeKeyCache();
+    }
+
+    private void clearNegativeKeyCache() {
+        NegativeKeyCache cache = negativeKeyCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void setAddressFilter(AddressFilter addressFilter) {
+        this.addressFilter = addressFilter;
+    }
+
+    @Override
+    public void setNegativeKeyCacheTime(long expiryTime) {
+        negativeKeyCache = expiryTime > 0 ? new NegativeKeyCache(expiryTime) : null;
+    }
+
+    /**
+     * Reads a single byte from the transceiver. Is used while the transceiver is configured and waits at most until
+     * the given deadline.
+     * 
+     * @param deadline
+     *            the time in ms (as returned by {@link System#currentTimeMillis()}) until which to wait for a byte
+     * @return the byte read or -1 if no byte was received until the deadline
+     * @throws IOException
+     *             if reading from the transceiver failed
+     */
+    int readByte(long deadline) throws IOException {
+        while (is.available() == 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return -1;
+            }
+            try {
+                Thread.sleep(CONFIG_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for the transceiver", e);
+            }
+        }
+        return is.read();
+    }
+
+    /**
+     * Configures the transceiver (e.g. sets the transmission mode). Is called after the connection was opened and
+     * before the reception of messages is started.
+     * 
+     * @param mode
+     *            - the wMBus mode to be used for transmission
+     * @throws IOException
+     *             if the transceiver could not be configured
+     */
+    abstract void initializeWirelessTransceiver(WMBusMode mode) throws IOException;
+
+    /**
+     * Converts the RSSI byte appended by the transceiver to dBm.
+     * 
+     * @param rssi
+     *            the RSSI byte as delivered by the transceiver
+     * @return the signal strength in dBm
+     */
+    abstract int toSignalStrengthInDBm(int rssi);
+
+    /**
+     * Is called by the receiving thread whenever bytes were discarded.
+     */
+    void discarded() {
+    }
+
+    /**
+     * Returns true if {@link #initializeWirelessTransceiver(WMBusMode)} configures the transceiver to forward raw
+     * frames including their CRCs when the raw frame mode is enabled.
+     */
+    boolean supportsRawFrames() {
+        return false;
+    }
+
 }
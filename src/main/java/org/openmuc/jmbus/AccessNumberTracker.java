@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the access numbers of the messages of every meter in order to count lost, duplicated and out of order
+ * telegrams. The access number is incremented by the meter with every telegram it sends and wraps from 255 to 0.
+ * 
+ * <p>
+ * For every meter the tracker keeps the highest access number seen and a bitset of the 256 access numbers that
+ * marks which of the preceding numbers were received. Numbers skipped by a jump forward are counted as missing. If
+ * one of them arrives later (up to 127 numbers behind the highest one) it is counted as out of order and no longer as
+ * missing. A late number from before the first telegram of the meter is counted as out of order only, since it was
+ * never counted as missing. A number that was already received is counted as duplicate. Meters are identified by the long value of
+ * their secondary address (see {@link SecondaryAddress#asLong()}).
+ * </p>
+ * 
+ * <p>
+ * Note that losses of 128 or more consecutive telegrams (or a reset of the meter) cannot be detected reliably because
+ * the access number wraps.
+ * </p>
+ */
+public class AccessNumberTracker {
+
+    /**
+     * The classification of an access number passed to {@link AccessNumberTracker#update(long, int)}.
+     */
+    public enum Result {
+        /**
+         * The first access number of the meter.
+         */
+        FIRST,
+        /**
+         * The access number follows the previous one.
+         */
+        IN_SEQUENCE,
+        /**
+         * The access number is ahead of the highest one seen so far, the numbers in between are missing.
+         */
+        GAP,
+        /**
+         * The access number was missing before and arrived late.
+         */
+        OUT_OF_ORDER,
+        /**
+         * The access number has already been received.
+         */
+        DUPLICATE;
+    }
+
+    private static final int WORDS = 4;
+
+    private final LongIndex meterIndex;
+
+    private long[] receivedBits;
+    private int[] highest;
+    // how far the highest access number advanced since the first telegram, at most 256
+    private int[] advances;
+    private long[] receivedCounts;
+    private long[] missingCounts;
+    private long[] duplicateCounts;
+    private long[] outOfOrderCounts;
+
+    public AccessNumberTracker() {
+        this(64);
+    }
+
+    /**
+     * Creates a tracker.
+     * 
+     * @param expectedMeters
+     *            the expected number of meters. The tracker grows if more meters are received.
+     */
+    public AccessNumberTracker(int expectedMeters) {
+        meterIndex = new LongIndex(expectedMeters);
+        int capacity = meterIndex.capacity();
+        receivedBits = new long[capacity * WORDS];
+        highest = new int[capacity];
+        advances = new int[capacity];
+        receivedCounts = new long[capacity];
+        missingCounts = new long[capacity];
+        duplicateCounts = new long[capacity];
+        outOfOrderCounts = new long[capacity];
+    }
+
+    /**
+     * Updates the tracker with the access number of a decoded message.
+     * 
+     * @param message
+     *            the message. Its variable data structure has to be decoded.
+     * @return the classification of the access number or null if the message has no access number (e.g. because it
+     *         has not been decoded or has a manufacturer specific format)
+     */
+    public Result update(WMBusMessage message) {
+        SecondaryAddress address = message.getSecondaryAddress();
+        VariableDataStructure vdr = message.getVariableDataResponse();
+        if (address == null || vdr == null) {
+            return null;
+        }
+        return update(address.asLong(), vdr.getAccessNumber());
+    }
+
+    /**
+     * Updates the tracker with an access number of a meter.
+     * 
+     * @param address
+     *            the address of the meter
+     * @param accessNumber
+     *            the access number (0 to 255)
+     * @return the classification of the access number
+     */
+    public synchronized Result update(long address, int accessNumber) {
+        accessNumber &= 0xff;
+
+        int numMeters = meterIndex.size();
+        int slot = meterIndex.put(address);
+        if (slot == numMeters) {
+            if (slot == highest.length) {
+                grow();
+            }
+            receivedCounts[slot]++;
+            highest[slot] = accessNumber;
+            advances[slot] = 0;
+            setBit(slot, accessNumber);
+            return Result.FIRST;
+        }
+
+        int offset = slot * WORDS;
+        int delta = (accessNumber - highest[slot]) & 0xff;
+
+        if (delta == 0 || (delta > 128 && isSet(offset, accessNumber))) {
+            duplicateCounts[slot]++;
+            return Result.DUPLICATE;
+        }
+
+        receivedCounts[slot]++;
+        if (delta > 128) {
+            setBit(slot, accessNumber);
+            // telegrams sent before the first one received were not counted as missing
+            if (256 - delta < advances[slot]) {
+                missingCounts[slot]--;
+            }
+            outOfOrderCounts[slot]++;
+            return Result.OUT_OF_ORDER;
+        }
+
+        for (int i = 1; i < delta; i++) {
+            int skipped = (highest[slot] + i) & 0xff;
+            receivedBits[offset + (skipped >>> 6)] &= ~(1L << skipped);
+        }
+        // numbers that are now more than 127 behind are no longer tracked, clear them for the next wrap
+        for (int i = 1; i <= delta; i++) {
+            int old = (highest[slot] + 128 + i) & 0xff;
+            receivedBits[offset + (old >>> 6)] &= ~(1L << old);
+        }
+        setBit(slot, accessNumber);
+        highest[slot] = accessNumber;
+        advances[slot] = Math.min(256, advances[slot] + delta);
+        missingCounts[slot] += delta - 1;
+        return delta == 1 ? Result.IN_SEQUENCE : Result.GAP;
+    }
+
+    private boolean isSet(int offset, int accessNumber) {
+        return (receivedBits[offset + (accessNumber >>> 6)] & (1L << accessNumber)) != 0;
+    }
+
+    private void setBit(int slot, int accessNumber) {
+        receivedBits[slot * WORDS + (accessNumber >>> 6)] |= 1L << accessNumber;
+    }
+
+    private void grow() {
+        int capacity = meterIndex.capacity();
+        receivedBits = Arrays.copyOf(receivedBits, capacity * WORDS);
+        highest = Arrays.copyOf(highest, capacity);
+        advances = Arrays.copyOf(advances, capacity);
+        receivedCounts = Arrays.copyOf(receivedCounts, capacity);
+        missingCounts = Arrays.copyOf(missingCounts, capacity);
+        duplicateCounts = Arrays.copyOf(duplicateCounts, capacity);
+        outOfOrderCounts = Arrays.copyOf(outOfOrderCounts, capacity);
+    }
+
+    /**
+     * Returns the addresses of all tracked meters.
+     * 
+     * @return the addresses
+     */
+    public synchronized long[] getMeters() {
+        long[] meters = new long[meterIndex.size()];
+        for (int i = 0; i < meters.length; i++) {
+            meters[i] = meterIndex.getKey(i);
+        }
+        return meters;
+    }
+
+    /**
+     * Returns the number of distinct telegrams received from the given meter (duplicates are not counted).
+     * 
+     * @param address
+     *            the address of the meter
+     * @return the number of telegrams
+     */
+    public synchronized long getReceivedCount(long address) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : receivedCounts[slot];
+    }
+
+    /**
+     * Returns the number of telegrams of the given meter that are missing, i.e. whose access numbers were skipped
+     * and have not arrived later.
+     * 
+     * @param address
+     *            the address of the meter
+     * @return the number of missing telegrams
+     */
+    public synchronized long getMissingCount(long address) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : missingCounts[slot];
+    }
+
+    public synchronized long getDuplicateCount(long address) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : duplicateCounts[slot];
+    }
+
+    public synchronized long getOutOfOrderCount(long address) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : outOfOrderCounts[slot];
+    }
+
+    /**
+     * Returns the share of telegrams of the given meter that were lost.
+     * 
+     * @param address
+     *            the address of the meter
+     * @return missing / (received + missing) or NaN if the meter is unknown
+     */
+    public synchronized double getLossRate(long address) {
+        int slot = meterIndex.get(address);
+        if (slot == -1) {
+            return Double.NaN;
+        }
+        return (double) missingCounts[slot] / (receivedCounts[slot] + missingCounts[slot]);
+    }
+
+}
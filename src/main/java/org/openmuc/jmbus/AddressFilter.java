@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides from the link layer address alone whether a received wireless M-Bus telegram is of interest. A filter set
+ * with {@link WMBusSap#setAddressFilter(AddressFilter)} is applied by the receiver thread before the telegram is
+ * copied out of the receive buffer, so telegrams of foreign meters cost neither a copy nor a {@link WMBusMessage}
+ * nor a decoding attempt.
+ * 
+ * <p>
+ * A telegram is accepted if its address passes every configured criterion: it is one of the added addresses, its
+ * manufacturer is one of the added manufacturers and its device type is one of the added device types. A criterion
+ * without any added values accepts all telegrams. For very large address sets a Bloom filter can be used instead of
+ * the exact set. It needs about 10 bits per address for a false positive rate of 1% but lets a few foreign telegrams
+ * pass.
+ * </p>
+ * 
+ * <p>
+ * Filters are immutable and can be shared by several service access points.
+ * </p>
+ */
+public final class AddressFilter {
+
+    private final LongIndex addresses;
+    private final long[] bloomBits;
+    private final int bloomMask;
+    private final int bloomHashes;
+    // bit sets indexed by the 15 bit manufacturer ID and the device type byte
+    private final long[] manufacturers;
+    private final long[] deviceTypes;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private AddressFilter(Builder builder) {
+        addresses = builder.bloomFilter ? null : builder.addresses;
+        manufacturers = builder.manufacturers == null ? null : builder.manufacturers.clone();
+        deviceTypes = builder.deviceTypes == null ? null : builder.deviceTypes.clone();
+
+        if (builder.bloomFilter && builder.addresses.size() > 0) {
+            int n = builder.addresses.size();
+            double bitsPerAddress = -Math.log(builder.falsePositiveRate) / (Math.log(2) * Math.log(2));
+            long numBits = Math.max(64, (long) Math.ceil(n * bitsPerAddress));
+            int tableBits = (int) Math.min(Long.highestOneBit(numBits - 1) << 1, 1 << 30);
+            bloomBits = new long[tableBits >>> 6];
+            bloomMask = tableBits - 1;
+            bloomHashes = Math.max(1, (int) Math.round((double) tableBits / n * Math.log(2)));
+            for (int slot = 0; slot < n; slot++) {
+                long address = builder.addresses.getKey(slot);
+                int h1 = LongIndex.hash(address);
+                int h2 = secondHash(address);
+                for (int i = 0; i < bloomHashes; i++) {
+                    int bit = (h1 + i * h2) & bloomMask;
+                    bloomBits[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        else {
+            bloomBits = null;
+            bloomMask = 0;
+            bloomHashes = 0;
+        }
+    }
+
+    /**
+     * Checks whether telegrams from the given address are accepted.
+     * 
+     * @param address
+     *            the link layer address as returned by {@link SecondaryAddress#asLong()}
+     * @return true if the address passes the filter
+     */
+    public boolean accept(long address) {
+        if (!contains(address)) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean accept(SecondaryAddress address) {
+        return accept(address.asLong());
+    }
+
+    private boolean contains(long address) {
+        if (manufacturers != null) {
+            int manufacturer = (int) (address >>> 48) & 0x7fff;
+            if ((manufacturers[manufacturer >>> 6] & (1L << manufacturer)) == 0) {
+                return false;
+            }
+        }
+        if (deviceTypes != null) {
+            int deviceType = (int) address & 0xff;
+            if ((deviceTypes[deviceType >>> 6] & (1L << deviceType)) == 0) {
+                return false;
+            }
+        }
+        if (bloomBits != null) {
+            int h1 = LongIndex.hash(address);
+            int h2 = secondHash(address);
+            for (int i = 0; i < bloomHashes; i++) {
+                int bit = (h1 + i * h2) & bloomMask;
+                if ((bloomBits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+        }
+        else if (addresses != null && addresses.size() > 0 && addresses.get(address) == -1) {
+            return false;
+        }
+        return true;
+    }
+
+    private static int secondHash(long address) {
+        // odd so that the probe sequence visits different bits
+        return LongIndex.hash(address ^ 0x9e3779b97f4a7c15l) | 1;
+    }
+
+    /**
+     * Returns the number of addresses that did not pass this filter.
+     * 
+     * @return the number of rejected addresses
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Collects the criteria of a new {@link AddressFilter}.
+     */
+    public static class Builder {
+
+        private LongIndex addresses = new LongIndex();
+        private long[] manufacturers;
+        private long[] deviceTypes;
+        private boolean bloomFilter = false;
+        private double falsePositiveRate;
+
+        public Builder addAddress(SecondaryAddress address) {
+            return addAddress(address.asLong());
+        }
+
+        /**
+         * Adds an accepted address.
+         * 
+         * @param address
+         *            the link layer address as returned by {@link SecondaryAddress#asLong()}
+         * @return this builder
+         */
+        public Builder addAddress(long address) {
+            if (addresses == null) {
+                throw new IllegalStateException("Builder was already used to build a filter.");
+            }
+            addresses.put(address);
+            return this;
+        }
+
+        /**
+         * Adds an accepted manufacturer.
+         * 
+         * @param manufacturerId
+         *            the three letter manufacturer ID, e.g. "LSE"
+         * @return this builder
+         */
+        public Builder addManufacturer(String manufacturerId) {
+            String id = manufacturerId.toUpperCase(Locale.US);
+            if (id.length() != 3) {
+                throw new IllegalArgumentException("Manufacturer ID must consist of three letters: " + manufacturerId);
+            }
+            int value = 0;
+            for (int i = 0; i < 3; i++) {
+                char c = id.charAt(i);
+                if (c < 'A' || c > 'Z') {
+                    throw new IllegalArgumentException(
+                            "Manufacturer ID must consist of three letters: " + manufacturerId);
+                }
+                value = (value << 5) | (c - 64);
+            }
+            if (manufacturers == null) {
+                manufacturers = new long[(1 << 15) >>> 6];
+            }
+            manufacturers[value >>> 6] |= 1L << value;
+            return this;
+        }
+
+        public Builder addDeviceType(DeviceType deviceType) {
+            return addDeviceType(deviceType.getId());
+        }
+
+        public Builder addDeviceType(int deviceType) {
+            if (deviceTypes == null) {
+                deviceTypes = new long[4];
+            }
+            deviceTypes[(deviceType & 0xff) >>> 6] |= 1L << deviceType;
+            return this;
+        }
+
+        /**
+         * Stores the added addresses in a Bloom filter instead of an exact set.
+         * 
+         * @param falsePositiveRate
+         *            the fraction of foreign addresses that may pass the filter, e.g. 0.01
+         * @return this builder
+         */
+        public Builder useBloomFilter(double falsePositiveRate) {
+            if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+            }
+            bloomFilter = true;
+            this.falsePositiveRate = falsePositiveRate;
+            return this;
+        }
+
+        /**
+         * Creates the filter. The builder cannot be used any more afterwards.
+         * 
+         * @return the new filter
+         */
+        public AddressFilter build() {
+            if (addresses == null) {
+                throw new IllegalStateException("Builder was already used to build a filter.");
+            }
+            AddressFilter filter = new AddressFilter(this);
+            addresses = null;
+            return filter;
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Writes text fields as ASCII directly into a byte buffer without creating intermediate strings. Used by the
+ * {@link MessageEncoder} implementations. All methods throw a {@link BufferOverflowException} if the buffer is full.
+ */
+final class AsciiEncoding {
+
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f' };
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private AsciiEncoding() {
+    }
+
+    static void putAscii(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            buffer.put(c < 128 ? (byte) c : (byte) '?');
+        }
+    }
+
+    /**
+     * Writes a string as quoted JSON string.
+     */
+    static void putJsonString(ByteBuffer buffer, String s) {
+        buffer.put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.put((byte) '\\').put((byte) c);
+            }
+            else if (c < 0x20 || c >= 128) {
+                buffer.put((byte) '\\').put((byte) 'u');
+                putHex(buffer, c >> 8);
+                putHex(buffer, c);
+            }
+            else {
+                buffer.put((byte) c);
+            }
+        }
+        buffer.put((byte) '"');
+    }
+
+    /**
+     * Writes a string as quoted CSV field.
+     */
+    static void putCsvString(ByteBuffer buffer, String s) {
+        buffer.put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                buffer.put((byte) '"');
+            }
+            buffer.put(c < 128 ? (byte) c : (byte) '?');
+        }
+        buffer.put((byte) '"');
+    }
+
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            putAscii(buffer, "-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int numDigits = 1;
+        while (numDigits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[numDigits]) {
+            numDigits++;
+        }
+        putDigits(buffer, value, numDigits);
+    }
+
+    /**
+     * Writes value * 10^exponent as decimal number without converting it to floating point.
+     */
+    static void putScaled(ByteBuffer buffer, long value, int exponent) {
+        if (value == 0 || exponent == 0) {
+            putLong(buffer, value);
+            return;
+        }
+        if (exponent > 0) {
+            putLong(buffer, value);
+            for (int i = 0; i < exponent; i++) {
+                buffer.put((byte) '0');
+            }
+            return;
+        }
+        if (-exponent >= POWERS_OF_TEN.length || value == Long.MIN_VALUE) {
+            putAscii(buffer, Double.toString(value * Math.pow(10, exponent)));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = POWERS_OF_TEN[-exponent];
+        putLong(buffer, value / divisor);
+        buffer.put((byte) '.');
+        putDigits(buffer, value % divisor, -exponent);
+    }
+
+    private static void putDigits(ByteBuffer buffer, long value, int numDigits) {
+        if (buffer.remaining() < numDigits) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position();
+        for (int i = numDigits - 1; i >= 0; i--) {
+            buffer.put(position + i, (byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        buffer.position(position + numDigits);
+    }
+
+    static void putHex(ByteBuffer buffer, int b) {
+        buffer.put(HEX_DIGITS[(b >> 4) & 0x0f]).put(HEX_DIGITS[b & 0x0f]);
+    }
+
+    static void putHex(ByteBuffer buffer, byte[] bytes) {
+        for (byte b : bytes) {
+            putHex(buffer, b);
+        }
+    }
+
+    /**
+     * Writes the digits of a BCD coded device ID, most significant digit first.
+     */
+    static void putDeviceId(ByteBuffer buffer, Bcd deviceId) {
+        byte[] bytes = deviceId.getBytes();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            putHex(buffer, bytes[i]);
+        }
+    }
+
+    /**
+     * Writes the scaled numeric value of a data record.
+     * 
+     * @return false if the value is not a finite number and nothing was written
+     */
+    static boolean putNumericValue(ByteBuffer buffer, DataRecord dataRecord) {
+        Object dataValue = dataRecord.getDataValue();
+        switch (dataRecord.getDataValueType()) {
+        case LONG:
+            putScaled(buffer, (Long) dataValue, dataRecord.getMultiplierExponent());
+            return true;
+        case BCD:
+            putScaled(buffer, ((Bcd) dataValue).longValue(), dataRecord.getMultiplierExponent());
+            return true;
+        case DOUBLE:
+            if (((Double) dataValue).isNaN() || ((Double) dataValue).isInfinite()) {
+                return false;
+            }
+            putAscii(buffer, Double.toString((Double) dataValue * Math.pow(10, dataRecord.getMultiplierExponent())));
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value of a non numeric data record as string. Dates are returned in ms since 1970.
+     */
+    static String valueAsString(DataRecord dataRecord) {
+        Object dataValue = dataRecord.getDataValue();
+        if (dataValue instanceof Date) {
+            return Long.toString(((Date) dataValue).getTime());
+        }
+        return dataValue == null ? "" : dataValue.toString();
+    }
+
+}
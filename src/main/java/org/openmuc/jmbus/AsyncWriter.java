@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes received messages (and data read from wired meters) asynchronously to an output stream or channel (e.g. a file or TCP socket). Messages are
+ * encoded by a {@link MessageEncoder} into one of a fixed number of preallocated buffers. Full buffers are written by
+ * a separate writer thread so that the threads receiving messages never block on I/O. Partly filled buffers are
+ * written after the flush interval has elapsed.
+ * 
+ * <p>
+ * If the output is too slow and no free buffer is available, messages are dropped. The number of dropped messages can
+ * be retrieved using {@link #getDroppedCount()}.
+ * </p>
+ */
+public class AsyncWriter implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_NUMBER_OF_BUFFERS = 4;
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private final WritableByteChannel channel;
+    private final MessageEncoder encoder;
+    private final int numberOfBuffers;
+    private final long flushInterval;
+
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<ByteBuffer> filledBuffers;
+    private final Thread writerThread;
+
+    private ByteBuffer currentBuffer;
+    private long droppedCount = 0;
+    private volatile boolean closed = false;
+    private volatile IOException exception;
+
+    public AsyncWriter(OutputStream outputStream, MessageEncoder encoder) {
+        this(Channels.newChannel(outputStream), encoder, DEFAULT_BUFFER_SIZE, DEFAULT_NUMBER_OF_BUFFERS,
+                DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates and starts the writer.
+     * 
+     * @param channel
+     *            the channel to write to. It is closed when the writer is closed.
+     * @param encoder
+     *            the encoder
+     * @param bufferSize
+     *            the size of each buffer in bytes. Has to be large enough to hold a single encoded message.
+     * @param numberOfBuffers
+     *            the number of buffers (at least 2)
+     * @param flushInterval
+     *            the maximum time in ms that encoded messages are kept in a partly filled buffer
+     */
+    public AsyncWriter(WritableByteChannel channel, MessageEncoder encoder, int bufferSize, int numberOfBuffers,
+            int flushInterval) {
+        if (numberOfBuffers < 2) {
+            throw new IllegalArgumentException("At least two buffers are needed.");
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive.");
+        }
+        this.channel = channel;
+        this.encoder = encoder;
+        this.numberOfBuffers = numberOfBuffers;
+        this.flushInterval = flushInterval;
+
+        freeBuffers = new ArrayBlockingQueue<ByteBuffer>(numberOfBuffers);
+        filledBuffers = new ArrayBlockingQueue<ByteBuffer>(numberOfBuffers);
+        for (int i = 0; i < numberOfBuffers; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "jMBus async writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Encodes the given message and queues it for writing. Never blocks on I/O.
+     * 
+     * @param message
+     *            the message
+     * @param timestamp
+     *            the time the message was received in ms since 1970
+     * @return true if the message was queued, false if it was dropped because no buffer was available, the encoded
+     *         message did not fit into a buffer or the writer is closed
+     */
+    public synchronized boolean write(WMBusMessage message, long timestamp) {
+        return write(message, null, timestamp);
+    }
+
+    /**
+     * Encodes the data read from a wired meter and queues it for writing. Never blocks on I/O.
+     * 
+     * @param vds
+     *            the decoded variable data structure
+     * @param timestamp
+     *            the time the data was read in ms since 1970
+     * @return true if the data was queued, false if it was dropped
+     */
+    public synchronized boolean write(VariableDataStructure vds, long timestamp) {
+        return write(null, vds, timestamp);
+    }
+
+    private boolean write(WMBusMessage message, VariableDataStructure vds, long timestamp) {
+        if (closed) {
+            droppedCount++;
+            return false;
+        }
+        if (currentBuffer == null && (currentBuffer = freeBuffers.poll()) == null) {
+            droppedCount++;
+            return false;
+        }
+
+        int start = currentBuffer.position();
+        try {
+            encode(message, vds, timestamp);
+            return true;
+        } catch (BufferOverflowException e) {
+            currentBuffer.position(start);
+        }
+
+        if (start == 0) {
+            // does not fit into an empty buffer
+            droppedCount++;
+            return false;
+        }
+
+        filledBuffers.add(currentBuffer);
+        if ((currentBuffer = freeBuffers.poll()) == null) {
+            droppedCount++;
+            return false;
+        }
+        try {
+            encode(message, vds, timestamp);
+            return true;
+        } catch (BufferOverflowException e) {
+            currentBuffer.clear();
+            droppedCount++;
+            return false;
+        }
+    }
+
+    private void encode(WMBusMessage message, VariableDataStructure vds, long timestamp) {
+        if (message != null) {
+            encoder.encode(message, timestamp, currentBuffer);
+        }
+        else {
+            encoder.encode(vds, timestamp, currentBuffer);
+        }
+    }
+
+    /**
+     * Returns the number of messages that have been dropped so far.
+     * 
+     * @return the number of dropped messages
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Hands all queued messages to the writer thread and waits until they have been written.
+     * 
+     * @throws IOException
+     *             if writing failed
+     */
+    public synchronized void flush() throws IOException {
+        handOverCurrentBuffer();
+        while (freeBuffers.size() < numberOfBuffers - (currentBuffer == null ? 0 : 1) && writerThread.isAlive()) {
+            try {
+                wait(flushInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Writes all queued messages, stops the writer thread and closes the channel. Messages passed to
+     * {@link #write(WMBusMessage, long)} afterwards are dropped.
+     * 
+     * @throws IOException
+     *             if writing or closing the channel failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            handOverCurrentBuffer();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void handOverCurrentBuffer() {
+        if (currentBuffer != null && currentBuffer.position() > 0) {
+            filledBuffers.add(currentBuffer);
+            currentBuffer = null;
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = filledBuffers.poll(flushInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == null) {
+                synchronized (this) {
+                    if (closed && filledBuffers.isEmpty()) {
+                        return;
+                    }
+                    handOverCurrentBuffer();
+                }
+                continue;
+            }
+
+            buffer.flip();
+            if (exception == null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    // further buffers are discarded so that receiving threads are not blocked
+                    exception = e;
+                }
+            }
+            buffer.clear();
+            freeBuffers.add(buffer);
+
+            synchronized (this) {
+                notifyAll();
+                if (closed && filledBuffers.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
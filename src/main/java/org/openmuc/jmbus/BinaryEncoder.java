@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+
+import org.openmuc.jmbus.DataRecord.DataValueType;
+import org.openmuc.jmbus.DataRecord.Description;
+import org.openmuc.jmbus.DataRecord.FunctionField;
+
+/**
+ * Encodes messages in a compact binary format that is suitable for message buses. The format can be read with
+ * {@link BinaryMessageReader}. Integers are written as variable length integers (varints, 7 bits per byte, least
+ * significant group first). Signed integers are zigzag encoded before. Enums are written as IDs that do not depend on
+ * the order of the enum constants so that the format stays stable when constants are added.
+ * 
+ * <p>
+ * Layout of a message:
+ * </p>
+ * 
+ * <pre>
+ * byte     format version (1)
+ * varint   length of the remaining message in bytes (always written as 3 bytes)
+ * varint   timestamp in ms since 1970
+ * 8 bytes  secondary address as returned by {@link SecondaryAddress#asLong()}, little endian, 0 if unknown
+ * byte     flags: 0x01 RSSI, 0x02 data records, 0x04 manufacturer specific data, 0x08 raw message
+ * zigzag   RSSI in dBm (if flag 0x01)
+ * varint   access number, varint status, varint number of records, records (if flag 0x02)
+ * string   manufacturer specific data as string (if flag 0x04)
+ * bytes    the raw bytes of the message (if flag 0x08)
+ * </pre>
+ * 
+ * <p>
+ * Layout of a data record:
+ * </p>
+ * 
+ * <pre>
+ * byte     value type ID (bits 0 to 2) and function field ID (bits 3 to 4)
+ * varint   description ID, followed by the description as string if it is USER_DEFINED
+ * varint   DLMS unit ID + 1, 0 if the record has no unit
+ * zigzag   multiplier exponent
+ * varint   storage number, varint tariff, varint subunit
+ * bytes    DIB, bytes VIB
+ * value    LONG, BCD and DATE (ms since 1970): zigzag, DOUBLE: 8 bytes IEEE 754 little endian, STRING: string
+ * </pre>
+ * 
+ * Byte arrays and strings (UTF-8) are prefixed by their length as varint.
+ */
+public class BinaryEncoder implements MessageEncoder {
+
+    static final int FORMAT_VERSION = 1;
+
+    static final int FLAG_RSSI = 0x01;
+    static final int FLAG_RECORDS = 0x02;
+    static final int FLAG_MANUFACTURER_DATA = 0x04;
+    static final int FLAG_RAW = 0x08;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The IDs of the descriptions are their index in this array plus one. New descriptions must only be appended.
+     */
+    static final Description[] DESCRIPTIONS = new Description[] {
+            Description.ENERGY, Description.VOLUME, Description.MASS, Description.ON_TIME, Description.OPERATING_TIME,
+            Description.POWER, Description.VOLUME_FLOW, Description.VOLUME_FLOW_EXT, Description.MASS_FLOW,
+            Description.FLOW_TEMPERATURE, Description.RETURN_TEMPERATURE, Description.TEMPERATURE_DIFFERENCE,
+            Description.EXTERNAL_TEMPERATURE, Description.PRESSURE, Description.DATE, Description.DATE_TIME,
+            Description.VOLTAGE, Description.CURRENT, Description.AVERAGING_DURATION, Description.ACTUALITY_DURATION,
+            Description.FABRICATION_NO, Description.MODEL_VERSION, Description.PARAMETER_SET_ID,
+            Description.HARDWARE_VERSION, Description.FIRMWARE_VERSION, Description.ERROR_FLAGS, Description.CUSTOMER,
+            Description.RESERVED, Description.OPERATING_TIME_BATTERY, Description.HCA, Description.REACTIVE_ENERGY,
+            Description.TEMPERATURE_LIMIT, Description.MAX_POWER, Description.REACTIVE_POWER, Description.REL_HUMIDITY,
+            Description.FREQUENCY, Description.PHASE, Description.EXTENDED_IDENTIFICATION, Description.ADDRESS,
+            Description.NOT_SUPPORTED, Description.MANUFACTURER_SPECIFIC, Description.FUTURE_VALUE,
+            Description.USER_DEFINED, Description.APPARENT_ENERGY, Description.CUSTOMER_LOCATION,
+            Description.ACCSESS_CODE_OPERATOR, Description.ACCSESS_CODE_USER, Description.PASSWORD,
+            Description.ACCSESS_CODE_SYSTEM_DEVELOPER, Description.OTHER_SOFTWARE_VERSION,
+            Description.ACCSESS_CODE_SYSTEM_OPERATOR, Description.ERROR_MASK, Description.SECURITY_KEY,
+            Description.DIGITAL_INPUT, Description.BAUDRATE, Description.DIGITAL_OUTPUT,
+            Description.RESPONSE_DELAY_TIME, Description.RETRY, Description.FIRST_STORAGE_NUMBER_CYCLIC,
+            Description.REMOTE_CONTROL, Description.LAST_STORAGE_NUMBER_CYCLIC, Description.SIZE_STORAGE_BLOCK,
+            Description.STORAGE_INTERVALL, Description.TARIF_START, Description.DURATION_LAST_READOUT,
+            Description.TIME_POINT, Description.TARIF_DURATION, Description.OPERATOR_SPECIFIC_DATA,
+            Description.TARIF_PERIOD, Description.NUMBER_STOPS, Description.LAST_CUMULATION_DURATION,
+            Description.SPECIAL_SUPPLIER_INFORMATION, Description.PARAMETER_ACTIVATION_STATE,
+            Description.CONTROL_SIGNAL, Description.WEEK_NUMBER, Description.DAY_OF_WEEK,
+            Description.REMAINING_BATTERY_LIFE_TIME, Description.TIME_POINT_DAY_CHANGE, Description.CUMULATION_COUNTER,
+            Description.RESET_COUNTER };
+
+    static final DataValueType[] VALUE_TYPES = new DataValueType[] { DataValueType.LONG, DataValueType.DOUBLE,
+            DataValueType.DATE, DataValueType.STRING, DataValueType.BCD, DataValueType.NONE };
+
+    static final FunctionField[] FUNCTION_FIELDS = new FunctionField[] { FunctionField.INST_VAL,
+            FunctionField.MAX_VAL, FunctionField.MIN_VAL, FunctionField.ERROR_VAL };
+
+    private static final int[] descriptionIds = ids(DESCRIPTIONS, Description.values().length);
+    private static final int[] valueTypeIds = ids(VALUE_TYPES, DataValueType.values().length);
+    private static final int[] functionFieldIds = ids(FUNCTION_FIELDS, FunctionField.values().length);
+
+    private static int[] ids(Enum<?>[] dictionary, int numberOfConstants) {
+        int[] ids = new int[numberOfConstants];
+        for (int i = 0; i < dictionary.length; i++) {
+            ids[dictionary[i].ordinal()] = i;
+        }
+        return ids;
+    }
+
+    @Override
+    public void encode(WMBusMessage message, long timestamp, ByteBuffer buffer) {
+        VariableDataStructure vdr = message.getVariableDataResponse();
+        List<DataRecord> dataRecords = vdr == null ? null : vdr.getDataRecords();
+        Object data = message.getManufacturerSpecificData();
+
+        if (dataRecords != null && !dataRecords.isEmpty()) {
+            encode(message.getSecondaryAddress(), message.getRssi(), vdr, null, null, timestamp, buffer);
+        }
+        else if (data != null) {
+            encode(message.getSecondaryAddress(), message.getRssi(), null, data.toString(), null, timestamp, buffer);
+        }
+        else {
+            encode(message.getSecondaryAddress(), message.getRssi(), null, null, message.asBytes(), timestamp,
+                    buffer);
+        }
+    }
+
+    @Override
+    public void encode(VariableDataStructure vds, long timestamp, ByteBuffer buffer) {
+        encode(vds.getSecondaryAddress(), null, vds, null, null, timestamp, buffer);
+    }
+
+    private static void encode(SecondaryAddress address, Integer rssi, VariableDataStructure vds, String data,
+            byte[] raw, long timestamp, ByteBuffer buffer) {
+        buffer.put((byte) FORMAT_VERSION);
+        if (buffer.remaining() < 3) {
+            throw new BufferOverflowException();
+        }
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + 3);
+        int start = buffer.position();
+
+        putVarint(buffer, timestamp);
+        putFixedLong(buffer, address == null ? 0 : address.asLong());
+
+        int flags = 0;
+        if (rssi != null) {
+            flags |= FLAG_RSSI;
+        }
+        if (vds != null) {
+            flags |= FLAG_RECORDS;
+        }
+        else if (data != null) {
+            flags |= FLAG_MANUFACTURER_DATA;
+        }
+        else {
+            flags |= FLAG_RAW;
+        }
+        buffer.put((byte) flags);
+
+        if (rssi != null) {
+            putZigzag(buffer, rssi);
+        }
+        if (vds != null) {
+            List<DataRecord> dataRecords = vds.getDataRecords();
+            putVarint(buffer, vds.getAccessNumber());
+            putVarint(buffer, vds.getStatus());
+            putVarint(buffer, dataRecords.size());
+            for (DataRecord dataRecord : dataRecords) {
+                putRecord(buffer, dataRecord);
+            }
+        }
+        else if (data != null) {
+            putString(buffer, data);
+        }
+        else {
+            putBytes(buffer, raw);
+        }
+
+        int length = buffer.position() - start;
+        if (length >= (1 << 21)) {
+            throw new BufferOverflowException();
+        }
+        buffer.put(lengthPosition, (byte) ((length & 0x7f) | 0x80));
+        buffer.put(lengthPosition + 1, (byte) (((length >> 7) & 0x7f) | 0x80));
+        buffer.put(lengthPosition + 2, (byte) (length >> 14));
+    }
+
+    private static void putRecord(ByteBuffer buffer, DataRecord dataRecord) {
+        DataValueType valueType = dataRecord.getDataValueType();
+        buffer.put((byte) (valueTypeIds[valueType.ordinal()]
+                | (functionFieldIds[dataRecord.getFunctionField().ordinal()] << 3)));
+
+        Description description = dataRecord.getDescription();
+        putVarint(buffer, descriptionIds[description.ordinal()] + 1);
+        if (description == Description.USER_DEFINED) {
+            putString(buffer, dataRecord.getUserDefinedDescription());
+        }
+        DlmsUnit unit = dataRecord.getUnit();
+        putVarint(buffer, unit == null ? 0 : unit.getId() + 1);
+        putZigzag(buffer, dataRecord.getMultiplierExponent());
+        putVarint(buffer, dataRecord.getStorageNumber());
+        putVarint(buffer, dataRecord.getTariff());
+        putVarint(buffer, dataRecord.getSubunit());
+        putBytes(buffer, dataRecord.getDib());
+        putBytes(buffer, dataRecord.getVib());
+
+        Object dataValue = dataRecord.getDataValue();
+        switch (valueType) {
+        case LONG:
+            putZigzag(buffer, (Long) dataValue);
+            break;
+        case BCD:
+            putZigzag(buffer, ((Bcd) dataValue).longValue());
+            break;
+        case DATE:
+            putZigzag(buffer, ((Date) dataValue).getTime());
+            break;
+        case DOUBLE:
+            putFixedLong(buffer, Double.doubleToLongBits((Double) dataValue));
+            break;
+        case STRING:
+            putString(buffer, (String) dataValue);
+            break;
+        default:
+            break;
+        }
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putZigzag(ByteBuffer buffer, long value) {
+        putVarint(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    static void putFixedLong(ByteBuffer buffer, long value) {
+        if (buffer.remaining() < 8) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < 8; i++) {
+            buffer.put((byte) value);
+            value >>>= 8;
+        }
+    }
+
+    static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        putBytes(buffer, s.getBytes(UTF_8));
+    }
+
+}
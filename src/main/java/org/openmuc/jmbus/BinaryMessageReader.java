@@ -0,0 +1,413 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.ByteBuffer;
+
+import org.openmuc.jmbus.DataRecord.DataValueType;
+import org.openmuc.jmbus.DataRecord.Description;
+import org.openmuc.jmbus.DataRecord.FunctionField;
+
+/**
+ * Reads messages written by {@link BinaryEncoder} directly from a byte buffer. The reader works like a cursor: the
+ * fields of the current message and the current data record are read into primitive fields, no objects are created
+ * unless a string or byte array is requested. Usage:
+ * 
+ * <pre>
+ * BinaryMessageReader reader = new BinaryMessageReader(buffer);
+ * while (reader.nextMessage()) {
+ *     long address = reader.getAddress();
+ *     while (reader.nextRecord()) {
+ *         double value = reader.getScaledValue();
+ *     }
+ * }
+ * </pre>
+ * 
+ * A reader is not thread safe. The buffer must not be modified while it is being read.
+ */
+public class BinaryMessageReader {
+
+    private final ByteBuffer buffer;
+
+    private int messageEnd = -1;
+    private long timestamp;
+    private long address;
+    private int flags;
+    private int rssi;
+    private int accessNumber;
+    private int status;
+    private int remainingRecords;
+    private int payloadOffset;
+    private int payloadLength;
+
+    private DataValueType valueType;
+    private FunctionField functionField;
+    private Description description;
+    private int userDefinedDescriptionOffset;
+    private int userDefinedDescriptionLength;
+    private DlmsUnit unit;
+    private int multiplierExponent;
+    private long storageNumber;
+    private int tariff;
+    private int subunit;
+    private int dibOffset;
+    private int dibLength;
+    private int vibOffset;
+    private int vibLength;
+    private long longValue;
+    private int stringOffset;
+    private int stringLength;
+
+    /**
+     * Creates a reader that reads from the position to the limit of the given buffer. The position of the buffer is
+     * not changed.
+     * 
+     * @param buffer
+     *            the buffer
+     */
+    public BinaryMessageReader(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    /**
+     * Moves to the next message. Records of the current message that have not been read are skipped.
+     * 
+     * @return false if there are no more messages
+     * @throws DecodingException
+     *             if the data is malformed or has an unsupported format version
+     */
+    public boolean nextMessage() throws DecodingException {
+        if (messageEnd >= 0) {
+            buffer.position(messageEnd);
+        }
+        if (!buffer.hasRemaining()) {
+            messageEnd = buffer.position();
+            return false;
+        }
+
+        try {
+            int version = buffer.get() & 0xff;
+            if (version != BinaryEncoder.FORMAT_VERSION) {
+                throw new DecodingException("Unsupported format version: " + version);
+            }
+            int length = (int) getVarint();
+            if (length > buffer.remaining()) {
+                throw new DecodingException("Message is truncated.");
+            }
+            messageEnd = buffer.position() + length;
+
+            timestamp = getVarint();
+            address = getFixedLong();
+            flags = buffer.get() & 0xff;
+            rssi = (flags & BinaryEncoder.FLAG_RSSI) != 0 ? (int) getZigzag() : 0;
+
+            remainingRecords = 0;
+            accessNumber = 0;
+            status = 0;
+            payloadLength = 0;
+            if ((flags & BinaryEncoder.FLAG_RECORDS) != 0) {
+                accessNumber = (int) getVarint();
+                status = (int) getVarint();
+                remainingRecords = (int) getVarint();
+            }
+            else {
+                payloadLength = (int) getVarint();
+                payloadOffset = buffer.position();
+                skip(payloadLength);
+            }
+        } catch (RuntimeException e) {
+            throw new DecodingException("Malformed message.", e);
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next data record of the current message.
+     * 
+     * @return false if there are no more records
+     * @throws DecodingException
+     *             if the data is malformed
+     */
+    public boolean nextRecord() throws DecodingException {
+        if (remainingRecords == 0) {
+            return false;
+        }
+        remainingRecords--;
+
+        try {
+            int header = buffer.get() & 0xff;
+            valueType = BinaryEncoder.VALUE_TYPES[header & 0x07];
+            functionField = BinaryEncoder.FUNCTION_FIELDS[(header >> 3) & 0x03];
+
+            int descriptionId = (int) getVarint();
+            description = descriptionId > 0 && descriptionId <= BinaryEncoder.DESCRIPTIONS.length
+                    ? BinaryEncoder.DESCRIPTIONS[descriptionId - 1] : Description.NOT_SUPPORTED;
+            userDefinedDescriptionLength = 0;
+            if (description == Description.USER_DEFINED) {
+                userDefinedDescriptionLength = (int) getVarint();
+                userDefinedDescriptionOffset = buffer.position();
+                skip(userDefinedDescriptionLength);
+            }
+            int unitId = (int) getVarint();
+            unit = unitId == 0 ? null : DlmsUnit.getInstance(unitId - 1);
+            multiplierExponent = (int) getZigzag();
+            storageNumber = getVarint();
+            tariff = (int) getVarint();
+            subunit = (int) getVarint();
+            dibLength = (int) getVarint();
+            dibOffset = buffer.position();
+            skip(dibLength);
+            vibLength = (int) getVarint();
+            vibOffset = buffer.position();
+            skip(vibLength);
+
+            longValue = 0;
+            stringLength = 0;
+            switch (valueType) {
+            case LONG:
+            case BCD:
+            case DATE:
+                longValue = getZigzag();
+                break;
+            case DOUBLE:
+                longValue = getFixedLong();
+                break;
+            case STRING:
+                stringLength = (int) getVarint();
+                stringOffset = buffer.position();
+                skip(stringLength);
+                break;
+            default:
+                break;
+            }
+        } catch (RuntimeException e) {
+            throw new DecodingException("Malformed data record.", e);
+        }
+        return true;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the secondary address of the current message in the format of {@link SecondaryAddress#asLong()}.
+     * 
+     * @return the address or 0 if it is unknown
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    public boolean hasRssi() {
+        return (flags & BinaryEncoder.FLAG_RSSI) != 0;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public boolean hasRecords() {
+        return (flags & BinaryEncoder.FLAG_RECORDS) != 0;
+    }
+
+    public int getAccessNumber() {
+        return accessNumber;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the manufacturer specific data of the current message as string.
+     * 
+     * @return the data or null if the message does not contain manufacturer specific data
+     */
+    public String getManufacturerSpecificData() {
+        if ((flags & BinaryEncoder.FLAG_MANUFACTURER_DATA) == 0) {
+            return null;
+        }
+        return getString(payloadOffset, payloadLength);
+    }
+
+    /**
+     * Returns the raw bytes of the current message. They are only contained if the message could not be decoded.
+     * 
+     * @return the raw bytes or null
+     */
+    public byte[] getRawMessage() {
+        if ((flags & BinaryEncoder.FLAG_RAW) == 0) {
+            return null;
+        }
+        return getBytes(payloadOffset, payloadLength);
+    }
+
+    public DataValueType getDataValueType() {
+        return valueType;
+    }
+
+    public FunctionField getFunctionField() {
+        return functionField;
+    }
+
+    /**
+     * Returns the description of the current data record. Descriptions that are unknown to this version of the library
+     * are returned as NOT_SUPPORTED.
+     * 
+     * @return the description
+     */
+    public Description getDescription() {
+        return description;
+    }
+
+    public String getUserDefinedDescription() {
+        if (description == Description.USER_DEFINED) {
+            return getString(userDefinedDescriptionOffset, userDefinedDescriptionLength);
+        }
+        return description.toString();
+    }
+
+    /**
+     * Returns the unit of the current data record.
+     * 
+     * @return the unit or null if the record has no unit
+     */
+    public DlmsUnit getUnit() {
+        return unit;
+    }
+
+    public int getMultiplierExponent() {
+        return multiplierExponent;
+    }
+
+    public long getStorageNumber() {
+        return storageNumber;
+    }
+
+    public int getTariff() {
+        return tariff;
+    }
+
+    public int getSubunit() {
+        return subunit;
+    }
+
+    public byte[] getDib() {
+        return getBytes(dibOffset, dibLength);
+    }
+
+    public byte[] getVib() {
+        return getBytes(vibOffset, vibLength);
+    }
+
+    /**
+     * Returns the unscaled value of a LONG or BCD record or the time in ms since 1970 of a DATE record.
+     * 
+     * @return the value
+     */
+    public long getLongValue() {
+        return longValue;
+    }
+
+    /**
+     * Returns the unscaled value of a LONG, BCD or DOUBLE record.
+     * 
+     * @return the value or NaN if the record is not numeric
+     */
+    public double getDoubleValue() {
+        switch (valueType) {
+        case LONG:
+        case BCD:
+            return longValue;
+        case DOUBLE:
+            return Double.longBitsToDouble(longValue);
+        default:
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns the value of a numeric record multiplied by 10^exponent.
+     * 
+     * @return the scaled value or NaN if the record is not numeric
+     */
+    public double getScaledValue() {
+        return getDoubleValue() * Math.pow(10, multiplierExponent);
+    }
+
+    /**
+     * Returns the value of a STRING record.
+     * 
+     * @return the value or null if the record is not a STRING record
+     */
+    public String getStringValue() {
+        if (valueType != DataValueType.STRING) {
+            return null;
+        }
+        return getString(stringOffset, stringLength);
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private long getZigzag() {
+        long value = getVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long getFixedLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (long) (buffer.get() & 0xff) << (i * 8);
+        }
+        return value;
+    }
+
+    private void skip(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("length exceeds buffer");
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private String getString(int offset, int length) {
+        return new String(getBytes(offset, length), BinaryEncoder.UTF_8);
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A {@link WMBusListener} that forwards only those data records whose value or storage number changed since the last
+ * message of the same meter. All records of a message are forwarded if the status field of the meter changed or if
+ * no records were forwarded for the configured heartbeat period. Messages that cannot be decoded or that have a
+ * manufacturer specific application layer are passed to {@link WMBusListener#newMessage(WMBusMessage)} of the
+ * listener.
+ * 
+ * Records are identified by their position within the message and their VIB, function, tariff and subunit. The last
+ * values are kept in primitive arrays per meter.
+ */
+public class ChangeFilter implements WMBusListener {
+
+    private final ChangeListener listener;
+    private final long heartbeatPeriod;
+
+    private final LongIndex meterIndex = new LongIndex(1024);
+    private MeterRecords[] meters = new MeterRecords[meterIndex.capacity()];
+
+    /**
+     * Creates a change filter without heartbeat.
+     * 
+     * @param listener
+     *            the listener the changed records are forwarded to
+     */
+    public ChangeFilter(ChangeListener listener) {
+        this(listener, 0);
+    }
+
+    /**
+     * Creates a change filter.
+     * 
+     * @param listener
+     *            the listener the changed records are forwarded to
+     * @param heartbeatPeriod
+     *            the time in ms after which all records of a meter are forwarded even if they did not change. 0
+     *            disables the heartbeat.
+     */
+    public ChangeFilter(ChangeListener listener, long heartbeatPeriod) {
+        if (heartbeatPeriod < 0) {
+            throw new IllegalArgumentException("heartbeat period may not be negative");
+        }
+        this.listener = listener;
+        this.heartbeatPeriod = heartbeatPeriod;
+    }
+
+    @Override
+    public void newMessage(WMBusMessage message) {
+        newMessage(message, System.currentTimeMillis());
+    }
+
+    void newMessage(WMBusMessage message, long timestamp) {
+        if (message.tryDecodeDeep() != DecodingStatus.OK || message.isManufacturerSpecific()) {
+            // there are no data records to compare
+            listener.newMessage(message);
+            return;
+        }
+
+        VariableDataStructure vds = message.getVariableDataResponse();
+        List<DataRecord> changedRecords = filter(message.getSecondaryAddress().asLong(), vds.getStatus(),
+                vds.getDataRecords(), timestamp);
+
+        if (!changedRecords.isEmpty()) {
+            listener.changedRecords(message, changedRecords);
+        }
+    }
+
+    @Override
+    public void discardedBytes(byte[] bytes) {
+        listener.discardedBytes(bytes);
+    }
+
+    @Override
+    public void stoppedListening(IOException e) {
+        listener.stoppedListening(e);
+    }
+
+    /**
+     * Returns the number of meters for which values are cached.
+     * 
+     * @return the number of meters
+     */
+    public synchronized int getMeterCount() {
+        return meterIndex.size();
+    }
+
+    private synchronized List<DataRecord> filter(long address, int status, List<DataRecord> dataRecords,
+            long timestamp) {
+
+        int slot = meterIndex.put(address);
+        if (slot == meters.length) {
+            meters = Arrays.copyOf(meters, meterIndex.capacity());
+        }
+
+        MeterRecords meter = meters[slot];
+        boolean forwardAll;
+        if (meter == null) {
+            meter = new MeterRecords();
+            meters[slot] = meter;
+            forwardAll = true;
+        }
+        else {
+            forwardAll = meter.status != status
+                    || (heartbeatPeriod != 0 && (timestamp - meter.lastForwarded) >= heartbeatPeriod);
+        }
+        meter.status = status;
+
+        List<DataRecord> changedRecords = null;
+        int i = 0;
+        for (DataRecord dataRecord : dataRecords) {
+            int key = recordKey(i, dataRecord);
+            long value = valueAsLong(dataRecord);
+            long storageNumber = dataRecord.getStorageNumber();
+
+            boolean changed = meter.update(i, key, value, storageNumber);
+
+            if (changed || forwardAll) {
+                if (changedRecords == null) {
+                    changedRecords = new ArrayList<DataRecord>(dataRecords.size());
+                }
+                changedRecords.add(dataRecord);
+            }
+            i++;
+        }
+        meter.numRecords = i;
+
+        if (changedRecords == null) {
+            return new ArrayList<DataRecord>(0);
+        }
+        meter.lastForwarded = timestamp;
+        return changedRecords;
+    }
+
+    private static int recordKey(int index, DataRecord dataRecord) {
+        int key = index;
+        key = 31 * key + Arrays.hashCode(dataRecord.getVib());
+        key = 31 * key + dataRecord.getFunctionField().ordinal();
+        key = 31 * key + dataRecord.getTariff();
+        return 31 * key + dataRecord.getSubunit();
+    }
+
+    private static long valueAsLong(DataRecord dataRecord) {
+        Object dataValue = dataRecord.getDataValue();
+        switch (dataRecord.getDataValueType()) {
+        case LONG:
+            return (Long) dataValue;
+        case DOUBLE:
+            return Double.doubleToLongBits((Double) dataValue);
+        case BCD:
+            return ((Bcd) dataValue).longValue();
+        case DATE:
+            // the decoded dates carry the milliseconds of the time of decoding
+            return ((Date) dataValue).getTime() / 1000;
+        case STRING:
+            return dataValue.hashCode();
+        default:
+            return 0;
+        }
+    }
+
+    private static class MeterRecords {
+
+        private int status;
+        private long lastForwarded;
+
+        private int numRecords = 0;
+        private int[] keys = new int[8];
+        private long[] values = new long[8];
+        private long[] storageNumbers = new long[8];
+
+        /**
+         * Stores the record at the given index and returns true if it differs from the record previously stored at
+         * this index.
+         */
+        boolean update(int index, int key, long value, long storageNumber) {
+            if (index >= keys.length) {
+                int newLength = keys.length * 2;
+                keys = Arrays.copyOf(keys, newLength);
+                values = Arrays.copyOf(values, newLength);
+                storageNumbers = Arrays.copyOf(storageNumbers, newLength);
+            }
+
+            boolean changed = index >= numRecords || keys[index] != key || values[index] != value
+                    || storageNumbers[index] != storageNumber;
+
+            keys[index] = key;
+            values[index] = value;
+            storageNumbers[index] = storageNumber;
+            return changed;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.List;
+
+/**
+ * Listener of a {@link ChangeFilter}. Messages that could not be decoded are passed on unaltered through
+ * {@link #newMessage(WMBusMessage)}.
+ */
+public interface ChangeListener extends WMBusListener {
+
+    /**
+     * Called for every message that contains at least one data record that changed since the last message of the
+     * same meter or if the heartbeat period of the meter elapsed.
+     * 
+     * @param message
+     *            the decoded message
+     * @param changedRecords
+     *            the data records to be forwarded
+     */
+    public void changedRecords(WMBusMessage message, List<DataRecord> changedRecords);
+
+}
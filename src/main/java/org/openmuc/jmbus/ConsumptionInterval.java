@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * The aggregated values of one data record of one meter within one interval as created by an
+ * {@link IntervalAggregator}. A <code>ConsumptionInterval</code> is reused by the aggregator for every interval it
+ * passes to its {@link IntervalListener} in order to avoid allocating an object per interval.
+ * 
+ * All values are scaled, i.e. multiplied by the multiplier of the data record.
+ */
+public class ConsumptionInterval {
+
+    private long address;
+    private byte[] dib;
+    private byte[] vib;
+    private long start;
+    private long end;
+    private double first;
+    private double last;
+    private double min;
+    private double max;
+    private double delta;
+    private int sampleCount;
+
+    void set(long address, byte[] dib, byte[] vib, long start, long end, double first, double last, double min,
+            double max, double delta, int sampleCount) {
+        this.address = address;
+        this.dib = dib;
+        this.vib = vib;
+        this.start = start;
+        this.end = end;
+        this.first = first;
+        this.last = last;
+        this.min = min;
+        this.max = max;
+        this.delta = delta;
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * Returns the secondary address of the meter as returned by {@link SecondaryAddress#asLong()}.
+     * 
+     * @return the address as long value
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    public byte[] getDib() {
+        return dib;
+    }
+
+    public byte[] getVib() {
+        return vib;
+    }
+
+    /**
+     * Returns the start of the interval (inclusive).
+     * 
+     * @return the start time
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the end of the interval (exclusive).
+     * 
+     * @return the end time
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public double getFirst() {
+        return first;
+    }
+
+    public double getLast() {
+        return last;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the increase of the value within the interval, i.e. the consumption if the data record is a counter.
+     * The increase since the last sample of the previous interval is included. Counter rollovers are taken into
+     * account.
+     * 
+     * @return the increase of the value
+     */
+    public double getDelta() {
+        return delta;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public String toString() {
+        return "start: " + start + ", end: " + end + ", first: " + first + ", last: " + last + ", min: " + min
+                + ", max: " + max + ", delta: " + delta + ", samples: " + sampleCount;
+    }
+
+}
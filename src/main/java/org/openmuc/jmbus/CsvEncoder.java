@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import static org.openmuc.jmbus.AsciiEncoding.putAscii;
+import static org.openmuc.jmbus.AsciiEncoding.putCsvString;
+import static org.openmuc.jmbus.AsciiEncoding.putDeviceId;
+import static org.openmuc.jmbus.AsciiEncoding.putHex;
+import static org.openmuc.jmbus.AsciiEncoding.putLong;
+import static org.openmuc.jmbus.AsciiEncoding.putNumericValue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes messages as semicolon separated values. One line is written per data record. Messages that could not be
+ * decoded are written as a single line that contains the raw bytes of the message in the value column. The columns
+ * are described by {@link #HEADER}.
+ */
+public class CsvEncoder implements MessageEncoder {
+
+    public static final String HEADER = "timestamp;manufacturer;device_id;version;device_type;rssi;storage_number;"
+            + "tariff;subunit;function;description;dib;vib;value;unit\n";
+
+    @Override
+    public void encode(WMBusMessage message, long timestamp, ByteBuffer buffer) {
+        VariableDataStructure vdr = message.getVariableDataResponse();
+        List<DataRecord> dataRecords = vdr == null ? null : vdr.getDataRecords();
+
+        if (dataRecords == null || dataRecords.isEmpty()) {
+            putAddress(message.getSecondaryAddress(), message.getRssi(), timestamp, buffer);
+            putAscii(buffer, ";;;;;;;");
+            Object data = message.getManufacturerSpecificData();
+            if (data != null) {
+                putCsvString(buffer, data.toString());
+            }
+            else {
+                putHex(buffer, message.asBytes());
+            }
+            buffer.put((byte) ';').put((byte) '\n');
+            return;
+        }
+        putRecords(message.getSecondaryAddress(), message.getRssi(), dataRecords, timestamp, buffer);
+    }
+
+    @Override
+    public void encode(VariableDataStructure vds, long timestamp, ByteBuffer buffer) {
+        putRecords(vds.getSecondaryAddress(), null, vds.getDataRecords(), timestamp, buffer);
+    }
+
+    private static void putRecords(SecondaryAddress address, Integer rssi, List<DataRecord> dataRecords,
+            long timestamp, ByteBuffer buffer) {
+        for (DataRecord dataRecord : dataRecords) {
+            putAddress(address, rssi, timestamp, buffer);
+            putLong(buffer, dataRecord.getStorageNumber());
+            buffer.put((byte) ';');
+            putLong(buffer, dataRecord.getTariff());
+            buffer.put((byte) ';');
+            putLong(buffer, dataRecord.getSubunit());
+            buffer.put((byte) ';');
+            putAscii(buffer, dataRecord.getFunctionField().name());
+            buffer.put((byte) ';');
+            putCsvString(buffer, dataRecord.getUserDefinedDescription());
+            buffer.put((byte) ';');
+            putHex(buffer, dataRecord.getDib());
+            buffer.put((byte) ';');
+            putHex(buffer, dataRecord.getVib());
+            buffer.put((byte) ';');
+            if (!putNumericValue(buffer, dataRecord)) {
+                putCsvString(buffer, AsciiEncoding.valueAsString(dataRecord));
+            }
+            buffer.put((byte) ';');
+            if (dataRecord.getUnit() != null) {
+                putCsvString(buffer, dataRecord.getUnit().getUnit());
+            }
+            buffer.put((byte) '\n');
+        }
+    }
+
+    private static void putAddress(SecondaryAddress address, Integer rssi, long timestamp, ByteBuffer buffer) {
+        putLong(buffer, timestamp);
+        buffer.put((byte) ';');
+        if (address != null) {
+            putAscii(buffer, address.getManufacturerId());
+            buffer.put((byte) ';');
+            putDeviceId(buffer, address.getDeviceId());
+            buffer.put((byte) ';');
+            putLong(buffer, address.getVersion());
+            buffer.put((byte) ';');
+            putAscii(buffer, address.getDeviceType().name());
+            buffer.put((byte) ';');
+        }
+        else {
+            putAscii(buffer, ";;;;");
+        }
+        if (rssi != null) {
+            putLong(buffer, rssi);
+        }
+        buffer.put((byte) ';');
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * Maps the CI field, manufacturer ID and device type of wireless M-Bus messages to the
+ * {@link ManufacturerSpecificDecoder} that decodes their application layer. The decoder of a message is looked up
+ * once, directly after its link layer header was decoded. Messages without a registered decoder are decoded as
+ * standard variable data structures.
+ * 
+ * The registry is safe to be used by several threads. Decoders are usually registered at startup while lookups happen
+ * for every received message and therefore do not need any locking.
+ */
+public class DecoderRegistry {
+
+    private static final DecoderRegistry defaultRegistry = new DecoderRegistry();
+
+    static {
+        ManufacturerSpecificDecoder techemDecoder = new TechemHKVDecoder();
+        defaultRegistry.register(0xa0, "TCH", null, techemDecoder);
+        defaultRegistry.register(0xa2, "TCH", null, techemDecoder);
+    }
+
+    private static class Entry {
+        private final String manufacturerId;
+        private final DeviceType deviceType;
+        private final ManufacturerSpecificDecoder decoder;
+
+        Entry(String manufacturerId, DeviceType deviceType, ManufacturerSpecificDecoder decoder) {
+            this.manufacturerId = manufacturerId;
+            this.deviceType = deviceType;
+            this.decoder = decoder;
+        }
+
+        boolean matches(SecondaryAddress secondaryAddress) {
+            return (manufacturerId == null || manufacturerId.equals(secondaryAddress.getManufacturerId()))
+                    && (deviceType == null || deviceType == secondaryAddress.getDeviceType());
+        }
+    }
+
+    // entries indexed by CI field, replaced as a whole on registration
+    private volatile Entry[][] entriesByCiField = new Entry[256][];
+
+    /**
+     * Returns the registry that is used by default. It contains the decoder for Techem heat cost allocators (CI fields
+     * 0xA0 and 0xA2 of manufacturer TCH).
+     * 
+     * @return the default registry
+     */
+    public static DecoderRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * Registers a decoder. Decoders registered with a manufacturer ID or device type take precedence over decoders
+     * registered without for the same CI field.
+     * 
+     * @param ciField
+     *            the CI field of the messages to decode
+     * @param manufacturerId
+     *            the three letter manufacturer ID or null to match all manufacturers
+     * @param deviceType
+     *            the device type or null to match all device types
+     * @param decoder
+     *            the decoder
+     */
+    public synchronized void register(int ciField, String manufacturerId, DeviceType deviceType,
+            ManufacturerSpecificDecoder decoder) {
+        if (ciField < 0 || ciField > 0xff) {
+            throw new IllegalArgumentException("CI field has to be in the range 0 to 255");
+        }
+        if (decoder == null) {
+            throw new IllegalArgumentException("decoder may not be null");
+        }
+        Entry entry = new Entry(manufacturerId, deviceType, decoder);
+
+        Entry[] oldEntries = entriesByCiField[ciField];
+        Entry[] newEntries;
+        if (oldEntries == null) {
+            newEntries = new Entry[] { entry };
+        }
+        else {
+            // keep the more specific entries in front so that the first match is the best match
+            newEntries = Arrays.copyOf(oldEntries, oldEntries.length + 1);
+            int i = newEntries.length - 1;
+            while (i > 0 && specificity(newEntries[i - 1]) < specificity(entry)) {
+                newEntries[i] = newEntries[i - 1];
+                i--;
+            }
+            newEntries[i] = entry;
+        }
+
+        Entry[][] newTable = entriesByCiField.clone();
+        newTable[ciField] = newEntries;
+        entriesByCiField = newTable;
+    }
+
+    /**
+     * Removes all decoders registered for the given CI field.
+     * 
+     * @param ciField
+     *            the CI field
+     */
+    public synchronized void unregister(int ciField) {
+        Entry[][] newTable = entriesByCiField.clone();
+        newTable[ciField & 0xff] = null;
+        entriesByCiField = newTable;
+    }
+
+    /**
+     * Returns the decoder for a message.
+     * 
+     * @param ciField
+     *            the CI field of the message
+     * @param secondaryAddress
+     *            the secondary address of the sender
+     * @return the decoder or null if the message should be decoded as standard variable data structure
+     */
+    public ManufacturerSpecificDecoder lookup(int ciField, SecondaryAddress secondaryAddress) {
+        Entry[] entries = entriesByCiField[ciField & 0xff];
+        if (entries == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (entry.matches(secondaryAddress)) {
+                return entry.decoder;
+            }
+        }
+        return null;
+    }
+
+    private static int specificity(Entry entry) {
+        int specificity = 0;
+        if (entry.manufacturerId != null) {
+            specificity += 2;
+        }
+        if (entry.deviceType != null) {
+            specificity += 1;
+        }
+        return specificity;
+    }
+
+}
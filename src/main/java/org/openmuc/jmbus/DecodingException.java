@@ -24,20 +24,49 @@ public class DecodingException extends Exception {
 
     private static final long serialVersionUID = 1735527302166708223L;
 
+    private final DecodingStatus status;
+
     public DecodingException() {
         super();
+        status = DecodingStatus.INVALID_DATA;
     }
 
     public DecodingException(String s) {
         super(s);
+        status = DecodingStatus.INVALID_DATA;
     }
 
     public DecodingException(Throwable cause) {
         super(cause);
+        status = DecodingStatus.INVALID_DATA;
     }
 
     public DecodingException(String s, Throwable cause) {
         super(s, cause);
+        status = DecodingStatus.INVALID_DATA;
+    }
+
+    public DecodingException(String s, DecodingStatus status) {
+        super(s);
+        this.status = status;
+    }
+
+    /**
+     * Creates the shared exception of a status without stack trace.
+     */
+    DecodingException(DecodingStatus status) {
+        super(status.toString(), null, false, false);
+        this.status = status;
+    }
+
+    /**
+     * Returns the reason of the exception. Exceptions that were created without status return
+     * {@link DecodingStatus#INVALID_DATA}.
+     * 
+     * @return the status
+     */
+    public DecodingStatus getStatus() {
+        return status;
     }
 
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * The result of {@link WMBusMessage#tryDecode()}, {@link WMBusMessage#tryDecodeDeep()} and
+ * {@link VariableDataStructure#tryDecode()}. These methods report routine failures like a missing key or an
+ * unsupported CI field without creating an exception, which matters when most received messages are sent by foreign
+ * meters.
+ */
+public enum DecodingStatus {
+
+    /**
+     * The message was decoded successfully.
+     */
+    OK,
+    /**
+     * The length field of the message does not fit the number of received bytes.
+     */
+    INVALID_LENGTH,
+    /**
+     * The CI field is not supported.
+     */
+    UNSUPPORTED_CI_FIELD,
+    /**
+     * The CI field is manufacturer specific and no decoder was registered for it.
+     */
+    MANUFACTURER_SPECIFIC_CI_FIELD,
+    /**
+     * The message is encrypted and no key was registered for its sender.
+     */
+    NO_KEY,
+    /**
+     * The message is encrypted using an unsupported encryption mode.
+     */
+    UNSUPPORTED_ENCRYPTION_MODE,
+    /**
+     * The decryption failed, most likely because of a wrong key.
+     */
+    DECRYPTION_FAILED,
+    /**
+     * The content of the message is invalid (e.g. a data record could not be decoded).
+     */
+    INVALID_DATA;
+
+    private final DecodingException exception;
+
+    private DecodingStatus() {
+        exception = new DecodingException(this);
+    }
+
+    /**
+     * Returns a preallocated exception for this status. The exception is shared and has no stack trace so that it can
+     * be thrown at no cost.
+     * 
+     * @return the shared exception
+     */
+    public DecodingException getException() {
+        return exception;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import static org.openmuc.jmbus.AsciiEncoding.putAscii;
+import static org.openmuc.jmbus.AsciiEncoding.putDeviceId;
+import static org.openmuc.jmbus.AsciiEncoding.putHex;
+import static org.openmuc.jmbus.AsciiEncoding.putLong;
+import static org.openmuc.jmbus.AsciiEncoding.putNumericValue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes messages in the InfluxDB line protocol. One line is written per numeric data record of measurement "mbus".
+ * The address of the meter and the DIB, VIB and description of the record are written as tags, the scaled value and
+ * the RSSI as fields. The timestamp is written in ns. Records with non numeric values and messages that have not been
+ * decoded are skipped.
+ */
+public class InfluxLineEncoder implements MessageEncoder {
+
+    private final String measurement;
+
+    public InfluxLineEncoder() {
+        this("mbus");
+    }
+
+    public InfluxLineEncoder(String measurement) {
+        this.measurement = measurement;
+    }
+
+    @Override
+    public void encode(WMBusMessage message, long timestamp, ByteBuffer buffer) {
+        VariableDataStructure vdr = message.getVariableDataResponse();
+        if (vdr != null) {
+            putRecords(message.getSecondaryAddress(), message.getRssi(), vdr.getDataRecords(), timestamp, buffer);
+        }
+    }
+
+    @Override
+    public void encode(VariableDataStructure vds, long timestamp, ByteBuffer buffer) {
+        putRecords(vds.getSecondaryAddress(), null, vds.getDataRecords(), timestamp, buffer);
+    }
+
+    private void putRecords(SecondaryAddress address, Integer rssi, List<DataRecord> dataRecords, long timestamp,
+            ByteBuffer buffer) {
+        if (address == null || dataRecords == null) {
+            return;
+        }
+
+        for (DataRecord dataRecord : dataRecords) {
+            int start = buffer.position();
+            putEscaped(buffer, measurement);
+            putAscii(buffer, ",manufacturer=");
+            putEscaped(buffer, address.getManufacturerId());
+            putAscii(buffer, ",device_id=");
+            putDeviceId(buffer, address.getDeviceId());
+            putAscii(buffer, ",device_type=");
+            putAscii(buffer, address.getDeviceType().name());
+            putAscii(buffer, ",dib=");
+            putHex(buffer, dataRecord.getDib());
+            putAscii(buffer, ",vib=");
+            putHex(buffer, dataRecord.getVib());
+            String description = dataRecord.getUserDefinedDescription();
+            if (description != null && !description.isEmpty()) {
+                putAscii(buffer, ",description=");
+                putEscaped(buffer, description);
+            }
+            putAscii(buffer, " value=");
+            if (!putNumericValue(buffer, dataRecord)) {
+                buffer.position(start);
+                continue;
+            }
+            if (rssi != null) {
+                putAscii(buffer, ",rssi=");
+                putLong(buffer, rssi);
+                buffer.put((byte) 'i');
+            }
+            buffer.put((byte) ' ');
+            putLong(buffer, timestamp);
+            putAscii(buffer, "000000\n");
+        }
+    }
+
+    /**
+     * Writes a measurement name or tag value. Commas, spaces and equal signs are escaped.
+     */
+    private static void putEscaped(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == ' ' || c == '=') {
+                buffer.put((byte) '\\');
+            }
+            buffer.put(c < 128 ? (byte) c : (byte) '?');
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the values of decoded data records into fixed intervals (e.g. hours or days) while they are received.
+ * For every meter and data record (identified by DIB and VIB) the first, last, minimum and maximum value and the
+ * increase (delta) within the current interval are kept. As soon as a value of a later interval is received, or
+ * {@link #closeIntervals(long)} is called after the end of an interval, the interval is closed and passed to the
+ * {@link IntervalListener}. The last closed intervals of every series can be retained and queried.
+ * 
+ * Only instantaneous numeric values with storage number 0 are aggregated. Values with a higher storage number are
+ * historic values (e.g. the reading at the last due date). They do not belong to the time of reception and are
+ * therefore ignored.
+ * 
+ * If a counter value decreases by more than half of the range of its data field the counter is assumed to have rolled
+ * over (e.g. an 8 digit BCD counter from 99999999 to 0) and the delta is corrected accordingly.
+ * 
+ * The state is kept in primitive arrays, the memory needed per series is constant.
+ */
+public class IntervalAggregator {
+
+    private static final long NO_INTERVAL = Long.MIN_VALUE;
+
+    private final long intervalLength;
+    private final long intervalOffset;
+    private final int retainedIntervals;
+    private final IntervalListener listener;
+    private final ConsumptionInterval interval = new ConsumptionInterval();
+
+    private final LongIndex seriesIndex = new LongIndex(1024);
+
+    // series
+    private long[] addresses;
+    private byte[][] dibs;
+    private byte[][] vibs;
+    private double[] moduli;
+    private double[] previousValues;
+    private long[] previousTimestamps;
+
+    // open intervals
+    private long[] starts;
+    private double[] firsts;
+    private double[] lasts;
+    private double[] mins;
+    private double[] maxs;
+    private double[] deltas;
+    private int[] sampleCounts;
+
+    // ring buffers of closed intervals, retainedIntervals entries per series
+    private int[] ringHeads;
+    private int[] ringSizes;
+    private long[] ringStarts;
+    private double[] ringFirsts;
+    private double[] ringLasts;
+    private double[] ringMins;
+    private double[] ringMaxs;
+    private double[] ringDeltas;
+    private int[] ringSampleCounts;
+
+    /**
+     * Creates an aggregator with intervals aligned to multiples of the interval length since 1970-01-01 00:00 UTC.
+     * 
+     * @param intervalLength
+     *            the length of an interval in ms
+     * @param retainedIntervals
+     *            the number of closed intervals retained per series, may be 0
+     * @param listener
+     *            the listener closed intervals are passed to, may be null
+     */
+    public IntervalAggregator(long intervalLength, int retainedIntervals, IntervalListener listener) {
+        this(intervalLength, 0, retainedIntervals, listener);
+    }
+
+    /**
+     * Creates an aggregator.
+     * 
+     * @param intervalLength
+     *            the length of an interval in ms
+     * @param intervalOffset
+     *            the offset of the interval start in ms. E.g. -3600000 for daily intervals in UTC+1.
+     * @param retainedIntervals
+     *            the number of closed intervals retained per series, may be 0
+     * @param listener
+     *            the listener closed intervals are passed to, may be null
+     */
+    public IntervalAggregator(long intervalLength, long intervalOffset, int retainedIntervals,
+            IntervalListener listener) {
+        if (intervalLength <= 0) {
+            throw new IllegalArgumentException("interval length has to be greater than 0");
+        }
+        if (retainedIntervals < 0) {
+            throw new IllegalArgumentException("number of retained intervals may not be negative");
+        }
+        this.intervalLength = intervalLength;
+        this.intervalOffset = intervalOffset;
+        this.retainedIntervals = retainedIntervals;
+        this.listener = listener;
+        allocate(seriesIndex.capacity());
+    }
+
+    /**
+     * Adds the value of a data record.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param dataRecord
+     *            the decoded data record
+     * @param timestamp
+     *            the time the value was received
+     * @return true if the value was aggregated. False if the record is not an instantaneous numeric value with storage
+     *         number 0 or if the timestamp is older than the last value of the series.
+     */
+    public synchronized boolean add(SecondaryAddress address, DataRecord dataRecord, long timestamp) {
+        if (dataRecord.getStorageNumber() != 0 || dataRecord.getFunctionField() != DataRecord.FunctionField.INST_VAL) {
+            return false;
+        }
+        Object dataValue = dataRecord.getDataValue();
+        if (!(dataValue instanceof Number)) {
+            return false;
+        }
+        double scale = Math.pow(10, dataRecord.getMultiplierExponent());
+        double value = ((Number) dataValue).doubleValue() * scale;
+
+        byte[] dib = dataRecord.getDib();
+        byte[] vib = dataRecord.getVib();
+        long key = seriesKey(address.asLong(), dib, vib);
+
+        int slot = seriesIndex.get(key);
+        if (slot == -1) {
+            slot = seriesIndex.put(key);
+            if (slot == addresses.length) {
+                grow(seriesIndex.capacity());
+            }
+            addresses[slot] = address.asLong();
+            dibs[slot] = dib.clone();
+            vibs[slot] = vib.clone();
+            moduli[slot] = modulus(dib[0] & 0x0f) * scale;
+            previousValues[slot] = Double.NaN;
+            previousTimestamps[slot] = Long.MIN_VALUE;
+            starts[slot] = NO_INTERVAL;
+        }
+        else if (addresses[slot] != address.asLong() || !Arrays.equals(dibs[slot], dib)
+                || !Arrays.equals(vibs[slot], vib)) {
+            // two series with the same key, extremely unlikely
+            return false;
+        }
+
+        if (timestamp < previousTimestamps[slot]) {
+            return false;
+        }
+
+        long start = intervalStart(timestamp);
+        if (starts[slot] != start) {
+            if (starts[slot] != NO_INTERVAL) {
+                close(slot);
+            }
+            starts[slot] = start;
+            firsts[slot] = value;
+            mins[slot] = value;
+            maxs[slot] = value;
+            deltas[slot] = 0;
+            sampleCounts[slot] = 0;
+        }
+
+        double previousValue = previousValues[slot];
+        if (!Double.isNaN(previousValue)) {
+            double delta = value - previousValue;
+            if (delta < 0 && moduli[slot] > 0 && -delta > moduli[slot] / 2) {
+                delta += moduli[slot];
+            }
+            deltas[slot] += delta;
+        }
+        lasts[slot] = value;
+        mins[slot] = Math.min(mins[slot], value);
+        maxs[slot] = Math.max(maxs[slot], value);
+        sampleCounts[slot]++;
+
+        previousValues[slot] = value;
+        previousTimestamps[slot] = timestamp;
+        return true;
+    }
+
+    /**
+     * Adds the values of all data records of a decoded variable data structure.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param vds
+     *            the decoded variable data structure
+     * @param timestamp
+     *            the time the message was received
+     * @return the number of aggregated values
+     */
+    public synchronized int add(SecondaryAddress address, VariableDataStructure vds, long timestamp) {
+        int numAdded = 0;
+        for (DataRecord dataRecord : vds.getDataRecords()) {
+            if (add(address, dataRecord, timestamp)) {
+                numAdded++;
+            }
+        }
+        return numAdded;
+    }
+
+    /**
+     * Closes all intervals that ended before the given time, including those of meters that did not send any values
+     * since. Should be called periodically, e.g. shortly after the end of every interval.
+     * 
+     * @param now
+     *            the current time
+     * @return the number of closed intervals
+     */
+    public synchronized int closeIntervals(long now) {
+        int numClosed = 0;
+        for (int slot = 0; slot < seriesIndex.size(); slot++) {
+            if (starts[slot] != NO_INTERVAL && starts[slot] + intervalLength <= now) {
+                close(slot);
+                starts[slot] = NO_INTERVAL;
+                numClosed++;
+            }
+        }
+        return numClosed;
+    }
+
+    /**
+     * Passes the retained closed intervals of a series to the given listener, oldest first.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param dib
+     *            the DIB of the data record
+     * @param vib
+     *            the VIB of the data record
+     * @param intervalListener
+     *            the listener the intervals are passed to
+     * @return the number of intervals
+     */
+    public synchronized int getClosedIntervals(SecondaryAddress address, byte[] dib, byte[] vib,
+            IntervalListener intervalListener) {
+        long key = seriesKey(address.asLong(), dib, vib);
+        int slot = seriesIndex.get(key);
+        if (slot == -1 || retainedIntervals == 0) {
+            return 0;
+        }
+        int size = ringSizes[slot];
+        int oldest = ringHeads[slot] - size;
+        for (int i = 0; i < size; i++) {
+            int entry = slot * retainedIntervals + ((oldest + i + retainedIntervals) % retainedIntervals);
+            interval.set(addresses[slot], dibs[slot], vibs[slot], ringStarts[entry], ringStarts[entry] + intervalLength,
+                    ringFirsts[entry], ringLasts[entry], ringMins[entry], ringMaxs[entry], ringDeltas[entry],
+                    ringSampleCounts[entry]);
+            intervalListener.intervalClosed(interval);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of series (combinations of meter and data record) that are aggregated.
+     * 
+     * @return the number of series
+     */
+    public synchronized int getSeriesCount() {
+        return seriesIndex.size();
+    }
+
+    private static long seriesKey(long address, byte[] dib, byte[] vib) {
+        return address ^ ((31L * Arrays.hashCode(dib) + Arrays.hashCode(vib)) * 0x9e3779b97f4a7c15L);
+    }
+
+    private long intervalStart(long timestamp) {
+        long shifted = timestamp - intervalOffset;
+        // floor division for timestamps before 1970
+        long start = shifted - (((shifted % intervalLength) + intervalLength) % intervalLength);
+        return start + intervalOffset;
+    }
+
+    private void close(int slot) {
+        if (retainedIntervals > 0) {
+            int entry = slot * retainedIntervals + ringHeads[slot];
+            ringStarts[entry] = starts[slot];
+            ringFirsts[entry] = firsts[slot];
+            ringLasts[entry] = lasts[slot];
+            ringMins[entry] = mins[slot];
+            ringMaxs[entry] = maxs[slot];
+            ringDeltas[entry] = deltas[slot];
+            ringSampleCounts[entry] = sampleCounts[slot];
+            ringHeads[slot] = (ringHeads[slot] + 1) % retainedIntervals;
+            if (ringSizes[slot] < retainedIntervals) {
+                ringSizes[slot]++;
+            }
+        }
+        if (listener != null) {
+            interval.set(addresses[slot], dibs[slot], vibs[slot], starts[slot], starts[slot] + intervalLength,
+                    firsts[slot], lasts[slot], mins[slot], maxs[slot], deltas[slot], sampleCounts[slot]);
+            listener.intervalClosed(interval);
+        }
+    }
+
+    /**
+     * Returns the value at which a counter with the given data field rolls over or 0 if unknown.
+     */
+    private static double modulus(int dataField) {
+        switch (dataField) {
+        case 0x01:
+            return 1L << 8;
+        case 0x02:
+            return 1L << 16;
+        case 0x03:
+            return 1L << 24;
+        case 0x04:
+            return 1L << 32;
+        case 0x06:
+            return 1L << 48;
+        case 0x09:
+            return 1e2;
+        case 0x0a:
+            return 1e4;
+        case 0x0b:
+            return 1e6;
+        case 0x0c:
+            return 1e8;
+        case 0x0e:
+            return 1e12;
+        default:
+            return 0;
+        }
+    }
+
+    private void allocate(int capacity) {
+        addresses = new long[capacity];
+        dibs = new byte[capacity][];
+        vibs = new byte[capacity][];
+        moduli = new double[capacity];
+        previousValues = new double[capacity];
+        previousTimestamps = new long[capacity];
+        starts = new long[capacity];
+        firsts = new double[capacity];
+        lasts = new double[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        deltas = new double[capacity];
+        sampleCounts = new int[capacity];
+        ringHeads = new int[capacity];
+        ringSizes = new int[capacity];
+        ringStarts = new long[capacity * retainedIntervals];
+        ringFirsts = new double[capacity * retainedIntervals];
+        ringLasts = new double[capacity * retainedIntervals];
+        ringMins = new double[capacity * retainedIntervals];
+        ringMaxs = new double[capacity * retainedIntervals];
+        ringDeltas = new double[capacity * retainedIntervals];
+        ringSampleCounts = new int[capacity * retainedIntervals];
+    }
+
+    private void grow(int capacity) {
+        addresses = Arrays.copyOf(addresses, capacity);
+        dibs = Arrays.copyOf(dibs, capacity);
+        vibs = Arrays.copyOf(vibs, capacity);
+        moduli = Arrays.copyOf(moduli, capacity);
+        previousValues = Arrays.copyOf(previousValues, capacity);
+        previousTimestamps = Arrays.copyOf(previousTimestamps, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        firsts = Arrays.copyOf(firsts, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        deltas = Arrays.copyOf(deltas, capacity);
+        sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+        ringHeads = Arrays.copyOf(ringHeads, capacity);
+        ringSizes = Arrays.copyOf(ringSizes, capacity);
+        ringStarts = Arrays.copyOf(ringStarts, capacity * retainedIntervals);
+        ringFirsts = Arrays.copyOf(ringFirsts, capacity * retainedIntervals);
+        ringLasts = Arrays.copyOf(ringLasts, capacity * retainedIntervals);
+        ringMins = Arrays.copyOf(ringMins, capacity * retainedIntervals);
+        ringMaxs = Arrays.copyOf(ringMaxs, capacity * retainedIntervals);
+        ringDeltas = Arrays.copyOf(ringDeltas, capacity * retainedIntervals);
+        ringSampleCounts = Arrays.copyOf(ringSampleCounts, capacity * retainedIntervals);
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Listener of an {@link IntervalAggregator}.
+ */
+public interface IntervalListener {
+
+    /**
+     * Called for every interval that was closed. The passed object is reused by the aggregator and is only valid
+     * during this call.
+     * 
+     * @param interval
+     *            the closed interval
+     */
+    public void intervalClosed(ConsumptionInterval interval);
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import static org.openmuc.jmbus.AsciiEncoding.putAscii;
+import static org.openmuc.jmbus.AsciiEncoding.putDeviceId;
+import static org.openmuc.jmbus.AsciiEncoding.putHex;
+import static org.openmuc.jmbus.AsciiEncoding.putJsonString;
+import static org.openmuc.jmbus.AsciiEncoding.putLong;
+import static org.openmuc.jmbus.AsciiEncoding.putNumericValue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes every message as one JSON object followed by a line feed (JSON lines format). Decoded data records are
+ * written to the "records" array. Manufacturer specific data is written as string to "data". Messages that could not
+ * be decoded contain their raw bytes as hex string in "raw".
+ */
+public class JsonLinesEncoder implements MessageEncoder {
+
+    @Override
+    public void encode(WMBusMessage message, long timestamp, ByteBuffer buffer) {
+        putHeader(message.getSecondaryAddress(), message.getRssi(), timestamp, buffer);
+
+        VariableDataStructure vdr = message.getVariableDataResponse();
+        List<DataRecord> dataRecords = vdr == null ? null : vdr.getDataRecords();
+        Object data = message.getManufacturerSpecificData();
+
+        if (dataRecords != null && !dataRecords.isEmpty()) {
+            putRecords(vdr, buffer);
+        }
+        else if (data != null) {
+            putAscii(buffer, ",\"data\":");
+            putJsonString(buffer, data.toString());
+        }
+        else {
+            putAscii(buffer, ",\"raw\":\"");
+            putHex(buffer, message.asBytes());
+            buffer.put((byte) '"');
+        }
+        buffer.put((byte) '}').put((byte) '\n');
+    }
+
+    @Override
+    public void encode(VariableDataStructure vds, long timestamp, ByteBuffer buffer) {
+        putHeader(vds.getSecondaryAddress(), null, timestamp, buffer);
+        putRecords(vds, buffer);
+        buffer.put((byte) '}').put((byte) '\n');
+    }
+
+    private static void putHeader(SecondaryAddress address, Integer rssi, long timestamp, ByteBuffer buffer) {
+        putAscii(buffer, "{\"timestamp\":");
+        putLong(buffer, timestamp);
+        if (address != null) {
+            putAscii(buffer, ",\"manufacturer\":\"");
+            putAscii(buffer, address.getManufacturerId());
+            putAscii(buffer, "\",\"device_id\":\"");
+            putDeviceId(buffer, address.getDeviceId());
+            putAscii(buffer, "\",\"version\":");
+            putLong(buffer, address.getVersion());
+            putAscii(buffer, ",\"device_type\":\"");
+            putAscii(buffer, address.getDeviceType().name());
+            buffer.put((byte) '"');
+        }
+        if (rssi != null) {
+            putAscii(buffer, ",\"rssi\":");
+            putLong(buffer, rssi);
+        }
+    }
+
+    private static void putRecords(VariableDataStructure vds, ByteBuffer buffer) {
+        putAscii(buffer, ",\"access_number\":");
+        putLong(buffer, vds.getAccessNumber());
+        putAscii(buffer, ",\"records\":[");
+        boolean first = true;
+        for (DataRecord dataRecord : vds.getDataRecords()) {
+            if (!first) {
+                buffer.put((byte) ',');
+            }
+            first = false;
+            putRecord(dataRecord, buffer);
+        }
+        buffer.put((byte) ']');
+    }
+
+    private static void putRecord(DataRecord dataRecord, ByteBuffer buffer) {
+        putAscii(buffer, "{\"dib\":\"");
+        putHex(buffer, dataRecord.getDib());
+        putAscii(buffer, "\",\"vib\":\"");
+        putHex(buffer, dataRecord.getVib());
+        putAscii(buffer, "\",\"storage_number\":");
+        putLong(buffer, dataRecord.getStorageNumber());
+        putAscii(buffer, ",\"tariff\":");
+        putLong(buffer, dataRecord.getTariff());
+        putAscii(buffer, ",\"subunit\":");
+        putLong(buffer, dataRecord.getSubunit());
+        putAscii(buffer, ",\"function\":\"");
+        putAscii(buffer, dataRecord.getFunctionField().name());
+        putAscii(buffer, "\",\"description\":");
+        putJsonString(buffer, dataRecord.getUserDefinedDescription());
+        putAscii(buffer, ",\"value\":");
+        if (!putNumericValue(buffer, dataRecord)) {
+            putJsonString(buffer, AsciiEncoding.valueAsString(dataRecord));
+        }
+        if (dataRecord.getUnit() != null) {
+            putAscii(buffer, ",\"unit\":");
+            putJsonString(buffer, dataRecord.getUnit().getUnit());
+        }
+        buffer.put((byte) '}');
+    }
+
+}
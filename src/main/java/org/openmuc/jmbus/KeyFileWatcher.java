@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Loads a key file (see {@link KeyTable}) and reloads it whenever it is modified. Every successfully loaded table is
+ * passed to the listener, which typically hands it to {@link WMBusSap#setKeyTable(KeyTable)}. If a modified file
+ * cannot be parsed the previously loaded keys stay in use.
+ */
+public class KeyFileWatcher implements Closeable {
+
+    /**
+     * Receives the key tables loaded by a {@link KeyFileWatcher}.
+     */
+    public interface Listener {
+
+        /**
+         * Called with the initial key table and then whenever the key file was modified and loaded successfully.
+         * 
+         * @param keyTable
+         *            the new key table
+         */
+        void keyTableLoaded(KeyTable keyTable);
+
+        /**
+         * Called from the watcher thread if a modified key file could not be loaded.
+         * 
+         * @param e
+         *            the exception
+         */
+        void keyFileError(IOException e);
+    }
+
+    // editors often write a file in several steps
+    private static final long SETTLE_TIME = 200;
+
+    private final Path file;
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private long lastModified;
+    private long lastSize;
+
+    /**
+     * Loads the key file and starts watching it for modifications.
+     * 
+     * @param file
+     *            the key file
+     * @param listener
+     *            the listener that receives the loaded key tables
+     * @throws IOException
+     *             if the key file cannot be loaded initially
+     */
+    public KeyFileWatcher(Path file, Listener listener) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+
+        reload();
+
+        watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "jMBus key file watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean modified = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context())) {
+                        modified = true;
+                    }
+                }
+                key.reset();
+
+                if (modified) {
+                    Thread.sleep(SETTLE_TIME);
+                    try {
+                        reload();
+                    } catch (IOException e) {
+                        listener.keyFileError(e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Loads the key file unless it is unchanged since the last load.
+     */
+    private void reload() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        if (modified == lastModified && size == lastSize) {
+            return;
+        }
+        KeyTable keyTable = KeyTable.load(file);
+        lastModified = modified;
+        lastSize = size;
+        listener.keyTableLoaded(keyTable);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+
+}
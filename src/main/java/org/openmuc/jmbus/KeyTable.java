@@ -0,0 +1,377 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Immutable table of AES-128 keys indexed by the wireless M-Bus link layer address of the meters. A key table is
+ * meant to hold the keys of a whole fleet (hundreds of thousands of meters). It is built once (e.g. by
+ * {@link #load(Path)}) and then handed to {@link WMBusSap#setKeyTable(KeyTable)}, which swaps the complete key set
+ * atomically. Because a table is never modified after it was built it can be read by any number of threads without
+ * synchronization.
+ * 
+ * <p>
+ * Two key file formats are supported:
+ * </p>
+ * <ul>
+ * <li>Text files with one <code>&lt;address&gt;&lt;separator&gt;&lt;key&gt;</code> pair per line. The address is the
+ * 8 byte link layer address (manufacturer ID first) as 16 hex digits, the key is 32 hex digits. The separator may be
+ * one of ';', ',', ':', '=', space or tab. Empty lines and lines starting with '#' are ignored.</li>
+ * <li>Binary files as written by {@link #write(OutputStream)}: the magic bytes "JMBK", a version byte (1), three
+ * reserved bytes, the number of entries as a 4 byte big endian integer and then the entries, each consisting of the 8
+ * byte link layer address followed by the 16 byte key.</li>
+ * </ul>
+ */
+public final class KeyTable {
+
+    public static final int KEY_LENGTH = 16;
+
+    private static final byte[] MAGIC = { 'J', 'M', 'B', 'K' };
+    private static final int VERSION = 1;
+    private static final int BINARY_HEADER_LENGTH = 12;
+    private static final int BINARY_ENTRY_LENGTH = 8 + KEY_LENGTH;
+
+    private static final KeyTable EMPTY = new Builder(8).build();
+
+    private final LongIndex index;
+    private final byte[] keys;
+
+    private KeyTable(LongIndex index, byte[] keys) {
+        this.index = index;
+        this.keys = keys;
+    }
+
+    /**
+     * Returns an empty key table.
+     * 
+     * @return an empty key table
+     */
+    public static KeyTable empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the key of the meter with the given address.
+     * 
+     * @param address
+     *            the address as returned by {@link SecondaryAddress#asLong()}
+     * @return a copy of the key or null if the table contains no key for the address
+     */
+    public byte[] getKey(long address) {
+        int slot = index.get(address);
+        if (slot == -1) {
+            return null;
+        }
+        return Arrays.copyOfRange(keys, slot * KEY_LENGTH, (slot + 1) * KEY_LENGTH);
+    }
+
+    /**
+     * Returns the key of the meter with the given address.
+     * 
+     * @param address
+     *            the link layer secondary address of the meter
+     * @return a copy of the key or null if the table contains no key for the address
+     */
+    public byte[] getKey(SecondaryAddress address) {
+        return getKey(address.asLong());
+    }
+
+    public boolean contains(long address) {
+        return index.get(address) != -1;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes this table in the binary key file format, which loads faster than the text format.
+     * 
+     * @param outputStream
+     *            the stream to write to. It is not closed by this method.
+     * @throws IOException
+     *             if writing to the stream fails
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream os = new DataOutputStream(outputStream);
+        os.write(MAGIC);
+        os.writeInt(VERSION << 24);
+        os.writeInt(index.size());
+        byte[] entry = new byte[BINARY_ENTRY_LENGTH];
+        for (int slot = 0; slot < index.size(); slot++) {
+            long address = index.getKey(slot);
+            // link layer order: manufacturer (LE), ID (LE), version, device type
+            entry[0] = (byte) (address >>> 48);
+            entry[1] = (byte) (address >>> 56);
+            entry[2] = (byte) (address >>> 16);
+            entry[3] = (byte) (address >>> 24);
+            entry[4] = (byte) (address >>> 32);
+            entry[5] = (byte) (address >>> 40);
+            entry[6] = (byte) (address >>> 8);
+            entry[7] = (byte) address;
+            System.arraycopy(keys, slot * KEY_LENGTH, entry, 8, KEY_LENGTH);
+            os.write(entry);
+        }
+        os.flush();
+    }
+
+    /**
+     * Loads a key file in one of the two supported formats. The file is read with a single buffer and parsed in a
+     * single pass without creating intermediate strings. The file is not mapped into memory, so it can be replaced
+     * right after loading on all platforms.
+     * 
+     * @param file
+     *            the key file
+     * @return the key table
+     * @throws IOException
+     *             if the file cannot be read or is malformed. The message of the exception contains the offending line
+     *             or entry.
+     */
+    public static KeyTable load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Key file too large: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("Key file was truncated while reading: " + file);
+                }
+            }
+            buffer.flip();
+            return parse(buffer);
+        }
+    }
+
+    /**
+     * Parses the content of a key file.
+     * 
+     * @param buffer
+     *            the content of a key file in one of the two supported formats from its position to its limit
+     * @return the key table
+     * @throws IOException
+     *             if the content is malformed
+     */
+    public static KeyTable parse(ByteBuffer buffer) throws IOException {
+        if (isBinary(buffer)) {
+            return parseBinary(buffer);
+        }
+        return parseText(buffer);
+    }
+
+    private static boolean isBinary(ByteBuffer buffer) {
+        if (buffer.remaining() < BINARY_HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static KeyTable parseBinary(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        int version = buffer.get(position + 4) & 0xff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported key file version: " + version);
+        }
+        int count = buffer.getInt(position + 8);
+        if (count < 0 || (long) count * BINARY_ENTRY_LENGTH != buffer.remaining() - BINARY_HEADER_LENGTH) {
+            throw new IOException("Key file length does not match number of entries: " + count);
+        }
+
+        Builder builder = new Builder(count);
+        byte[] entry = new byte[BINARY_ENTRY_LENGTH];
+        buffer.position(position + BINARY_HEADER_LENGTH);
+        for (int i = 0; i < count; i++) {
+            buffer.get(entry);
+            builder.put(SecondaryAddress.toLong(entry, 0, false), entry, 8);
+        }
+        return builder.build();
+    }
+
+    private static KeyTable parseText(ByteBuffer buffer) throws IOException {
+        // a line holds at least 16 + 1 + 32 characters plus line break
+        Builder builder = new Builder(Math.max(buffer.remaining() / 50, 8));
+        byte[] entry = new byte[BINARY_ENTRY_LENGTH];
+
+        int position = buffer.position();
+        int limit = buffer.limit();
+        int lineNumber = 0;
+
+        while (position < limit) {
+            lineNumber++;
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int end = lineEnd;
+            while (end > position && isWhitespace(buffer.get(end - 1))) {
+                end--;
+            }
+            int start = position;
+            while (start < end && isWhitespace(buffer.get(start))) {
+                start++;
+            }
+            position = lineEnd + 1;
+
+            // a byte order mark may precede the first line of files written on Windows
+            if (lineNumber == 1 && end - start >= 3 && buffer.get(start) == (byte) 0xef
+                    && buffer.get(start + 1) == (byte) 0xbb && buffer.get(start + 2) == (byte) 0xbf) {
+                start += 3;
+            }
+
+            if (start == end || buffer.get(start) == '#') {
+                continue;
+            }
+
+            int separator = start + 16;
+            if (end - start != 16 + 1 + 2 * KEY_LENGTH || !isSeparator(buffer.get(separator))
+                    || !parseHex(buffer, start, entry, 0, 8)
+                    || !parseHex(buffer, separator + 1, entry, 8, KEY_LENGTH)) {
+                throw new IOException("Invalid key file entry in line " + lineNumber + ": "
+                        + toString(buffer, start, end));
+            }
+            builder.put(SecondaryAddress.toLong(entry, 0, false), entry, 8);
+        }
+        return builder.build();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ';' || b == ',' || b == ':' || b == '=' || b == ' ' || b == '\t';
+    }
+
+    private static boolean parseHex(ByteBuffer buffer, int position, byte[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(buffer.get(position + 2 * i), 16);
+            int low = Character.digit(buffer.get(position + 2 * i + 1), 16);
+            if (high == -1 || low == -1) {
+                return false;
+            }
+            dst[offset + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    private static String toString(ByteBuffer buffer, int start, int end) {
+        byte[] line = new byte[Math.min(end - start, 80)];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = buffer.get(start + i);
+        }
+        return new String(line, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Collects address/key pairs for a new {@link KeyTable}. If a key is put twice for the same address the last one
+     * wins.
+     */
+    public static class Builder {
+
+        private LongIndex index;
+        private byte[] keys;
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int expectedSize) {
+            index = new LongIndex(expectedSize);
+            keys = new byte[index.capacity() * KEY_LENGTH];
+        }
+
+        /**
+         * Creates a builder that contains all entries of the given table.
+         * 
+         * @param table
+         *            the table to copy
+         */
+        public Builder(KeyTable table) {
+            this(table.size() + 8);
+            byte[] key = new byte[KEY_LENGTH];
+            for (int slot = 0; slot < table.index.size(); slot++) {
+                System.arraycopy(table.keys, slot * KEY_LENGTH, key, 0, KEY_LENGTH);
+                put(table.index.getKey(slot), key, 0);
+            }
+        }
+
+        public Builder put(SecondaryAddress address, byte[] key) {
+            if (key.length != KEY_LENGTH) {
+                throw new IllegalArgumentException("Key must be " + KEY_LENGTH + " bytes long.");
+            }
+            return put(address.asLong(), key, 0);
+        }
+
+        /**
+         * Adds a key.
+         * 
+         * @param address
+         *            the address as returned by {@link SecondaryAddress#asLong()}
+         * @param key
+         *            the buffer containing the key
+         * @param offset
+         *            the index of the first byte of the key
+         * @return this builder
+         */
+        public Builder put(long address, byte[] key, int offset) {
+            if (index == null) {
+                throw new IllegalStateException("Builder was already used to build a table.");
+            }
+            int slot = index.put(address);
+            if (keys.length < index.capacity() * KEY_LENGTH) {
+                keys = Arrays.copyOf(keys, index.capacity() * KEY_LENGTH);
+            }
+            System.arraycopy(key, offset, keys, slot * KEY_LENGTH, KEY_LENGTH);
+            return this;
+        }
+
+        /**
+         * Creates the table. The builder cannot be used any more afterwards.
+         * 
+         * @return the new key table
+         */
+        public KeyTable build() {
+            if (index == null) {
+                throw new IllegalStateException("Builder was already used to build a table.");
+            }
+            KeyTable table = new KeyTable(index, keys);
+            index = null;
+            keys = null;
+            return table;
+        }
+    }
+
+}
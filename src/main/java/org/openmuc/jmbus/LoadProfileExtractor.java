@@ -0,0 +1,383 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.openmuc.jmbus.DataRecord.DataValueType;
+import org.openmuc.jmbus.DataRecord.Description;
+import org.openmuc.jmbus.DataRecord.FunctionField;
+
+/**
+ * Extracts load profiles (historic values) from the data records of a variable data structure. Meters report
+ * historic values as records with a storage number greater than 0, usually together with date records of the same
+ * storage number that tell when the value was stored.
+ * 
+ * <p>
+ * The records are grouped into series: all records with the same VIB, tariff, subunit and function field form one
+ * series. The values of a series are stored in primitive arrays indexed by storage number, together with the
+ * timestamp of the date record of the same storage number (and the same tariff and subunit, or tariff and subunit 0 if
+ * there is none). Only date records with the function field INST_VAL are used.
+ * </p>
+ * 
+ * <p>
+ * An extractor reuses its series and arrays for every call of {@link #extract(VariableDataStructure)}, so the series
+ * returned are only valid until the next call. An extractor is not thread safe.
+ * </p>
+ */
+public class LoadProfileExtractor {
+
+    public static final int DEFAULT_MAX_STORAGE_NUMBER = 1023;
+
+    private final int maxStorageNumber;
+
+    private final List<Series> series = new ArrayList<Series>();
+    private int seriesCount = 0;
+
+    // timestamps of the date records, one series per tariff and subunit
+    private final List<Series> dateSeries = new ArrayList<Series>();
+    private int dateSeriesCount = 0;
+
+    /**
+     * The values of all records of a meter with the same VIB, tariff, subunit and function field.
+     */
+    public static class Series {
+
+        private byte[] vib;
+        private Description description;
+        private String userDefinedDescription;
+        private DlmsUnit unit;
+        private FunctionField functionField;
+        private int tariff;
+        private int subunit;
+        private int multiplierExponent;
+
+        private int length;
+        private boolean[] present = new boolean[16];
+        private long[] timestamps = new long[16];
+        private long[] mantissas = new long[16];
+        private double[] values = new double[16];
+
+        private Series() {
+            Arrays.fill(values, Double.NaN);
+        }
+
+        private void reset(DataRecord dataRecord) {
+            vib = dataRecord.getVib();
+            description = dataRecord.getDescription();
+            userDefinedDescription = dataRecord.getUserDefinedDescription();
+            unit = dataRecord.getUnit();
+            functionField = dataRecord.getFunctionField();
+            tariff = dataRecord.getTariff();
+            subunit = dataRecord.getSubunit();
+            multiplierExponent = dataRecord.getMultiplierExponent();
+            Arrays.fill(present, 0, length, false);
+            Arrays.fill(timestamps, 0, length, 0);
+            Arrays.fill(mantissas, 0, length, 0);
+            Arrays.fill(values, 0, length, Double.NaN);
+            length = 0;
+        }
+
+        private boolean matches(DataRecord dataRecord) {
+            return tariff == dataRecord.getTariff() && subunit == dataRecord.getSubunit()
+                    && functionField == dataRecord.getFunctionField() && Arrays.equals(vib, dataRecord.getVib());
+        }
+
+        private void ensureLength(int newLength) {
+            if (newLength > present.length) {
+                int capacity = Math.max(newLength, present.length * 2);
+                present = Arrays.copyOf(present, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                mantissas = Arrays.copyOf(mantissas, capacity);
+                values = Arrays.copyOf(values, capacity);
+                Arrays.fill(values, length, capacity, Double.NaN);
+            }
+            if (newLength > length) {
+                length = newLength;
+            }
+        }
+
+        public Description getDescription() {
+            return description;
+        }
+
+        public String getUserDefinedDescription() {
+            return userDefinedDescription;
+        }
+
+        public byte[] getVib() {
+            return vib;
+        }
+
+        public DlmsUnit getUnit() {
+            return unit;
+        }
+
+        public FunctionField getFunctionField() {
+            return functionField;
+        }
+
+        public int getTariff() {
+            return tariff;
+        }
+
+        public int getSubunit() {
+            return subunit;
+        }
+
+        public int getMultiplierExponent() {
+            return multiplierExponent;
+        }
+
+        /**
+         * Returns the highest storage number of the series plus one. Only the first length elements of the arrays
+         * returned by this series are valid.
+         * 
+         * @return the length of the series
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns true if the series contains a value for the given storage number.
+         * 
+         * @param storageNumber
+         *            the storage number
+         * @return true if a value is present
+         */
+        public boolean isPresent(int storageNumber) {
+            return storageNumber < length && present[storageNumber];
+        }
+
+        /**
+         * Returns the timestamps of the values in ms since 1970 indexed by storage number. The timestamp is 0 if the
+         * meter did not send a date for the storage number.
+         * 
+         * @return the timestamps
+         */
+        public long[] getTimestamps() {
+            return timestamps;
+        }
+
+        /**
+         * Returns the unscaled values of records of type LONG or BCD indexed by storage number. The scaled value is
+         * mantissa * 10^{@link #getMultiplierExponent()}.
+         * 
+         * @return the mantissas
+         */
+        public long[] getMantissas() {
+            return mantissas;
+        }
+
+        /**
+         * Returns the scaled values indexed by storage number. The value is NaN if not present.
+         * 
+         * @return the values
+         */
+        public double[] getValues() {
+            return values;
+        }
+
+    }
+
+    public LoadProfileExtractor() {
+        this(DEFAULT_MAX_STORAGE_NUMBER);
+    }
+
+    /**
+     * Creates an extractor.
+     * 
+     * @param maxStorageNumber
+     *            records with higher storage numbers are ignored
+     */
+    public LoadProfileExtractor(int maxStorageNumber) {
+        this.maxStorageNumber = maxStorageNumber;
+    }
+
+    /**
+     * Extracts the series of the given variable data structure. The series of the previous call are overwritten.
+     * 
+     * @param vds
+     *            the decoded variable data structure
+     * @return the number of series
+     */
+    public int extract(VariableDataStructure vds) {
+        return extract(vds.getDataRecords());
+    }
+
+    /**
+     * Extracts the series of the given data records. The series of the previous call are overwritten.
+     * 
+     * @param dataRecords
+     *            the data records
+     * @return the number of series
+     */
+    public int extract(List<DataRecord> dataRecords) {
+        seriesCount = 0;
+        dateSeriesCount = 0;
+        if (dataRecords == null) {
+            return 0;
+        }
+
+        for (DataRecord dataRecord : dataRecords) {
+            long storageNumber = dataRecord.getStorageNumber();
+            if (storageNumber > maxStorageNumber) {
+                continue;
+            }
+            int index = (int) storageNumber;
+            Object dataValue = dataRecord.getDataValue();
+
+            switch (dataRecord.getDataValueType()) {
+            case DATE:
+                // dates of other functions (e.g. the time of an error) are not the time of the stored values
+                if (dataRecord.getFunctionField() != FunctionField.INST_VAL) {
+                    break;
+                }
+                Series dates = dateSeries(dataRecord);
+                dates.ensureLength(index + 1);
+                dates.present[index] = true;
+                dates.timestamps[index] = ((Date) dataValue).getTime();
+                break;
+            case LONG:
+            case BCD:
+            case DOUBLE:
+                Series values = series(dataRecord);
+                values.ensureLength(index + 1);
+                values.present[index] = true;
+                if (dataRecord.getDataValueType() == DataValueType.DOUBLE) {
+                    values.mantissas[index] = 0;
+                    values.values[index] = (Double) dataValue * Math.pow(10, dataRecord.getMultiplierExponent());
+                }
+                else {
+                    long mantissa = dataRecord.getDataValueType() == DataValueType.LONG ? (Long) dataValue
+                            : ((Bcd) dataValue).longValue();
+                    values.mantissas[index] = mantissa;
+                    values.values[index] = mantissa * Math.pow(10, dataRecord.getMultiplierExponent());
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        for (int i = 0; i < seriesCount; i++) {
+            assignTimestamps(series.get(i));
+        }
+        return seriesCount;
+    }
+
+    private void assignTimestamps(Series values) {
+        Series dates = findDateSeries(values.tariff, values.subunit);
+        if (dates == null) {
+            dates = findDateSeries(0, 0);
+        }
+        if (dates == null) {
+            return;
+        }
+        int length = Math.min(values.length, dates.length);
+        for (int i = 0; i < length; i++) {
+            if (dates.present[i]) {
+                values.timestamps[i] = dates.timestamps[i];
+            }
+        }
+    }
+
+    private Series findDateSeries(int tariff, int subunit) {
+        for (int i = 0; i < dateSeriesCount; i++) {
+            Series dates = dateSeries.get(i);
+            if (dates.tariff == tariff && dates.subunit == subunit) {
+                return dates;
+            }
+        }
+        return null;
+    }
+
+    private Series dateSeries(DataRecord dataRecord) {
+        Series dates = findDateSeries(dataRecord.getTariff(), dataRecord.getSubunit());
+        if (dates == null) {
+            dates = next(dateSeries, dateSeriesCount++, dataRecord);
+        }
+        return dates;
+    }
+
+    private Series series(DataRecord dataRecord) {
+        for (int i = 0; i < seriesCount; i++) {
+            if (series.get(i).matches(dataRecord)) {
+                return series.get(i);
+            }
+        }
+        return next(series, seriesCount++, dataRecord);
+    }
+
+    private static Series next(List<Series> pool, int index, DataRecord dataRecord) {
+        if (index == pool.size()) {
+            pool.add(new Series());
+        }
+        Series next = pool.get(index);
+        next.reset(dataRecord);
+        return next;
+    }
+
+    public int getSeriesCount() {
+        return seriesCount;
+    }
+
+    /**
+     * Returns a series of the last extraction.
+     * 
+     * @param index
+     *            the index of the series (0 to {@link #getSeriesCount()} - 1)
+     * @return the series
+     */
+    public Series getSeries(int index) {
+        if (index >= seriesCount) {
+            throw new IndexOutOfBoundsException("Series " + index + " does not exist.");
+        }
+        return series.get(index);
+    }
+
+    /**
+     * Returns the series with the given description, tariff and subunit and the function field INST_VAL.
+     * 
+     * @param description
+     *            the description
+     * @param tariff
+     *            the tariff
+     * @param subunit
+     *            the subunit
+     * @return the series or null if the last extraction did not contain it
+     */
+    public Series getSeries(Description description, int tariff, int subunit) {
+        for (int i = 0; i < seriesCount; i++) {
+            Series candidate = series.get(i);
+            if (candidate.description == description && candidate.tariff == tariff && candidate.subunit == subunit
+                    && candidate.functionField == FunctionField.INST_VAL) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash index that assigns consecutive slot numbers (0, 1, 2, ...) to long keys (e.g. secondary
+ * addresses). Users store their per key state in primitive arrays indexed by slot. Keys cannot be removed. This class
+ * is not thread safe.
+ */
+class LongIndex {
+
+    private static final int EMPTY = 0;
+
+    private long[] keys;
+    // slot number + 1 of the key hashed to this position or EMPTY
+    private int[] table;
+    private int mask;
+    private int size = 0;
+
+    LongIndex() {
+        this(64);
+    }
+
+    LongIndex(int expectedSize) {
+        int tableSize = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        keys = new long[Math.max(expectedSize, 8)];
+    }
+
+    /**
+     * Returns the slot of the given key or -1 if the key is not contained in the index.
+     */
+    int get(long key) {
+        int i = hash(key) & mask;
+        int entry;
+        while ((entry = table[i]) != EMPTY) {
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the given key. The key is added to the index if it is not contained yet. Newly added keys
+     * get the slot number {@link #size()} - 1.
+     */
+    int put(long key) {
+        int i = hash(key) & mask;
+        int entry;
+        while ((entry = table[i]) != EMPTY) {
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int slot = size++;
+        keys[slot] = key;
+        table[i] = slot + 1;
+
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return slot;
+    }
+
+    long getKey(int slot) {
+        return keys[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of slots the arrays of users must be able to hold at the moment.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    private void rehash(int newTableSize) {
+        table = new int[newTableSize];
+        mask = newTableSize - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int i = hash(keys[slot]) & mask;
+            while (table[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot + 1;
+        }
+    }
+
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdl;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53l;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Assembles wired M-Bus responses (the single character 0xE5 and long frames) from received bytes. Bytes that precede
+ * a start byte (e.g. noise after switching the bus) are skipped. Once a long frame has started, its length fields,
+ * second start byte, checksum and stop byte are checked as soon as they arrive, so a corrupt frame is detected
+ * without waiting for the remaining bytes or a timeout.
+ */
+class MBusFrameReceiver {
+
+    enum Status {
+        INCOMPLETE,
+        COMPLETE,
+        ERROR
+    }
+
+    private enum State {
+        HUNT,
+        LENGTH,
+        LENGTH_REPEATED,
+        START_REPEATED,
+        BODY,
+        CHECKSUM,
+        STOP,
+        DONE,
+        FAILED
+    }
+
+    // 261 is the maximum size of a long frame
+    static final int MAX_FRAME_LENGTH = 261;
+
+    private final byte[] buffer = new byte[MAX_FRAME_LENGTH];
+    private State state = State.HUNT;
+    private int length = 0;
+    private int lengthField;
+    private int checksum;
+    private int skippedCount = 0;
+    private String error;
+
+    void reset() {
+        state = State.HUNT;
+        length = 0;
+        skippedCount = 0;
+        error = null;
+    }
+
+    /**
+     * Processes the next received byte.
+     * 
+     * @return COMPLETE if the byte completed a valid frame, ERROR if the byte shows that the frame is corrupt, else
+     *         INCOMPLETE
+     */
+    Status feed(byte b) {
+        switch (state) {
+        case HUNT:
+            if ((b & 0xff) == 0xe5) {
+                buffer[length++] = b;
+                state = State.DONE;
+                return Status.COMPLETE;
+            }
+            if (b == 0x68) {
+                buffer[length++] = b;
+                state = State.LENGTH;
+            }
+            else {
+                skippedCount++;
+            }
+            return Status.INCOMPLETE;
+        case LENGTH:
+            lengthField = b & 0xff;
+            buffer[length++] = b;
+            // C, A and CI field
+            if (lengthField < 3) {
+                return fail("Invalid length field of response message.");
+            }
+            state = State.LENGTH_REPEATED;
+            return Status.INCOMPLETE;
+        case LENGTH_REPEATED:
+            buffer[length++] = b;
+            if ((b & 0xff) != lengthField) {
+                return fail("Length fields of response message differ.");
+            }
+            state = State.START_REPEATED;
+            return Status.INCOMPLETE;
+        case START_REPEATED:
+            buffer[length++] = b;
+            if (b != 0x68) {
+                return fail("Invalid second start byte of response message.");
+            }
+            checksum = 0;
+            state = State.BODY;
+            return Status.INCOMPLETE;
+        case BODY:
+            buffer[length++] = b;
+            checksum += b;
+            if (length == 4 + lengthField) {
+                state = State.CHECKSUM;
+            }
+            return Status.INCOMPLETE;
+        case CHECKSUM:
+            buffer[length++] = b;
+            if (b != (byte) checksum) {
+                return fail("Invalid checksum of response message.");
+            }
+            state = State.STOP;
+            return Status.INCOMPLETE;
+        case STOP:
+            buffer[length++] = b;
+            if (b != 0x16) {
+                return fail("Invalid stop byte of response message.");
+            }
+            state = State.DONE;
+            return Status.COMPLETE;
+        default:
+            throw new IllegalStateException("Frame is already " + (state == State.DONE ? "complete." : "corrupt."));
+        }
+    }
+
+    private Status fail(String error) {
+        this.error = error;
+        state = State.FAILED;
+        return Status.ERROR;
+    }
+
+    /**
+     * Returns the number of bytes that still belong to the current frame for sure. Reading no more than this number
+     * leaves a following frame in the input stream.
+     */
+    int getBytesExpected() {
+        switch (state) {
+        case BODY:
+            return 4 + lengthField - length + 2;
+        case CHECKSUM:
+            return 2;
+        case DONE:
+        case FAILED:
+            return 0;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Returns true if a frame has started, i.e. a start byte was received.
+     */
+    boolean isInFrame() {
+        return length > 0;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes that were skipped while waiting for a start byte.
+     */
+    int getSkippedCount() {
+        return skippedCount;
+    }
+
+    String getError() {
+        return error;
+    }
+
+}
@@ -23,9 +23,16 @@ package org.openmuc.jmbus;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeoutException;
 
 import org.openmuc.jmbus.MBusMessage.MessageType;
@@ -40,15 +47,112 @@ import gnu.io.SerialPort;
  */
 public class MBusSap {
 
+    /**
+     * The kinds of requests for which separate retry policies can be set.
+     */
+    public enum Operation {
+        /**
+         * {@link MBusSap#read(int)}
+         */
+        READ,
+        /**
+         * {@link MBusSap#write(int, byte[])}, {@link MBusSap#selectForReadout(int, List)} and
+         * {@link MBusSap#resetReadout(int)}
+         */
+        WRITE,
+        /**
+         * {@link MBusSap#selectComponent(SecondaryAddress)} and {@link MBusSap#deselectComponent()}
+         */
+        SELECT,
+        /**
+         * {@link MBusSap#scanSelection(SecondaryAddress)}. Only repetitions after timeouts are made because a garbled
+         * response is the expected result of a collision.
+         */
+        SCAN,
+        /**
+         * {@link MBusSap#linkReset(int)}
+         */
+        LINK_RESET
+    }
+
+    /**
+     * Handling of level converters that send every transmitted byte back to the receiver.
+     */
+    public enum EchoCancellation {
+        /**
+         * The level converter does not echo transmitted bytes.
+         */
+        OFF,
+        /**
+         * The level converter echoes every transmitted byte. The echo is removed from the received bytes and has to
+         * match the request exactly.
+         */
+        ON,
+        /**
+         * Whether the level converter echoes transmitted bytes is detected on the first request that receives any
+         * bytes.
+         */
+        AUTO
+    }
+
+    /**
+     * Thrown if bytes were received that do not form a valid frame.
+     */
+    private static class GarbledResponseException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        GarbledResponseException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown if a meter other than the selected one answered a request to address 0xfd.
+     */
+    private static class UnexpectedMeterException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnexpectedMeterException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A readout profile assigned to a meter.
+     */
+    private static class ProfileAssignment {
+
+        final ReadoutProfile profile;
+        ReadoutProfile.State state = ReadoutProfile.State.PENDING;
+        // true if the profile was sent before the current read
+        boolean sent = false;
+
+        ProfileAssignment(ReadoutProfile profile) {
+            this.profile = profile;
+        }
+    }
+
     // 261 is the maximum size of a long frame
     private final static int MAX_MESSAGE_SIZE = 261;
 
-    private final SerialTransceiver serialTransceiver;
+    // time in ms between two checks for received bytes
+    private static final int POLL_INTERVAL = 5;
+    // time in ms without received bytes after which the bus is considered quiet after a garbled response
+    private static final int QUIET_TIME = 50;
+    // protects against meters that announce further frames forever
+    private static final int MAX_READOUT_FRAMES = 32;
+
+    private final Transceiver transceiver;
 
     private final byte[] outputBuffer = new byte[MAX_MESSAGE_SIZE];
 
     private final byte[] dataRecordsAsBytes = new byte[MAX_MESSAGE_SIZE];
 
+    private final byte[] inputBuffer = new byte[MAX_MESSAGE_SIZE];
+    private final MBusFrameReceiver frameReceiver = new MBusFrameReceiver();
+
     private final boolean[] frameCountBits;
 
     private DataOutputStream os = null;
@@ -56,6 +160,24 @@ public class MBusSap {
 
     private int timeout = 500;
     private SecondaryAddress secondaryAddress = null;
+    // the meter that acknowledged the last selection or null if it is unknown which meter is selected
+    private SecondaryAddress selectedAddress = null;
+    private boolean pipelinedSelection = false;
+
+    private EchoCancellation echoCancellation = EchoCancellation.OFF;
+    // in AUTO mode true if an echo was detected, false if none was detected and null if it is still unknown
+    private Boolean echoDetected = null;
+    // number of bytes at the start of the output buffer that are expected as echo and number received so far
+    private int echoLength = 0;
+    private int echoReceived = 0;
+
+    private final Map<Integer, ProfileAssignment> primaryProfiles = new HashMap<Integer, ProfileAssignment>();
+    private final Map<SecondaryAddress, ProfileAssignment> secondaryProfiles = new HashMap<SecondaryAddress,
+            ProfileAssignment>();
+
+    private final EnumMap<Operation, RetryPolicy> retryPolicies = new EnumMap<Operation, RetryPolicy>(
+            Operation.class);
+    private final Random random = new Random();
 
     /**
      * Creates an M-Bus Service Access Point that is used to read meters.
@@ -66,31 +188,63 @@ public class MBusSap {
      *            the baud rate to use.
      */
     public MBusSap(String serialPortName, int baudRate) {
-        serialTransceiver = new SerialTransceiver(serialPortName, baudRate, SerialPort.DATABITS_8,
-                SerialPort.STOPBITS_1, SerialPort.PARITY_EVEN);
+        this(new SerialTransceiver(serialPortName, baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
+                SerialPort.PARITY_EVEN));
+    }
+
+    /**
+     * Creates an M-Bus Service Access Point that is used to read meters through an M-Bus-over-TCP gateway (e.g. a
+     * level converter with an Ethernet interface). The connection is served by the default {@link TcpEventLoop}.
+     * 
+     * @param address
+     *            the host and TCP port of the gateway
+     */
+    public MBusSap(InetSocketAddress address) {
+        this(address, TcpEventLoop.getDefault());
+    }
+
+    /**
+     * Creates an M-Bus Service Access Point that is used to read meters through an M-Bus-over-TCP gateway. Many
+     * gateways can share a single event loop and therefore a single thread.
+     * 
+     * @param address
+     *            the host and TCP port of the gateway
+     * @param eventLoop
+     *            the event loop serving the connection
+     */
+    public MBusSap(InetSocketAddress address, TcpEventLoop eventLoop) {
+        this(new TcpTransceiver(address, eventLoop));
+    }
+
+    MBusSap(Transceiver transceiver) {
+        this.transceiver = transceiver;
         frameCountBits = new boolean[254];
         for (int i = 0; i < frameCountBits.length; i++) {
             frameCountBits[i] = true;
         }
+        for (Operation operation : Operation.values()) {
+            retryPolicies.put(operation, RetryPolicy.DEFAULT);
+        }
+        retryPolicies.put(Operation.SCAN, RetryPolicy.NONE);
     }
 
     /**
-     * Opens the serial port. The serial port needs to be opened before attempting to read a device.
+     * Opens the serial port or TCP connection. The connection needs to be opened before attempting to read a device.
      * 
      * @throws IOException
-     *             if any kind of error occurs opening the serial port.
+     *             if any kind of error occurs opening the serial port or TCP connection.
      */
     public void open() throws IOException {
-        serialTransceiver.open();
-        os = serialTransceiver.getOutputStream();
-        is = serialTransceiver.getInputStream();
+        transceiver.open();
+        os = transceiver.getOutputStream();
+        is = transceiver.getInputStream();
     }
 
     /**
-     * Closes the serial port.
+     * Closes the serial port or TCP connection.
      */
     public void close() {
-        serialTransceiver.close();
+        transceiver.close();
     }
 
     /**
@@ -115,6 +269,125 @@ public class MBusSap {
         return timeout;
     }
 
+    /**
+     * Sets how requests of the given kind are repeated if the response was garbled or not received. By default
+     * requests are repeated twice after garbled responses and never after timeouts. Scans are never repeated by
+     * default.
+     * 
+     * @param operation
+     *            the kind of request
+     * @param retryPolicy
+     *            the retry policy
+     */
+    public void setRetryPolicy(Operation operation, RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy may not be null");
+        }
+        retryPolicies.put(operation, retryPolicy);
+    }
+
+    public RetryPolicy getRetryPolicy(Operation operation) {
+        return retryPolicies.get(operation);
+    }
+
+    /**
+     * Enables sending the selection of a meter and the first data request in one go when reading with
+     * {@link #read(SecondaryAddress)}. The meter then acknowledges the selection and sends its response without a
+     * further turnaround of the master. Not all meters accept a request while they are still sending the
+     * acknowledgment; if the response is missing the request is sent again in the normal way. Disabled by default.
+     * 
+     * @param pipelinedSelection
+     *            true to enable pipelined selection
+     */
+    public void setPipelinedSelection(boolean pipelinedSelection) {
+        this.pipelinedSelection = pipelinedSelection;
+    }
+
+    /**
+     * Sets whether the level converter echoes the transmitted bytes. If echo cancellation is enabled the echo of each
+     * request is removed before the response is received. A missing or differing echo is treated like a garbled
+     * response. In {@link EchoCancellation#AUTO} mode the first response is compared with the request to detect the
+     * echo and the result is kept until echo cancellation is set again. Disabled by default.
+     * 
+     * @param echoCancellation
+     *            the echo cancellation mode
+     */
+    public void setEchoCancellation(EchoCancellation echoCancellation) {
+        if (echoCancellation == null) {
+            throw new IllegalArgumentException("echoCancellation may not be null");
+        }
+        this.echoCancellation = echoCancellation;
+        echoDetected = null;
+    }
+
+    public EchoCancellation getEchoCancellation() {
+        return echoCancellation;
+    }
+
+    /**
+     * Assigns a readout profile to the meter with the given primary address. The profile is sent before the next
+     * {@link #read(int)}. Removing a profile does not change the selection of the meter, call
+     * {@link #resetReadout(int)} to make it return its complete data again.
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter
+     * @param profile
+     *            the profile or null to remove the profile
+     */
+    public void setReadoutProfile(int primaryAddress, ReadoutProfile profile) {
+        if (primaryAddress == 0xfd) {
+            throw new IllegalArgumentException("Assign profiles of meters read by secondary address to the address.");
+        }
+        if (profile == null) {
+            primaryProfiles.remove(primaryAddress);
+        }
+        else {
+            primaryProfiles.put(primaryAddress, new ProfileAssignment(profile));
+        }
+    }
+
+    /**
+     * Assigns a readout profile to the meter with the given secondary address. The profile is sent before the next
+     * {@link #read(SecondaryAddress)}.
+     * 
+     * @param secondaryAddress
+     *            the secondary address of the meter
+     * @param profile
+     *            the profile or null to remove the profile
+     */
+    public void setReadoutProfile(SecondaryAddress secondaryAddress, ReadoutProfile profile) {
+        if (profile == null) {
+            secondaryProfiles.remove(secondaryAddress);
+        }
+        else {
+            secondaryProfiles.put(secondaryAddress, new ProfileAssignment(profile));
+        }
+    }
+
+    /**
+     * Returns the state of the readout profile assigned to the meter with the given primary address.
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter
+     * @return the state or null if no profile is assigned to the meter
+     */
+    public ReadoutProfile.State getReadoutProfileState(int primaryAddress) {
+        ProfileAssignment assignment = primaryProfiles.get(primaryAddress);
+        return assignment == null ? null : assignment.state;
+    }
+
+    /**
+     * Returns the state of the readout profile assigned to the meter with the given secondary address.
+     * 
+     * @param secondaryAddress
+     *            the secondary address of the meter
+     * @return the state or null if no profile is assigned to the meter
+     */
+    public ReadoutProfile.State getReadoutProfileState(SecondaryAddress secondaryAddress) {
+        ProfileAssignment assignment = secondaryProfiles.get(secondaryAddress);
+        return assignment == null ? null : assignment.state;
+    }
+
     /**
      * Reads a meter using primary addressing. Sends a data request (REQ_UD2) to the remote device and returns the
      * variable data structure from the received RSP_UD frame.
@@ -130,20 +403,251 @@ public class MBusSap {
      */
     public VariableDataStructure read(int primaryAddress) throws IOException, TimeoutException {
 
-        if (serialTransceiver.isClosed() == true) {
-            throw new IllegalStateException("Serial port is not open.");
+        if (transceiver.isClosed() == true) {
+            throw new IllegalStateException("Connection is not open.");
+        }
+
+        ProfileAssignment assignment = primaryProfiles.get(primaryAddress);
+        if (assignment != null && assignment.state == ReadoutProfile.State.PENDING) {
+            applyProfile(primaryAddress, assignment);
+        }
+        VariableDataStructure variableDataStructure = request(primaryAddress);
+        checkProfile(assignment, variableDataStructure);
+        return variableDataStructure;
+    }
+
+    /**
+     * Sends a REQ_UD2 and returns the decoded response.
+     */
+    private VariableDataStructure request(int primaryAddress) throws IOException, TimeoutException {
+        // the FCB only toggles once a response was received, so a failed request is repeated with the same FCB
+        int controlField = frameCountBits[primaryAddress] ? 0x7b : 0x5b;
+        MBusMessage mBusMessage = transfer(Operation.READ, shortFrame(0, primaryAddress, controlField));
+        frameCountBits[primaryAddress] = !frameCountBits[primaryAddress];
+
+        return toVariableDataStructure(mBusMessage, primaryAddress);
+    }
+
+    /**
+     * Reads a meter using secondary addressing. The meter is selected first unless it is still selected from the
+     * previous request of this service access point, so reading the same meter again takes a single request. If a
+     * meter that should still be selected does not answer, the response is garbled or another meter answers, the meter
+     * is selected again once. The meter stays selected after the read, which saves the deselection request.
+     * 
+     * @param secondaryAddress
+     *            the secondary address of the meter to read
+     * @return the variable data structure from the received RSP_UD frame
+     * @throws IOException
+     *             if any kind of error (including timeout) occurs while trying to read the remote device. Note that the
+     *             connection is not closed when an IOException is thrown.
+     * @throws TimeoutException
+     *             if no response at all (not even a single byte) was received from the meter within the timeout span.
+     */
+    public VariableDataStructure read(SecondaryAddress secondaryAddress) throws IOException, TimeoutException {
+
+        if (transceiver.isClosed() == true) {
+            throw new IllegalStateException("Connection is not open.");
         }
 
-        if (frameCountBits[primaryAddress]) {
-            sendShortMessage(primaryAddress, 0x7b);
-            frameCountBits[primaryAddress] = false;
+        ProfileAssignment assignment = secondaryProfiles.get(secondaryAddress);
+        VariableDataStructure variableDataStructure;
+        if (assignment != null && assignment.state == ReadoutProfile.State.PENDING) {
+            if (secondaryAddress.equals(selectedAddress)) {
+                try {
+                    applyProfile(0xfd, assignment);
+                } catch (TimeoutException e) {
+                    // the meter may have lost its selection, e.g. because of a power failure
+                    selectedAddress = null;
+                } catch (GarbledResponseException e) {
+                    selectedAddress = null;
+                }
+            }
+            if (!secondaryAddress.equals(selectedAddress)) {
+                selectComponent(secondaryAddress);
+                applyProfile(0xfd, assignment);
+            }
+            variableDataStructure = requestSelected(secondaryAddress);
         }
         else {
-            sendShortMessage(primaryAddress, 0x5b);
-            frameCountBits[primaryAddress] = true;
+            variableDataStructure = selectAndRead(secondaryAddress);
+        }
+        checkProfile(assignment, variableDataStructure);
+        return variableDataStructure;
+    }
+
+    private VariableDataStructure selectAndRead(SecondaryAddress secondaryAddress)
+            throws IOException, TimeoutException {
+        if (secondaryAddress.equals(selectedAddress)) {
+            try {
+                return requestSelected(secondaryAddress);
+            } catch (TimeoutException e) {
+                // the meter may have lost its selection, e.g. because of a power failure
+                selectedAddress = null;
+            } catch (GarbledResponseException e) {
+                // further meters may have been selected, e.g. by another master
+                selectedAddress = null;
+            } catch (UnexpectedMeterException e) {
+                selectedAddress = null;
+            }
         }
 
-        MBusMessage mBusMessage = receiveMessage();
+        if (pipelinedSelection) {
+            try {
+                MBusMessage mBusMessage = selectAndRequest(secondaryAddress);
+                frameCountBits[0xfd] = !frameCountBits[0xfd];
+                return checkAddress(toVariableDataStructure(mBusMessage, 0xfd), secondaryAddress);
+            } catch (GarbledResponseException e) {
+                // send the requests one by one
+            } catch (TimeoutException e) {
+                if (!secondaryAddress.equals(selectedAddress)) {
+                    throw e;
+                }
+            }
+            if (secondaryAddress.equals(selectedAddress)) {
+                return requestSelected(secondaryAddress);
+            }
+        }
+
+        selectComponent(secondaryAddress);
+        return requestSelected(secondaryAddress);
+    }
+
+    /**
+     * Sends a REQ_UD2 to the selected meter and checks that the response is from the given meter.
+     */
+    private VariableDataStructure requestSelected(SecondaryAddress secondaryAddress)
+            throws IOException, TimeoutException {
+        return checkAddress(request(0xfd), secondaryAddress);
+    }
+
+    /**
+     * Checks that the secondary address in the long header of a response matches the given address, which may contain
+     * wildcards. Responses without a long header are accepted.
+     */
+    private VariableDataStructure checkAddress(VariableDataStructure variableDataStructure,
+            SecondaryAddress secondaryAddress) throws UnexpectedMeterException {
+        SecondaryAddress received = variableDataStructure.getSecondaryAddress();
+        if (received == null) {
+            return variableDataStructure;
+        }
+        byte[] expectedBytes = secondaryAddress.asByteArray();
+        byte[] receivedBytes = received.asByteArray();
+        for (int i = 0; i < expectedBytes.length; i++) {
+            for (int shift = 0; shift < 8; shift += 4) {
+                int expectedNibble = (expectedBytes[i] >> shift) & 0x0f;
+                if (expectedNibble != 0x0f && expectedNibble != ((receivedBytes[i] >> shift) & 0x0f)) {
+                    selectedAddress = null;
+                    throw new UnexpectedMeterException("Received response of meter " + received + " instead of "
+                            + secondaryAddress + ".");
+                }
+            }
+        }
+        return variableDataStructure;
+    }
+
+    /**
+     * Sends the records of a profile to select them for readout.
+     */
+    private void applyProfile(int primaryAddress, ProfileAssignment assignment) throws IOException, TimeoutException {
+        byte[] selection = assignment.profile.getSelection();
+        MBusMessage mBusMessage = transfer(Operation.WRITE,
+                longFrame(primaryAddress, 0x53, 0x51, selection.length, selection));
+        if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
+            assignment.state = ReadoutProfile.State.IGNORED;
+            return;
+        }
+        assignment.state = ReadoutProfile.State.APPLIED;
+        assignment.sent = true;
+    }
+
+    /**
+     * Updates the state of a profile according to the records the meter returned.
+     */
+    private static void checkProfile(ProfileAssignment assignment, VariableDataStructure variableDataStructure) {
+        if (assignment == null || assignment.state == ReadoutProfile.State.IGNORED) {
+            return;
+        }
+        if (assignment.profile.matches(variableDataStructure.getDataRecords())) {
+            assignment.state = ReadoutProfile.State.APPLIED;
+        }
+        else if (assignment.sent) {
+            assignment.state = ReadoutProfile.State.IGNORED;
+        }
+        else {
+            // the meter lost the selection, e.g. because of a power failure
+            assignment.state = ReadoutProfile.State.PENDING;
+        }
+        assignment.sent = false;
+    }
+
+    /**
+     * Marks the profile of a meter to be sent again because the meter forgot the selection.
+     */
+    private void resetProfile(int primaryAddress) {
+        ProfileAssignment assignment;
+        if (primaryAddress == 0xfd) {
+            assignment = secondaryAddress == null ? null : secondaryProfiles.get(secondaryAddress);
+        }
+        else {
+            assignment = primaryProfiles.get(primaryAddress);
+        }
+        if (assignment != null) {
+            assignment.state = ReadoutProfile.State.PENDING;
+        }
+    }
+
+    /**
+     * Reads all frames of a meter that sends its data in several RSP_UD frames. Further frames are requested as long
+     * as the last frame announces that more records follow (DIF 0x1f).
+     * 
+     * @param primaryAddress
+     *            the primary address of the meter to read
+     * @return the variable data structures of all received frames
+     * @throws IOException
+     *             if any kind of error (including timeout) occurs while trying to read the remote device. Note that the
+     *             connection is not closed when an IOException is thrown.
+     * @throws TimeoutException
+     *             if no response at all (not even a single byte) was received from the meter within the timeout span.
+     */
+    public List<VariableDataStructure> readAll(int primaryAddress) throws IOException, TimeoutException {
+        return readRemainingFrames(read(primaryAddress), primaryAddress);
+    }
+
+    /**
+     * Reads all frames of a meter that sends its data in several RSP_UD frames using secondary addressing. The meter is
+     * selected at most once, see {@link #read(SecondaryAddress)}.
+     * 
+     * @param secondaryAddress
+     *            the secondary address of the meter to read
+     * @return the variable data structures of all received frames
+     * @throws IOException
+     *             if any kind of error (including timeout) occurs while trying to read the remote device. Note that the
+     *             connection is not closed when an IOException is thrown.
+     * @throws TimeoutException
+     *             if no response at all (not even a single byte) was received from the meter within the timeout span.
+     */
+    public List<VariableDataStructure> readAll(SecondaryAddress secondaryAddress)
+            throws IOException, TimeoutException {
+        return readRemainingFrames(read(secondaryAddress), 0xfd);
+    }
+
+    private List<VariableDataStructure> readRemainingFrames(VariableDataStructure first, int primaryAddress)
+            throws IOException, TimeoutException {
+        List<VariableDataStructure> frames = new ArrayList<VariableDataStructure>();
+        frames.add(first);
+        VariableDataStructure last = first;
+        while (last.moreRecordsFollow()) {
+            if (frames.size() == MAX_READOUT_FRAMES) {
+                throw new IOException("Meter announced more than " + MAX_READOUT_FRAMES + " frames.");
+            }
+            last = request(primaryAddress);
+            frames.add(last);
+        }
+        return frames;
+    }
+
+    private VariableDataStructure toVariableDataStructure(MBusMessage mBusMessage, int primaryAddress)
+            throws IOException {
 
         if (mBusMessage.getMessageType() != MessageType.RSP_UD) {
             throw new IOException(
@@ -182,22 +686,21 @@ public class MBusSap {
      */
     public boolean write(int primaryAddress, byte[] data) throws IOException, TimeoutException {
 
-        boolean ret;
         if (data == null) {
             data = new byte[] {};
         }
-        ret = sendLongMessage(primaryAddress, 0x73, 0x51, data.length, data);
-        MBusMessage mBusMessage = receiveMessage();
+        MBusMessage mBusMessage = transfer(Operation.WRITE, longFrame(primaryAddress, 0x73, 0x51, data.length, data));
 
         if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
             throw new IOException("unable to select component");
         }
-        return ret;
+        return true;
     }
 
     /**
      * [alpha]<br>
-     * Scans if any device response to the given wildcard.
+     * Scans if any device response to the given wildcard. Bytes that do not form a valid frame are taken as the
+     * garbled responses of several devices (a collision), silence as no response.
      * 
      * @param wildcard
      *            secondary address wildcard e.g. f1ffffffffffffff
@@ -215,18 +718,24 @@ public class MBusSap {
         bf.position(0);
         bf.get(ba, 0, 8);
 
+        // a selection with a wildcard deselects the meter selected before
+        selectedAddress = null;
+
+        RetryPolicy policy = retryPolicies.get(Operation.SCAN);
+        policy = new RetryPolicy(0, policy.getTimeoutRetries(), policy.getBackoff(), policy.getMaxBackoff(),
+                policy.getJitter());
+
         boolean ret = false;
         try {
-            if (sendLongMessage(0xfd, 0x53, 0x52, 8, ba)) {
-
-                MBusMessage mBusMessage = receiveMessage();
+            MBusMessage mBusMessage = transfer(policy, longFrame(0xfd, 0x53, 0x52, 8, ba));
 
-                if (mBusMessage.getMessageType() == MessageType.SINGLE_CHARACTER) {
-                    ret = true;
-                }
+            if (mBusMessage.getMessageType() == MessageType.SINGLE_CHARACTER) {
+                ret = true;
             }
-        } catch (IOException e) {
+        } catch (GarbledResponseException e) {
             ret = true;
+        } catch (IOException e) {
+            ret = false;
         } catch (TimeoutException e) {
             ret = false;
         }
@@ -246,7 +755,9 @@ public class MBusSap {
      */
     public void selectComponent(SecondaryAddress secondaryAddress) throws IOException, TimeoutException {
         this.secondaryAddress = secondaryAddress;
+        selectedAddress = null;
         componentSelection(false);
+        selectedAddress = secondaryAddress;
     }
 
     /**
@@ -260,6 +771,7 @@ public class MBusSap {
      */
     public void deselectComponent() throws IOException, TimeoutException {
         if (secondaryAddress != null) {
+            selectedAddress = null;
             componentSelection(true);
             secondaryAddress = null;
         }
@@ -272,8 +784,8 @@ public class MBusSap {
         for (DataRecord dataRecord : dataRecords) {
             i += dataRecord.encode(dataRecordsAsBytes, i);
         }
-        sendLongMessage(primaryAddress, 0x53, 0x51, i, dataRecordsAsBytes);
-        MBusMessage mBusMessage = receiveMessage();
+        MBusMessage mBusMessage = transfer(Operation.WRITE,
+                longFrame(primaryAddress, 0x53, 0x51, i, dataRecordsAsBytes));
 
         if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
             throw new IOException("unable to select component");
@@ -281,12 +793,12 @@ public class MBusSap {
     }
 
     public void resetReadout(int primaryAddress) throws IOException, TimeoutException {
-        sendLongMessage(primaryAddress, 0x53, 0x50, 0, new byte[] {});
-        MBusMessage mBusMessage = receiveMessage();
+        MBusMessage mBusMessage = transfer(Operation.WRITE, longFrame(primaryAddress, 0x53, 0x50, 0, new byte[] {}));
 
         if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
             throw new IOException("unable to select component");
         }
+        resetProfile(primaryAddress);
     }
 
     /**
@@ -300,12 +812,16 @@ public class MBusSap {
      *             if the slave does not answer with an 0xe5 message within the configured timeout span.
      */
     public void linkReset(int primaryAddress) throws IOException, TimeoutException {
-        sendShortMessage(primaryAddress, 0x40);
-        MBusMessage mBusMessage = receiveMessage();
+        if (primaryAddress == 0xfd) {
+            // a meter selected by its secondary address is deselected by a link reset
+            selectedAddress = null;
+        }
+        MBusMessage mBusMessage = transfer(Operation.LINK_RESET, shortFrame(0, primaryAddress, 0x40));
 
         if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
             throw new IOException("unable to reset link");
         }
+        resetProfile(primaryAddress);
 
         frameCountBits[primaryAddress] = true;
     }
@@ -322,30 +838,52 @@ public class MBusSap {
         bf.get(ba, 0, 8);
 
         // send select/deselect
-        if (deselect) {
-            sendLongMessage(0xfd, 0x53, 0x56, 8, ba);
-        }
-        else {
-            sendLongMessage(0xfd, 0x53, 0x52, 8, ba);
-        }
-
-        MBusMessage mBusMessage = receiveMessage();
+        MBusMessage mBusMessage = transfer(Operation.SELECT, longFrame(0xfd, 0x53, deselect ? 0x56 : 0x52, 8, ba));
 
         if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
             throw new IOException("unable to select component");
         }
     }
 
-    private void sendShortMessage(int slaveAddr, int cmd) throws IOException {
-        outputBuffer[0] = 0x10;
-        outputBuffer[1] = (byte) (cmd);
-        outputBuffer[2] = (byte) (slaveAddr);
-        outputBuffer[3] = (byte) (cmd + slaveAddr);
-        outputBuffer[4] = 0x16;
-        os.write(outputBuffer, 0, 5);
+    /**
+     * Sends the selection of a meter immediately followed by a REQ_UD2 and receives both responses.
+     */
+    private MBusMessage selectAndRequest(SecondaryAddress secondaryAddress) throws IOException, TimeoutException {
+        this.secondaryAddress = secondaryAddress;
+        selectedAddress = null;
+
+        int length = longFrame(0xfd, 0x53, 0x52, 8, secondaryAddress.asByteArray());
+        length = shortFrame(length, 0xfd, frameCountBits[0xfd] ? 0x7b : 0x5b);
+        send(length);
+
+        MBusMessage acknowledgment = receiveMessage(true);
+        if (acknowledgment.getMessageType() != MessageType.SINGLE_CHARACTER) {
+            throw new GarbledResponseException("unable to select component");
+        }
+        selectedAddress = secondaryAddress;
+        return receiveMessage(false);
+    }
+
+    /**
+     * Writes a short frame to the output buffer.
+     * 
+     * @return the index following the frame
+     */
+    private int shortFrame(int offset, int slaveAddr, int cmd) {
+        outputBuffer[offset] = 0x10;
+        outputBuffer[offset + 1] = (byte) (cmd);
+        outputBuffer[offset + 2] = (byte) (slaveAddr);
+        outputBuffer[offset + 3] = (byte) (cmd + slaveAddr);
+        outputBuffer[offset + 4] = 0x16;
+        return offset + 5;
     }
 
-    private boolean sendLongMessage(int slaveAddr, int controlField, int ci, int length, byte[] data) {
+    /**
+     * Writes a long frame to the output buffer.
+     * 
+     * @return the length of the frame
+     */
+    private int longFrame(int slaveAddr, int controlField, int ci, int length, byte[] data) {
         int i, j;
         int checksum = 0;
 
@@ -369,74 +907,201 @@ public class MBusSap {
 
         outputBuffer[i + 8] = 0x16;
 
-        try {
-            os.write(outputBuffer, 0, i + 9);
-        } catch (IOException e) {
-            return false;
-        }
+        return i + 9;
+    }
 
-        return true;
+    private MBusMessage transfer(Operation operation, int frameLength) throws IOException, TimeoutException {
+        return transfer(retryPolicies.get(operation), frameLength);
     }
 
-    private MBusMessage receiveMessage() throws IOException, TimeoutException {
+    /**
+     * Sends the frame in the output buffer and receives the response. The frame is sent again unchanged as long as the
+     * retry policy allows it.
+     */
+    private MBusMessage transfer(RetryPolicy policy, int frameLength) throws IOException, TimeoutException {
+        int garbledCount = 0;
+        int timeoutCount = 0;
+        while (true) {
+            send(frameLength);
+            try {
+                return receiveMessage(false);
+            } catch (GarbledResponseException e) {
+                if (garbledCount == policy.getGarbledRetries()) {
+                    throw e;
+                }
+                garbledCount++;
+            } catch (TimeoutException e) {
+                if (timeoutCount == policy.getTimeoutRetries()) {
+                    throw e;
+                }
+                sleep(policy.getDelay(timeoutCount, random));
+                timeoutCount++;
+            }
+        }
+    }
+
+    /**
+     * Sends the given number of bytes of the output buffer and sets up the cancellation of their echo.
+     */
+    private void send(int length) throws IOException {
+        discardInput();
+        os.write(outputBuffer, 0, length);
+
+        echoReceived = 0;
+        if (echoCancellation == EchoCancellation.ON
+                || (echoCancellation == EchoCancellation.AUTO && echoDetected != Boolean.FALSE)) {
+            echoLength = length;
+        }
+        else {
+            echoLength = 0;
+        }
+    }
 
-        int timePassedTotal = 0;
-        int numBytesReadTotal = 0;
-        int messageLength = -1;
+    /**
+     * Discards bytes left over from earlier responses so that they are not taken for the response to the next request.
+     */
+    private void discardInput() throws IOException {
+        while (is.available() > 0) {
+            is.skipBytes(is.available());
+        }
+    }
 
-        byte[] inputBuffer = new byte[MAX_MESSAGE_SIZE];
+    /**
+     * Receives a single response.
+     * 
+     * @param moreExpected
+     *            true if a further response may follow immediately, else further bytes make the response garbled
+     */
+    private MBusMessage receiveMessage(boolean moreExpected) throws IOException, TimeoutException {
 
-        while (true) {
-            if (is.available() > 0) {
+        long startTime = System.currentTimeMillis();
+        long lastByteTime = startTime;
+        // once a response is known to be garbled the remaining bytes are discarded until the bus is quiet
+        String garbled = null;
 
-                int numBytesRead = is.read(inputBuffer, numBytesReadTotal, MAX_MESSAGE_SIZE - numBytesReadTotal);
+        frameReceiver.reset();
 
-                numBytesReadTotal += numBytesRead;
+        while (true) {
+            long now = System.currentTimeMillis();
 
-                if (messageLength == -1) {
+            if (is.available() > 0) {
+                lastByteTime = now;
 
-                    if ((inputBuffer[0] & 0xff) == 0xe5) {
-                        messageLength = 1;
+                if (garbled != null) {
+                    is.skipBytes(is.available());
+                }
+                else {
+                    MBusFrameReceiver.Status status = MBusFrameReceiver.Status.INCOMPLETE;
+
+                    if (echoReceived < echoLength) {
+                        boolean detecting = echoCancellation == EchoCancellation.AUTO && echoDetected == null;
+                        // while detecting single bytes are read so that no bytes of a response are taken for echo
+                        int numBytesRead = is.read(inputBuffer, 0, detecting ? 1 : echoLength - echoReceived);
+
+                        for (int i = 0; i < numBytesRead && echoReceived < echoLength && garbled == null; i++) {
+                            if (inputBuffer[i] == outputBuffer[echoReceived]) {
+                                echoReceived++;
+                            }
+                            else if (detecting) {
+                                // no echo, the bytes taken for echo so far are the start of the response
+                                echoDetected = false;
+                                echoLength = 0;
+                                status = feed(outputBuffer, echoReceived);
+                                if (status == MBusFrameReceiver.Status.INCOMPLETE) {
+                                    status = frameReceiver.feed(inputBuffer[i]);
+                                }
+                            }
+                            else {
+                                garbled = "Received echo does not match the request.";
+                            }
+                        }
+
+                        if (detecting && echoLength > 0 && echoReceived == echoLength) {
+                            echoDetected = true;
+                        }
                     }
-                    else if ((inputBuffer[0] & 0xff) == 0x68 && numBytesReadTotal > 1) {
-                        messageLength = (inputBuffer[1] & 0xff) + 6;
+                    else {
+                        // read no further than the end of the frame, a following frame stays in the stream
+                        int numBytesRead = is.read(inputBuffer, 0, frameReceiver.getBytesExpected());
+                        status = feed(inputBuffer, numBytesRead);
                     }
-                }
 
-                if (numBytesReadTotal == messageLength) {
-                    break;
+                    if (status == MBusFrameReceiver.Status.ERROR) {
+                        garbled = frameReceiver.getError();
+                    }
+                    else if (status == MBusFrameReceiver.Status.COMPLETE) {
+                        if (moreExpected || is.available() == 0) {
+                            break;
+                        }
+                        garbled = "Response message is longer than announced.";
+                    }
                 }
             }
+            else if (garbled != null && (now - lastByteTime) >= QUIET_TIME) {
+                throw new GarbledResponseException(garbled);
+            }
 
-            if (timePassedTotal > timeout) {
-                if (numBytesReadTotal == 0) {
-                    throw new TimeoutException("No Bytes received. Try to increase timeout.");
+            if ((now - startTime) > timeout) {
+                if (garbled != null) {
+                    throw new GarbledResponseException(garbled);
                 }
-                if (numBytesReadTotal != messageLength) {
-                    throw new TimeoutException("Incomplete response message received. Try to increase timeout.");
+                if (echoReceived > 0 && echoReceived < echoLength) {
+                    if (echoDetected == null && echoCancellation == EchoCancellation.AUTO) {
+                        // bytes matching the start of the request that were not followed by more are no echo
+                        feed(outputBuffer, echoReceived);
+                    }
+                    else {
+                        throw new GarbledResponseException("Incomplete echo of the request received.");
+                    }
                 }
-            }
-            else {
-
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+                if (frameReceiver.isInFrame()) {
+                    throw new GarbledResponseException(
+                            "Incomplete response message received. Try to increase timeout.");
                 }
+                if (frameReceiver.getSkippedCount() > 0) {
+                    throw new GarbledResponseException(
+                            "Received " + frameReceiver.getSkippedCount() + " bytes without start of a message.");
+                }
+                throw new TimeoutException("No Bytes received. Try to increase timeout.");
+            }
 
-                timePassedTotal += 100;
+            if (is.available() == 0) {
+                sleep(POLL_INTERVAL);
             }
 
         }
 
         MBusMessage mBusMessage;
         try {
-            mBusMessage = new MBusMessage(inputBuffer, messageLength);
+            mBusMessage = new MBusMessage(Arrays.copyOf(frameReceiver.getBuffer(), frameReceiver.getLength()),
+                    frameReceiver.getLength());
         } catch (DecodingException e) {
-            throw new IOException("Error decoding incoming M-Bus message.");
+            throw new GarbledResponseException("Error decoding incoming M-Bus message.");
         }
 
         return mBusMessage;
 
     }
 
+    /**
+     * Passes the given number of bytes to the frame receiver until a frame is complete or erroneous.
+     */
+    private MBusFrameReceiver.Status feed(byte[] bytes, int length) {
+        MBusFrameReceiver.Status status = MBusFrameReceiver.Status.INCOMPLETE;
+        for (int i = 0; i < length && status == MBusFrameReceiver.Status.INCOMPLETE; i++) {
+            status = frameReceiver.feed(bytes[i]);
+        }
+        return status;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+        }
+    }
+
 }
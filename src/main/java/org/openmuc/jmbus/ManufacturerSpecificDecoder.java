@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Decodes the application layer of wireless M-Bus messages that use a manufacturer specific format (e.g. a
+ * proprietary CI field). Decoders are registered at a {@link DecoderRegistry}.
+ */
+public interface ManufacturerSpecificDecoder {
+
+    /**
+     * Decodes the application layer of a message.
+     * 
+     * @param buffer
+     *            the bytes of the complete message
+     * @param offset
+     *            the index of the CI field within the buffer
+     * @param length
+     *            the number of bytes of the application layer including the CI field
+     * @param secondaryAddress
+     *            the secondary address of the sender
+     * @return the decoded data. It can be retrieved using {@link WMBusMessage#getManufacturerSpecificData()}.
+     * @throws DecodingException
+     *             if the application layer could not be decoded
+     */
+    public Object decode(byte[] buffer, int offset, int length, SecondaryAddress secondaryAddress)
+            throws DecodingException;
+
+}
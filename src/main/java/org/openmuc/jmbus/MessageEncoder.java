@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes received wireless M-Bus messages and data read from wired meters into a byte buffer. Used by the
+ * {@link AsyncWriter}. Encoders are called by one thread at a time and should not create intermediate strings for
+ * frequently written fields.
+ * 
+ * @see CsvEncoder
+ * @see JsonLinesEncoder
+ * @see InfluxLineEncoder
+ */
+public interface MessageEncoder {
+
+    /**
+     * Encodes a message. The message may not be decoded or only partly decoded (e.g. if no key is available for it).
+     * 
+     * @param message
+     *            the message
+     * @param timestamp
+     *            the time the message was received in ms since 1970
+     * @param buffer
+     *            the buffer to write to
+     * @throws BufferOverflowException
+     *             if the buffer is full. The writer then discards the partly written message and repeats the call
+     *             with an empty buffer.
+     */
+    public void encode(WMBusMessage message, long timestamp, ByteBuffer buffer) throws BufferOverflowException;
+
+    /**
+     * Encodes the data read from a wired meter.
+     * 
+     * @param vds
+     *            the decoded variable data structure
+     * @param timestamp
+     *            the time the data was read in ms since 1970
+     * @param buffer
+     *            the buffer to write to
+     * @throws BufferOverflowException
+     *             if the buffer is full
+     */
+    public void encode(VariableDataStructure vds, long timestamp, ByteBuffer buffer) throws BufferOverflowException;
+
+}
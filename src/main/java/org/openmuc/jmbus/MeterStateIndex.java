@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Index of the latest state of every meter: the time it was last seen, the RSSI and access number of its last message
+ * and its last reading (the first numeric data record). Meters are identified by the long value of their secondary
+ * address (see {@link SecondaryAddress#asLong()}).
+ * 
+ * The state is kept in primitive arrays organized as an open addressing hash table. Several receiver threads can
+ * update the index concurrently without locking. In order to stay lock-free the table is not resized, its capacity is
+ * chosen at construction. The state of a single meter is not updated atomically as a whole: a concurrent reader may
+ * see the last seen time of a new message together with the RSSI of the previous one.
+ */
+public class MeterStateIndex {
+
+    /**
+     * Value returned by {@link #getRssi(long)} if no RSSI is known.
+     */
+    public static final int UNKNOWN_RSSI = Integer.MIN_VALUE;
+
+    private static final long EMPTY = 0;
+
+    private final int mask;
+    private final int maxMeters;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray lastSeen;
+    // RSSI in the upper and access number in the lower 32 bits
+    private final AtomicLongArray rssiAndAccessNumber;
+    private final AtomicLongArray readings;
+
+    /**
+     * Creates an index.
+     * 
+     * @param maxMeters
+     *            the maximum number of meters the index can hold
+     */
+    public MeterStateIndex(int maxMeters) {
+        // the capacity of four times the maximum number has to fit into an int
+        if (maxMeters <= 0 || maxMeters > (1 << 28)) {
+            throw new IllegalArgumentException("maximum number of meters has to be between 1 and 2^28");
+        }
+        this.maxMeters = maxMeters;
+        // keep the load factor below 0.5
+        int capacity = Integer.highestOneBit(maxMeters) << 2;
+        mask = capacity - 1;
+        keys = new AtomicLongArray(capacity);
+        lastSeen = new AtomicLongArray(capacity);
+        rssiAndAccessNumber = new AtomicLongArray(capacity);
+        readings = new AtomicLongArray(capacity);
+
+        // the state of meters that were not seen yet
+        for (int i = 0; i < capacity; i++) {
+            rssiAndAccessNumber.set(i, ((long) UNKNOWN_RSSI << 32) | 0xffffffffL);
+            readings.set(i, Double.doubleToRawLongBits(Double.NaN));
+        }
+    }
+
+    /**
+     * Updates the state of a meter using a received message. The message should have been decoded using
+     * {@link WMBusMessage#decodeDeep()} or {@link WMBusMessage#tryDecodeDeep()}. If only the link layer header was
+     * decoded the access number and reading are not updated.
+     * 
+     * @param message
+     *            the message
+     * @param timestamp
+     *            the time the message was received
+     * @return false if the index is full or the message has not been decoded
+     */
+    public boolean update(WMBusMessage message, long timestamp) {
+        SecondaryAddress address = message.getSecondaryAddress();
+        if (address == null) {
+            return false;
+        }
+        int rssi = message.getRssi() == null ? UNKNOWN_RSSI : message.getRssi();
+
+        VariableDataStructure vds = message.getVariableDataResponse();
+        List<DataRecord> dataRecords = vds == null ? null : vds.getDataRecords();
+        if (dataRecords == null) {
+            return update(address.asLong(), timestamp, rssi, -1, Double.NaN);
+        }
+
+        double reading = Double.NaN;
+        for (DataRecord dataRecord : dataRecords) {
+            Object value = dataRecord.getDataValue();
+            if (value instanceof Number) {
+                reading = ((Number) value).doubleValue() * Math.pow(10, dataRecord.getMultiplierExponent());
+                break;
+            }
+        }
+        return update(address.asLong(), timestamp, rssi, vds.getAccessNumber(), reading);
+    }
+
+    /**
+     * Updates the state of a meter. Updates that are older than the last seen time of the meter are ignored, so
+     * messages processed out of order do not replace newer state.
+     * 
+     * @param address
+     *            the long value of the secondary address
+     * @param timestamp
+     *            the time the meter was seen
+     * @param rssi
+     *            the RSSI in dBm or {@link #UNKNOWN_RSSI}
+     * @param accessNumber
+     *            the access number or -1 to keep the last one
+     * @param reading
+     *            the reading or NaN to keep the last one
+     * @return false if the index is full and the meter is not yet part of it
+     */
+    public boolean update(long address, long timestamp, int rssi, int accessNumber, double reading) {
+        int slot = slot(address, true);
+        if (slot == -1) {
+            return false;
+        }
+
+        // never move the state backwards if messages are processed out of order
+        long oldTimestamp;
+        do {
+            oldTimestamp = lastSeen.get(slot);
+            if (oldTimestamp > timestamp) {
+                return true;
+            }
+        } while (!lastSeen.compareAndSet(slot, oldTimestamp, timestamp));
+
+        if (accessNumber == -1) {
+            long oldValue;
+            do {
+                oldValue = rssiAndAccessNumber.get(slot);
+            } while (!rssiAndAccessNumber.compareAndSet(slot, oldValue,
+                    ((long) rssi << 32) | (oldValue & 0xffffffffL)));
+        }
+        else {
+            rssiAndAccessNumber.set(slot, ((long) rssi << 32) | (accessNumber & 0xffffffffL));
+        }
+        if (!Double.isNaN(reading)) {
+            readings.set(slot, Double.doubleToRawLongBits(reading));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the slot of the given address.
+     * 
+     * @return the slot or -1 if the address is not part of the index (and could not be inserted)
+     */
+    private int slot(long address, boolean insert) {
+        if (address == EMPTY) {
+            // not a valid secondary address
+            return -1;
+        }
+        int i = LongIndex.hash(address) & mask;
+        while (true) {
+            long key = keys.get(i);
+            if (key == address) {
+                return i;
+            }
+            if (key == EMPTY) {
+                if (!insert) {
+                    return -1;
+                }
+                if (size.incrementAndGet() > maxMeters) {
+                    size.decrementAndGet();
+                    return -1;
+                }
+                if (keys.compareAndSet(i, EMPTY, address)) {
+                    return i;
+                }
+                size.decrementAndGet();
+                // another thread inserted a key at this position, it may be the same address
+                continue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the number of meters in the index.
+     * 
+     * @return the number of meters
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean contains(long address) {
+        return slot(address, false) != -1;
+    }
+
+    /**
+     * Returns the time the meter was last seen.
+     * 
+     * @param address
+     *            the long value of the secondary address
+     * @return the time or 0 if the meter is unknown
+     */
+    public long getLastSeen(long address) {
+        int slot = slot(address, false);
+        return slot == -1 ? 0 : lastSeen.get(slot);
+    }
+
+    /**
+     * Returns the RSSI of the last message of the meter.
+     * 
+     * @param address
+     *            the long value of the secondary address
+     * @return the RSSI in dBm or {@link #UNKNOWN_RSSI}
+     */
+    public int getRssi(long address) {
+        int slot = slot(address, false);
+        return slot == -1 ? UNKNOWN_RSSI : (int) (rssiAndAccessNumber.get(slot) >> 32);
+    }
+
+    /**
+     * Returns the access number of the last decoded message of the meter.
+     * 
+     * @param address
+     *            the long value of the secondary address
+     * @return the access number or -1 if unknown
+     */
+    public int getAccessNumber(long address) {
+        int slot = slot(address, false);
+        return slot == -1 ? -1 : (int) rssiAndAccessNumber.get(slot);
+    }
+
+    /**
+     * Returns the last reading of the meter, i.e. the scaled value of the first numeric data record.
+     * 
+     * @param address
+     *            the long value of the secondary address
+     * @return the reading or NaN if unknown
+     */
+    public double getReading(long address) {
+        int slot = slot(address, false);
+        return slot == -1 ? Double.NaN : Double.longBitsToDouble(readings.get(slot));
+    }
+
+    /**
+     * Returns all meters that were not seen since the given time.
+     * 
+     * @param silentSince
+     *            the time (e.g. the current time minus N minutes)
+     * @return the long values of the secondary addresses of the silent meters
+     */
+    public long[] getSilentMeters(long silentSince) {
+        long[] result = new long[16];
+        int count = 0;
+        for (int i = 0; i <= mask; i++) {
+            long key = keys.get(i);
+            if (key != EMPTY && lastSeen.get(i) < silentSince) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = key;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the meters of the given device type with the strongest RSSI, strongest first.
+     * 
+     * @param deviceType
+     *            the device type
+     * @param n
+     *            the maximum number of meters to return
+     * @return the long values of the secondary addresses, empty if n is not positive
+     */
+    public long[] getTopRssi(DeviceType deviceType, int n) {
+        return getTopRssi(deviceType.getId(), n);
+    }
+
+    /**
+     * Returns the meters of the given device type with the strongest RSSI, strongest first. Meters without a known
+     * RSSI are ignored.
+     * 
+     * @param deviceTypeId
+     *            the ID of the device type as transmitted in the secondary address
+     * @param n
+     *            the maximum number of meters to return
+     * @return the long values of the secondary addresses, empty if n is not positive
+     */
+    public long[] getTopRssi(int deviceTypeId, int n) {
+        if (n <= 0) {
+            return new long[0];
+        }
+        long[] topAddresses = new long[n];
+        int[] topRssis = new int[n];
+        int count = 0;
+
+        for (int i = 0; i <= mask; i++) {
+            long key = keys.get(i);
+            if (key == EMPTY || (key & 0xff) != deviceTypeId) {
+                continue;
+            }
+            int rssi = (int) (rssiAndAccessNumber.get(i) >> 32);
+            if (rssi == UNKNOWN_RSSI || (count == n && rssi <= topRssis[n - 1])) {
+                continue;
+            }
+            // insertion into the sorted top list
+            int j = (count < n) ? count++ : n - 1;
+            while (j > 0 && topRssis[j - 1] < rssi) {
+                topRssis[j] = topRssis[j - 1];
+                topAddresses[j] = topAddresses[j - 1];
+                j--;
+            }
+            topRssis[j] = rssi;
+            topAddresses[j] = key;
+        }
+        return Arrays.copyOf(topAddresses, count);
+    }
+
+}
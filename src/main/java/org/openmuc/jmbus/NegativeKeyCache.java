@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the addresses of meters whose telegrams recently failed to decrypt because no key was stored for them.
+ * Telegrams of these meters are dropped by the receiver thread until the entry expires or the keys are changed.
+ * The cache is direct mapped: an address evicts the entry of another address that maps to the same position, so its
+ * memory is bounded no matter how many foreign meters are in range.
+ */
+class NegativeKeyCache {
+
+    private static final int SIZE = 4096;
+
+    private final long expiryTime;
+    private final long[] addresses = new long[SIZE];
+    // time in ms at which the entry expires, 0 for empty entries
+    private final long[] expiries = new long[SIZE];
+
+    /**
+     * @param expiryTime
+     *            the time in ms after which a meter is tried again
+     */
+    NegativeKeyCache(long expiryTime) {
+        this.expiryTime = expiryTime;
+    }
+
+    synchronized void add(long address, long now) {
+        int i = LongIndex.hash(address) & (SIZE - 1);
+        addresses[i] = address;
+        expiries[i] = now + expiryTime;
+    }
+
+    synchronized boolean contains(long address, long now) {
+        int i = LongIndex.hash(address) & (SIZE - 1);
+        return addresses[i] == address && expiries[i] > now;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(expiries, 0);
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A named set of data records that a wired meter is asked to return instead of its complete data (selection for
+ * readout, SND_UD with CI 0x51). A profile is assigned to a meter with
+ * {@link MBusSap#setReadoutProfile(int, ReadoutProfile)} or
+ * {@link MBusSap#setReadoutProfile(SecondaryAddress, ReadoutProfile)}. The service access point sends it before the
+ * next read and again whenever the selection was lost, e.g. after a link reset, an application reset or a power
+ * failure of the meter. The records are identified by their DIB and VIB only, so profiles are usually created from the
+ * records of a complete readout.
+ * 
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class ReadoutProfile {
+
+    /**
+     * The state of a profile assigned to a meter.
+     */
+    public enum State {
+        /**
+         * The profile will be sent before the next read.
+         */
+        PENDING,
+        /**
+         * The profile was sent and the meter returned only records of the profile.
+         */
+        APPLIED,
+        /**
+         * The profile was sent but the meter still returned other records. It is not sent again until the next link
+         * reset or application reset.
+         */
+        IGNORED
+    }
+
+    private final String name;
+    private final List<byte[]> dibs = new ArrayList<byte[]>();
+    private final List<byte[]> vibs = new ArrayList<byte[]>();
+    private final byte[] selection;
+
+    /**
+     * Creates a profile.
+     * 
+     * @param name
+     *            the name of the profile, e.g. "billing"
+     * @param dataRecords
+     *            the records to select, e.g. taken from a complete readout of the meter
+     */
+    public ReadoutProfile(String name, List<DataRecord> dataRecords) {
+        if (dataRecords.isEmpty()) {
+            throw new IllegalArgumentException("A readout profile needs at least one data record.");
+        }
+        this.name = name;
+        int length = 0;
+        for (DataRecord dataRecord : dataRecords) {
+            dibs.add(dataRecord.getDib().clone());
+            vibs.add(dataRecord.getVib().clone());
+            length += dataRecord.getDib().length + dataRecord.getVib().length;
+        }
+        if (length > 252) {
+            throw new IllegalArgumentException("Readout profile does not fit into a single frame.");
+        }
+
+        selection = new byte[length];
+        int i = 0;
+        for (int j = 0; j < dibs.size(); j++) {
+            byte[] dib = dibs.get(j);
+            byte[] vib = vibs.get(j);
+            System.arraycopy(dib, 0, selection, i, dib.length);
+            // data field 1000b: selection for readout
+            selection[i] = (byte) ((dib[0] & 0xf0) | 0x08);
+            i += dib.length;
+            System.arraycopy(vib, 0, selection, i, vib.length);
+            i += vib.length;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumberOfRecords() {
+        return dibs.size();
+    }
+
+    /**
+     * Returns the user data of the SND_UD that selects the records of this profile.
+     */
+    byte[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Checks whether the given records of a response all belong to this profile.
+     */
+    boolean matches(List<DataRecord> dataRecords) {
+        if (dataRecords.isEmpty()) {
+            return false;
+        }
+        for (DataRecord dataRecord : dataRecords) {
+            if (!contains(dataRecord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(DataRecord dataRecord) {
+        byte[] dib = dataRecord.getDib();
+        for (int j = 0; j < dibs.size(); j++) {
+            byte[] profileDib = dibs.get(j);
+            // the data field (coding of the value) is not part of the identity of a record
+            if (profileDib.length == dib.length && (profileDib[0] & 0xf0) == (dib[0] & 0xf0)
+                    && Arrays.equals(Arrays.copyOfRange(profileDib, 1, dib.length),
+                            Arrays.copyOfRange(dib, 1, dib.length))
+                    && Arrays.equals(vibs.get(j), dataRecord.getVib())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + dibs.size() + " records)";
+    }
+
+}
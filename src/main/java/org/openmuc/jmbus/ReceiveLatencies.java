@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Latency histograms of the stages a received message passes through in a {@link WMBusSap}:
+ * 
+ * <ul>
+ * <li>{@link Stage#FRAMING}: from the arrival of the first byte of a message until the message is complete</li>
+ * <li>{@link Stage#QUEUE_WAIT}: from the completion of the message until the listener thread starts to process it</li>
+ * <li>{@link Stage#DECODE}: the time needed by {@link WMBusMessage#decodeDeep()} and
+ * {@link WMBusMessage#tryDecodeDeep()}</li>
+ * <li>{@link Stage#LISTENER}: the time spent in {@link WMBusListener#newMessage(WMBusMessage)} (including decoding)</li>
+ * </ul>
+ * 
+ * @see WMBusSap#getReceiveLatencies()
+ */
+public class ReceiveLatencies {
+
+    public enum Stage {
+        FRAMING,
+        QUEUE_WAIT,
+        DECODE,
+        LISTENER;
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    public ReceiveLatencies() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            builder.append(stage).append(": ").append(histograms[stage.ordinal()]).append('\n');
+        }
+        return builder.toString();
+    }
+
+}
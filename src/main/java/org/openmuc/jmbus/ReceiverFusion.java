@@ -0,0 +1,448 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the messages of several wireless M-Bus receivers (e.g. several transceivers installed for coverage in one
+ * building). Every receiver's SAP is created with a listener returned by {@link #addReceiver(String)}. Copies of the
+ * same telegram that arrive within the fusion window are forwarded only once to the listener of the fusion: the copy
+ * with the best RSSI is selected. Copies that arrive after the telegram has been forwarded (up to another window
+ * length) are dropped.
+ * 
+ * <p>
+ * For every meter and receiver the number of received messages and RSSI statistics are kept. These show which
+ * receiver covers a meter best and where coverage is missing.
+ * </p>
+ * 
+ * <p>
+ * The messages are forwarded by a single thread of the fusion, i.e. the listener does not have to be thread safe.
+ * Messages are not decoded by the fusion, so the listener decodes every telegram once.
+ * </p>
+ */
+public class ReceiverFusion {
+
+    private static final int MAX_TELEGRAMS = 256;
+
+    private final long window;
+    private final WMBusListener listener;
+    private final ScheduledExecutorService timer;
+
+    private final List<String> receiverNames = new ArrayList<String>();
+
+    // telegrams in the order of their arrival, stored in a ring
+    private final long[] hashes = new long[MAX_TELEGRAMS];
+    private final long[] firstSeen = new long[MAX_TELEGRAMS];
+    private final WMBusMessage[] bestCopies = new WMBusMessage[MAX_TELEGRAMS];
+    private final int[] bestReceivers = new int[MAX_TELEGRAMS];
+    private int first = 0;
+    private int size = 0;
+
+    private final ArrayDeque<WMBusMessage> ready = new ArrayDeque<WMBusMessage>();
+    private final Object deliveryLock = new Object();
+
+    private final LongIndex meterIndex = new LongIndex();
+    private final List<ReceiverStatistics> statistics = new ArrayList<ReceiverStatistics>();
+
+    private long telegramCount = 0;
+    private long duplicateCount = 0;
+
+    private static class ReceiverStatistics {
+        int[] messageCounts;
+        int[] bestCounts;
+        int[] rssiCounts;
+        long[] rssiSums;
+        int[] minRssi;
+        int[] maxRssi;
+        long[] lastSeen;
+
+        ReceiverStatistics(int capacity) {
+            messageCounts = new int[capacity];
+            bestCounts = new int[capacity];
+            rssiCounts = new int[capacity];
+            rssiSums = new long[capacity];
+            minRssi = new int[capacity];
+            maxRssi = new int[capacity];
+            lastSeen = new long[capacity];
+        }
+
+        void grow(int capacity) {
+            if (messageCounts.length < capacity) {
+                messageCounts = Arrays.copyOf(messageCounts, capacity);
+                bestCounts = Arrays.copyOf(bestCounts, capacity);
+                rssiCounts = Arrays.copyOf(rssiCounts, capacity);
+                rssiSums = Arrays.copyOf(rssiSums, capacity);
+                minRssi = Arrays.copyOf(minRssi, capacity);
+                maxRssi = Arrays.copyOf(maxRssi, capacity);
+                lastSeen = Arrays.copyOf(lastSeen, capacity);
+            }
+        }
+    }
+
+    private class ReceiverListener implements WMBusListener {
+
+        private final int receiver;
+
+        ReceiverListener(int receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            received(receiver, message, System.currentTimeMillis());
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+            listener.discardedBytes(bytes);
+        }
+
+        @Override
+        public void stoppedListening(IOException e) {
+            listener.stoppedListening(e);
+        }
+    }
+
+    /**
+     * Creates a fusion and starts its thread.
+     * 
+     * @param window
+     *            the time in ms that copies of a telegram are collected before the best one is forwarded. Should be
+     *            longer than the maximum delay between the receivers, usually 100 to 500 ms.
+     * @param listener
+     *            the listener that the selected messages are forwarded to
+     */
+    public ReceiverFusion(long window, WMBusListener listener) {
+        this(window, listener, true);
+    }
+
+    ReceiverFusion(long window, WMBusListener listener, boolean startTimer) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive.");
+        }
+        this.window = window;
+        this.listener = listener;
+
+        if (startTimer) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jMBus receiver fusion");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long tick = Math.max(1, window / 4);
+            timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flush(System.currentTimeMillis());
+                }
+            }, tick, tick, TimeUnit.MILLISECONDS);
+        }
+        else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Adds a receiver and returns the listener that has to be passed to the receiver's SAP.
+     * 
+     * @param name
+     *            a name of the receiver (e.g. its serial port) used for diagnostics
+     * @return the listener for the SAP of the receiver
+     */
+    public synchronized WMBusListener addReceiver(String name) {
+        receiverNames.add(name);
+        statistics.add(new ReceiverStatistics(meterIndex.capacity()));
+        return new ReceiverListener(receiverNames.size() - 1);
+    }
+
+    /**
+     * Stops the thread of the fusion. Telegrams that have not been forwarded yet are discarded.
+     */
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    synchronized void received(int receiver, WMBusMessage message, long now) {
+        byte[] bytes = message.asBytes();
+        long hash = hash(bytes);
+        Integer rssi = message.getRssi();
+
+        if (bytes.length >= 10) {
+            updateStatistics(SecondaryAddress.toLong(bytes, 2, false), receiver, rssi, now);
+        }
+
+        expire(now);
+
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % MAX_TELEGRAMS;
+            if (hashes[index] == hash) {
+                duplicateCount++;
+                WMBusMessage bestCopy = bestCopies[index];
+                if (bestCopy != null && rssiOf(message) > rssiOf(bestCopy)) {
+                    bestCopies[index] = message;
+                    bestReceivers[index] = receiver;
+                }
+                return;
+            }
+        }
+
+        if (size == MAX_TELEGRAMS) {
+            // more telegrams within two windows than expected: forward the oldest early
+            release(first);
+            first = (first + 1) % MAX_TELEGRAMS;
+            size--;
+        }
+        int index = (first + size) % MAX_TELEGRAMS;
+        hashes[index] = hash;
+        firstSeen[index] = now;
+        bestCopies[index] = message;
+        bestReceivers[index] = receiver;
+        size++;
+        telegramCount++;
+    }
+
+    /**
+     * Forwards all telegrams whose window has elapsed to the listener.
+     */
+    void flush(long now) {
+        synchronized (deliveryLock) {
+            WMBusMessage message;
+            while (true) {
+                synchronized (this) {
+                    expire(now);
+                    message = ready.poll();
+                }
+                if (message == null) {
+                    return;
+                }
+                listener.newMessage(message);
+            }
+        }
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - firstSeen[first] >= 2 * window) {
+            release(first);
+            first = (first + 1) % MAX_TELEGRAMS;
+            size--;
+        }
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % MAX_TELEGRAMS;
+            if (now - firstSeen[index] < window) {
+                return;
+            }
+            release(index);
+        }
+    }
+
+    private void release(int index) {
+        if (bestCopies[index] == null) {
+            return;
+        }
+        WMBusMessage message = bestCopies[index];
+        bestCopies[index] = null;
+        ready.add(message);
+
+        int slot = meterIndex.get(addressOf(message));
+        if (slot != -1) {
+            statistics.get(bestReceivers[index]).bestCounts[slot]++;
+        }
+    }
+
+    private void updateStatistics(long address, int receiver, Integer rssi, long now) {
+        int slot = meterIndex.put(address);
+        if (slot == meterIndex.size() - 1) {
+            for (ReceiverStatistics receiverStatistics : statistics) {
+                receiverStatistics.grow(meterIndex.capacity());
+            }
+        }
+        ReceiverStatistics receiverStatistics = statistics.get(receiver);
+        receiverStatistics.messageCounts[slot]++;
+        receiverStatistics.lastSeen[slot] = now;
+        if (rssi != null) {
+            if (receiverStatistics.rssiCounts[slot] == 0 || rssi < receiverStatistics.minRssi[slot]) {
+                receiverStatistics.minRssi[slot] = rssi;
+            }
+            if (receiverStatistics.rssiCounts[slot] == 0 || rssi > receiverStatistics.maxRssi[slot]) {
+                receiverStatistics.maxRssi[slot] = rssi;
+            }
+            receiverStatistics.rssiCounts[slot]++;
+            receiverStatistics.rssiSums[slot] += rssi;
+        }
+    }
+
+    private static long addressOf(WMBusMessage message) {
+        byte[] bytes = message.asBytes();
+        return bytes.length >= 10 ? SecondaryAddress.toLong(bytes, 2, false) : 0;
+    }
+
+    private static int rssiOf(WMBusMessage message) {
+        Integer rssi = message.getRssi();
+        return rssi == null ? Integer.MIN_VALUE : rssi;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the telegram. Copies received by different receivers have identical bytes.
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public synchronized int getReceiverCount() {
+        return receiverNames.size();
+    }
+
+    public synchronized String getReceiverName(int receiver) {
+        return receiverNames.get(receiver);
+    }
+
+    /**
+     * Returns the number of distinct telegrams received so far.
+     * 
+     * @return the number of telegrams
+     */
+    public synchronized long getTelegramCount() {
+        return telegramCount;
+    }
+
+    /**
+     * Returns the number of copies that were dropped because the same telegram had been received by another (or the
+     * same) receiver before.
+     * 
+     * @return the number of duplicates
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Returns the addresses (see {@link SecondaryAddress#asLong()}) of all meters received by any receiver.
+     * 
+     * @return the addresses
+     */
+    public synchronized long[] getMeters() {
+        long[] meters = new long[meterIndex.size()];
+        for (int i = 0; i < meters.length; i++) {
+            meters[i] = meterIndex.getKey(i);
+        }
+        return meters;
+    }
+
+    /**
+     * Returns the addresses of all meters that have been received by other receivers but never by the given one.
+     * 
+     * @param receiver
+     *            the index of the receiver in the order of {@link #addReceiver(String)}
+     * @return the addresses
+     */
+    public synchronized long[] getMetersNotReceivedBy(int receiver) {
+        int[] messageCounts = statistics.get(receiver).messageCounts;
+        long[] meters = new long[meterIndex.size()];
+        int numMeters = 0;
+        for (int i = 0; i < meterIndex.size(); i++) {
+            if (messageCounts[i] == 0) {
+                meters[numMeters++] = meterIndex.getKey(i);
+            }
+        }
+        return Arrays.copyOf(meters, numMeters);
+    }
+
+    public synchronized int getMessageCount(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : statistics.get(receiver).messageCounts[slot];
+    }
+
+    /**
+     * Returns how often the copy of the given receiver was selected as best copy of a telegram of the given meter.
+     * 
+     * @param address
+     *            the address of the meter
+     * @param receiver
+     *            the index of the receiver
+     * @return the number of selected copies
+     */
+    public synchronized int getBestCount(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : statistics.get(receiver).bestCounts[slot];
+    }
+
+    /**
+     * Returns the mean RSSI of the messages of the given meter received by the given receiver.
+     * 
+     * @param address
+     *            the address of the meter
+     * @param receiver
+     *            the index of the receiver
+     * @return the mean RSSI in dBm or NaN if no message with RSSI has been received
+     */
+    public synchronized double getMeanRssi(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        if (slot == -1 || statistics.get(receiver).rssiCounts[slot] == 0) {
+            return Double.NaN;
+        }
+        ReceiverStatistics receiverStatistics = statistics.get(receiver);
+        return (double) receiverStatistics.rssiSums[slot] / receiverStatistics.rssiCounts[slot];
+    }
+
+    public synchronized int getMinRssi(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : statistics.get(receiver).minRssi[slot];
+    }
+
+    public synchronized int getMaxRssi(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : statistics.get(receiver).maxRssi[slot];
+    }
+
+    /**
+     * Returns the time the given receiver received the last message of the given meter.
+     * 
+     * @param address
+     *            the address of the meter
+     * @param receiver
+     *            the index of the receiver
+     * @return the time in ms since 1970 or 0 if the receiver has never received the meter
+     */
+    public synchronized long getLastSeen(long address, int receiver) {
+        int slot = meterIndex.get(address);
+        return slot == -1 ? 0 : statistics.get(receiver).lastSeen[slot];
+    }
+
+}
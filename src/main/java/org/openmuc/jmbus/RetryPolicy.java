@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Random;
+
+/**
+ * Describes how {@link MBusSap} repeats a request whose response was lost or garbled. Two kinds of failures are
+ * treated differently:
+ * <ul>
+ * <li>A garbled response (wrong start or stop byte, wrong checksum, wrong length) shows that the meter answered but
+ * the frame was disturbed. The request is repeated as soon as the bus is quiet again, which costs only a few frame
+ * times.</li>
+ * <li>If nothing at all was received within the timeout the meter either missed the request or is not present. The
+ * request is repeated after a randomized backoff delay that doubles with every repetition.</li>
+ * </ul>
+ * Requests are repeated byte by byte, so the frame count bit (FCB) of a repeated REQ_UD2 stays unchanged as required by
+ * EN 13757-2. A meter that already sent its response then sends the same response again instead of the next one.
+ * 
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class RetryPolicy {
+
+    /**
+     * Never repeats a request.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0, 0, 0);
+
+    /**
+     * Repeats a request twice if the response was garbled but not if no response was received.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(2, 0, 0, 0, 0);
+
+    private final int garbledRetries;
+    private final int timeoutRetries;
+    private final int backoff;
+    private final int maxBackoff;
+    private final double jitter;
+
+    /**
+     * Creates a retry policy.
+     * 
+     * @param garbledRetries
+     *            the number of times a request is repeated because of garbled responses
+     * @param timeoutRetries
+     *            the number of times a request is repeated because no response was received
+     * @param backoff
+     *            the delay in ms before the first repetition after a timeout. The delay doubles with every further
+     *            repetition.
+     * @param maxBackoff
+     *            the maximum delay in ms before a repetition after a timeout
+     * @param jitter
+     *            the fraction (0 to 1) by which each delay is randomly shortened, so that several masters on a
+     *            gateway do not repeat in lock step
+     */
+    public RetryPolicy(int garbledRetries, int timeoutRetries, int backoff, int maxBackoff, double jitter) {
+        if (garbledRetries < 0 || timeoutRetries < 0 || backoff < 0 || maxBackoff < backoff) {
+            throw new IllegalArgumentException("Invalid retry policy parameters.");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+        }
+        this.garbledRetries = garbledRetries;
+        this.timeoutRetries = timeoutRetries;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.jitter = jitter;
+    }
+
+    public int getGarbledRetries() {
+        return garbledRetries;
+    }
+
+    public int getTimeoutRetries() {
+        return timeoutRetries;
+    }
+
+    public int getBackoff() {
+        return backoff;
+    }
+
+    public int getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Returns the delay in ms before the given repetition after a timeout.
+     * 
+     * @param retry
+     *            the number of the repetition starting at 0
+     */
+    long getDelay(int retry, Random random) {
+        long delay = Math.min((long) backoff << Math.min(retry, 30), maxBackoff);
+        return delay - (long) (delay * jitter * random.nextDouble());
+    }
+
+}
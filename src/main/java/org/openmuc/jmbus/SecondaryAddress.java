@@ -21,44 +21,116 @@
 package org.openmuc.jmbus;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
+/**
+ * The secondary address of an M-Bus or wireless M-Bus device consisting of manufacturer ID, device ID, version and
+ * device type.
+ * 
+ * The address is also available as a single long value (see {@link #asLong()}) that is independent of the order in
+ * which the fields were transmitted. Instances are immutable and interned: decoding the address of the same meter
+ * from the same kind of header usually returns the same instance, so that no objects are created for the address of
+ * a meter that was seen before. Two addresses are equal if their long values are equal.
+ */
 public class SecondaryAddress {
 
-    private String manufacturerId;
-    private Bcd deviceId;
+    // number of cached instances per header layout, must be a power of two
+    private static final int CACHE_SIZE = 1 << 17;
+
+    private static final SecondaryAddress[] longHeaderCache = new SecondaryAddress[CACHE_SIZE];
+    private static final SecondaryAddress[] linkLayerHeaderCache = new SecondaryAddress[CACHE_SIZE];
+    // manufacturer IDs indexed by their 15 bit code
+    private static final String[] manufacturerIds = new String[1 << 15];
+
+    private final String manufacturerId;
+    private final Bcd deviceId;
     private final int version;
     private final DeviceType deviceType;
     private final byte[] bytes = new byte[8];
+    private final long value;
     private final int hashCode;
 
-    private SecondaryAddress(byte[] buffer, int offset, boolean longHeader) {
+    private SecondaryAddress(byte[] buffer, int offset, boolean longHeader, long value) {
         System.arraycopy(buffer, offset, bytes, 0, bytes.length);
-        hashCode = Arrays.hashCode(Arrays.copyOfRange(buffer, offset, bytes.length + offset - 1));
+        this.value = value;
+        hashCode = LongIndex.hash(value);
 
-        int i = offset;
+        manufacturerId = toManufacturerId((int) (value >>> 48));
+        byte[] idArray = new byte[4];
+        System.arraycopy(buffer, longHeader ? offset : offset + 2, idArray, 0, 4);
+        deviceId = new Bcd(idArray);
+        version = (int) (value >>> 8) & 0xff;
+        deviceType = DeviceType.getInstance((int) value & 0xff);
+    }
 
+    private static SecondaryAddress getInstance(byte[] buffer, int offset, boolean longHeader) {
+        long value = toLong(buffer, offset, longHeader);
+        SecondaryAddress[] cache = longHeader ? longHeaderCache : linkLayerHeaderCache;
+
+        // every address may be stored in two neighboring slots
+        int index = LongIndex.hash(value) & (CACHE_SIZE - 1);
+        int otherIndex = index ^ 1;
+        SecondaryAddress address = cache[index];
+        if (address != null && address.value == value) {
+            return address;
+        }
+        SecondaryAddress otherAddress = cache[otherIndex];
+        if (otherAddress != null && otherAddress.value == value) {
+            return otherAddress;
+        }
+
+        // instances have only final fields and can therefore be shared between threads without synchronization
+        SecondaryAddress newAddress = new SecondaryAddress(buffer, offset, longHeader, value);
+        if (address != null && otherAddress == null) {
+            cache[otherIndex] = newAddress;
+        }
+        else {
+            cache[index] = newAddress;
+        }
+        return newAddress;
+    }
+
+    /**
+     * Returns the long value of the secondary address in the given buffer without creating any objects.
+     * 
+     * @param buffer
+     *            the buffer containing the secondary address
+     * @param offset
+     *            the index of the first byte of the address
+     * @param longHeader
+     *            true if the address is in the order of the long header of the M-Bus application layer (device ID
+     *            first), false if it is in the order of the wireless M-Bus link layer header (manufacturer ID first)
+     * @return the long value as returned by {@link #asLong()}
+     */
+    static long toLong(byte[] buffer, int offset, boolean longHeader) {
+        int idOffset;
+        int manufacturerOffset;
         if (longHeader) {
-            i = decodeDeviceId(buffer, i);
-            i = decodeManufacturerId(buffer, i);
+            idOffset = offset;
+            manufacturerOffset = offset + 4;
         }
         else {
-            i = decodeManufacturerId(buffer, i);
-            i = decodeDeviceId(buffer, i);
+            manufacturerOffset = offset;
+            idOffset = offset + 2;
         }
-        version = buffer[i++] & 0xff;
-        deviceType = DeviceType.getInstance(buffer[i++] & 0xff);
+        long manufacturer = (buffer[manufacturerOffset] & 0xff) | ((buffer[manufacturerOffset + 1] & 0xff) << 8);
+        long id = (buffer[idOffset] & 0xff) | ((buffer[idOffset + 1] & 0xff) << 8)
+                | ((buffer[idOffset + 2] & 0xff) << 16) | ((buffer[idOffset + 3] & 0xffL) << 24);
+        return (manufacturer << 48) | (id << 16) | ((buffer[offset + 6] & 0xff) << 8) | (buffer[offset + 7] & 0xff);
     }
 
-    private int decodeManufacturerId(byte[] buffer, int i) {
-        int manufacturerIdAsInt = (buffer[i++] & 0xff) + (buffer[i++] << 8);
-        char c = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-        manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
-        char c1 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-        manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
-        char c2 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-        manufacturerId = "" + c2 + c1 + c;
-        return i;
+    private static String toManufacturerId(int manufacturerIdAsInt) {
+        int index = manufacturerIdAsInt & 0x7fff;
+        String manufacturerId = manufacturerIds[index];
+        if (manufacturerId == null) {
+            char c = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+            manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
+            char c1 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+            manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
+            char c2 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+            manufacturerId = "" + c2 + c1 + c;
+            manufacturerIds[index] = manufacturerId;
+        }
+        return manufacturerId;
     }
 
     private static byte[] encodeManufacturerId(String manufactureId) {
@@ -80,27 +152,17 @@ public class SecondaryAddress {
         return mfId;
     }
 
-    private int decodeDeviceId(byte[] buffer, int i) {
-        byte[] idArray = new byte[4];
-        idArray[0] = buffer[i++];
-        idArray[1] = buffer[i++];
-        idArray[2] = buffer[i++];
-        idArray[3] = buffer[i++];
-        deviceId = new Bcd(idArray);
-        return i;
-    }
-
     public static SecondaryAddress getFromLongHeader(byte[] buffer, int offset) {
-        return new SecondaryAddress(buffer, offset, true);
+        return getInstance(buffer, offset, true);
     }
 
     public static SecondaryAddress getFromWMBusLinkLayerHeader(byte[] buffer, int offset) {
-        return new SecondaryAddress(buffer, offset, false);
+        return getInstance(buffer, offset, false);
     }
 
     public static SecondaryAddress getFromHexString(String hexString) throws NumberFormatException {
         byte[] buffer = HexConverter.fromShortHexString(hexString);
-        return new SecondaryAddress(buffer, 0, true);
+        return getInstance(buffer, 0, true);
     }
 
     public static SecondaryAddress getFromManufactureId(byte[] idNumber, String manufactureId, byte version, byte media)
@@ -114,21 +176,54 @@ public class SecondaryAddress {
                     .put(version)
                     .put(media)
                     .array();
-            return new SecondaryAddress(buffer, 0, true);
+            return getInstance(buffer, 0, true);
         }
         else {
             throw new NumberFormatException("Wrong length of idNumber. Allowed length is 8.");
         }
     }
 
+    /**
+     * Returns the bytes of the address in the order in which they were received. The returned array is shared and
+     * must not be modified.
+     * 
+     * @return the bytes of the address
+     */
     public byte[] asByteArray() {
         return bytes;
     }
 
+    /**
+     * Returns the address packed into a long value: manufacturer ID (bits 48 to 63), device ID (bits 16 to 47, as
+     * received), version (bits 8 to 15) and device type (bits 0 to 7). The value does not depend on the kind of header
+     * the address was decoded from and can be used as key of hash based indexes.
+     * 
+     * @return the address as long value
+     */
+    public long asLong() {
+        return value;
+    }
+
     public int getHashCode() {
         return hashCode;
     }
 
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SecondaryAddress)) {
+            return false;
+        }
+        return value == ((SecondaryAddress) obj).value;
+    }
+
     public String getManufacturerId() {
         return manufacturerId;
     }
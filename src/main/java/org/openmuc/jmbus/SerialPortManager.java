@@ -0,0 +1,320 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+
+/**
+ * Opens the serial ports of all service access points. The available ports are enumerated only when a port is
+ * requested that has not been seen before and the enumeration is restricted to the requested ports. Each port is used
+ * by at most one service access point at a time.
+ * 
+ * Gateways with many serial ports should call {@link #openAll(Collection)} with all port names before opening their
+ * service access points. The ports are then opened in parallel and handed over to the service access points when
+ * these are opened.
+ */
+public class SerialPortManager {
+
+    private static final String OWNER = "org.openmuc.jmbus";
+
+    private static SerialPortManager defaultManager;
+
+    private final Map<String, CommPortIdentifier> identifiers = new HashMap<String, CommPortIdentifier>();
+    // names of all ports that were requested, the enumeration is restricted to these
+    private final Set<String> requestedNames = new LinkedHashSet<String>();
+    // ports opened by openAll that have not been acquired yet
+    private final Map<String, SerialPort> openedPorts = new HashMap<String, SerialPort>();
+    // ports that are being opened or are acquired by a service access point
+    private final Set<String> busyPorts = new HashSet<String>();
+
+    private int openTimeout = 2000;
+
+    /**
+     * Returns the manager that is used by service access points that communicate over serial ports.
+     * 
+     * @return the default serial port manager
+     */
+    public static synchronized SerialPortManager getDefault() {
+        if (defaultManager == null) {
+            defaultManager = new SerialPortManager();
+        }
+        return defaultManager;
+    }
+
+    SerialPortManager() {
+    }
+
+    /**
+     * Sets the maximum time in ms to wait for a single port to be opened.
+     * 
+     * @param openTimeout
+     *            the maximum time in ms to wait for a port. Must be greater than 0.
+     */
+    public synchronized void setOpenTimeout(int openTimeout) {
+        if (openTimeout <= 0) {
+            throw new IllegalArgumentException("openTimeout must be greater than 0");
+        }
+        this.openTimeout = openTimeout;
+    }
+
+    public synchronized int getOpenTimeout() {
+        return openTimeout;
+    }
+
+    /**
+     * Opens the given serial ports in parallel. The ports are kept open until they are acquired by a service access
+     * point or {@link #closeAll()} is called. Ports that are already open are skipped.
+     * 
+     * @param portNames
+     *            the names of the serial ports, e.g. "/dev/ttyUSB0"
+     * @return the errors of the ports that could not be opened by port name, empty if all ports were opened
+     */
+    public Map<String, IOException> openAll(Collection<String> portNames) {
+        Map<String, IOException> errors = new HashMap<String, IOException>();
+        final List<String> names = new ArrayList<String>();
+        final int timeout;
+
+        synchronized (this) {
+            timeout = openTimeout;
+            enumerate(portNames);
+            for (String name : new LinkedHashSet<String>(portNames)) {
+                if (!openedPorts.containsKey(name) && !busyPorts.contains(name)) {
+                    busyPorts.add(name);
+                    names.add(name);
+                }
+            }
+        }
+
+        if (names.isEmpty()) {
+            return errors;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(names.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jMBus serial port opener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        List<Future<SerialPort>> futures = new ArrayList<Future<SerialPort>>(names.size());
+        for (final String name : names) {
+            futures.add(executor.submit(new Callable<SerialPort>() {
+                @Override
+                public SerialPort call() throws IOException {
+                    return openPort(name, timeout);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        // the ports are opened at the same time, so all of them share the same deadline
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            Future<SerialPort> future = futures.get(i);
+            try {
+                SerialPort serialPort = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    busyPorts.remove(name);
+                    openedPorts.put(name, serialPort);
+                }
+            } catch (ExecutionException e) {
+                synchronized (this) {
+                    busyPorts.remove(name);
+                }
+                errors.put(name, e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause()));
+            } catch (TimeoutException e) {
+                // the port stays busy until the opening thread gives up
+                closeWhenOpened(name, future);
+                errors.put(name, new IOException("Opening serial port \"" + name + "\" timed out."));
+            } catch (InterruptedException e) {
+                closeWhenOpened(name, future);
+                errors.put(name, new IOException("Interrupted while opening serial port \"" + name + "\"."));
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return errors;
+    }
+
+    /**
+     * Closes all ports opened by {@link #openAll(Collection)} that have not been acquired by a service access point.
+     */
+    public synchronized void closeAll() {
+        for (SerialPort serialPort : openedPorts.values()) {
+            serialPort.close();
+        }
+        openedPorts.clear();
+    }
+
+    /**
+     * Returns the given serial port for exclusive use. It has to be handed back with {@link #release(String,
+     * SerialPort)}.
+     */
+    SerialPort acquire(String name) throws IOException {
+        int timeout;
+        synchronized (this) {
+            SerialPort serialPort = openedPorts.remove(name);
+            if (serialPort != null) {
+                busyPorts.add(name);
+                return serialPort;
+            }
+            if (busyPorts.contains(name)) {
+                throw new IOException("Serial port is currently in use.");
+            }
+            enumerate(Collections.singleton(name));
+            busyPorts.add(name);
+            timeout = openTimeout;
+        }
+
+        try {
+            return openPort(name, timeout);
+        } catch (IOException e) {
+            synchronized (this) {
+                busyPorts.remove(name);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a port returned by {@link #acquire(String)}.
+     */
+    void release(String name, SerialPort serialPort) {
+        serialPort.close();
+        synchronized (this) {
+            busyPorts.remove(name);
+        }
+    }
+
+    /**
+     * Enumerates the ports if any of the given ports is unknown. Enumeration is restricted to the ports requested so
+     * far because probing all devices of a system is slow.
+     */
+    private void enumerate(Collection<String> portNames) {
+        boolean unknown = false;
+        for (String name : portNames) {
+            requestedNames.add(name);
+            if (!identifiers.containsKey(name)) {
+                unknown = true;
+            }
+        }
+        if (!unknown) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : requestedNames) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparatorChar);
+            }
+            sb.append(name);
+        }
+        System.setProperty("gnu.io.rxtx.SerialPorts", sb.toString());
+
+        Enumeration<?> portIdentifiers = CommPortIdentifier.getPortIdentifiers();
+        while (portIdentifiers.hasMoreElements()) {
+            CommPortIdentifier portIdentifier = (CommPortIdentifier) portIdentifiers.nextElement();
+            if (portIdentifier.getPortType() == CommPortIdentifier.PORT_SERIAL) {
+                identifiers.put(portIdentifier.getName(), portIdentifier);
+            }
+        }
+    }
+
+    private SerialPort openPort(String name, int timeout) throws IOException {
+        CommPortIdentifier portIdentifier;
+        synchronized (this) {
+            portIdentifier = identifiers.get(name);
+        }
+        if (portIdentifier == null) {
+            throw new IOException("Serial port with given name \"" + name + "\" does not exist");
+        }
+
+        if (portIdentifier.isCurrentlyOwned()) {
+            throw new IOException("Serial port is currently in use.");
+        }
+
+        CommPort commPort;
+        try {
+            commPort = portIdentifier.open(OWNER, timeout);
+        } catch (PortInUseException e) {
+            throw new IOException("Serial port is currently in use.", e);
+        }
+
+        if (!(commPort instanceof SerialPort)) {
+            commPort.close();
+            throw new IOException("The specified CommPort is not a serial port");
+        }
+
+        return (SerialPort) commPort;
+    }
+
+    /**
+     * Keeps a port whose opening timed out busy until it is opened and closes it then.
+     */
+    private void closeWhenOpened(final String name, final Future<SerialPort> future) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get().close();
+                } catch (ExecutionException e) {
+                } catch (InterruptedException e) {
+                } finally {
+                    synchronized (SerialPortManager.this) {
+                        busyPorts.remove(name);
+                    }
+                }
+            }
+        }, "jMBus serial port opener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -24,26 +24,24 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
-import gnu.io.CommPort;
-import gnu.io.CommPortIdentifier;
-import gnu.io.NoSuchPortException;
-import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
 import gnu.io.UnsupportedCommOperationException;
 
-class SerialTransceiver {
+class SerialTransceiver implements Transceiver {
 
     private final String serialPortName;
     private final int baudRate;
     private final int dataBits;
     private final int stopBits;
     private final int parity;
+    private final SerialPortManager portManager;
     private DataOutputStream os;
     private DataInputStream is;
 
     private SerialPort serialPort;
 
     public SerialTransceiver(String serialPortName, int baudRate, int dataBits, int stopBits, int parity) {
+        portManager = SerialPortManager.getDefault();
         this.serialPortName = serialPortName;
         this.baudRate = baudRate;
         this.dataBits = dataBits;
@@ -57,40 +55,15 @@ class SerialTransceiver {
      * @throws IOException
      *             if any kind of error occurs opening the serial port.
      */
+    @Override
     public void open() throws IOException {
 
-        System.setProperty("gnu.io.rxtx.SerialPorts", serialPortName);
-
-        CommPortIdentifier.getPortIdentifiers();
-        CommPortIdentifier portIdentifier;
-        try {
-            portIdentifier = CommPortIdentifier.getPortIdentifier(serialPortName);
-        } catch (NoSuchPortException e) {
-            throw new IOException("Serial port with given name \"" + serialPortName + "\" does not exist", e);
-        }
-
-        if (portIdentifier.isCurrentlyOwned()) {
-            throw new IOException("Serial port is currently in use.");
-        }
-
-        CommPort commPort;
-        try {
-            commPort = portIdentifier.open(this.getClass().getName(), 2000);
-        } catch (PortInUseException e) {
-            throw new IOException("Serial port is currently in use.", e);
-        }
-
-        if (!(commPort instanceof SerialPort)) {
-            commPort.close();
-            throw new IOException("The specified CommPort is not a serial port");
-        }
-
-        serialPort = (SerialPort) commPort;
+        serialPort = portManager.acquire(serialPortName);
 
         try {
             serialPort.setSerialPortParams(baudRate, dataBits, stopBits, parity);
         } catch (UnsupportedCommOperationException e) {
-            serialPort.close();
+            portManager.release(serialPortName, serialPort);
             serialPort = null;
             throw new IOException("Unable to set the baud rate or other serial port parameters", e);
         }
@@ -99,7 +72,7 @@ class SerialTransceiver {
             os = new DataOutputStream(serialPort.getOutputStream());
             is = new DataInputStream(serialPort.getInputStream());
         } catch (IOException e) {
-            serialPort.close();
+            portManager.release(serialPortName, serialPort);
             serialPort = null;
             throw new IOException("Error getting input or output or input stream from serial port", e);
         }
@@ -109,22 +82,26 @@ class SerialTransceiver {
     /**
      * Closes the serial port.
      */
+    @Override
     public void close() {
         if (serialPort == null) {
             return;
         }
-        serialPort.close();
+        portManager.release(serialPortName, serialPort);
         serialPort = null;
     }
 
+    @Override
     public DataOutputStream getOutputStream() {
         return os;
     }
 
+    @Override
     public DataInputStream getInputStream() {
         return is;
     }
 
+    @Override
     public boolean isClosed() {
         return (serialPort == null);
     }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that serves any number of TCP connections to M-Bus gateways and serial-over-IP bridges (e.g.
+ * ser2net) using non-blocking I/O. Service access points that communicate over TCP register their connection with an
+ * event loop. Received bytes of wireless M-Bus connections are passed directly to the message framer of the service
+ * access point without an additional thread per connection.
+ * 
+ * The event loop thread is started when the first connection is opened.
+ */
+public class TcpEventLoop {
+
+    // interval in ms in which connections are checked for incomplete messages
+    private static final long IDLE_CHECK_INTERVAL = 100;
+
+    private static TcpEventLoop defaultEventLoop;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * Returns the event loop that is used by service access points that were created without specifying an event
+     * loop. Its thread is a daemon thread.
+     * 
+     * @return the default event loop
+     */
+    public static synchronized TcpEventLoop getDefault() {
+        if (defaultEventLoop == null || defaultEventLoop.closed) {
+            defaultEventLoop = new TcpEventLoop();
+        }
+        return defaultEventLoop;
+    }
+
+    /**
+     * Closes all connections of this event loop and stops its thread.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of connections currently served by this event loop.
+     * 
+     * @return the number of connections
+     */
+    public synchronized int getConnectionCount() {
+        if (selector == null || closed) {
+            return 0;
+        }
+        try {
+            return selector.keys().size();
+        } catch (ClosedSelectorException e) {
+            return 0;
+        }
+    }
+
+    void connect(final TcpTransceiver connection, final SocketChannel channel) throws IOException {
+        start();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (channel.isConnectionPending()) {
+                        connection.setSelectionKey(channel.register(selector, SelectionKey.OP_CONNECT, connection));
+                    }
+                    else {
+                        connection.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                        connection.connected();
+                    }
+                } catch (IOException e) {
+                    connection.failed(e);
+                }
+            }
+        });
+    }
+
+    void execute(Runnable task) throws IOException {
+        if (closed) {
+            throw new IOException("TCP event loop is closed.");
+        }
+        tasks.add(task);
+        if (closed && tasks.remove(task)) {
+            // the loop stopped after the check above and will not run the task anymore
+            throw new IOException("TCP event loop is closed.");
+        }
+        selector.wakeup();
+    }
+
+    private synchronized void start() throws IOException {
+        if (closed) {
+            throw new IOException("TCP event loop is closed.");
+        }
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "jMBus TCP event loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runLoop() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                selector.select(IDLE_CHECK_INTERVAL);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                long now = System.currentTimeMillis();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key, now);
+                }
+
+                if ((now - lastIdleCheck) >= IDLE_CHECK_INTERVAL) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid()) {
+                            ((TcpTransceiver) key.attachment()).idle(now);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            closed = true;
+            // tasks queued before execute() could see the flag are run so that no connection is left waiting
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                }
+            }
+            IOException e = new IOException("TCP event loop was closed.");
+            for (SelectionKey key : selector.keys()) {
+                ((TcpTransceiver) key.attachment()).failed(e);
+                closeChannel(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e1) {
+            }
+        }
+    }
+
+    private void handle(SelectionKey key, long now) {
+        TcpTransceiver connection = (TcpTransceiver) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    connection.connected();
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                int maxBytes;
+                while ((maxBytes = connection.receiveCapacity()) > 0) {
+                    readBuffer.clear();
+                    readBuffer.limit(Math.min(maxBytes, readBuffer.capacity()));
+                    int numBytesRead = channel.read(readBuffer);
+                    if (numBytesRead < 0) {
+                        throw new IOException("Connection closed by remote host.");
+                    }
+                    if (numBytesRead == 0) {
+                        break;
+                    }
+                    connection.received(readBuffer.array(), 0, numBytesRead, now);
+                }
+                if (maxBytes == 0) {
+                    // resumed by the connection once its receive buffer has been read
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (connection.writePending()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            closeChannel(key);
+            connection.failed(e);
+        } catch (RuntimeException e) {
+            closeChannel(key);
+            connection.failed(new IOException(e));
+        }
+    }
+
+    static void closeChannel(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+}
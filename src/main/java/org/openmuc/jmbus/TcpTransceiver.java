@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCP connection to an M-Bus gateway or a serial-over-IP bridge that is served by a {@link TcpEventLoop}.
+ * 
+ * Received bytes are buffered and can be read through the input stream. Once a {@link Receiver} is set, received
+ * bytes are passed to the receiver by the event loop thread instead.
+ */
+class TcpTransceiver implements Transceiver {
+
+    interface Receiver {
+
+        void bytesReceived(byte[] bytes, int offset, int length, long now);
+
+        void idle(long now);
+
+        void connectionLost(IOException e);
+
+    }
+
+    private static final int RECEIVE_BUFFER_LENGTH = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final InetSocketAddress address;
+    private final TcpEventLoop eventLoop;
+
+    private final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_LENGTH];
+    private int receiveStart = 0;
+    private int receiveCount = 0;
+    private boolean readPaused = false;
+    private Receiver receiver;
+
+    private final Object writeLock = new Object();
+    private ByteBuffer pendingBytes = ByteBuffer.allocate(512);
+
+    private SocketChannel channel;
+    private volatile SelectionKey selectionKey;
+    private volatile boolean closed = true;
+    private CountDownLatch connectLatch;
+    private IOException connectException;
+
+    private DataOutputStream os;
+    private DataInputStream is;
+
+    TcpTransceiver(InetSocketAddress address, TcpEventLoop eventLoop) {
+        this.address = address;
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!closed) {
+            return;
+        }
+        if (address.isUnresolved()) {
+            throw new IOException("Unable to resolve host: " + address.getHostString());
+        }
+
+        synchronized (receiveBuffer) {
+            receiveStart = 0;
+            receiveCount = 0;
+            readPaused = false;
+            receiver = null;
+        }
+        synchronized (writeLock) {
+            pendingBytes.clear();
+        }
+        connectLatch = new CountDownLatch(1);
+        connectException = null;
+
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+            closed = false;
+            eventLoop.connect(this, channel);
+
+            if (!connectLatch.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout connecting to " + address);
+            }
+        } catch (InterruptedException e) {
+            close();
+            throw new IOException("Interrupted while connecting to " + address, e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        if (connectException != null) {
+            close();
+            throw new IOException("Unable to connect to " + address, connectException);
+        }
+
+        os = new DataOutputStream(new TcpOutputStream());
+        is = new DataInputStream(new TcpInputStream());
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final SocketChannel channelToClose = channel;
+        try {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey key = selectionKey;
+                    if (key != null && key.channel() == channelToClose) {
+                        TcpEventLoop.closeChannel(key);
+                    }
+                    else {
+                        closeQuietly(channelToClose);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            closeQuietly(channelToClose);
+        }
+        synchronized (receiveBuffer) {
+            receiveBuffer.notifyAll();
+        }
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return os;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return is;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Lets the event loop pass all received bytes to the given receiver. Bytes that were received before are passed
+     * to the receiver immediately.
+     */
+    void setReceiver(Receiver receiver) {
+        synchronized (receiveBuffer) {
+            while (receiveCount > 0) {
+                int numBytes = Math.min(receiveCount, RECEIVE_BUFFER_LENGTH - receiveStart);
+                receiver.bytesReceived(receiveBuffer, receiveStart, numBytes, System.currentTimeMillis());
+                consumed(numBytes);
+            }
+            this.receiver = receiver;
+        }
+    }
+
+    // the following methods are called by the event loop thread
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    void connected() {
+        connectLatch.countDown();
+    }
+
+    void failed(IOException e) {
+        if (connectLatch.getCount() > 0) {
+            connectException = e;
+            connectLatch.countDown();
+            return;
+        }
+        boolean wasClosed = closed;
+        closed = true;
+        Receiver currentReceiver;
+        synchronized (receiveBuffer) {
+            currentReceiver = receiver;
+            receiveBuffer.notifyAll();
+        }
+        if (!wasClosed && currentReceiver != null) {
+            currentReceiver.connectionLost(e);
+        }
+    }
+
+    int receiveCapacity() {
+        synchronized (receiveBuffer) {
+            if (receiver != null) {
+                return Integer.MAX_VALUE;
+            }
+            int capacity = RECEIVE_BUFFER_LENGTH - receiveCount;
+            readPaused = (capacity == 0);
+            return capacity;
+        }
+    }
+
+    void received(byte[] bytes, int offset, int length, long now) {
+        synchronized (receiveBuffer) {
+            if (receiver != null) {
+                receiver.bytesReceived(bytes, offset, length, now);
+                return;
+            }
+            // receiveCapacity() guarantees that the bytes fit
+            while (length > 0) {
+                int end = (receiveStart + receiveCount) % RECEIVE_BUFFER_LENGTH;
+                int numBytes = Math.min(length, RECEIVE_BUFFER_LENGTH - end);
+                System.arraycopy(bytes, offset, receiveBuffer, end, numBytes);
+                receiveCount += numBytes;
+                offset += numBytes;
+                length -= numBytes;
+            }
+            receiveBuffer.notifyAll();
+        }
+    }
+
+    void idle(long now) {
+        Receiver currentReceiver;
+        synchronized (receiveBuffer) {
+            currentReceiver = receiver;
+        }
+        if (currentReceiver != null) {
+            currentReceiver.idle(now);
+        }
+    }
+
+    /**
+     * Writes pending bytes. Returns true if all pending bytes were written.
+     */
+    boolean writePending() throws IOException {
+        synchronized (writeLock) {
+            pendingBytes.flip();
+            try {
+                channel.write(pendingBytes);
+                return !pendingBytes.hasRemaining();
+            } finally {
+                pendingBytes.compact();
+            }
+        }
+    }
+
+    private void consumed(int numBytes) {
+        receiveStart = (receiveStart + numBytes) % RECEIVE_BUFFER_LENGTH;
+        receiveCount -= numBytes;
+        if (readPaused) {
+            readPaused = false;
+            enableInterest(SelectionKey.OP_READ);
+        }
+    }
+
+    private void enableInterest(final int ops) {
+        try {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey key = selectionKey;
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | ops);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            // the event loop was closed and has notified this connection already
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private class TcpInputStream extends InputStream {
+
+        @Override
+        public int available() throws IOException {
+            synchronized (receiveBuffer) {
+                if (receiveCount == 0 && closed) {
+                    throw new IOException("Connection is closed.");
+                }
+                return receiveCount;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (read(b, 0, 1) == -1) {
+                return -1;
+            }
+            return b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (receiveBuffer) {
+                while (receiveCount == 0) {
+                    if (closed) {
+                        return -1;
+                    }
+                    try {
+                        receiveBuffer.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while reading.", e);
+                    }
+                }
+                int numBytes = Math.min(len, Math.min(receiveCount, RECEIVE_BUFFER_LENGTH - receiveStart));
+                System.arraycopy(receiveBuffer, receiveStart, b, off, numBytes);
+                consumed(numBytes);
+                return numBytes;
+            }
+        }
+    }
+
+    private class TcpOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Connection is closed.");
+            }
+            synchronized (writeLock) {
+                ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+                if (pendingBytes.position() == 0) {
+                    channel.write(bytes);
+                    if (!bytes.hasRemaining()) {
+                        return;
+                    }
+                }
+                if (pendingBytes.remaining() < bytes.remaining()) {
+                    ByteBuffer newPendingBytes = ByteBuffer
+                            .allocate(Math.max(pendingBytes.capacity() * 2, pendingBytes.position() + bytes.remaining()));
+                    pendingBytes.flip();
+                    newPendingBytes.put(pendingBytes);
+                    pendingBytes = newPendingBytes;
+                }
+                pendingBytes.put(bytes);
+            }
+            enableInterest(SelectionKey.OP_WRITE);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+/**
+ * The decoded application layer of a Techem heat cost allocator (Heizkostenverteiler) message.
+ * 
+ * @see TechemHKVDecoder
+ */
+public class TechemHKVData {
+
+    private final int ciField;
+    private final String status;
+    private final Calendar lastDate;
+    private final Calendar curDate;
+    private final int lastVal;
+    private final int curVal;
+    private final float t1;
+    private final float t2;
+    private final String history;
+
+    TechemHKVData(int ciField, String status, Calendar lastDate, int lastVal, Calendar curDate, int curVal, float t1,
+            float t2, String history) {
+        this.ciField = ciField;
+        this.status = status;
+        this.lastDate = lastDate;
+        this.lastVal = lastVal;
+        this.curDate = curDate;
+        this.curVal = curVal;
+        this.t1 = t1;
+        this.t2 = t2;
+        this.history = history;
+    }
+
+    public int getCiField() {
+        return ciField;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Calendar getLastDate() {
+        return lastDate;
+    }
+
+    public Calendar getCurDate() {
+        return curDate;
+    }
+
+    public int getLastVal() {
+        return lastVal;
+    }
+
+    public int getCurVal() {
+        return curVal;
+    }
+
+    public float getT1() {
+        return t1;
+    }
+
+    public float getT2() {
+        return t2;
+    }
+
+    public String getHistory() {
+        return history;
+    }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        return "Last Date: " + dateFormat.format(lastDate.getTime()) + ", Last Value: " + lastVal + ", Current Date: "
+                + dateFormat.format(curDate.getTime()) + ", Current Value: " + curVal + ", T1: "
+                + String.format("%.2f", t1) + "\u00b0C" + ", T2: " + String.format("%.2f", t2) + "\u00b0C"
+                + ", History: " + history;
+    }
+
+}
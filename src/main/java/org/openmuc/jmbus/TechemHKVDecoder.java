@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Decodes the proprietary application layer (CI field 0xA0 or 0xA2) of Techem heat cost allocators into
+ * {@link TechemHKVData}. The decoder is registered at the default {@link DecoderRegistry}.
+ */
+public class TechemHKVDecoder implements ManufacturerSpecificDecoder {
+
+    private static final int HISTORY_LENGTH = 27;
+    // CI field, status, two dates, two values and two temperatures
+    private static final int MIN_LENGTH = 14;
+
+    @Override
+    public Object decode(byte[] buffer, int offset, int length, SecondaryAddress secondaryAddress)
+            throws DecodingException {
+        if (length < MIN_LENGTH) {
+            throw new DecodingException("Techem HKV message is too short: " + length + " bytes");
+        }
+
+        int ciField = buffer[offset] & 0xff;
+        String status = HexConverter.toShortHexString(buffer[offset + 1]);
+        Calendar lastDate = parseLastDate(buffer, offset + 2);
+        int lastVal = parseLittleEndianInt(buffer, offset + 4);
+        Calendar curDate = parseCurrentDate(buffer, offset + 6);
+        int curVal = parseLittleEndianInt(buffer, offset + 8);
+        float t1 = parseTemp(buffer, offset + 10);
+        float t2 = parseTemp(buffer, offset + 12);
+
+        byte[] historyBytes = new byte[HISTORY_LENGTH];
+        System.arraycopy(buffer, offset + MIN_LENGTH, historyBytes, 0,
+                Math.min(HISTORY_LENGTH, length - MIN_LENGTH));
+        String history = HexConverter.toShortHexString(historyBytes);
+
+        return new TechemHKVData(ciField, status, lastDate, lastVal, curDate, curVal, t1, t2, history);
+    }
+
+    private static int parseLittleEndianInt(byte[] buffer, int i) {
+        return (buffer[i] & 0xff) + ((buffer[i + 1] & 0xff) << 8);
+    }
+
+    private static float parseTemp(byte[] buffer, int i) {
+        float tempint = parseLittleEndianInt(buffer, i);
+        return tempint / 100;
+    }
+
+    private static Calendar parseLastDate(byte[] buffer, int i) {
+        int dateint = parseLittleEndianInt(buffer, i);
+
+        int day = (dateint >> 0) & 0x1F;
+        int month = (dateint >> 5) & 0x0F;
+        int year = (dateint >> 9) & 0x3F;
+
+        Calendar calendar = new GregorianCalendar();
+        calendar.set(Calendar.YEAR, 2000 + year);
+        calendar.set(Calendar.MONTH, month - 1);
+        calendar.set(Calendar.DAY_OF_MONTH, day);
+
+        return calendar;
+    }
+
+    private static Calendar parseCurrentDate(byte[] buffer, int i) {
+        int dateint = parseLittleEndianInt(buffer, i);
+
+        int day = (dateint >> 4) & 0x1F;
+        int month = (dateint >> 9) & 0x0F;
+        Calendar calendar = new GregorianCalendar();
+        calendar.set(calendar.get(Calendar.YEAR), month - 1, day);
+        return calendar;
+    }
+
+}
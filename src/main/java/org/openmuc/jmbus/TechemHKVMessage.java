@@ -23,177 +23,122 @@ package org.openmuc.jmbus;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 
 /**
  * 
- * Represents a Message of a Techem Heizkostenverteiler (heat cost allocator)
+ * Represents a Message of a Techem Heizkostenverteiler (heat cost allocator). The application layer is decoded by
+ * the {@link TechemHKVDecoder} that is registered at the {@link DecoderRegistry} of the message.
  *
  */
-public class TechemHKVMessage extends WMBusMessage{
+public class TechemHKVMessage extends WMBusMessage {
 
     private final byte[] hkvBuffer;
 
-	int ciField;
-	String status="";
-	Calendar lastDate=null;
-	Calendar curDate=null;
-	int lastVal=-1;
-	int curVal=-1;
-	float t1=-1;
-	float t2=-1;
-	byte[] historyBytes=new byte[27];
-	String history="";
-	
-	SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-	public TechemHKVMessage(WMBusMessage originalMessage){
-		this(originalMessage.asBytes(),originalMessage.getRssi(),originalMessage.keyMap);
-	}
-    
+    private TechemHKVData data;
+
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    /**
+     * Wraps the given message. If the message has already been decoded using {@link #decodeDeep()} its decoded data is
+     * taken over without decoding it again.
+     * 
+     * @param originalMessage
+     *            the message to wrap
+     */
+    public TechemHKVMessage(WMBusMessage originalMessage) {
+        super(originalMessage);
+        this.hkvBuffer = originalMessage.asBytes();
+        setData();
+    }
+
     TechemHKVMessage(byte[] buffer, Integer signalStrengthInDBm, HashMap<String, byte[]> keyMap) {
-        super(buffer,signalStrengthInDBm, keyMap);
-    	this.hkvBuffer=buffer;
+        super(buffer, signalStrengthInDBm, keyMap);
+        this.hkvBuffer = buffer;
     }
 
     @Override
     public void decodeDeep() throws DecodingException {
-        try {
-        	super.decodeDeep();
-        } catch (DecodingException e) {
-        	int offset=10;
-        	
-    		ciField=hkvBuffer[offset+0]  & 0xff;
-    		
-        	if ((ciField ==  0xa0 ||  ciField ==  0xa2) && getSecondaryAddress().getManufacturerId().equals("TCH")	){
-        		status=HexConverter.toShortHexString(hkvBuffer[offset+1]);
-        		lastDate=parseLastDate(offset+2);
-        		curDate=parseCurrentDate(offset+6);
-        		lastVal=parseBigEndianInt(offset+4);
-        		curVal=parseBigEndianInt(offset+8);
-        		t1=parseTemp(offset+10);
-        		t2=parseTemp(offset+12);
-        		
-        		System.arraycopy(hkvBuffer, 24, historyBytes, 0, hkvBuffer.length-24);
-        		history=HexConverter.toShortHexString(historyBytes);
-        		
-        	} else {
-        		throw e;
-        	}
-        }   
+        super.decodeDeep();
+        setData();
     }
-    
-    public Calendar getLastDate() {
-		return lastDate;
-	}
 
-	public Calendar getCurDate() {
-		return curDate;
-	}
-
-	public int getLastVal() {
-		return lastVal;
-	}
+    private void setData() {
+        Object manufacturerSpecificData = getManufacturerSpecificData();
+        if (manufacturerSpecificData instanceof TechemHKVData) {
+            data = (TechemHKVData) manufacturerSpecificData;
+        }
+    }
 
-	public int getCurVal() {
-		return curVal;
-	}
+    /**
+     * Returns the decoded Techem specific fields.
+     * 
+     * @return the decoded fields or null if the message has not been decoded or is no Techem HKV message
+     */
+    public TechemHKVData getData() {
+        return data;
+    }
 
-	public float getT1() {
-		return t1;
-	}
+    public Calendar getLastDate() {
+        return data == null ? null : data.getLastDate();
+    }
 
-	public float getT2() {
-		return t2;
-	}
+    public Calendar getCurDate() {
+        return data == null ? null : data.getCurDate();
+    }
 
-	public String getHistory() {
-		return history;
-	}
+    public int getLastVal() {
+        return data == null ? -1 : data.getLastVal();
+    }
 
-	int parseBigEndianInt(int i){
-    	return (hkvBuffer[i] & 0xFF)+((hkvBuffer[i+1] & 0xFF)<<8);
+    public int getCurVal() {
+        return data == null ? -1 : data.getCurVal();
     }
-    
-    float parseTemp(int i){    	
-    	float tempint=parseBigEndianInt(i);
-    	
-    	return tempint/100;
-    	//return String.format("%.2f", tempint / 100)+"�C";
+
+    public float getT1() {
+        return data == null ? -1 : data.getT1();
     }
-    
-    private Calendar parseLastDate(int i){
-    	int dateint=parseBigEndianInt(i);
-
-        int day = (dateint >> 0) & 0x1F;
-        int month = (dateint >> 5) & 0x0F;
-        int year = (dateint >> 9) & 0x3F;
-    	
-//        return LocalDate.of(2000+year, month, day);
-        Calendar calendar = new GregorianCalendar();
-        calendar.set(Calendar.YEAR, 2000+year);
-        calendar.set(Calendar.MONTH, month-1);
-        calendar.set(Calendar.DAY_OF_MONTH, day);
-
-        return calendar;
+
+    public float getT2() {
+        return data == null ? -1 : data.getT2();
     }
-    
-    private Calendar parseCurrentDate(int i){
-    	int dateint=parseBigEndianInt(i);
-
-        int day = (dateint >> 4) & 0x1F;
-        int month = (dateint >> 9) & 0x0F;
-//        int year = (dateint >> 13) & 0x07;
-        Calendar calendar = new GregorianCalendar();
-        calendar.set(calendar.get(Calendar.YEAR), month-1, day);
-        return calendar;
-//        return LocalDate.of( LocalDate.now().getYear(), month, day);
+
+    public String getHistory() {
+        return data == null ? "" : data.getHistory();
     }
 
     public String renderTechemFields() {
-    	String s = "";
-    	
-		s+="Last Date: "+dateFormat.format(lastDate.getTime());
-		s+=", Last Value: "+lastVal;
-		
-		s+=", Current Date: "+dateFormat.format(curDate.getTime());
-		s+=", Current Value: "+curVal;
-
-		s+=", T1: "+String.format("%.2f", t1)+"�C";
-		s+=", T2: "+String.format("%.2f", t2)+"�C";
-
-		s+=", History: "+ history;
-    	return s;
+        return data == null ? "" : data.toString();
     }
-    
+
     @Override
     public String toString() {
-    	
+
         StringBuilder builder = new StringBuilder();
-        if (getVariableDataResponse()==null) {
+        if (data == null) {
             builder.append("Message has not been decoded. Bytes of this message: ");
             HexConverter.appendHexString(builder, hkvBuffer, 0, hkvBuffer.length);
             return builder.toString();
-        } else {
+        }
+        else {
             builder.append(new Date())
-		            .append(";").append(getRssi())
-		            .append(";").append(getControlField())
-		            .append(";").append(getSecondaryAddress().getManufacturerId())
-		            .append(";").append(getSecondaryAddress().getDeviceId())
-		            .append(";").append(getSecondaryAddress().getVersion())
-		            .append(";").append(getSecondaryAddress().getDeviceType())
-		            .append(";").append(ciField)
-		            .append(";").append(status)
-		            .append(";").append(dateFormat.format(lastDate.getTime()))
-		            .append(";").append(lastVal)
-		            .append(";").append(dateFormat.format(curDate.getTime()))
-		            .append(";").append(curVal)
-		            .append(";").append(t1)
-		            .append(";").append(t2)
-		            .append(";").append(history)
-            		.append(";").append(HexConverter.toShortHexString(hkvBuffer));
+                    .append(";").append(getRssi())
+                    .append(";").append(getControlField())
+                    .append(";").append(getSecondaryAddress().getManufacturerId())
+                    .append(";").append(getSecondaryAddress().getDeviceId())
+                    .append(";").append(getSecondaryAddress().getVersion())
+                    .append(";").append(getSecondaryAddress().getDeviceType())
+                    .append(";").append(data.getCiField())
+                    .append(";").append(data.getStatus())
+                    .append(";").append(dateFormat.format(data.getLastDate().getTime()))
+                    .append(";").append(data.getLastVal())
+                    .append(";").append(dateFormat.format(data.getCurDate().getTime()))
+                    .append(";").append(data.getCurVal())
+                    .append(";").append(data.getT1())
+                    .append(";").append(data.getT2())
+                    .append(";").append(data.getHistory())
+                    .append(";").append(HexConverter.toShortHexString(hkvBuffer));
             return builder.toString();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+/**
+ * The samples of one time series as returned by a query on the {@link TimeSeriesStore}. A <code>TimeSeries</code> can
+ * be reused for several queries in order to avoid allocating new arrays for every query.
+ * 
+ * Values are stored in their raw form: the integer value of the data record or, if the series holds floating point
+ * values, the bits of the double as returned by {@link Double#doubleToLongBits(double)}. Use
+ * {@link #getScaledValue(int)} to get the value multiplied by the multiplier of the data record.
+ */
+public class TimeSeries {
+
+    private long[] timestamps;
+    private long[] values;
+    private int size = 0;
+
+    private boolean floatingPoint = false;
+    private int multiplierExponent = 0;
+
+    public TimeSeries() {
+        this(64);
+    }
+
+    public TimeSeries(int initialCapacity) {
+        timestamps = new long[initialCapacity];
+        values = new long[initialCapacity];
+    }
+
+    void reset(boolean floatingPoint, int multiplierExponent) {
+        size = 0;
+        this.floatingPoint = floatingPoint;
+        this.multiplierExponent = multiplierExponent;
+    }
+
+    void add(long timestamp, long value) {
+        if (size == timestamps.length) {
+            int newCapacity = Math.max(16, size * 2);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Returns the number of samples.
+     * 
+     * @return the number of samples
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    /**
+     * Returns the raw value of the sample at the given index.
+     * 
+     * @param index
+     *            the index of the sample
+     * @return the raw value
+     */
+    public long getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Returns the value of the sample at the given index multiplied by the multiplier of the data record.
+     * 
+     * @param index
+     *            the index of the sample
+     * @return the scaled value
+     */
+    public double getScaledValue(int index) {
+        checkIndex(index);
+        if (floatingPoint) {
+            return Double.longBitsToDouble(values[index]) * Math.pow(10, multiplierExponent);
+        }
+        return values[index] * Math.pow(10, multiplierExponent);
+    }
+
+    /**
+     * Returns true if the values of this series are the bits of doubles.
+     * 
+     * @return true if the values are floating point values
+     */
+    public boolean isFloatingPoint() {
+        return floatingPoint;
+    }
+
+    public int getMultiplierExponent() {
+        return multiplierExponent;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A block of consecutive samples of one time series in compressed form. Timestamps are stored as delta-of-delta
+ * values. Integer values are stored the same way while floating point values are XORed with their predecessor. Both
+ * schemes need only a single bit per sample for meters that report at a fixed rate with constant consumption.
+ */
+class TimeSeriesChunk {
+
+    static final int MAX_SAMPLES = 512;
+
+    private final boolean floatingPoint;
+
+    private byte[] data = new byte[64];
+    private long bitPosition = 0;
+
+    private int count = 0;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+    private long lastValue;
+    private long lastValueDelta;
+    private int lastLeadingZeros = Integer.MAX_VALUE;
+    private int lastTrailingZeros;
+
+    TimeSeriesChunk(boolean floatingPoint) {
+        this.floatingPoint = floatingPoint;
+    }
+
+    void append(long timestamp, long value) {
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            writeBits(timestamp, 64);
+            writeBits(value, 64);
+        }
+        else {
+            long delta = timestamp - lastTimestamp;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+
+            if (floatingPoint) {
+                writeXor(value);
+            }
+            else {
+                long valueDelta = value - lastValue;
+                writeDeltaOfDelta(valueDelta - lastValueDelta);
+                lastValueDelta = valueDelta;
+            }
+        }
+        lastTimestamp = timestamp;
+        lastValue = value;
+        count++;
+    }
+
+    boolean isFull() {
+        return count >= MAX_SAMPLES;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isFloatingPoint() {
+        return floatingPoint;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int getByteLength() {
+        return (int) ((bitPosition + 7) >>> 3);
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        }
+        else if (dod >= -64 && dod < 64) {
+            writeBits(0x02, 2);
+            writeBits(dod, 7);
+        }
+        else if (dod >= -2048 && dod < 2048) {
+            writeBits(0x06, 3);
+            writeBits(dod, 12);
+        }
+        else if (dod >= -524288 && dod < 524288) {
+            writeBits(0x0e, 4);
+            writeBits(dod, 20);
+        }
+        else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+            writeBits(0x1e, 5);
+            writeBits(dod, 32);
+        }
+        else {
+            writeBits(0x1f, 5);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeXor(long value) {
+        long xor = value ^ lastValue;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        writeBits(1, 1);
+
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 63);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+
+        if (leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+            writeBits(0, 1);
+            writeBits(xor >>> lastTrailingZeros, 64 - lastLeadingZeros - lastTrailingZeros);
+        }
+        else {
+            int significantBits = 64 - leadingZeros - trailingZeros;
+            writeBits(1, 1);
+            writeBits(leadingZeros, 6);
+            writeBits(significantBits - 1, 6);
+            writeBits(xor >>> trailingZeros, significantBits);
+            lastLeadingZeros = leadingZeros;
+            lastTrailingZeros = trailingZeros;
+        }
+    }
+
+    private void writeBits(long value, int numBits) {
+        int requiredBytes = (int) ((bitPosition + numBits + 7) >>> 3);
+        if (requiredBytes > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, requiredBytes));
+        }
+        for (int i = numBits - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) == 1) {
+                int byteIndex = (int) (bitPosition >>> 3);
+                data[byteIndex] |= (byte) (0x80 >>> (bitPosition & 7));
+            }
+            bitPosition++;
+        }
+    }
+
+    /**
+     * Decodes the samples of a chunk and adds those with a timestamp within [from, to] to the given time series.
+     * 
+     * @param buffer
+     *            buffer holding the encoded samples
+     * @param offset
+     *            absolute position of the first encoded byte within the buffer
+     * @param count
+     *            the number of samples stored in the chunk
+     * @param floatingPoint
+     *            whether values are XOR encoded doubles
+     * @param from
+     *            start of the time range (inclusive)
+     * @param to
+     *            end of the time range (inclusive)
+     * @param result
+     *            the time series the samples are added to
+     */
+    static void decode(ByteBuffer buffer, int offset, int count, boolean floatingPoint, long from, long to,
+            TimeSeries result) {
+        Reader reader = new Reader(buffer, offset);
+
+        long timestamp = reader.readBits(64);
+        long value = reader.readBits(64);
+        long delta = 0;
+        long valueDelta = 0;
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                delta += reader.readDeltaOfDelta();
+                timestamp += delta;
+
+                if (floatingPoint) {
+                    if (reader.readBits(1) == 1) {
+                        if (reader.readBits(1) == 1) {
+                            leadingZeros = (int) reader.readBits(6);
+                            int significantBits = (int) reader.readBits(6) + 1;
+                            trailingZeros = 64 - leadingZeros - significantBits;
+                        }
+                        value ^= reader.readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+                    }
+                }
+                else {
+                    valueDelta += reader.readDeltaOfDelta();
+                    value += valueDelta;
+                }
+            }
+
+            if (timestamp > to) {
+                return;
+            }
+            if (timestamp >= from) {
+                result.add(timestamp, value);
+            }
+        }
+    }
+
+    private static class Reader {
+
+        private final ByteBuffer buffer;
+        private long bitPosition;
+
+        Reader(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            bitPosition = ((long) offset) << 3;
+        }
+
+        long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                int b = buffer.get((int) (bitPosition >>> 3));
+                value = (value << 1) | ((b >>> (7 - (bitPosition & 7))) & 1);
+                bitPosition++;
+            }
+            return value;
+        }
+
+        long readDeltaOfDelta() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(7), 7);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(12), 12);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(20), 20);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(32), 32);
+            }
+            return readBits(64);
+        }
+
+        private static long signExtend(long value, int numBits) {
+            int shift = 64 - numBits;
+            return (value << shift) >> shift;
+        }
+    }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An embedded, append-only store for the decoded readings of many meters. Every combination of meter (secondary
+ * address) and data record signature (DIB and VIB) forms its own time series.
+ * 
+ * Samples are compressed in chunks of up to 512 samples (see {@link TimeSeriesChunk}). Full chunks are appended to
+ * memory mapped segment files in the store directory. The chunk index is kept in memory and is rebuilt from the
+ * segment files when a store is opened. Samples of chunks that are not yet full are only held in memory until
+ * {@link #flush()} or {@link #close()} is called.
+ * 
+ * All methods are thread safe.
+ */
+public class TimeSeriesStore {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int CHUNK_MAGIC = 0x54535331;
+    private static final int CHUNK_HEADER_LENGTH = 40;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".tss";
+
+    private final File directory;
+    private final int segmentSize;
+
+    private final List<RandomAccessFile> segmentFiles = new ArrayList<RandomAccessFile>();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private int writePosition = 0;
+
+    private final HashMap<SeriesKey, Series> seriesMap = new HashMap<SeriesKey, Series>();
+    private final SeriesKey probe = new SeriesKey();
+
+    private boolean closed = false;
+
+    /**
+     * Opens the store located in the given directory using the default segment size. The directory is created if it
+     * does not exist.
+     * 
+     * @param directory
+     *            the directory of the store
+     * @throws IOException
+     *             if the directory or its segment files cannot be opened
+     */
+    public TimeSeriesStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store located in the given directory. The directory is created if it does not exist.
+     * 
+     * @param directory
+     *            the directory of the store
+     * @param segmentSize
+     *            the size in bytes of newly created segment files. Must be at least 64 KiB.
+     * @throws IOException
+     *             if the directory or its segment files cannot be opened
+     */
+    public TimeSeriesStore(File directory, int segmentSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size must be at least " + MIN_SEGMENT_SIZE);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create store directory: " + directory);
+        }
+
+        String[] segmentNames = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(segmentNames);
+
+        try {
+            for (String segmentName : segmentNames) {
+                MappedByteBuffer segment = mapSegment(new File(directory, segmentName), 0);
+                writePosition = loadChunks(segment, segments.size());
+                segments.add(segment);
+            }
+            if (segments.isEmpty()) {
+                addSegment();
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the value of the given data record to the time series of the given meter. Only records with a numeric
+     * value (i.e. of type LONG, BCD or DOUBLE) are stored.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param dataRecord
+     *            the decoded data record
+     * @param timestamp
+     *            the time of the reading (e.g. in ms since 1970)
+     * @return true if the value was stored. False if the record is not numeric or if the timestamp is older than the
+     *         last sample of the series.
+     * @throws IOException
+     *             if writing a full chunk to disk fails
+     */
+    public synchronized boolean append(SecondaryAddress address, DataRecord dataRecord, long timestamp)
+            throws IOException {
+        checkOpen();
+
+        long value;
+        boolean floatingPoint = false;
+        switch (dataRecord.getDataValueType()) {
+        case LONG:
+            value = (Long) dataRecord.getDataValue();
+            break;
+        case BCD:
+            value = ((Bcd) dataRecord.getDataValue()).longValue();
+            break;
+        case DOUBLE:
+            value = Double.doubleToLongBits((Double) dataRecord.getDataValue());
+            floatingPoint = true;
+            break;
+        default:
+            return false;
+        }
+
+        probe.set(address.asLong(), dataRecord.getDib(), dataRecord.getVib());
+        Series series = seriesMap.get(probe);
+        if (series == null) {
+            series = new Series(floatingPoint, dataRecord.getMultiplierExponent());
+            seriesMap.put(probe.copy(), series);
+        }
+        else if (series.floatingPoint != floatingPoint) {
+            return false;
+        }
+
+        if (timestamp < series.getLastTimestamp()) {
+            return false;
+        }
+        if (series.openChunk == null) {
+            series.openChunk = new TimeSeriesChunk(floatingPoint);
+        }
+
+        series.openChunk.append(timestamp, value);
+
+        if (series.openChunk.isFull()) {
+            writeChunk(probe, series);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the values of all numeric data records of the given variable data structure.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param vds
+     *            a decoded variable data structure
+     * @param timestamp
+     *            the time of the reading
+     * @return the number of stored values
+     * @throws IOException
+     *             if writing a full chunk to disk fails
+     */
+    public synchronized int append(SecondaryAddress address, VariableDataStructure vds, long timestamp)
+            throws IOException {
+        int numStored = 0;
+        for (DataRecord dataRecord : vds.getDataRecords()) {
+            if (append(address, dataRecord, timestamp)) {
+                numStored++;
+            }
+        }
+        return numStored;
+    }
+
+    /**
+     * Retrieves all samples of a time series within the given time range.
+     * 
+     * @param address
+     *            the secondary address of the meter
+     * @param dib
+     *            the DIB of the data record
+     * @param vib
+     *            the VIB of the data record
+     * @param from
+     *            start of the time range (inclusive)
+     * @param to
+     *            end of the time range (inclusive)
+     * @param result
+     *            the time series that is cleared and then filled with the samples found
+     * @return the number of samples found
+     */
+    public synchronized int query(SecondaryAddress address, byte[] dib, byte[] vib, long from, long to,
+            TimeSeries result) {
+        checkOpen();
+
+        probe.set(address.asLong(), dib, vib);
+        Series series = seriesMap.get(probe);
+        if (series == null) {
+            result.reset(false, 0);
+            return 0;
+        }
+        result.reset(series.floatingPoint, series.multiplierExponent);
+
+        for (int i = 0; i < series.numChunks; i++) {
+            if (series.lastTimestamps[i] >= from && series.firstTimestamps[i] <= to) {
+                TimeSeriesChunk.decode(segments.get(series.segmentIndexes[i]), series.dataOffsets[i],
+                        series.counts[i], series.floatingPoint, from, to, result);
+            }
+        }
+
+        TimeSeriesChunk openChunk = series.openChunk;
+        if (openChunk != null && !openChunk.isEmpty() && openChunk.getLastTimestamp() >= from
+                && openChunk.getFirstTimestamp() <= to) {
+            TimeSeriesChunk.decode(ByteBuffer.wrap(openChunk.getData()), 0, openChunk.getCount(),
+                    series.floatingPoint, from, to, result);
+        }
+
+        return result.size();
+    }
+
+    /**
+     * Returns the number of time series in this store.
+     * 
+     * @return the number of time series
+     */
+    public synchronized int getSeriesCount() {
+        return seriesMap.size();
+    }
+
+    /**
+     * Writes all samples held in memory to the segment files and forces the segment files to disk.
+     * 
+     * @throws IOException
+     *             if writing fails
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        for (Map.Entry<SeriesKey, Series> entry : seriesMap.entrySet()) {
+            Series series = entry.getValue();
+            if (series.openChunk != null && !series.openChunk.isEmpty()) {
+                writeChunk(entry.getKey(), series);
+            }
+        }
+        segments.get(segments.size() - 1).force();
+    }
+
+    /**
+     * Flushes and closes the store. Note that the memory mapped segments are only released by the garbage collector.
+     * 
+     * @throws IOException
+     *             if flushing fails
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            closeFiles();
+            seriesMap.clear();
+            segments.clear();
+        }
+    }
+
+    private void writeChunk(SeriesKey key, Series series) throws IOException {
+        TimeSeriesChunk chunk = series.openChunk;
+        int dataLength = chunk.getByteLength();
+        int recordLength = CHUNK_HEADER_LENGTH + key.dib.length + key.vib.length + dataLength;
+
+        // segments created with another segment size keep their size when the store is reopened
+        if (writePosition + recordLength > segments.get(segments.size() - 1).capacity()) {
+            addSegment();
+        }
+
+        int segmentIndex = segments.size() - 1;
+        MappedByteBuffer segment = segments.get(segmentIndex);
+
+        int i = writePosition;
+        segment.putInt(i, CHUNK_MAGIC);
+        segment.putLong(i + 4, key.address);
+        i += 12;
+        segment.put(i++, (byte) key.dib.length);
+        for (byte b : key.dib) {
+            segment.put(i++, b);
+        }
+        segment.put(i++, (byte) key.vib.length);
+        for (byte b : key.vib) {
+            segment.put(i++, b);
+        }
+        segment.put(i++, (byte) (series.floatingPoint ? 1 : 0));
+        segment.put(i++, (byte) series.multiplierExponent);
+        segment.putInt(i, chunk.getCount());
+        segment.putLong(i + 4, chunk.getFirstTimestamp());
+        segment.putLong(i + 12, chunk.getLastTimestamp());
+        segment.putInt(i + 20, dataLength);
+        i += 24;
+
+        byte[] data = chunk.getData();
+        for (int j = 0; j < dataLength; j++) {
+            segment.put(i + j, data[j]);
+        }
+
+        series.addChunk(segmentIndex, i, chunk.getCount(), chunk.getFirstTimestamp(), chunk.getLastTimestamp());
+        writePosition = i + dataLength;
+        series.openChunk = null;
+    }
+
+    private int loadChunks(MappedByteBuffer segment, int segmentIndex) {
+        int i = 0;
+        while (i + CHUNK_HEADER_LENGTH <= segment.limit() && segment.getInt(i) == CHUNK_MAGIC) {
+            long address = segment.getLong(i + 4);
+            i += 12;
+            byte[] dib = new byte[segment.get(i++) & 0xff];
+            for (int j = 0; j < dib.length; j++) {
+                dib[j] = segment.get(i++);
+            }
+            byte[] vib = new byte[segment.get(i++) & 0xff];
+            for (int j = 0; j < vib.length; j++) {
+                vib[j] = segment.get(i++);
+            }
+            boolean floatingPoint = segment.get(i++) == 1;
+            int multiplierExponent = segment.get(i++);
+            int count = segment.getInt(i);
+            long firstTimestamp = segment.getLong(i + 4);
+            long lastTimestamp = segment.getLong(i + 12);
+            int dataLength = segment.getInt(i + 20);
+            i += 24;
+
+            probe.set(address, dib, vib);
+            Series series = seriesMap.get(probe);
+            if (series == null) {
+                series = new Series(floatingPoint, multiplierExponent);
+                seriesMap.put(probe.copy(), series);
+            }
+            series.addChunk(segmentIndex, i, count, firstTimestamp, lastTimestamp);
+
+            i += dataLength;
+        }
+        return i;
+    }
+
+    private void addSegment() throws IOException {
+        // full segments are not written anymore and therefore not forced by flush()
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).force();
+        }
+        String name = String.format("%s%06d%s", SEGMENT_PREFIX, segments.size(), SEGMENT_SUFFIX);
+        segments.add(mapSegment(new File(directory, name), segmentSize));
+        writePosition = 0;
+    }
+
+    private MappedByteBuffer mapSegment(File file, int size) throws IOException {
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "rw");
+        segmentFiles.add(segmentFile);
+        long length = Math.max(segmentFile.length(), size);
+        return segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private void closeFiles() {
+        for (RandomAccessFile segmentFile : segmentFiles) {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+            }
+        }
+        segmentFiles.clear();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed.");
+        }
+    }
+
+    private static class SeriesKey {
+
+        private long address;
+        private byte[] dib;
+        private byte[] vib;
+
+        void set(long address, byte[] dib, byte[] vib) {
+            this.address = address;
+            this.dib = dib;
+            this.vib = vib;
+        }
+
+        SeriesKey copy() {
+            SeriesKey copy = new SeriesKey();
+            copy.set(address, dib.clone(), vib.clone());
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (address ^ (address >>> 32));
+            hash = 31 * hash + Arrays.hashCode(dib);
+            return 31 * hash + Arrays.hashCode(vib);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return address == other.address && Arrays.equals(dib, other.dib) && Arrays.equals(vib, other.vib);
+        }
+    }
+
+    private static class Series {
+
+        private final boolean floatingPoint;
+        private final int multiplierExponent;
+
+        private TimeSeriesChunk openChunk;
+
+        private int numChunks = 0;
+        private int[] segmentIndexes = new int[4];
+        private int[] dataOffsets = new int[4];
+        private int[] counts = new int[4];
+        private long[] firstTimestamps = new long[4];
+        private long[] lastTimestamps = new long[4];
+
+        Series(boolean floatingPoint, int multiplierExponent) {
+            this.floatingPoint = floatingPoint;
+            this.multiplierExponent = multiplierExponent;
+        }
+
+        long getLastTimestamp() {
+            if (openChunk != null) {
+                return openChunk.getLastTimestamp();
+            }
+            if (numChunks > 0) {
+                return lastTimestamps[numChunks - 1];
+            }
+            return Long.MIN_VALUE;
+        }
+
+        void addChunk(int segmentIndex, int dataOffset, int count, long firstTimestamp, long lastTimestamp) {
+            if (numChunks == counts.length) {
+                int newLength = numChunks * 2;
+                segmentIndexes = Arrays.copyOf(segmentIndexes, newLength);
+                dataOffsets = Arrays.copyOf(dataOffsets, newLength);
+                counts = Arrays.copyOf(counts, newLength);
+                firstTimestamps = Arrays.copyOf(firstTimestamps, newLength);
+                lastTimestamps = Arrays.copyOf(lastTimestamps, newLength);
+            }
+            segmentIndexes[numChunks] = segmentIndex;
+            dataOffsets[numChunks] = dataOffset;
+            counts[numChunks] = count;
+            firstTimestamps[numChunks] = firstTimestamp;
+            lastTimestamps[numChunks] = lastTimestamp;
+            numChunks++;
+        }
+    }
+
+}
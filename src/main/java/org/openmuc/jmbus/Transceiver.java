@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The physical connection used by a service access point, e.g. a local serial port or a TCP connection to an M-Bus
+ * gateway.
+ */
+interface Transceiver {
+
+    /**
+     * Opens the connection.
+     * 
+     * @throws IOException
+     *             if any kind of error occurs while opening.
+     */
+    public void open() throws IOException;
+
+    /**
+     * Closes the connection.
+     */
+    public void close();
+
+    public DataOutputStream getOutputStream();
+
+    public DataInputStream getInputStream();
+
+    public boolean isClosed();
+
+}
@@ -38,6 +38,8 @@ public class VariableDataStructure {
     private final int length;
     private final SecondaryAddress linkLayerSecondaryAddress;
     HashMap<String, byte[]> keyMap;
+    KeyTable keyTable;
+    NegativeKeyCache negativeKeyCache;
 
     private SecondaryAddress secondaryAddress;
     private int accessNumber;
@@ -49,11 +51,13 @@ public class VariableDataStructure {
     private boolean moreRecordsFollow = false;
 
     private boolean decoded = false;
+    // the cause of the last failed decoding attempt
+    private Exception failure;
 
     private List<DataRecord> dataRecords;
 
     public VariableDataStructure(byte[] buffer, int offset, int length, SecondaryAddress linkLayerSecondaryAddress,
-            HashMap<String, byte[]> keyMap) throws DecodingException {
+            HashMap<String, byte[]> keyMap) {
         this.buffer = buffer;
         this.offset = offset;
         this.length = length;
@@ -62,55 +66,113 @@ public class VariableDataStructure {
     }
 
     public void decode() throws DecodingException {
+        DecodingStatus status = tryDecode();
+        if (status == DecodingStatus.OK) {
+            return;
+        }
+        if (failure != status.getException()) {
+            throw new DecodingException(failure);
+        }
+
+        int ciField = buffer[offset] & 0xff;
+        switch (status) {
+        case NO_KEY:
+            throw new DecodingException(
+                    "Unable to decode encrypted payload because no key for the following secondary address was registered: "
+                            + linkLayerSecondaryAddress,
+                    status);
+        case UNSUPPORTED_ENCRYPTION_MODE:
+            throw new DecodingException("Unsupported encryption mode used: " + encryptionMode, status);
+        case MANUFACTURER_SPECIFIC_CI_FIELD:
+            throw new DecodingException("Manufacturer specific CI: " + HexConverter.toHexString((byte) ciField),
+                    status);
+        case UNSUPPORTED_CI_FIELD:
+            throw new DecodingException(
+                    "Unable to decode message with this CI Field: " + HexConverter.toHexString((byte) ciField),
+                    status);
+        case INVALID_LENGTH:
+            throw new DecodingException("Number of encrypted exceeds payload size!", status);
+        case DECRYPTION_FAILED:
+            throw new DecodingException("Decryption unsuccessful! Wrong AES Key?", status);
+        default:
+            throw new DecodingException(status.toString(), status);
+        }
+    }
+
+    /**
+     * Decodes the structure like {@link #decode()} but reports failures by the returned status instead of an
+     * exception. Routine failures (e.g. a missing key) do not create any objects.
+     * 
+     * @return {@link DecodingStatus#OK} if the structure was decoded successfully
+     */
+    public DecodingStatus tryDecode() {
+        failure = null;
         try {
+            decodeStructure();
+        } catch (DecodingException e) {
+            failure = e;
+            return e.getStatus();
+        } catch (RuntimeException e) {
+            // e.g. a data record exceeding the message
+            failure = e;
+            return DecodingStatus.INVALID_DATA;
+        }
+        decoded = true;
+        return DecodingStatus.OK;
+    }
 
-            int ciField = buffer[offset] & 0xff;
-
-            switch (ciField) {
-            case 0x72:
-                decodeLongHeader(buffer, offset + 1);
-                decodeDataRecords(buffer, offset + 13, length - 13);
-                break;
-            case 0x78:
-                decodeDataRecords(buffer, offset + 1, length - 1);
-                break;
-            case 0x7a:
-                decodeShortHeader(buffer, offset + 1);
-                if (encryptionMode == EncryptionMode.AES_CBC_IV) {
-                    encryptedVariableDataResponse = new byte[length - 5];
-                    System.arraycopy(buffer, offset + 5, encryptedVariableDataResponse, 0, length - 5);
-
-                    byte[] key = keyMap.get(HexConverter.toShortHexString(linkLayerSecondaryAddress.asByteArray(), 0,
+    private void decodeStructure() throws DecodingException {
+        int ciField = buffer[offset] & 0xff;
+
+        switch (ciField) {
+        case 0x72:
+            decodeLongHeader(buffer, offset + 1);
+            decodeDataRecords(buffer, offset + 13, length - 13);
+            break;
+        case 0x78:
+            decodeDataRecords(buffer, offset + 1, length - 1);
+            break;
+        case 0x7a:
+            decodeShortHeader(buffer, offset + 1);
+            if (encryptionMode == EncryptionMode.AES_CBC_IV) {
+                byte[] key = null;
+                if (keyMap != null) {
+                    key = keyMap.get(HexConverter.toShortHexString(linkLayerSecondaryAddress.asByteArray(), 0,
                             linkLayerSecondaryAddress.asByteArray().length));
-                    if (key == null) {
-                        throw new DecodingException(
-                                "Unable to decode encrypted payload because no key for the following secondary address was registered: "
-                                        + linkLayerSecondaryAddress);
-                    }
-
-                    decodeDataRecords(decryptMessage(key), 0, length - 5);
-                    encryptedVariableDataResponse = null;
                 }
-                else if (encryptionMode == EncryptionMode.NONE) {
-                    decodeDataRecords(buffer, offset + 5, length - 5);
+                if (key == null && keyTable != null) {
+                    key = keyTable.getKey(linkLayerSecondaryAddress.asLong());
                 }
-                else {
-                    throw new DecodingException("Unsupported encryption mode used: " + encryptionMode);
+                if (key == null) {
+                    if (negativeKeyCache != null) {
+                        negativeKeyCache.add(linkLayerSecondaryAddress.asLong(), System.currentTimeMillis());
+                    }
+                    throw DecodingStatus.NO_KEY.getException();
                 }
-                break;
-            default:
-                if ((ciField >= 0xA0) && (ciField <= 0xB7)) {
-                    throw new DecodingException(
-                            "Manufacturer specific CI: " + HexConverter.toHexString((byte) ciField));
+
+                encryptedVariableDataResponse = new byte[length - 5];
+                System.arraycopy(buffer, offset + 5, encryptedVariableDataResponse, 0, length - 5);
+
+                DecodingStatus status = decrypt(key);
+                if (status != DecodingStatus.OK) {
+                    throw status.getException();
                 }
-                throw new DecodingException(
-                        "Unable to decode message with this CI Field: " + HexConverter.toHexString((byte) ciField));
+                decodeDataRecords(encryptedVariableDataResponse, 0, length - 5);
+                encryptedVariableDataResponse = null;
             }
-        } catch (Exception e) {
-            throw new DecodingException(e);
+            else if (encryptionMode == EncryptionMode.NONE) {
+                decodeDataRecords(buffer, offset + 5, length - 5);
+            }
+            else {
+                throw DecodingStatus.UNSUPPORTED_ENCRYPTION_MODE.getException();
+            }
+            break;
+        default:
+            if ((ciField >= 0xA0) && (ciField <= 0xB7)) {
+                throw DecodingStatus.MANUFACTURER_SPECIFIC_CI_FIELD.getException();
+            }
+            throw DecodingStatus.UNSUPPORTED_CI_FIELD.getException();
         }
-
-        decoded = true;
     }
 
     public SecondaryAddress getSecondaryAddress() {
@@ -209,23 +271,34 @@ public class VariableDataStructure {
             throw new DecodingException("No AES Key found for Device Address!");
         }
 
+        switch (decrypt(key)) {
+        case INVALID_LENGTH:
+            throw new DecodingException("Number of encrypted exceeds payload size!");
+        case DECRYPTION_FAILED:
+            throw new DecodingException("Decryption unsuccessful! Wrong AES Key?");
+        default:
+            return encryptedVariableDataResponse;
+        }
+    }
+
+    private DecodingStatus decrypt(byte[] key) throws DecodingException {
         AesCrypt tempcrypter = new AesCrypt(key, createInitializationVector(linkLayerSecondaryAddress));
 
         if (numberOfEncryptedBlocks * 16 > encryptedVariableDataResponse.length) {
-            throw new DecodingException("Number of encrypted exceeds payload size!");
+            return DecodingStatus.INVALID_LENGTH;
         }
 
         if (!tempcrypter.decrypt(encryptedVariableDataResponse, numberOfEncryptedBlocks * 16)) {
-            throw new DecodingException("Decryption not successful!");
+            return DecodingStatus.DECRYPTION_FAILED;
         }
 
         if (!(tempcrypter.getResult()[0] == 0x2f && tempcrypter.getResult()[1] == 0x2f)) {
-            throw new DecodingException("Decryption unsuccessful! Wrong AES Key?");
+            return DecodingStatus.DECRYPTION_FAILED;
         }
 
         System.arraycopy(tempcrypter.getResult(), 0, encryptedVariableDataResponse, 0, numberOfEncryptedBlocks * 16);
 
-        return encryptedVariableDataResponse;
+        return DecodingStatus.OK;
     }
 
     private byte[] createInitializationVector(SecondaryAddress linkLayerSecondaryAddress) {
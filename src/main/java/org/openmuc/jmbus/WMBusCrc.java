@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Computes the CRC-16 of the wireless M-Bus data link layer as defined in EN 13757-4 (polynomial 0x3D65, initial value
+ * 0, final value complemented). The CRC is computed eight bytes at a time using the slice-by-8 method.
+ */
+final class WMBusCrc {
+
+    private static final int POLYNOMIAL = 0x3d65;
+
+    // TABLES[k][b] is the CRC of byte b followed by k zero bytes
+    private static final char[][] TABLES = new char[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b << 8;
+            for (int i = 0; i < 8; i++) {
+                if ((crc & 0x8000) != 0) {
+                    crc = (crc << 1) ^ POLYNOMIAL;
+                }
+                else {
+                    crc <<= 1;
+                }
+            }
+            TABLES[0][b] = (char) crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++) {
+                int crc = TABLES[k - 1][b];
+                TABLES[k][b] = (char) ((crc << 8) ^ TABLES[0][crc >>> 8]);
+            }
+        }
+    }
+
+    private WMBusCrc() {
+    }
+
+    /**
+     * Computes the CRC of the given bytes.
+     * 
+     * @param bytes
+     *            the byte array containing the block
+     * @param offset
+     *            the index of the first byte of the block
+     * @param length
+     *            the number of bytes of the block
+     * @return the CRC as an unsigned 16 bit value
+     */
+    static int compute(byte[] bytes, int offset, int length) {
+        final char[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final char[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+
+        int crc = 0;
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + 8 <= end; i += 8) {
+            crc = t7[((crc >>> 8) ^ bytes[i]) & 0xff] ^ t6[(crc ^ bytes[i + 1]) & 0xff] ^ t5[bytes[i + 2] & 0xff]
+                    ^ t4[bytes[i + 3] & 0xff] ^ t3[bytes[i + 4] & 0xff] ^ t2[bytes[i + 5] & 0xff]
+                    ^ t1[bytes[i + 6] & 0xff] ^ t0[bytes[i + 7] & 0xff];
+        }
+        for (; i < end; i++) {
+            crc = ((crc << 8) ^ t0[((crc >>> 8) ^ bytes[i]) & 0xff]) & 0xffff;
+        }
+
+        return crc ^ 0xffff;
+    }
+
+    /**
+     * Checks the CRC of a block against the two CRC bytes (most significant byte first) that follow it.
+     * 
+     * @param bytes
+     *            the byte array containing the block and its CRC
+     * @param offset
+     *            the index of the first byte of the block
+     * @param length
+     *            the number of bytes of the block without the CRC
+     * @return true if the CRC is correct
+     */
+    static boolean check(byte[] bytes, int offset, int length) {
+        int crc = ((bytes[offset + length] & 0xff) << 8) | (bytes[offset + length + 1] & 0xff);
+        return compute(bytes, offset, length) == crc;
+    }
+
+}
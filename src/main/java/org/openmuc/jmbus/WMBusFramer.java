@@ -0,0 +1,262 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+/**
+ * Detects the start and end of wireless M-Bus messages in the byte stream received from a wireless M-Bus transceiver.
+ * By default the transceiver is expected to deliver every message without CRCs, with its length field and an appended
+ * RSSI byte. The length field includes the RSSI byte.
+ * 
+ * In raw frame mode the transceiver is expected to deliver every frame as received over the air (i.e. including the
+ * CRC of every block) followed by the RSSI byte. Frame format A and B are detected automatically. The CRCs are
+ * verified and removed so that the resulting message looks like a message received in the default mode. Frames with
+ * an invalid CRC are discarded.
+ * 
+ * Bytes are pushed into the framer as they arrive. A framer is not thread safe and has to be fed by one thread only.
+ */
+class WMBusFramer {
+
+    interface Handler {
+
+        /**
+         * Called before a complete frame is copied out of the receive buffer.
+         * 
+         * @param address
+         *            the link layer address of the frame as returned by {@link SecondaryAddress#asLong()}
+         * @return false if the frame shall be dropped silently
+         */
+        boolean accept(long address);
+
+        /**
+         * @param frame
+         *            the message without RSSI byte
+         * @param rssi
+         *            the RSSI byte
+         * @param firstByteNanos
+         *            the time (as returned by {@link System#nanoTime()}) at which the first byte of the message was
+         *            fed into the framer
+         */
+        void frameReceived(byte[] frame, int rssi, long firstByteNanos);
+
+        void bytesDiscarded(byte[] bytes);
+
+    }
+
+    // time in ms after which an incomplete message is discarded
+    private static final long DISCARD_TIMEOUT = 500;
+
+    // the first block of a frame in format A consists of the L, C, M and A fields
+    private static final int FIRST_BLOCK_LENGTH = 10;
+    private static final int BLOCK_LENGTH = 16;
+    // in format B the first CRC follows the first 126 bytes of the frame
+    private static final int FORMAT_B_SECOND_BLOCK_END = 126;
+
+    private final Handler handler;
+    private final boolean rawFrames;
+    private final byte[] buffer = new byte[AbstractWMBusSap.BUFFER_LENGTH];
+
+    private int readBytesTotal = 0;
+    private int messageLength = -1;
+    private long lastReception;
+    private long arrivalNanos;
+    private long firstByteNanos;
+
+    WMBusFramer(Handler handler) {
+        this(handler, false);
+    }
+
+    WMBusFramer(Handler handler, boolean rawFrames) {
+        this.handler = handler;
+        this.rawFrames = rawFrames;
+    }
+
+    void feed(byte[] bytes, int offset, int length, long now) {
+        lastReception = now;
+        arrivalNanos = System.nanoTime();
+        if (readBytesTotal == 0) {
+            firstByteNanos = arrivalNanos;
+        }
+        while (length > 0) {
+            int numBytes = Math.min(length, buffer.length - readBytesTotal);
+            System.arraycopy(bytes, offset, buffer, readBytesTotal, numBytes);
+            readBytesTotal += numBytes;
+            offset += numBytes;
+            length -= numBytes;
+            process();
+        }
+    }
+
+    /**
+     * Discards the bytes of an incomplete message if no further bytes were received for a while.
+     * 
+     * @param now
+     *            the current time in ms
+     */
+    void checkTimeout(long now) {
+        if (readBytesTotal > 0 && (now - lastReception) > DISCARD_TIMEOUT) {
+            discard(0, readBytesTotal);
+            readBytesTotal = 0;
+            messageLength = -1;
+        }
+    }
+
+    private void process() {
+        int messageStartIndex = 0;
+
+        while ((readBytesTotal - messageStartIndex) > 10) {
+
+            // no beginning of message has been found
+            if (messageLength == -1) {
+                boolean startFound = false;
+                for (int i = (messageStartIndex + 1); i < readBytesTotal; i++) {
+                    // the shortest valid message consists of the link layer header and the RSSI byte
+                    if (buffer[i] == 0x44 && (buffer[i - 1] & 0xff) >= 10) {
+                        messageStartIndex = i - 1;
+                        startFound = true;
+                        break;
+                    }
+                }
+                if (!startFound) {
+                    discard(messageStartIndex, (readBytesTotal - messageStartIndex));
+                    messageStartIndex = readBytesTotal;
+                    break;
+                }
+                if (rawFrames) {
+                    // the frame format can only be detected once the CRC of the first block was received
+                    if ((readBytesTotal - messageStartIndex) < (FIRST_BLOCK_LENGTH + 2)) {
+                        break;
+                    }
+                    messageLength = rawFrameLength(messageStartIndex) + 1;
+                }
+                else {
+                    messageLength = (buffer[messageStartIndex] & 0xff) + 1;
+                }
+            }
+
+            if ((readBytesTotal - messageStartIndex) >= messageLength) {
+
+                int rssi = buffer[messageLength + messageStartIndex - 1] & 0xff;
+
+                // the address lies in the first block of both frame formats, so frames of unwanted meters are
+                // dropped before their CRCs are checked and before they are copied
+                if (handler.accept(SecondaryAddress.toLong(buffer, messageStartIndex + 2, false))) {
+                    if (rawFrames) {
+                        int length = removeCrcs(messageStartIndex, messageLength - 1);
+                        if (length == -1) {
+                            discard(messageStartIndex, messageLength);
+                        }
+                        else {
+                            byte[] messageBytes = new byte[length];
+                            System.arraycopy(buffer, messageStartIndex, messageBytes, 0, length);
+                            messageBytes[0] = (byte) (length - 1);
+                            handler.frameReceived(messageBytes, rssi, firstByteNanos);
+                        }
+                    }
+                    else {
+                        byte[] messageBytes = new byte[messageLength - 1];
+                        System.arraycopy(buffer, messageStartIndex, messageBytes, 0, messageLength - 1);
+                        messageBytes[0] = (byte) (messageBytes[0] - 1);
+
+                        handler.frameReceived(messageBytes, rssi, firstByteNanos);
+                    }
+                }
+
+                messageStartIndex += messageLength;
+                messageLength = -1;
+            }
+            else {
+                break;
+            }
+        }
+        if (messageStartIndex > 0) {
+            System.arraycopy(buffer, messageStartIndex, buffer, 0, readBytesTotal - messageStartIndex);
+            // the remaining bytes arrived with the current chunk at the earliest
+            firstByteNanos = arrivalNanos;
+        }
+        readBytesTotal -= messageStartIndex;
+    }
+
+    private boolean isFormatA(int frameStart) {
+        return WMBusCrc.check(buffer, frameStart, FIRST_BLOCK_LENGTH);
+    }
+
+    /**
+     * Returns the number of bytes of a raw frame including its CRCs.
+     */
+    private int rawFrameLength(int frameStart) {
+        int lField = buffer[frameStart] & 0xff;
+        if (isFormatA(frameStart)) {
+            // the L-field of format A does not include the CRCs
+            int numBlocks = 1 + (lField - (FIRST_BLOCK_LENGTH - 1) + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+            return lField + 1 + 2 * numBlocks;
+        }
+        else {
+            return lField + 1;
+        }
+    }
+
+    /**
+     * Verifies the CRCs of a raw frame and moves the data blocks together in place.
+     * 
+     * @return the length of the frame without CRCs or -1 if a CRC is not correct
+     */
+    private int removeCrcs(int frameStart, int frameLength) {
+        int frameEnd = frameStart + frameLength;
+
+        if (isFormatA(frameStart)) {
+            int writeIndex = frameStart + FIRST_BLOCK_LENGTH;
+            int readIndex = writeIndex + 2;
+            while (readIndex < frameEnd) {
+                int blockLength = Math.min(BLOCK_LENGTH, frameEnd - readIndex - 2);
+                if (blockLength <= 0 || !WMBusCrc.check(buffer, readIndex, blockLength)) {
+                    return -1;
+                }
+                System.arraycopy(buffer, readIndex, buffer, writeIndex, blockLength);
+                writeIndex += blockLength;
+                readIndex += blockLength + 2;
+            }
+            return writeIndex - frameStart;
+        }
+
+        if (frameLength <= (FORMAT_B_SECOND_BLOCK_END + 2)) {
+            if (!WMBusCrc.check(buffer, frameStart, frameLength - 2)) {
+                return -1;
+            }
+            return frameLength - 2;
+        }
+
+        int thirdBlockStart = frameStart + FORMAT_B_SECOND_BLOCK_END + 2;
+        int thirdBlockLength = frameEnd - thirdBlockStart - 2;
+        if (thirdBlockLength <= 0 || !WMBusCrc.check(buffer, frameStart, FORMAT_B_SECOND_BLOCK_END)
+                || !WMBusCrc.check(buffer, thirdBlockStart, thirdBlockLength)) {
+            return -1;
+        }
+        System.arraycopy(buffer, thirdBlockStart, buffer, frameStart + FORMAT_B_SECOND_BLOCK_END, thirdBlockLength);
+        return frameLength - 4;
+    }
+
+    private void discard(int offset, int length) {
+        byte[] discardedBytes = new byte[length];
+        System.arraycopy(buffer, offset, discardedBytes, 0, length);
+        handler.bytesDiscarded(discardedBytes);
+    }
+
+}
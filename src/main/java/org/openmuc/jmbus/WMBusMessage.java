@@ -54,36 +54,158 @@ public class WMBusMessage {
     private final byte[] buffer;
     private final Integer signalStrengthInDBm;
     HashMap<String, byte[]> keyMap;
+    KeyTable keyTable;
+    NegativeKeyCache negativeKeyCache;
+    final DecoderRegistry decoderRegistry;
 
     private int length;
     private int controlField;
     private SecondaryAddress secondaryAddress;
     private VariableDataStructure vdr;
+    private ManufacturerSpecificDecoder manufacturerSpecificDecoder;
+    private Object manufacturerSpecificData;
 
     private boolean decoded = false;
 
+    private long firstByteNanos;
+    private long framedNanos;
+    private long receiveTime;
+    ReceiveLatencies latencies;
+
     WMBusMessage(byte[] buffer, Integer signalStrengthInDBm, HashMap<String, byte[]> keyMap) {
+        this(buffer, signalStrengthInDBm, keyMap, DecoderRegistry.getDefault());
+    }
+
+    WMBusMessage(byte[] buffer, Integer signalStrengthInDBm, HashMap<String, byte[]> keyMap,
+            DecoderRegistry decoderRegistry) {
         this.buffer = buffer;
         this.signalStrengthInDBm = signalStrengthInDBm;
         this.keyMap = keyMap;
+        this.decoderRegistry = decoderRegistry;
+    }
+
+    WMBusMessage(byte[] buffer, Integer signalStrengthInDBm, HashMap<String, byte[]> keyMap,
+            DecoderRegistry decoderRegistry, long firstByteNanos, long framedNanos, ReceiveLatencies latencies) {
+        this(buffer, signalStrengthInDBm, keyMap, decoderRegistry);
+        this.firstByteNanos = firstByteNanos;
+        this.framedNanos = framedNanos;
+        this.latencies = latencies;
+        receiveTime = System.currentTimeMillis() - (System.nanoTime() - firstByteNanos) / 1000000;
+    }
+
+    /**
+     * Creates a copy of the given message including its decoding state.
+     */
+    WMBusMessage(WMBusMessage message) {
+        this(message.buffer, message.signalStrengthInDBm, message.keyMap, message.decoderRegistry);
+        keyTable = message.keyTable;
+        negativeKeyCache = message.negativeKeyCache;
+        length = message.length;
+        controlField = message.controlField;
+        secondaryAddress = message.secondaryAddress;
+        vdr = message.vdr;
+        manufacturerSpecificDecoder = message.manufacturerSpecificDecoder;
+        manufacturerSpecificData = message.manufacturerSpecificData;
+        decoded = message.decoded;
+        firstByteNanos = message.firstByteNanos;
+        framedNanos = message.framedNanos;
+        receiveTime = message.receiveTime;
+        latencies = message.latencies;
     }
 
     public void decode() throws DecodingException {
-        length = buffer[0] & 0xff;
-        if (length > (buffer.length - 1)) {
+        if (!decodeHeader()) {
             throw new DecodingException("byte buffer has only a length of " + buffer.length
-                    + " while the specified length field is " + length);
+                    + " while the specified length field is " + length, DecodingStatus.INVALID_LENGTH);
+        }
+    }
+
+    public void decodeDeep() throws DecodingException {
+        long start = System.nanoTime();
+        try {
+            decode();
+            if (manufacturerSpecificDecoder != null) {
+                manufacturerSpecificData = manufacturerSpecificDecoder.decode(buffer, 10, length - 9,
+                        secondaryAddress);
+            }
+            else {
+                vdr.decode();
+            }
+        } finally {
+            if (latencies != null) {
+                latencies.record(ReceiveLatencies.Stage.DECODE, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Decodes the link layer header like {@link #decode()} but reports a failure by the returned status instead of an
+     * exception.
+     * 
+     * @return {@link DecodingStatus#OK} if the header was decoded successfully
+     */
+    public DecodingStatus tryDecode() {
+        if (!decodeHeader()) {
+            return DecodingStatus.INVALID_LENGTH;
+        }
+        return DecodingStatus.OK;
+    }
+
+    /**
+     * Decodes the complete message like {@link #decodeDeep()} but reports failures by the returned status instead of
+     * an exception. Routine failures like a missing key or an unsupported CI field do not create any objects. Use this
+     * method where most of the received messages are expected to be undecodable (e.g. because they are sent by
+     * foreign meters).
+     * 
+     * @return {@link DecodingStatus#OK} if the message was decoded successfully
+     */
+    public DecodingStatus tryDecodeDeep() {
+        long start = System.nanoTime();
+        DecodingStatus status = tryDecodeDeepUntimed();
+        if (latencies != null) {
+            latencies.record(ReceiveLatencies.Stage.DECODE, System.nanoTime() - start);
+        }
+        return status;
+    }
+
+    private DecodingStatus tryDecodeDeepUntimed() {
+        if (!decodeHeader()) {
+            return DecodingStatus.INVALID_LENGTH;
+        }
+        if (manufacturerSpecificDecoder != null) {
+            try {
+                manufacturerSpecificData = manufacturerSpecificDecoder.decode(buffer, 10, length - 9,
+                        secondaryAddress);
+            } catch (DecodingException e) {
+                return e.getStatus();
+            } catch (RuntimeException e) {
+                return DecodingStatus.INVALID_DATA;
+            }
+            return DecodingStatus.OK;
+        }
+        return vdr.tryDecode();
+    }
+
+    private boolean decodeHeader() {
+        length = buffer[0] & 0xff;
+        if (length > (buffer.length - 1) || length < 9) {
+            return false;
         }
         controlField = buffer[1] & 0xff;
         secondaryAddress = SecondaryAddress.getFromWMBusLinkLayerHeader(buffer, 2);
-        vdr = new VariableDataStructure(buffer, 10, length - 9, secondaryAddress, keyMap);
 
-        decoded = true;
-    }
+        manufacturerSpecificDecoder = null;
+        if (length > 9) {
+            manufacturerSpecificDecoder = decoderRegistry.lookup(buffer[10] & 0xff, secondaryAddress);
+        }
+        if (manufacturerSpecificDecoder == null) {
+            vdr = new VariableDataStructure(buffer, 10, length - 9, secondaryAddress, keyMap);
+            vdr.keyTable = keyTable;
+            vdr.negativeKeyCache = negativeKeyCache;
+        }
 
-    public void decodeDeep() throws DecodingException {
-        decode();
-        vdr.decode();
+        decoded = true;
+        return true;
     }
 
     public boolean isDecoded() {
@@ -102,10 +224,66 @@ public class WMBusMessage {
         return secondaryAddress;
     }
 
+    /**
+     * Returns the variable data structure of this message. Is null if the message has not been decoded or if its
+     * application layer has a manufacturer specific format.
+     * 
+     * @return the variable data structure
+     */
     public VariableDataStructure getVariableDataResponse() {
         return vdr;
     }
 
+    /**
+     * Returns true if the application layer of this message has a manufacturer specific format, i.e. a decoder was
+     * registered for it at the {@link DecoderRegistry}. Is only valid after the message has been decoded.
+     * 
+     * @return true if the application layer has a manufacturer specific format
+     */
+    public boolean isManufacturerSpecific() {
+        return manufacturerSpecificDecoder != null;
+    }
+
+    /**
+     * Returns the data created by the {@link ManufacturerSpecificDecoder} of this message. Is null if the message has
+     * not been decoded using {@link #decodeDeep()} or has no manufacturer specific format.
+     * 
+     * @return the manufacturer specific data
+     */
+    public Object getManufacturerSpecificData() {
+        return manufacturerSpecificData;
+    }
+
+    /**
+     * Returns the time at which the first byte of this message was received by the SAP. The time is derived from
+     * {@link #getFirstByteNanos()} and therefore not affected by the time the message waited for the listener.
+     * 
+     * @return the time in ms since 1970 or 0 if unknown (e.g. if the message was not received by a SAP)
+     */
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    /**
+     * Returns the value of {@link System#nanoTime()} at the time the first byte of this message was received. Can only
+     * be compared to other values of {@link System#nanoTime()} of the same JVM.
+     * 
+     * @return the monotonic time in ns or 0 if unknown
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * Returns the value of {@link System#nanoTime()} at the time the message was complete, i.e. its last byte had
+     * been received and its frame was validated.
+     * 
+     * @return the monotonic time in ns or 0 if unknown
+     */
+    public long getFramedNanos() {
+        return framedNanos;
+    }
+
     /**
      * Returns the received signal string indication (RSSI) in dBm.
      * 
@@ -129,10 +307,13 @@ public class WMBusMessage {
         else {
             builder.append("control field: ");
             HexConverter.appendHexString(controlField, builder);
-            builder.append("\nSecondary Address -> ")
-                    .append(secondaryAddress)
-                    .append("\nVariable Data Response:\n")
-                    .append(vdr);
+            builder.append("\nSecondary Address -> ").append(secondaryAddress);
+            if (manufacturerSpecificDecoder != null) {
+                builder.append("\nManufacturer Specific Data:\n").append(manufacturerSpecificData);
+            }
+            else {
+                builder.append("\nVariable Data Response:\n").append(vdr);
+            }
             return builder.toString();
         }
     }
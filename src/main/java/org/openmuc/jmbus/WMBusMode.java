@@ -22,5 +22,6 @@ package org.openmuc.jmbus;
 
 public enum WMBusMode {
     T,
-    S
+    S,
+    C
 }
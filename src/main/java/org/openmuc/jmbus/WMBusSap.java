@@ -38,6 +38,39 @@ public interface WMBusSap {
      */
     public void close();
 
+    /**
+     * Enables or disables the raw frame mode. In raw frame mode the transceiver is expected to forward every received
+     * frame including the CRCs of its blocks (frame format A or B) followed by the RSSI byte. The CRCs are verified
+     * and frames with an invalid CRC are passed to {@link WMBusListener#discardedBytes(byte[])}. By default the raw
+     * frame mode is disabled. The Amber and RadioCrafts service access points do not support it because their
+     * transceivers are not configured to forward the CRCs.
+     * 
+     * @param rawFrameMode
+     *            true to enable the raw frame mode
+     * @throws IllegalStateException
+     *             if the service access point is open
+     * @throws UnsupportedOperationException
+     *             if raw frames are to be enabled but the transceiver is not configured to forward them
+     */
+    public void setRawFrameMode(boolean rawFrameMode);
+
+    /**
+     * Sets the registry that is used to look up the decoders of messages with a manufacturer specific application
+     * layer. By default {@link DecoderRegistry#getDefault()} is used.
+     * 
+     * @param decoderRegistry
+     *            the decoder registry
+     */
+    public void setDecoderRegistry(DecoderRegistry decoderRegistry);
+
+    /**
+     * Returns the latency histograms of the stages received messages pass through, from the arrival of their first
+     * byte until the listener returns.
+     * 
+     * @return the latencies
+     */
+    public ReceiveLatencies getReceiveLatencies();
+
     /**
      * Stores a pair of secondary address and cryptographic key. The stored keys are automatically used to decrypt
      * messages when {@link WMBusMessage#decode()} is called.
@@ -57,4 +90,34 @@ public interface WMBusSap {
      */
     public void removeKey(SecondaryAddress address);
 
+    /**
+     * Replaces the table of bulk loaded keys (see {@link KeyTable#load(java.nio.file.Path)}) in one atomic step.
+     * Messages received afterwards are decrypted with the keys of the new table. Keys stored with
+     * {@link #setKey(SecondaryAddress, byte[])} take precedence over the keys of the table.
+     * 
+     * @param keyTable
+     *            the new key table or null to remove the current one
+     */
+    public void setKeyTable(KeyTable keyTable);
+
+    /**
+     * Sets a filter that drops telegrams of unwanted meters in the receiver thread, before a {@link WMBusMessage} is
+     * created for them. Dropped telegrams are not passed to the listener.
+     * 
+     * @param addressFilter
+     *            the filter or null to receive all telegrams
+     */
+    public void setAddressFilter(AddressFilter addressFilter);
+
+    /**
+     * Enables dropping the telegrams of meters that recently failed to decrypt because no key was stored for them.
+     * After the given time a telegram of such a meter is passed to the listener again, so that a failed decoding
+     * attempt is made at most once per expiry time and meter. Storing a key or key table resets the cache. Disabled
+     * by default.
+     * 
+     * @param expiryTime
+     *            the time in ms a meter without key is ignored or 0 to disable the cache
+     */
+    public void setNegativeKeyCacheTime(long expiryTime);
+
 }
@@ -21,8 +21,7 @@
 package org.openmuc.jmbus;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
 
 import gnu.io.SerialPort;
 
@@ -34,172 +33,76 @@ import gnu.io.SerialPort;
  */
 public class WMBusSapAmber extends AbstractWMBusSap {
 
-    private MessageReceiver receiver;
+    private int discardCount = 0;
 
-    private class MessageReceiver extends Thread {
-
-        private final ExecutorService executor = Executors.newSingleThreadExecutor();
-
-        private int discardCount = 0;
-
-        @Override
-        public void run() {
-
-            int timeElapsed = 0;
-            int readBytesTotal = 0;
-            int messageLength = -1;
-
-            try {
-                while (!closed) {
-
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                    }
-
-                    if (is.available() > 0) {
-
-                        int messageStartIndex = 0;
-                        timeElapsed = 0;
-
-                        readBytesTotal += is.read(inputBuffer, readBytesTotal, BUFFER_LENGTH - readBytesTotal);
-
-                        while ((readBytesTotal - messageStartIndex) > 10) {
-
-                            // no beginning of message has been found
-                            if (messageLength == -1) {
-                                for (int i = (messageStartIndex + 1); i < readBytesTotal; i++) {
-                                    if (inputBuffer[i] == 0x44) {
-                                        messageStartIndex = i - 1;
-                                        messageLength = (inputBuffer[messageStartIndex] & 0xff) + 1;
-                                        break;
-                                    }
-                                }
-                                if (messageLength == -1) {
-                                    discard(messageStartIndex, (readBytesTotal - messageStartIndex));
-                                    messageStartIndex = readBytesTotal;
-                                    break;
-                                }
-                            }
-
-                            if ((readBytesTotal - messageStartIndex) >= messageLength) {
-
-                                int rssi = inputBuffer[messageLength + messageStartIndex - 1] & 0xff;
-                                final Integer signalStrengthInDBm;
-
-                                if (rssi >= 128) {
-                                    signalStrengthInDBm = ((rssi - 256) / 2) - 74;
-                                }
-                                else {
-                                    signalStrengthInDBm = (rssi / 2) - 74;
-                                }
-
-                                final byte[] messageBytes = new byte[messageLength - 1];
-                                System.arraycopy(inputBuffer, messageStartIndex, messageBytes, 0, messageLength - 1);
-                                messageBytes[0] = (byte) (messageBytes[0] - 1);
-
-                                executor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        listener.newMessage(
-                                                new WMBusMessage(messageBytes, signalStrengthInDBm, keyMap));
-                                    }
-                                });
-
-                                messageStartIndex += messageLength;
-                                messageLength = -1;
-
-                            }
-                            else {
-                                break;
-                            }
-                        }
-                        if (messageStartIndex > 0) {
-                            for (int i = messageStartIndex; i < readBytesTotal; i++) {
-                                inputBuffer[i - messageStartIndex] = inputBuffer[i];
-                            }
-                        }
-                        readBytesTotal -= messageStartIndex;
-
-                    }
-                    else if (readBytesTotal > 0) {
-                        timeElapsed += 100;
-                        if (timeElapsed > 500) {
-                            discard(0, readBytesTotal);
-                            timeElapsed = 0;
-                            readBytesTotal = 0;
-                            messageLength = -1;
-                        }
-                    }
-
-                }
+    public WMBusSapAmber(String serialPortName, WMBusMode mode, WMBusListener listener) {
+        super(mode, listener, new SerialTransceiver(serialPortName, 9600, SerialPort.DATABITS_8,
+                SerialPort.STOPBITS_1, SerialPort.PARITY_NONE));
+    }
 
-            } catch (final Exception e) {
-                close();
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.stoppedListening(new IOException(e));
-                    }
-                });
+    /**
+     * Creates a service access point for an Amber stick that is connected through a serial-over-IP bridge (e.g.
+     * ser2net). The connection is served by the default {@link TcpEventLoop}.
+     * 
+     * @param address
+     *            the host and TCP port of the bridge
+     * @param mode
+     *            the wM-Bus mode
+     * @param listener
+     *            the listener for incoming messages
+     */
+    public WMBusSapAmber(InetSocketAddress address, WMBusMode mode, WMBusListener listener) {
+        this(address, TcpEventLoop.getDefault(), mode, listener);
+    }
 
-            } finally {
-                executor.shutdown();
-            }
+    /**
+     * Creates a service access point for an Amber stick that is connected through a serial-over-IP bridge (e.g.
+     * ser2net).
+     * 
+     * @param address
+     *            the host and TCP port of the bridge
+     * @param eventLoop
+     *            the event loop serving the connection
+     * @param mode
+     *            the wM-Bus mode
+     * @param listener
+     *            the listener for incoming messages
+     */
+    public WMBusSapAmber(InetSocketAddress address, TcpEventLoop eventLoop, WMBusMode mode, WMBusListener listener) {
+        super(mode, listener, new TcpTransceiver(address, eventLoop));
+    }
 
+    @Override
+    int toSignalStrengthInDBm(int rssi) {
+        if (rssi >= 128) {
+            return ((rssi - 256) / 2) - 74;
         }
+        else {
+            return (rssi / 2) - 74;
+        }
+    }
 
-        private void discard(int offset, int length) {
-        	discardCount++;
-            final byte[] discardedBytes = new byte[length];
-            System.arraycopy(inputBuffer, offset, discardedBytes, 0, length);
-
+    @Override
+    void discarded() {
+        discardCount++;
+        if (discardCount >= 5) {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    listener.discardedBytes(discardedBytes);
+                    reset();
                 }
             });
-            
-            if(discardCount>=5){
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        reset();
-                    }
-                });
-                discardCount=0;
-            }
+            discardCount = 0;
         }
     }
 
-    public WMBusSapAmber(String serialPortName, WMBusMode mode, WMBusListener listener) {
-        super(mode, listener);
-        this.serialTransceiver = new SerialTransceiver(serialPortName, 9600, SerialPort.DATABITS_8,
-                SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-
-    }
-
-    @Override
-    public void open() throws IOException {
-        if (!closed) {
-            return;
-        }
-        serialTransceiver.open();
-        os = serialTransceiver.getOutputStream();
-        is = serialTransceiver.getInputStream();
-        initializeWirelessTransceiver(mode);
-        receiver = new MessageReceiver();
-        closed = false;
-        receiver.start();
-    }
-
     /**
      * @param mode
      *            - the wMBus mode to be used for transmission
      * @throws IOException
      */
-    private void initializeWirelessTransceiver(WMBusMode mode) throws IOException {
+    @Override
+    void initializeWirelessTransceiver(WMBusMode mode) throws IOException {
         switch (mode) {
         case S:
             amberSetReg((byte) 0x46, (byte) 0x03);
@@ -207,6 +110,9 @@ public class WMBusSapAmber extends AbstractWMBusSap {
         case T:
             amberSetReg((byte) 0x46, (byte) 0x08); // T2-OTHER (correct for receiving station in T mode)
             break;
+        case C:
+            amberSetReg((byte) 0x46, (byte) 0x0e); // C2-T2-OTHER (receives C mode frames of format A and B)
+            break;
         default:
             throw new IOException("wMBUS Mode '" + mode.toString() + "' is not supported");
         }
@@ -249,35 +155,55 @@ public class WMBusSapAmber extends AbstractWMBusSap {
         return true;
     }
     
-    private boolean amberSetReg(byte reg, byte value) {
+    private void amberSetReg(byte reg, byte value) throws IOException {
         byte[] data = new byte[3];
         data[0] = reg;
         data[1] = 0x01;
         data[2] = value;
 
-        writeCommand((byte) 0x09, data);
-
-        int timeval = 0;
-        int timeout = 500;
-        try {
-            while (timeval < timeout) {
-                if (is.available() > 0) {
-                    is.read(inputBuffer);
-                }
+        // discard anything received before the command
+        while (is.available() > 0) {
+            is.read(inputBuffer);
+        }
 
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                }
+        if (!writeCommand((byte) 0x09, data)) {
+            throw new IOException("Failed to write register 0x" + Integer.toHexString(reg & 0xff));
+        }
 
-                timeval += 100;
+        readSetConfirmation(reg);
+    }
 
+    /**
+     * Waits for the CMD_SET_CNF (0xff 0x89 0x01 status checksum) that the module sends after a CMD_SET_REQ.
+     */
+    private void readSetConfirmation(byte reg) throws IOException {
+        long deadline = System.currentTimeMillis() + CONFIG_TIMEOUT;
+        int numBytes = 0;
+
+        while (numBytes < 5) {
+            int b = readByte(deadline);
+            if (b == -1) {
+                throw new IOException(
+                        "Timeout while waiting for the confirmation of register 0x" + Integer.toHexString(reg & 0xff));
             }
-        } catch (IOException e) {
-            return false;
+            if (numBytes == 0 && b != 0xff) {
+                continue;
+            }
+            if (numBytes == 1 && b != 0x89) {
+                numBytes = (b == 0xff) ? 1 : 0;
+                continue;
+            }
+            inputBuffer[numBytes++] = (byte) b;
         }
 
-        return true;
+        byte checksum = (byte) (inputBuffer[0] ^ inputBuffer[1] ^ inputBuffer[2] ^ inputBuffer[3]);
+        if (inputBuffer[2] != 0x01 || checksum != inputBuffer[4]) {
+            throw new IOException("Received invalid confirmation for register 0x" + Integer.toHexString(reg & 0xff));
+        }
+        if (inputBuffer[3] != 0x00) {
+            throw new IOException("Setting register 0x" + Integer.toHexString(reg & 0xff) + " failed with status 0x"
+                    + Integer.toHexString(inputBuffer[3] & 0xff));
+        }
     }
     
 	public void reset(){
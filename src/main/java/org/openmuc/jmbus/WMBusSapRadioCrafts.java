@@ -21,8 +21,7 @@
 package org.openmuc.jmbus;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
 
 import gnu.io.SerialPort;
 
@@ -33,146 +32,47 @@ import gnu.io.SerialPort;
  */
 public class WMBusSapRadioCrafts extends AbstractWMBusSap {
 
-    private MessageReceiver receiver;
-
-    private class MessageReceiver extends Thread {
-
-        private final ExecutorService executor = Executors.newSingleThreadExecutor();
-
-        @Override
-        public void run() {
-
-            int timeElapsed = 0;
-            int readBytesTotal = 0;
-            int messageLength = -1;
-
-            try {
-                while (!closed) {
-
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                    }
-
-                    if (is.available() > 0) {
-
-                        int messageStartIndex = 0;
-                        timeElapsed = 0;
-
-                        readBytesTotal += is.read(inputBuffer, readBytesTotal, BUFFER_LENGTH - readBytesTotal);
-
-                        while ((readBytesTotal - messageStartIndex) > 10) {
-
-                            // no beginning of message has been found
-                            if (messageLength == -1) {
-                                for (int i = (messageStartIndex + 1); i < readBytesTotal; i++) {
-                                    if (inputBuffer[i] == 0x44) {
-                                        messageStartIndex = i - 1;
-                                        messageLength = (inputBuffer[messageStartIndex] & 0xff) + 1;
-                                        break;
-                                    }
-                                }
-                                if (messageLength == -1) {
-                                    discard(messageStartIndex, (readBytesTotal - messageStartIndex));
-                                    messageStartIndex = readBytesTotal;
-                                    break;
-                                }
-                            }
-
-                            if ((readBytesTotal - messageStartIndex) >= messageLength) {
-
-                                int rssi = inputBuffer[messageLength + messageStartIndex - 1] & 0xff;
-                                final Integer signalStrengthInDBm;
-
-                                signalStrengthInDBm = (rssi * -1) / 2;
-
-                                final byte[] messageBytes = new byte[messageLength - 1];
-                                System.arraycopy(inputBuffer, messageStartIndex, messageBytes, 0, messageLength - 1);
-                                messageBytes[0] = (byte) (messageBytes[0] - 1);
-
-                                executor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        listener.newMessage(
-                                                new WMBusMessage(messageBytes, signalStrengthInDBm, keyMap));
-                                    }
-                                });
-
-                                messageStartIndex += messageLength;
-                                messageLength = -1;
-
-                            }
-                            else {
-                                break;
-                            }
-                        }
-                        if (messageStartIndex > 0) {
-                            for (int i = messageStartIndex; i < readBytesTotal; i++) {
-                                inputBuffer[i - messageStartIndex] = inputBuffer[i];
-                            }
-                        }
-                        readBytesTotal -= messageStartIndex;
-
-                    }
-                    else if (readBytesTotal > 0) {
-                        timeElapsed += 100;
-                        if (timeElapsed > 500) {
-                            discard(0, readBytesTotal);
-                            timeElapsed = 0;
-                            readBytesTotal = 0;
-                            messageLength = -1;
-                        }
-                    }
-
-                }
-
-            } catch (final Exception e) {
-                close();
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.stoppedListening(new IOException(e));
-                    }
-                });
-
-            } finally {
-                executor.shutdown();
-            }
-
-        }
-
-        private void discard(int offset, int length) {
-            final byte[] discardedBytes = new byte[length];
-            System.arraycopy(inputBuffer, offset, discardedBytes, 0, length);
+    public WMBusSapRadioCrafts(String serialPortName, WMBusMode mode, WMBusListener listener) {
+        super(mode, listener, new SerialTransceiver(serialPortName, 19200, SerialPort.DATABITS_8,
+                SerialPort.STOPBITS_1, SerialPort.PARITY_NONE));
+    }
 
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    listener.discardedBytes(discardedBytes);
-                }
-            });
-        }
+    /**
+     * Creates a service access point for a RadioCrafts module that is connected through a serial-over-IP bridge (e.g.
+     * ser2net). The connection is served by the default {@link TcpEventLoop}.
+     * 
+     * @param address
+     *            the host and TCP port of the bridge
+     * @param mode
+     *            the wM-Bus mode
+     * @param listener
+     *            the listener for incoming messages
+     */
+    public WMBusSapRadioCrafts(InetSocketAddress address, WMBusMode mode, WMBusListener listener) {
+        this(address, TcpEventLoop.getDefault(), mode, listener);
     }
 
-    public WMBusSapRadioCrafts(String serialPortName, WMBusMode mode, WMBusListener listener) {
-        super(mode, listener);
-        this.serialTransceiver = new SerialTransceiver(serialPortName, 19200, SerialPort.DATABITS_8,
-                SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+    /**
+     * Creates a service access point for a RadioCrafts module that is connected through a serial-over-IP bridge (e.g.
+     * ser2net).
+     * 
+     * @param address
+     *            the host and TCP port of the bridge
+     * @param eventLoop
+     *            the event loop serving the connection
+     * @param mode
+     *            the wM-Bus mode
+     * @param listener
+     *            the listener for incoming messages
+     */
+    public WMBusSapRadioCrafts(InetSocketAddress address, TcpEventLoop eventLoop, WMBusMode mode,
+            WMBusListener listener) {
+        super(mode, listener, new TcpTransceiver(address, eventLoop));
     }
 
     @Override
-    public void open() throws IOException {
-        if (!closed) {
-            return;
-        }
-        serialTransceiver.open();
-        os = serialTransceiver.getOutputStream();
-        is = serialTransceiver.getInputStream();
-        initializeWirelessTransceiver(mode);
-        receiver = new MessageReceiver();
-        closed = false;
-        receiver.start();
-
+    int toSignalStrengthInDBm(int rssi) {
+        return (rssi * -1) / 2;
     }
 
     /**
@@ -180,7 +80,8 @@ public class WMBusSapRadioCrafts extends AbstractWMBusSap {
      *            - the wMBus mode to be used for transmission
      * @throws IOException
      */
-    private void initializeWirelessTransceiver(WMBusMode mode) throws IOException {
+    @Override
+    void initializeWirelessTransceiver(WMBusMode mode) throws IOException {
         enterConfigMode();
 
         switch (mode) {
@@ -232,6 +133,25 @@ public class WMBusSapRadioCrafts extends AbstractWMBusSap {
             // sendByteInConfigMode(0x41);
             // sendByteInConfigMode(0xff);
             break;
+        case C:
+            /* Set C2 mode */
+            sendByteInConfigMode(0x4d);
+            os.write(0x03);
+            os.write(0x0e);
+            sendByteInConfigMode(0xff);
+
+            /* Set master mode */
+            sendByteInConfigMode(0x4d);
+            os.write(0x12);
+            os.write(0x01);
+            sendByteInConfigMode(0xff);
+
+            /* Get RSSI information with corresponding message */
+            sendByteInConfigMode(0x4d);
+            os.write(0x05);
+            os.write(0x01);
+            sendByteInConfigMode(0xff);
+            break;
         default:
             throw new IOException("wMBUS Mode '" + mode.toString() + "' is not supported");
         }
@@ -249,32 +169,22 @@ public class WMBusSapRadioCrafts extends AbstractWMBusSap {
     }
 
     private void sendByteInConfigMode(int b) throws IOException {
-        int timeval = 0;
-        int timeout = 500;
-        int read;
-
         if (is.available() > 0) {
-            read = is.read(inputBuffer);
+            is.read(inputBuffer);
         }
 
         os.write(b);
 
-        while (timeval < timeout) {
-            if (is.available() > 0) {
-                read = is.read();
-                if (read != 0x3e) {
-                    throw new IOException("sendByteInConfigMode failed");
-                }
-            }
-
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
+        // the module acknowledges with a '>' prompt
+        long deadline = System.currentTimeMillis() + CONFIG_TIMEOUT;
+        int read;
+        do {
+            read = readByte(deadline);
+            if (read == -1) {
+                throw new IOException("sendByteInConfigMode failed: no prompt received for byte 0x"
+                        + Integer.toHexString(b));
             }
-
-            timeval += 100;
-        }
-
+        } while (read != 0x3e);
     }
 
 }
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus.app;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openmuc.jmbus.AsyncWriter;
+import org.openmuc.jmbus.HexConverter;
+import org.openmuc.jmbus.KeyFileWatcher;
+import org.openmuc.jmbus.KeyTable;
+import org.openmuc.jmbus.MBusSap;
+import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.SerialPortManager;
+import org.openmuc.jmbus.TcpEventLoop;
+import org.openmuc.jmbus.VariableDataStructure;
+import org.openmuc.jmbus.WMBusListener;
+import org.openmuc.jmbus.WMBusMessage;
+import org.openmuc.jmbus.WMBusMode;
+import org.openmuc.jmbus.WMBusSap;
+import org.openmuc.jmbus.WMBusSapAmber;
+import org.openmuc.jmbus.WMBusSapRadioCrafts;
+
+/**
+ * Long running collector that hosts any number of wireless receivers and wired M-Bus connections configured in a
+ * properties file. All received and read data is written to one output. The configuration file is watched and
+ * changes (keys, ports, meters, read intervals, output) are applied without restarting: connections whose settings
+ * did not change stay open.
+ */
+public class Collector {
+
+    private final Path configFile;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService scheduler;
+    private final TcpEventLoop eventLoop = new TcpEventLoop();
+
+    private final Map<String, WirelessReceiver> wirelessReceivers = new HashMap<String, WirelessReceiver>();
+    private final Map<String, WiredBus> wiredBuses = new HashMap<String, WiredBus>();
+    private Map<String, byte[]> keys = new HashMap<String, byte[]>();
+    private KeyTable keyTable = KeyTable.empty();
+    private KeyFileWatcher keyFileWatcher;
+    private String keyFile = "";
+
+    private volatile AsyncWriter writer;
+    private String outputSettings;
+
+    private static void printUsage() {
+        System.out.println("SYNOPSIS\n\torg.openmuc.jmbus.app.Collector <config_file>");
+        System.out.println(
+                "DESCRIPTION\n\tReceives wireless M-Bus messages and reads wired M-Bus meters as configured in the given properties file and writes the data to the configured output. Changes of the configuration file are applied while running. Errors are printed to stderr.");
+        System.out.println("CONFIGURATION");
+        System.out.println(
+                "\twmbus.<name>.port=<serial_port>|<host>:<port>\n\twmbus.<name>.transceiver=amber|rc\n\twmbus.<name>.mode=S|T|C\n\t    A wireless M-Bus receiver\n");
+        System.out.println(
+                "\tmbus.<name>.port=<serial_port>|<host>:<port>\n\tmbus.<name>.baudrate=<baud_rate> (default 2400)\n\tmbus.<name>.timeout=<timeout_ms> (default 500)\n\tmbus.<name>.echo=off|on|auto (default off)\n\tmbus.<name>.meters=<primary_address>|<secondary_address>,...\n\tmbus.<name>.interval=<seconds> (default 900)\n\t    A wired M-Bus whose meters are read periodically\n");
+        System.out.println(
+                "\tkey.<secondary_address>=<key>\n\t    Key of a wireless meter, both in hexadecimal form\n");
+        System.out.println(
+                "\tkeyfile=<file>\n\t    File with one <secondary_address>;<key> pair per line or a binary key file. The file is reloaded whenever it is modified.\n");
+        System.out.println(
+                "\toutput.format=csv|json|influx|binary (default json)\n\toutput.target=<file>|<host>:<port>|- (default -)\n\t    The output of the collected data\n");
+        System.out.println(
+                "\tpool.threads=<number> (default 2)\n\t    Threads used to decode and dispatch messages and to read wired meters. Is only read at start.\n");
+    }
+
+    private class WirelessReceiver implements WMBusListener {
+
+        private final String settings;
+        private WMBusSap sap;
+
+        WirelessReceiver(String settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        public void newMessage(final WMBusMessage message) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    message.tryDecodeDeep();
+                    AsyncWriter currentWriter = writer;
+                    if (currentWriter != null) {
+                        currentWriter.write(message, message.getReceiveTime());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException e) {
+            System.err.println("Wireless receiver stopped listening: " + e.getMessage());
+        }
+    }
+
+    private class WiredBus implements Runnable {
+
+        private final String name;
+        private final String settings;
+        private final MBusSap sap;
+        private String schedule;
+        private ScheduledFuture<?> future;
+        private List<String> meters = new ArrayList<String>();
+        // true while a readout is waiting in the pool, further triggers are dropped
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+
+        /**
+         * Run by the scheduler, passes the readout to the pool so that a slow bus does not delay the others.
+         */
+        private final Runnable trigger = new Runnable() {
+            @Override
+            public void run() {
+                if (queued.compareAndSet(false, true)) {
+                    try {
+                        pool.execute(WiredBus.this);
+                    } catch (RejectedExecutionException e) {
+                        queued.set(false);
+                    }
+                }
+            }
+        };
+
+        WiredBus(String name, String settings, MBusSap sap) {
+            this.name = name;
+            this.settings = settings;
+            this.sap = sap;
+        }
+
+        @Override
+        public void run() {
+            queued.set(false);
+            List<String> currentMeters;
+            synchronized (this) {
+                currentMeters = meters;
+            }
+            // a readout of the previous schedule may still be running
+            synchronized (sap) {
+                readMeters(currentMeters);
+            }
+        }
+
+        /**
+         * Stops the schedule and closes the connection once a running readout has finished its current meter.
+         */
+        void close() {
+            if (future != null) {
+                future.cancel(false);
+            }
+            closed = true;
+            synchronized (sap) {
+                sap.close();
+            }
+        }
+
+        private void readMeters(List<String> currentMeters) {
+            for (String meter : currentMeters) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    List<VariableDataStructure> frames = read(meter);
+                    long timestamp = System.currentTimeMillis();
+                    AsyncWriter currentWriter = writer;
+                    if (currentWriter != null) {
+                        for (VariableDataStructure vds : frames) {
+                            currentWriter.write(vds, timestamp);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to read meter " + meter + " on " + name + ": " + e.getMessage());
+                } catch (TimeoutException e) {
+                    System.err.println("Reading meter " + meter + " on " + name + " timed out.");
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to read meter " + meter + " on " + name + ": " + e);
+                }
+            }
+        }
+
+        private List<VariableDataStructure> read(String meter) throws IOException, TimeoutException {
+            if (meter.length() == 16) {
+                return sap.readAll(SecondaryAddress.getFromLongHeader(HexConverter.fromShortHexString(meter), 0));
+            }
+            return sap.readAll(Integer.parseInt(meter));
+        }
+    }
+
+    Collector(Path configFile, int poolThreads) {
+        this.configFile = configFile;
+        pool = Executors.newFixedThreadPool(poolThreads);
+        // only triggers the readouts, which run in the pool
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            printUsage();
+            System.exit(1);
+        }
+
+        Path configFile = Paths.get(args[0]).toAbsolutePath();
+        Properties properties = null;
+        try {
+            properties = load(configFile);
+        } catch (IOException e) {
+            System.err.println("Failed to load configuration: " + e.getMessage());
+            System.exit(1);
+        }
+
+        int poolThreads = 2;
+        try {
+            poolThreads = Integer.parseInt(properties.getProperty("pool.threads", "2").trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Error: pool.threads is not an integer value.");
+            System.exit(1);
+        }
+
+        final Collector collector = new Collector(configFile, poolThreads);
+        collector.apply(properties);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                collector.close();
+            }
+        });
+
+        try {
+            collector.watchConfiguration();
+        } catch (IOException e) {
+            System.err.println("Failed to watch the configuration file, changes will not be applied: "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static Properties load(Path configFile) throws IOException {
+        Properties properties = new Properties();
+        InputStream is = new FileInputStream(configFile.toFile());
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Blocks and reloads the configuration whenever the configuration file is modified.
+     */
+    private void watchConfiguration() throws IOException, InterruptedException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        configFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+
+        while (true) {
+            WatchKey key = watchService.take();
+            boolean modified = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (configFile.getFileName().equals(event.context())) {
+                    modified = true;
+                }
+            }
+            key.reset();
+
+            if (modified) {
+                // editors often write a file in several steps
+                Thread.sleep(200);
+                try {
+                    apply(load(configFile));
+                    System.err.println("Configuration reloaded.");
+                } catch (IOException e) {
+                    System.err.println("Failed to reload configuration: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    synchronized void apply(Properties properties) {
+        applyOutput(properties);
+        applyKeys(properties);
+        openSerialPorts(properties);
+        applyWireless(properties);
+        applyWired(properties);
+        // ports of receivers and buses that failed to be set up
+        SerialPortManager.getDefault().closeAll();
+    }
+
+    private void applyOutput(Properties properties) {
+        String format = properties.getProperty("output.format", "json").trim();
+        String target = properties.getProperty("output.target", "-").trim();
+        String settings = format + '|' + target;
+        if (settings.equals(outputSettings)) {
+            return;
+        }
+        AsyncWriter oldWriter = writer;
+        try {
+            writer = ExportSink.create(format, target);
+            outputSettings = settings;
+        } catch (IOException e) {
+            System.err.println("Failed to open output " + target + ": " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error in output configuration: " + e.getMessage());
+            return;
+        }
+        closeWriter(oldWriter);
+    }
+
+    private void applyKeys(Properties properties) {
+        applyKeyFile(properties.getProperty("keyfile", "").trim());
+
+        Map<String, byte[]> newKeys = new HashMap<String, byte[]>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("key.")) {
+                try {
+                    newKeys.put(name.substring(4).toLowerCase(Locale.US),
+                            HexConverter.fromShortHexString(properties.getProperty(name).trim()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: " + name + " is not a hexadecimal key.");
+                }
+            }
+        }
+
+        for (WirelessReceiver receiver : wirelessReceivers.values()) {
+            updateKeys(receiver.sap, keys, newKeys);
+        }
+        keys = newKeys;
+    }
+
+    private void applyKeyFile(String newKeyFile) {
+        if (newKeyFile.equals(keyFile)) {
+            return;
+        }
+        if (keyFileWatcher != null) {
+            try {
+                keyFileWatcher.close();
+            } catch (IOException e) {
+            }
+            keyFileWatcher = null;
+        }
+        keyFile = newKeyFile;
+        if (newKeyFile.isEmpty()) {
+            setKeyTable(KeyTable.empty());
+            return;
+        }
+        try {
+            keyFileWatcher = new KeyFileWatcher(Paths.get(newKeyFile), new KeyFileWatcher.Listener() {
+                @Override
+                public void keyTableLoaded(KeyTable newKeyTable) {
+                    setKeyTable(newKeyTable);
+                    System.err.println("Loaded " + newKeyTable.size() + " keys.");
+                }
+
+                @Override
+                public void keyFileError(IOException e) {
+                    System.err.println("Failed to reload key file: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to load key file " + newKeyFile + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void setKeyTable(KeyTable newKeyTable) {
+        keyTable = newKeyTable;
+        for (WirelessReceiver receiver : wirelessReceivers.values()) {
+            receiver.sap.setKeyTable(newKeyTable);
+        }
+    }
+
+    private static void updateKeys(WMBusSap sap, Map<String, byte[]> oldKeys, Map<String, byte[]> newKeys) {
+        for (String address : oldKeys.keySet()) {
+            if (!newKeys.containsKey(address)) {
+                sap.removeKey(toAddress(address));
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : newKeys.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), oldKeys.get(entry.getKey()))) {
+                sap.setKey(toAddress(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    private static SecondaryAddress toAddress(String hexAddress) {
+        return SecondaryAddress.getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString(hexAddress), 0);
+    }
+
+    private void applyWireless(Properties properties) {
+        Set<String> names = names(properties, "wmbus.");
+
+        for (Iterator<Map.Entry<String, WirelessReceiver>> it = wirelessReceivers.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<String, WirelessReceiver> entry = it.next();
+            if (!names.contains(entry.getKey())
+                    || !entry.getValue().settings.equals(wirelessSettings(properties, entry.getKey()))) {
+                entry.getValue().sap.close();
+                it.remove();
+            }
+        }
+
+        for (String name : names) {
+            if (wirelessReceivers.containsKey(name)) {
+                continue;
+            }
+            String prefix = "wmbus." + name + ".";
+            String port = properties.getProperty(prefix + "port", "").trim();
+            String transceiver = properties.getProperty(prefix + "transceiver", "").trim().toLowerCase(Locale.US);
+            WMBusMode mode;
+            try {
+                mode = WMBusMode.valueOf(properties.getProperty(prefix + "mode", "T").trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: unknown mode of wireless receiver " + name);
+                continue;
+            }
+
+            WirelessReceiver receiver = new WirelessReceiver(wirelessSettings(properties, name));
+            InetSocketAddress address = toSocketAddress(port);
+            if (transceiver.equals("amber")) {
+                receiver.sap = address == null ? new WMBusSapAmber(port, mode, receiver)
+                        : new WMBusSapAmber(address, eventLoop, mode, receiver);
+            }
+            else if (transceiver.equals("rc")) {
+                receiver.sap = address == null ? new WMBusSapRadioCrafts(port, mode, receiver)
+                        : new WMBusSapRadioCrafts(address, eventLoop, mode, receiver);
+            }
+            else {
+                System.err.println("Error: not supported transceiver of wireless receiver " + name);
+                continue;
+            }
+
+            updateKeys(receiver.sap, new HashMap<String, byte[]>(), keys);
+            receiver.sap.setKeyTable(keyTable);
+            try {
+                receiver.sap.open();
+                wirelessReceivers.put(name, receiver);
+            } catch (IOException e) {
+                System.err.println("Failed to open wireless receiver " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String wirelessSettings(Properties properties, String name) {
+        String prefix = "wmbus." + name + ".";
+        return properties.getProperty(prefix + "port", "").trim() + '|'
+                + properties.getProperty(prefix + "transceiver", "").trim() + '|'
+                + properties.getProperty(prefix + "mode", "T").trim();
+    }
+
+    private void applyWired(Properties properties) {
+        Set<String> names = names(properties, "mbus.");
+
+        for (Iterator<Map.Entry<String, WiredBus>> it = wiredBuses.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, WiredBus> entry = it.next();
+            WiredBus bus = entry.getValue();
+            if (!names.contains(entry.getKey()) || !bus.settings.equals(wiredSettings(properties, entry.getKey()))) {
+                bus.close();
+                it.remove();
+            }
+        }
+
+        for (String name : names) {
+            String prefix = "mbus." + name + ".";
+            WiredBus bus = wiredBuses.get(name);
+            if (bus == null) {
+                String port = properties.getProperty(prefix + "port", "").trim();
+                MBusSap sap;
+                try {
+                    InetSocketAddress address = toSocketAddress(port);
+                    sap = address == null
+                            ? new MBusSap(port, Integer.parseInt(properties.getProperty(prefix + "baudrate", "2400")
+                                    .trim()))
+                            : new MBusSap(address, eventLoop);
+                    sap.setTimeout(Integer.parseInt(properties.getProperty(prefix + "timeout", "500").trim()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: baud rate or timeout of wired bus " + name + " is not an integer value.");
+                    continue;
+                }
+                String echo = properties.getProperty(prefix + "echo", "off").trim();
+                try {
+                    sap.setEchoCancellation(MBusSap.EchoCancellation.valueOf(echo.toUpperCase(Locale.US)));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: unknown echo cancellation \"" + echo + "\" of wired bus " + name + ".");
+                    continue;
+                }
+                try {
+                    sap.open();
+                } catch (IOException e) {
+                    System.err.println("Failed to open wired bus " + name + ": " + e.getMessage());
+                    continue;
+                }
+                bus = new WiredBus(name, wiredSettings(properties, name), sap);
+                wiredBuses.put(name, bus);
+            }
+
+            List<String> meters = new ArrayList<String>();
+            for (String meter : properties.getProperty(prefix + "meters", "").split(",")) {
+                if (!meter.trim().isEmpty()) {
+                    meters.add(meter.trim());
+                }
+            }
+            String interval = properties.getProperty(prefix + "interval", "900").trim();
+            synchronized (bus) {
+                bus.meters = meters;
+            }
+            if (!interval.equals(bus.schedule)) {
+                if (bus.future != null) {
+                    bus.future.cancel(false);
+                }
+                try {
+                    long seconds = Long.parseLong(interval);
+                    bus.future = scheduler.scheduleAtFixedRate(bus.trigger, 0, seconds, TimeUnit.SECONDS);
+                    bus.schedule = interval;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: interval of wired bus " + name + " is not a positive integer.");
+                    bus.future = null;
+                    bus.schedule = null;
+                }
+            }
+        }
+    }
+
+    private static String wiredSettings(Properties properties, String name) {
+        String prefix = "mbus." + name + ".";
+        return properties.getProperty(prefix + "port", "").trim() + '|'
+                + properties.getProperty(prefix + "baudrate", "2400").trim() + '|'
+                + properties.getProperty(prefix + "timeout", "500").trim() + '|'
+                + properties.getProperty(prefix + "echo", "off").trim().toUpperCase(Locale.US);
+    }
+
+    /**
+     * Opens the serial ports of all receivers and buses in parallel. Ports already in use are skipped, errors are
+     * reported when the receivers and buses are opened.
+     */
+    private static void openSerialPorts(Properties properties) {
+        List<String> ports = new ArrayList<String>();
+        for (String prefix : Arrays.asList("wmbus.", "mbus.")) {
+            for (String name : names(properties, prefix)) {
+                String port = properties.getProperty(prefix + name + ".port", "").trim();
+                if (!port.isEmpty() && toSocketAddress(port) == null) {
+                    ports.add(port);
+                }
+            }
+        }
+        SerialPortManager.getDefault().openAll(ports);
+    }
+
+    private static Set<String> names(Properties properties, String prefix) {
+        Set<String> names = new HashSet<String>();
+        for (String key : properties.stringPropertyNames()) {
+            int end = key.indexOf('.', prefix.length());
+            if (key.startsWith(prefix) && end > prefix.length()) {
+                names.add(key.substring(prefix.length(), end));
+            }
+        }
+        return names;
+    }
+
+    private static InetSocketAddress toSocketAddress(String port) {
+        int index = port.lastIndexOf(':');
+        if (index > 0 && port.substring(index + 1).matches("[0-9]{1,5}")) {
+            return new InetSocketAddress(port.substring(0, index), Integer.parseInt(port.substring(index + 1)));
+        }
+        return null;
+    }
+
+    synchronized void close() {
+        scheduler.shutdownNow();
+        if (keyFileWatcher != null) {
+            try {
+                keyFileWatcher.close();
+            } catch (IOException e) {
+            }
+        }
+        for (WirelessReceiver receiver : wirelessReceivers.values()) {
+            receiver.sap.close();
+        }
+        wirelessReceivers.clear();
+        for (WiredBus bus : wiredBuses.values()) {
+            bus.close();
+        }
+        wiredBuses.clear();
+        SerialPortManager.getDefault().closeAll();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        eventLoop.close();
+        closeWriter(writer);
+        writer = null;
+    }
+
+    private static void closeWriter(AsyncWriter oldWriter) {
+        if (oldWriter == null) {
+            return;
+        }
+        try {
+            oldWriter.close();
+        } catch (IOException e) {
+            System.err.println("Failed to write output: " + e.getMessage());
+        }
+    }
+
+}
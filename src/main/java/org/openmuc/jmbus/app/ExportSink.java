@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus.app;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+import org.openmuc.jmbus.AsyncWriter;
+import org.openmuc.jmbus.BinaryEncoder;
+import org.openmuc.jmbus.CsvEncoder;
+import org.openmuc.jmbus.InfluxLineEncoder;
+import org.openmuc.jmbus.JsonLinesEncoder;
+import org.openmuc.jmbus.MessageEncoder;
+
+/**
+ * Creates the {@link AsyncWriter} for the --format and --output options of the receiver apps.
+ */
+class ExportSink {
+
+    static final String USAGE = "\t--format <csv|json|influx|binary>\n\t    Write the received messages in the given format instead of printing them in human readable form. The binary format can be read with org.openmuc.jmbus.BinaryMessageReader. Defaults to json if only --output is given.\n\n"
+            + "\t--output <file>|<host>:<port>|-\n\t    Append the formatted messages to the given file, send them to the given TCP server or write them to stdout (-). Defaults to stdout.\n";
+
+    private ExportSink() {
+    }
+
+    static AsyncWriter create(String format, String output) throws IOException {
+        if (format == null) {
+            format = "json";
+        }
+        if (output == null) {
+            output = "-";
+        }
+
+        MessageEncoder encoder;
+        String header = null;
+        format = format.toLowerCase(Locale.US);
+        if (format.equals("csv")) {
+            encoder = new CsvEncoder();
+            header = CsvEncoder.HEADER;
+        }
+        else if (format.equals("json")) {
+            encoder = new JsonLinesEncoder();
+        }
+        else if (format.equals("binary")) {
+            encoder = new BinaryEncoder();
+        }
+        else if (format.equals("influx")) {
+            encoder = new InfluxLineEncoder();
+        }
+        else {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+
+        WritableByteChannel channel;
+        int portIndex = output.lastIndexOf(':');
+        if (output.equals("-")) {
+            channel = Channels.newChannel(System.out);
+        }
+        else if (portIndex > 0 && output.substring(portIndex + 1).matches("[0-9]{1,5}")) {
+            channel = SocketChannel.open(new InetSocketAddress(output.substring(0, portIndex),
+                    Integer.parseInt(output.substring(portIndex + 1))));
+        }
+        else {
+            FileOutputStream outputStream = new FileOutputStream(output, true);
+            if (outputStream.getChannel().size() > 0) {
+                header = null;
+            }
+            channel = outputStream.getChannel();
+        }
+
+        if (header != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(header.getBytes("US-ASCII"));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        return new AsyncWriter(channel, encoder, AsyncWriter.DEFAULT_BUFFER_SIZE,
+                AsyncWriter.DEFAULT_NUMBER_OF_BUFFERS, AsyncWriter.DEFAULT_FLUSH_INTERVAL);
+    }
+
+}
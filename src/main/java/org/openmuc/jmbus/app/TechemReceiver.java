@@ -25,6 +25,7 @@ import java.io.IOException;
 import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.HexConverter;
 import org.openmuc.jmbus.SecondaryAddress;
+import org.openmuc.jmbus.TechemHKVData;
 import org.openmuc.jmbus.TechemHKVMessage;
 import org.openmuc.jmbus.WMBusMessage;
 import org.openmuc.jmbus.WMBusMode;
@@ -44,16 +45,18 @@ public class TechemReceiver extends WMBusReceiver{
 
 	private static void printUsage() {
         System.out.println(
-                "SYNOPSIS\n\torg.openmuc.jmbus.app.TechemReceiver <serial_port> <transceiver> <mode> [--debug] [<secondary_address>:<key>...]");
+                "SYNOPSIS\n\torg.openmuc.jmbus.app.TechemReceiver <serial_port> <transceiver> <mode> [--debug] [--format <format>] [--output <output>] [--keyfile <file>] [<secondary_address>:<key>...]");
         System.out.println(
-                "DESCRIPTION\n\tListens using a wireless M-Bus transceiver on the given serial port for proprietary Techem heat cost allocator wireless M-bus messages and prints them to stdout. Errors are printed to stderr.");
+                "DESCRIPTION\n\tListens using a wireless M-Bus transceiver on the given serial port for proprietary Techem heat cost allocator wireless M-bus messages and prints them to stdout or exports them to a file or TCP server. Errors are printed to stderr.");
         System.out.println("OPTIONS");
         System.out.println(
                 "\t<serial_port>\n\t    The serial port used for communication. Examples are /dev/ttyS0 (Linux) or COM1 (Windows)\n");
         System.out.println(
                 "\t<transceiver>\n\t    The transceiver being used. It can be 'amber' or 'rc' for modules from RadioCrafts\n");
-        System.out.println("\t<mode>\n\t    The wM-Bus mode can be S or T\n");
+        System.out.println("\t<mode>\n\t    The wM-Bus mode can be S, T or C\n");
         System.out.println("\t--debug\n\t    Print more verbose error information\n");
+        System.out.println(ExportSink.USAGE);
+        System.out.println(KEYFILE_USAGE);
         System.out.println(
                 "\t<secondary_address>:<key>...\n\t    Address/key pairs that shall be used to decode the incoming messages. The secondary address consists of 8 bytes that should be specified in hexadecimal form.\n");
 
@@ -75,6 +78,9 @@ public class TechemReceiver extends WMBusReceiver{
         else if (modeString.equals("T")) {
             mode = WMBusMode.T;
         }
+        else if (modeString.equals("C")) {
+            mode = WMBusMode.C;
+        }
         else {
             printUsage();
             System.exit(1);
@@ -95,13 +101,34 @@ public class TechemReceiver extends WMBusReceiver{
 
         final WMBusSap wMBusSap = tempMBusSap;
 
-        int startIndexOfKeys = 3;
-        if (args.length > 3 && args[3].equals("--debug")) {
-            debugMode  = true;
-            startIndexOfKeys++;
-        }
-
-        for (int i = startIndexOfKeys; i < args.length; i++) {
+        String format = null;
+        String output = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--debug")) {
+                debugMode = true;
+                continue;
+            }
+            if (args[i].equals("--format") || args[i].equals("--output") || args[i].equals("--keyfile")) {
+                if (i + 1 == args.length) {
+                    printUsage();
+                    System.exit(1);
+                }
+                if (args[i].equals("--format")) {
+                    format = args[++i];
+                }
+                else if (args[i].equals("--output")) {
+                    output = args[++i];
+                }
+                else {
+                    try {
+                        watchKeyFile(args[++i], wMBusSap);
+                    } catch (IOException e) {
+                        System.err.println("Failed to load key file: " + e.getMessage());
+                        System.exit(1);
+                    }
+                }
+                continue;
+            }
             int index = args[i].indexOf(':');
             if (index == -1) {
                 printUsage();
@@ -113,9 +140,22 @@ public class TechemReceiver extends WMBusReceiver{
                     HexConverter.fromShortHexString(args[i].substring(index + 1)));
         }
 
+        if (format != null || output != null) {
+            try {
+                writer = ExportSink.create(format, output);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                printUsage();
+                System.exit(1);
+            } catch (IOException e) {
+                System.err.println("Failed to open output: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
         try {
             wMBusSap.open();
-            System.out.println("Techem Listening started with device="+serialPortName+", Mode="+modeString+", transceiverType="+transceiverString);
+            System.err.println("Techem Listening started with device="+serialPortName+", Mode="+modeString+", transceiverType="+transceiverString);
         } catch (IOException e2) {
             System.err.println("Failed to open serial port: " + e2.getMessage());
             System.exit(1);
@@ -127,6 +167,7 @@ public class TechemReceiver extends WMBusReceiver{
                 if (wMBusSap != null) {
                     wMBusSap.close();
                 }
+                closeWriter();
             }
         });
 
@@ -149,25 +190,27 @@ public class TechemReceiver extends WMBusReceiver{
     public void newMessage(WMBusMessage message) {
         try {
             message.decodeDeep();
-            if(filterMatch(message.getSecondaryAddress().getDeviceId().intValue())){
+        } catch (DecodingException e) {
+            if (debugMode == true) {
+                System.out.println("TechemReceiver: Unable to fully decode received message: " + e.getMessage());
                 System.out.println(message.toString());
+                e.printStackTrace();
             }
-        } catch (DecodingException e) {
-        	byte[] messageBytes=message.asBytes();
-        	if ((messageBytes.length==51 || messageBytes.length==47) && (messageBytes[10] & 0xff) ==  0xa0 && message.getSecondaryAddress().getManufacturerId().equals("TCH")	){
-        		newMessage(new TechemHKVMessage(message)); //standard a0
-        	} else if ((messageBytes[10] & 0xff) ==  0xa2 && message.getSecondaryAddress().getManufacturerId().equals("TCH")){
-        		newMessage(new TechemHKVMessage(message)); // at Karls'
-        	} else if ((messageBytes[10] & 0xff) ==  0x80 && message.getSecondaryAddress().getManufacturerId().equals("TCH")){
-        		newMessage(new TechemHKVMessage(message)); // at Karls' - warmwater?
-        	} else {
-                if (debugMode == true) {
-                    System.out.println("TechemReceiver: Unable to fully decode received message: " + e.getMessage());
-                    System.out.println("messageBytes.length="+messageBytes.length+" (messageBytes[10] & 0xff)="+(messageBytes[10] & 0xff)+" message.getSecondaryAddress().getManufacturerId()="+message.getSecondaryAddress().getManufacturerId());
-               	    System.out.println(message.toString());
-               		e.printStackTrace();
-                }
-        	}
+            return;
+        }
+
+        if (!filterMatch(message.getSecondaryAddress().getDeviceId().intValue())) {
+            return;
+        }
+        if (writer != null) {
+            writer.write(message, System.currentTimeMillis());
+        }
+        else if (message.getManufacturerSpecificData() instanceof TechemHKVData) {
+            // takes over the decoded data without decoding again
+            System.out.println(new TechemHKVMessage(message));
+        }
+        else {
+            System.out.println(message.toString());
         }
     }
 
@@ -21,11 +21,15 @@
 package org.openmuc.jmbus.app;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Date;
 import java.util.Locale;
 
+import org.openmuc.jmbus.AsyncWriter;
 import org.openmuc.jmbus.DecodingException;
 import org.openmuc.jmbus.HexConverter;
+import org.openmuc.jmbus.KeyFileWatcher;
+import org.openmuc.jmbus.KeyTable;
 import org.openmuc.jmbus.SecondaryAddress;
 import org.openmuc.jmbus.WMBusListener;
 import org.openmuc.jmbus.WMBusMessage;
@@ -43,18 +47,24 @@ public class WMBusReceiver implements WMBusListener {
 
     private static boolean debugMode = false;
 
+    static AsyncWriter writer;
+
+    static final String KEYFILE_USAGE = "\t--keyfile <file>\n\t    File with one <secondary_address>;<key> pair per line or a binary key file. The file is reloaded whenever it is modified.\n";
+
     private static void printUsage() {
         System.out.println(
-                "SYNOPSIS\n\torg.openmuc.jmbus.app.WMBusReceiver <serial_port> <transceiver> <mode> [--debug] [<secondary_address>:<key>...]");
+                "SYNOPSIS\n\torg.openmuc.jmbus.app.WMBusReceiver <serial_port> <transceiver> <mode> [--debug] [--format <format>] [--output <output>] [--keyfile <file>] [<secondary_address>:<key>...]");
         System.out.println(
-                "DESCRIPTION\n\tListens using a wireless M-Bus transceiver on the given serial port for wireless M-bus messages and prints them to stdout. Errors are printed to stderr.");
+                "DESCRIPTION\n\tListens using a wireless M-Bus transceiver on the given serial port for wireless M-bus messages and prints them to stdout or exports them to a file or TCP server. Errors are printed to stderr.");
         System.out.println("OPTIONS");
         System.out.println(
                 "\t<serial_port>\n\t    The serial port used for communication. Examples are /dev/ttyS0 (Linux) or COM1 (Windows)\n");
         System.out.println(
                 "\t<transceiver>\n\t    The transceiver being used. It can be 'amber' or 'rc' for modules from RadioCrafts\n");
-        System.out.println("\t<mode>\n\t    The wM-Bus mode can be S or T\n");
+        System.out.println("\t<mode>\n\t    The wM-Bus mode can be S, T or C\n");
         System.out.println("\t--debug\n\t    Print more verbose error information\n");
+        System.out.println(ExportSink.USAGE);
+        System.out.println(KEYFILE_USAGE);
         System.out.println(
                 "\t<secondary_address>:<key>...\n\t    Address/key pairs that shall be used to decode the incoming messages. The secondary address consists of 8 bytes that should be specified in hexadecimal form.\n");
 
@@ -75,6 +85,9 @@ public class WMBusReceiver implements WMBusListener {
         else if (modeString.equals("T")) {
             mode = WMBusMode.T;
         }
+        else if (modeString.equals("C")) {
+            mode = WMBusMode.C;
+        }
         else {
             error("Error: unknown argument.", true);
         }
@@ -93,13 +106,32 @@ public class WMBusReceiver implements WMBusListener {
 
         final WMBusSap wMBusSap = tempMBusSap;
 
-        int startIndexOfKeys = 3;
-        if (args.length > 3 && args[3].equals("--debug")) {
-            debugMode = true;
-            startIndexOfKeys++;
-        }
-
-        for (int i = startIndexOfKeys; i < args.length; i++) {
+        String format = null;
+        String output = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--debug")) {
+                debugMode = true;
+                continue;
+            }
+            if (args[i].equals("--format") || args[i].equals("--output") || args[i].equals("--keyfile")) {
+                if (i + 1 == args.length) {
+                    error("Error: missing value of " + args[i], true);
+                }
+                if (args[i].equals("--format")) {
+                    format = args[++i];
+                }
+                else if (args[i].equals("--output")) {
+                    output = args[++i];
+                }
+                else {
+                    try {
+                        watchKeyFile(args[++i], wMBusSap);
+                    } catch (IOException e) {
+                        error("Failed to load key file: " + e.getMessage(), false);
+                    }
+                }
+                continue;
+            }
             int index = args[i].indexOf(':');
             if (index == -1) {
                 error("Error: wrong syntax for secondary address key pairs", true);
@@ -110,6 +142,16 @@ public class WMBusReceiver implements WMBusListener {
                     HexConverter.fromShortHexString(args[i].substring(index + 1)));
         }
 
+        if (format != null || output != null) {
+            try {
+                writer = ExportSink.create(format, output);
+            } catch (IllegalArgumentException e) {
+                error("Error: " + e.getMessage(), true);
+            } catch (IOException e) {
+                error("Failed to open output: " + e.getMessage(), false);
+            }
+        }
+
         try {
             wMBusSap.open();
         } catch (IOException e2) {
@@ -122,13 +164,51 @@ public class WMBusReceiver implements WMBusListener {
                 if (wMBusSap != null) {
                     wMBusSap.close();
                 }
+                closeWriter();
             }
         });
 
     }
 
+    /**
+     * Loads the keys of the given key file into the service access point and keeps them up to date.
+     */
+    static KeyFileWatcher watchKeyFile(String fileName, final WMBusSap wMBusSap) throws IOException {
+        return new KeyFileWatcher(Paths.get(fileName), new KeyFileWatcher.Listener() {
+            @Override
+            public void keyTableLoaded(KeyTable keyTable) {
+                wMBusSap.setKeyTable(keyTable);
+                System.err.println("Loaded " + keyTable.size() + " keys.");
+            }
+
+            @Override
+            public void keyFileError(IOException e) {
+                System.err.println("Failed to reload key file: " + e.getMessage());
+            }
+        });
+    }
+
+    static void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write output: " + e.getMessage());
+            }
+            if (writer.getDroppedCount() > 0) {
+                System.err.println("Messages dropped because output was too slow: " + writer.getDroppedCount());
+            }
+        }
+    }
+
     @Override
     public void newMessage(WMBusMessage message) {
+        if (writer != null) {
+            message.tryDecodeDeep();
+            writer.write(message, System.currentTimeMillis());
+            return;
+        }
+
         System.out.println("Message received at: " + new Date());
 
         try {
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmuc.jmbus.AccessNumberTracker.Result;
+
+public class AccessNumberTrackerTest {
+
+    @Test
+    public void testGapsDuplicatesAndOutOfOrder() {
+        AccessNumberTracker tracker = new AccessNumberTracker();
+        long meter = 0x1234L;
+
+        Assert.assertEquals(Result.FIRST, tracker.update(meter, 250));
+        Assert.assertEquals(Result.IN_SEQUENCE, tracker.update(meter, 251));
+        Assert.assertEquals(Result.DUPLICATE, tracker.update(meter, 251));
+        // wraps from 255 to 0, 252 to 255 and 0 are missing
+        Assert.assertEquals(Result.GAP, tracker.update(meter, 1));
+        Assert.assertEquals(5, tracker.getMissingCount(meter));
+        Assert.assertEquals(Result.OUT_OF_ORDER, tracker.update(meter, 254));
+        Assert.assertEquals(Result.DUPLICATE, tracker.update(meter, 254));
+        Assert.assertEquals(Result.IN_SEQUENCE, tracker.update(meter, 2));
+
+        Assert.assertEquals(5, tracker.getReceivedCount(meter));
+        Assert.assertEquals(4, tracker.getMissingCount(meter));
+        Assert.assertEquals(2, tracker.getDuplicateCount(meter));
+        Assert.assertEquals(1, tracker.getOutOfOrderCount(meter));
+        Assert.assertEquals(4.0 / 9, tracker.getLossRate(meter), 1e-9);
+        Assert.assertTrue(Double.isNaN(tracker.getLossRate(0x9999L)));
+    }
+
+    @Test
+    public void testLateTelegramFromBeforeFirstOne() {
+        AccessNumberTracker tracker = new AccessNumberTracker();
+        long meter = 0x1234L;
+
+        Assert.assertEquals(Result.FIRST, tracker.update(meter, 10));
+        Assert.assertEquals(Result.GAP, tracker.update(meter, 12));
+        // 5 was sent before the first telegram received, 11 is still missing
+        Assert.assertEquals(Result.OUT_OF_ORDER, tracker.update(meter, 5));
+        Assert.assertEquals(1, tracker.getMissingCount(meter));
+        Assert.assertEquals(Result.OUT_OF_ORDER, tracker.update(meter, 11));
+        Assert.assertEquals(0, tracker.getMissingCount(meter));
+    }
+
+    @Test
+    public void testSeveralWraps() {
+        AccessNumberTracker tracker = new AccessNumberTracker(1);
+        for (int meter = 0; meter < 100; meter++) {
+            for (int i = 0; i < 1000; i++) {
+                // every tenth telegram is lost
+                if (i % 10 != 9) {
+                    Result result = tracker.update(meter, i);
+                    Assert.assertNotEquals(Result.DUPLICATE, result);
+                    Assert.assertNotEquals(Result.OUT_OF_ORDER, result);
+                }
+            }
+        }
+        Assert.assertEquals(100, tracker.getMeters().length);
+        Assert.assertEquals(900, tracker.getReceivedCount(42));
+        Assert.assertEquals(99, tracker.getMissingCount(42));
+        Assert.assertEquals(0, tracker.getDuplicateCount(42));
+    }
+
+}
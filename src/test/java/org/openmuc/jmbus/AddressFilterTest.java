@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AddressFilterTest {
+
+    // manufacturer ID:LSE, device ID:58511882, device version:44, device type:WARM_WATER_METER
+    private static final SecondaryAddress ADDRESS = SecondaryAddress
+            .getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString("6532821851582c06"), 0);
+
+    @Test
+    public void testExactSet() {
+        AddressFilter filter = new AddressFilter.Builder().addAddress(ADDRESS).addAddress(42).build();
+
+        Assert.assertTrue(filter.accept(ADDRESS));
+        Assert.assertTrue(filter.accept(42));
+        Assert.assertFalse(filter.accept(ADDRESS.asLong() + 1));
+        Assert.assertEquals(1, filter.getRejectedCount());
+    }
+
+    @Test
+    public void testManufacturerAndDeviceType() {
+        AddressFilter filter = new AddressFilter.Builder().addManufacturer("lse")
+                .addDeviceType(DeviceType.WARM_WATER_METER)
+                .build();
+        Assert.assertTrue(filter.accept(ADDRESS));
+        // other device ID of the same manufacturer and type
+        Assert.assertTrue(filter.accept(ADDRESS.asLong() ^ 0xffff0000l));
+
+        Assert.assertFalse(new AddressFilter.Builder().addManufacturer("TCH").build().accept(ADDRESS));
+        Assert.assertFalse(
+                new AddressFilter.Builder().addDeviceType(DeviceType.GAS_METER).build().accept(ADDRESS));
+        // an empty filter accepts all telegrams
+        Assert.assertTrue(new AddressFilter.Builder().build().accept(ADDRESS));
+    }
+
+    @Test
+    public void testBloomFilter() {
+        AddressFilter.Builder builder = new AddressFilter.Builder().useBloomFilter(0.01);
+        for (long i = 0; i < 10000; i++) {
+            builder.addAddress(i * 7919);
+        }
+        AddressFilter filter = builder.build();
+
+        for (long i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.accept(i * 7919));
+        }
+        int falsePositives = 0;
+        for (long i = 0; i < 10000; i++) {
+            if (filter.accept(i * 7919 + 1)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testNegativeKeyCache() {
+        NegativeKeyCache cache = new NegativeKeyCache(1000);
+        cache.add(ADDRESS.asLong(), 0);
+
+        Assert.assertTrue(cache.contains(ADDRESS.asLong(), 999));
+        Assert.assertFalse(cache.contains(ADDRESS.asLong(), 1000));
+        Assert.assertFalse(cache.contains(42, 0));
+        cache.clear();
+        Assert.assertFalse(cache.contains(ADDRESS.asLong(), 0));
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncWriterTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static WMBusMessage decodedMessage() {
+        WMBusMessage message = new WMBusMessage(testMessage, -60, new HashMap<String, byte[]>());
+        Assert.assertEquals(DecodingStatus.OK, message.tryDecodeDeep());
+        return message;
+    }
+
+    private static String encode(MessageEncoder encoder, WMBusMessage message, long timestamp) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        encoder.encode(message, timestamp, buffer);
+        return new String(buffer.array(), 0, buffer.position(), "US-ASCII");
+    }
+
+    private static int countLines(String s) {
+        int lines = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testScaledValues() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        AsciiEncoding.putScaled(buffer, 1234, -3);
+        buffer.put((byte) ' ');
+        AsciiEncoding.putScaled(buffer, -5, -3);
+        buffer.put((byte) ' ');
+        AsciiEncoding.putScaled(buffer, 12, 2);
+        buffer.put((byte) ' ');
+        AsciiEncoding.putLong(buffer, Long.MIN_VALUE);
+        Assert.assertEquals("1.234 -0.005 1200 -9223372036854775808",
+                new String(buffer.array(), 0, buffer.position(), "US-ASCII"));
+    }
+
+    @Test
+    public void testCsvEncoder() throws Exception {
+        WMBusMessage message = decodedMessage();
+        String csv = encode(new CsvEncoder(), message, 1000);
+
+        Assert.assertEquals(message.getVariableDataResponse().getDataRecords().size(), countLines(csv));
+        Assert.assertTrue(csv.startsWith("1000;LSE;58511882;44;"));
+        Assert.assertTrue(csv.contains(";0c;13;1.234;"));
+
+        WMBusMessage undecoded = new WMBusMessage(testMessage, null, new HashMap<String, byte[]>());
+        csv = encode(new CsvEncoder(), undecoded, 1000);
+        Assert.assertEquals(1, countLines(csv));
+        Assert.assertTrue(csv.contains(HexConverter.toShortHexString(testMessage).toLowerCase()));
+    }
+
+    @Test
+    public void testJsonLinesEncoder() throws Exception {
+        String json = encode(new JsonLinesEncoder(), decodedMessage(), 1000);
+
+        Assert.assertEquals(1, countLines(json));
+        Assert.assertTrue(json.startsWith("{\"timestamp\":1000,\"manufacturer\":\"LSE\",\"device_id\":\"58511882\""));
+        Assert.assertTrue(json.contains("\"rssi\":-60,\"access_number\":225,\"records\":[{"));
+        Assert.assertTrue(json.contains("\"dib\":\"0c\",\"vib\":\"13\""));
+        Assert.assertTrue(json.contains("\"value\":1.234,"));
+        Assert.assertTrue(json.endsWith("]}\n"));
+    }
+
+    @Test
+    public void testInfluxLineEncoder() throws Exception {
+        String lines = encode(new InfluxLineEncoder(), decodedMessage(), 1000);
+
+        Assert.assertTrue(lines.startsWith("mbus,manufacturer=LSE,device_id=58511882,device_type="));
+        Assert.assertTrue(lines.contains(",dib=0c,vib=13,description=VOLUME value=1.234,rssi=-60i 1000000000\n"));
+        // date records are skipped
+        Assert.assertFalse(lines.contains("dib=04,vib=6d"));
+    }
+
+    @Test
+    public void testWriteAndClose() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // small buffers so that buffers are swapped frequently
+        AsyncWriter writer = new AsyncWriter(Channels.newChannel(outputStream), new JsonLinesEncoder(), 2048, 8, 10);
+        WMBusMessage message = decodedMessage();
+
+        int written = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (writer.write(message, i)) {
+                written++;
+            }
+        }
+        writer.close();
+
+        Assert.assertEquals(1000, written + writer.getDroppedCount());
+        Assert.assertEquals(written, countLines(outputStream.toString("US-ASCII")));
+        Assert.assertFalse(writer.write(message, 0));
+    }
+
+    @Test
+    public void testWiredData() throws Exception {
+        VariableDataStructure vds = decodedMessage().getVariableDataResponse();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        new JsonLinesEncoder().encode(vds, 1000, buffer);
+        String json = new String(buffer.array(), 0, buffer.position(), "US-ASCII");
+
+        Assert.assertEquals(1, countLines(json));
+        Assert.assertTrue(json.startsWith("{\"timestamp\":1000,\"access_number\":225,\"records\":["));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AsyncWriter writer = new AsyncWriter(outputStream, new CsvEncoder());
+        Assert.assertTrue(writer.write(vds, 1000));
+        writer.close();
+        Assert.assertEquals(vds.getDataRecords().size(), countLines(outputStream.toString("US-ASCII")));
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AsyncWriter writer = new AsyncWriter(outputStream, new CsvEncoder());
+        Assert.assertTrue(writer.write(decodedMessage(), 1000));
+        writer.flush();
+        Assert.assertTrue(outputStream.size() > 0);
+        writer.close();
+    }
+
+    @Test
+    public void testMessageTooLarge() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AsyncWriter writer = new AsyncWriter(Channels.newChannel(outputStream), new JsonLinesEncoder(), 64, 2, 10);
+        Assert.assertFalse(writer.write(decodedMessage(), 1000));
+        Assert.assertEquals(1, writer.getDroppedCount());
+        writer.close();
+        Assert.assertEquals(0, outputStream.size());
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmuc.jmbus.DataRecord.DataValueType;
+import org.openmuc.jmbus.DataRecord.Description;
+
+public class BinaryEncoderTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        WMBusMessage message = new WMBusMessage(testMessage, -60, new HashMap<String, byte[]>());
+        Assert.assertEquals(DecodingStatus.OK, message.tryDecodeDeep());
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        BinaryEncoder encoder = new BinaryEncoder();
+        encoder.encode(message, 1408947900000L, buffer);
+        int size = buffer.position();
+        encoder.encode(message, 1408947960000L, buffer);
+        buffer.flip();
+
+        // much smaller than the text form
+        Assert.assertTrue(size < message.toString().length() / 4);
+
+        BinaryMessageReader reader = new BinaryMessageReader(buffer);
+        Assert.assertTrue(reader.nextMessage());
+        Assert.assertEquals(1408947900000L, reader.getTimestamp());
+        Assert.assertEquals(message.getSecondaryAddress().asLong(), reader.getAddress());
+        Assert.assertTrue(reader.hasRssi());
+        Assert.assertEquals(-60, reader.getRssi());
+        Assert.assertEquals(0xe1, reader.getAccessNumber());
+
+        List<DataRecord> dataRecords = message.getVariableDataResponse().getDataRecords();
+        for (DataRecord dataRecord : dataRecords) {
+            Assert.assertTrue(reader.nextRecord());
+            Assert.assertEquals(dataRecord.getDataValueType(), reader.getDataValueType());
+            Assert.assertEquals(dataRecord.getFunctionField(), reader.getFunctionField());
+            Assert.assertEquals(dataRecord.getDescription(), reader.getDescription());
+            Assert.assertEquals(dataRecord.getUnit(), reader.getUnit());
+            Assert.assertEquals(dataRecord.getMultiplierExponent(), reader.getMultiplierExponent());
+            Assert.assertEquals(dataRecord.getStorageNumber(), reader.getStorageNumber());
+            Assert.assertArrayEquals(dataRecord.getDib(), reader.getDib());
+            Assert.assertArrayEquals(dataRecord.getVib(), reader.getVib());
+            if (dataRecord.getScaledDataValue() != null) {
+                Assert.assertEquals(dataRecord.getScaledDataValue(), reader.getScaledValue(), 1e-9);
+            }
+        }
+        Assert.assertFalse(reader.nextRecord());
+
+        // the records of the second message are skipped
+        Assert.assertTrue(reader.nextMessage());
+        Assert.assertEquals(1408947960000L, reader.getTimestamp());
+        Assert.assertFalse(reader.nextMessage());
+    }
+
+    @Test
+    public void testUndecodedMessage() throws Exception {
+        WMBusMessage message = new WMBusMessage(testMessage, null, new HashMap<String, byte[]>());
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        new BinaryEncoder().encode(message, 0, buffer);
+        buffer.flip();
+
+        BinaryMessageReader reader = new BinaryMessageReader(buffer);
+        Assert.assertTrue(reader.nextMessage());
+        Assert.assertFalse(reader.hasRssi());
+        Assert.assertFalse(reader.hasRecords());
+        Assert.assertEquals(0, reader.getAddress());
+        Assert.assertArrayEquals(testMessage, reader.getRawMessage());
+        Assert.assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testVarints() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        BinaryEncoder.putVarint(buffer, 127);
+        Assert.assertEquals(1, buffer.position());
+        BinaryEncoder.putVarint(buffer, 128);
+        Assert.assertEquals(3, buffer.position());
+        BinaryEncoder.putZigzag(buffer, -1);
+        Assert.assertEquals(4, buffer.position());
+        Assert.assertEquals(1, buffer.get(3));
+    }
+
+    @Test
+    public void testDictionaryIsComplete() {
+        Assert.assertEquals(Description.values().length, BinaryEncoder.DESCRIPTIONS.length);
+        Assert.assertEquals(DataValueType.values().length, BinaryEncoder.VALUE_TYPES.length);
+    }
+
+    @Test(expected = DecodingException.class)
+    public void testUnsupportedVersion() throws Exception {
+        new BinaryMessageReader(ByteBuffer.wrap(new byte[] { 2, 0 })).nextMessage();
+    }
+
+}
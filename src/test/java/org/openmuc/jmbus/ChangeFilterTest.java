@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChangeFilterTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static class TestListener implements ChangeListener {
+
+        final List<List<DataRecord>> changes = new ArrayList<List<DataRecord>>();
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            Assert.fail("message should have been decodable");
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException e) {
+        }
+
+        @Override
+        public void changedRecords(WMBusMessage message, List<DataRecord> changedRecords) {
+            changes.add(changedRecords);
+        }
+    }
+
+    @Test
+    public void testChangedRecordsOnly() {
+        TestListener listener = new TestListener();
+        ChangeFilter filter = new ChangeFilter(listener, 60000);
+
+        filter.newMessage(newMessage(testMessage), 0);
+        Assert.assertEquals(1, listener.changes.size());
+        Assert.assertEquals(6, listener.changes.get(0).size());
+
+        filter.newMessage(newMessage(testMessage), 16000);
+        Assert.assertEquals(1, listener.changes.size());
+
+        byte[] changedMessage = testMessage.clone();
+        changedMessage[23] = 0x35;
+        filter.newMessage(newMessage(changedMessage), 32000);
+        Assert.assertEquals(2, listener.changes.size());
+        Assert.assertEquals(1, listener.changes.get(1).size());
+        Assert.assertEquals(DataRecord.Description.VOLUME, listener.changes.get(1).get(0).getDescription());
+
+        // heartbeat
+        filter.newMessage(newMessage(changedMessage), 48000);
+        Assert.assertEquals(2, listener.changes.size());
+        filter.newMessage(newMessage(changedMessage), 92000);
+        Assert.assertEquals(3, listener.changes.size());
+        Assert.assertEquals(6, listener.changes.get(2).size());
+
+        // status change
+        changedMessage[12] = 0x04;
+        filter.newMessage(newMessage(changedMessage), 108000);
+        Assert.assertEquals(4, listener.changes.size());
+        Assert.assertEquals(6, listener.changes.get(3).size());
+
+        Assert.assertEquals(1, filter.getMeterCount());
+    }
+
+    private static WMBusMessage newMessage(byte[] bytes) {
+        return new WMBusMessage(bytes, -70, new HashMap<String, byte[]>());
+    }
+
+}
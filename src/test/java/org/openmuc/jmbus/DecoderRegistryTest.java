@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Calendar;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecoderRegistryTest {
+
+    private static byte[] techemMessage(int ciField) {
+        byte[] message = new byte[51];
+        byte[] header = new byte[] { 0x32, 0x44, (byte) 0x68, (byte) 0x50, 0x78, 0x56, 0x34, 0x12, 0x69, (byte) 0x80,
+                (byte) ciField, 0x00, (byte) 0xbf, 0x20, (byte) 0xd2, 0x04, (byte) 0xf0, 0x06, 0x64, 0x00, 0x66, 0x08,
+                (byte) 0xb7, 0x07 };
+        System.arraycopy(header, 0, message, 0, header.length);
+        for (int i = header.length; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    @Test
+    public void testTechemHKV() throws DecodingException {
+        WMBusMessage message = new WMBusMessage(techemMessage(0xa0), null, new HashMap<String, byte[]>());
+        message.decodeDeep();
+
+        Assert.assertTrue(message.isManufacturerSpecific());
+        Assert.assertNull(message.getVariableDataResponse());
+        TechemHKVData data = (TechemHKVData) message.getManufacturerSpecificData();
+        Assert.assertEquals(0xa0, data.getCiField());
+        Assert.assertEquals(2016, data.getLastDate().get(Calendar.YEAR));
+        Assert.assertEquals(Calendar.MAY, data.getLastDate().get(Calendar.MONTH));
+        Assert.assertEquals(31, data.getLastDate().get(Calendar.DAY_OF_MONTH));
+        Assert.assertEquals(1234, data.getLastVal());
+        Assert.assertEquals(15, data.getCurDate().get(Calendar.DAY_OF_MONTH));
+        Assert.assertEquals(100, data.getCurVal());
+        Assert.assertEquals(21.5f, data.getT1(), 0.001f);
+        Assert.assertEquals(19.75f, data.getT2(), 0.001f);
+
+        TechemHKVMessage hkvMessage = new TechemHKVMessage(message);
+        Assert.assertSame(data, hkvMessage.getData());
+    }
+
+    @Test
+    public void testUnregisteredCiField() {
+        WMBusMessage message = new WMBusMessage(techemMessage(0x80), null, new HashMap<String, byte[]>());
+        try {
+            message.decodeDeep();
+            Assert.fail("CI field 0x80 is not registered");
+        } catch (DecodingException e) {
+        }
+        Assert.assertFalse(message.isManufacturerSpecific());
+    }
+
+    @Test
+    public void testLookupPrecedence() {
+        DecoderRegistry registry = new DecoderRegistry();
+        ManufacturerSpecificDecoder anyDecoder = new TechemHKVDecoder();
+        ManufacturerSpecificDecoder techemDecoder = new TechemHKVDecoder();
+        ManufacturerSpecificDecoder heatDecoder = new TechemHKVDecoder();
+        registry.register(0xa0, null, null, anyDecoder);
+        registry.register(0xa0, "TCH", null, techemDecoder);
+        registry.register(0xa0, "TCH", DeviceType.HEAT_METER, heatDecoder);
+
+        SecondaryAddress techem = SecondaryAddress.getFromWMBusLinkLayerHeader(techemMessage(0xa0), 2);
+        Assert.assertSame(techemDecoder, registry.lookup(0xa0, techem));
+        Assert.assertNull(registry.lookup(0xa1, techem));
+
+        byte[] otherMessage = techemMessage(0xa0);
+        otherMessage[2] = 0x65;
+        otherMessage[3] = 0x32;
+        SecondaryAddress other = SecondaryAddress.getFromWMBusLinkLayerHeader(otherMessage, 2);
+        Assert.assertSame(anyDecoder, registry.lookup(0xa0, other));
+
+        registry.unregister(0xa0);
+        Assert.assertNull(registry.lookup(0xa0, techem));
+    }
+
+}
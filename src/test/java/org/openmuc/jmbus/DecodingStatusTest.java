@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecodingStatusTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static WMBusMessage newMessage(byte[] bytes) {
+        return new WMBusMessage(bytes, null, new HashMap<String, byte[]>());
+    }
+
+    @Test
+    public void testOk() {
+        WMBusMessage message = newMessage(testMessage);
+        Assert.assertEquals(DecodingStatus.OK, message.tryDecodeDeep());
+        Assert.assertEquals(6, message.getVariableDataResponse().getDataRecords().size());
+    }
+
+    @Test
+    public void testNoKey() {
+        byte[] encryptedMessage = testMessage.clone();
+        encryptedMessage[13] = 0x10;
+        encryptedMessage[14] = 0x05;
+
+        WMBusMessage message = newMessage(encryptedMessage);
+        Assert.assertEquals(DecodingStatus.NO_KEY, message.tryDecodeDeep());
+
+        try {
+            newMessage(encryptedMessage).decodeDeep();
+            Assert.fail("message should not be decodable without key");
+        } catch (DecodingException e) {
+            Assert.assertEquals(DecodingStatus.NO_KEY, e.getStatus());
+            Assert.assertTrue(e.getMessage().contains("no key"));
+            Assert.assertNotSame(DecodingStatus.NO_KEY.getException(), e);
+        }
+    }
+
+    @Test
+    public void testUnsupportedCiField() {
+        byte[] unsupportedMessage = testMessage.clone();
+        unsupportedMessage[10] = 0x55;
+        Assert.assertEquals(DecodingStatus.UNSUPPORTED_CI_FIELD, newMessage(unsupportedMessage).tryDecodeDeep());
+    }
+
+    @Test
+    public void testInvalidLength() {
+        byte[] truncatedMessage = new byte[20];
+        System.arraycopy(testMessage, 0, truncatedMessage, 0, truncatedMessage.length);
+        Assert.assertEquals(DecodingStatus.INVALID_LENGTH, newMessage(truncatedMessage).tryDecodeDeep());
+    }
+
+    @Test
+    public void testSharedExceptionHasNoStackTrace() {
+        Assert.assertEquals(0, DecodingStatus.NO_KEY.getException().getStackTrace().length);
+    }
+
+}
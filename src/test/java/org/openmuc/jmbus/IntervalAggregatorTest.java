@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IntervalAggregatorTest {
+
+    private static final long HOUR = 3600000;
+
+    private static final SecondaryAddress address = SecondaryAddress
+            .getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString("6532821851582c06"), 0);
+
+    private static class TestListener implements IntervalListener {
+
+        final List<String> intervals = new ArrayList<String>();
+        final List<Double> deltas = new ArrayList<Double>();
+
+        @Override
+        public void intervalClosed(ConsumptionInterval interval) {
+            intervals.add(interval.toString());
+            deltas.add(interval.getDelta());
+        }
+    }
+
+    // volume in l as 8 digit BCD
+    private static DataRecord volumeRecord(int dif, long value) throws DecodingException {
+        byte[] bytes = new byte[6];
+        bytes[0] = (byte) dif;
+        bytes[1] = 0x13;
+        for (int i = 0; i < 4; i++) {
+            long twoDigits = value % 100;
+            value /= 100;
+            bytes[2 + i] = (byte) (((twoDigits / 10) << 4) | (twoDigits % 10));
+        }
+        DataRecord dataRecord = new DataRecord();
+        dataRecord.decode(bytes, 0, bytes.length);
+        return dataRecord;
+    }
+
+    @Test
+    public void testIntervals() throws DecodingException {
+        TestListener listener = new TestListener();
+        IntervalAggregator aggregator = new IntervalAggregator(HOUR, 24, listener);
+
+        Assert.assertTrue(aggregator.add(address, volumeRecord(0x0c, 1000), 0));
+        Assert.assertTrue(aggregator.add(address, volumeRecord(0x0c, 1010), HOUR / 2));
+        // historic value with storage number 1
+        Assert.assertFalse(aggregator.add(address, volumeRecord(0x4c, 500), HOUR / 2));
+        Assert.assertEquals(0, listener.intervals.size());
+
+        Assert.assertTrue(aggregator.add(address, volumeRecord(0x0c, 1030), HOUR + 60000));
+        Assert.assertEquals(1, listener.intervals.size());
+        Assert.assertEquals(0.010, listener.deltas.get(0), 1e-9);
+
+        Assert.assertEquals(1, aggregator.closeIntervals(2 * HOUR + 1));
+        Assert.assertEquals(2, listener.intervals.size());
+        Assert.assertEquals(0.020, listener.deltas.get(1), 1e-9);
+
+        TestListener retained = new TestListener();
+        Assert.assertEquals(2, aggregator.getClosedIntervals(address, new byte[] { 0x0c }, new byte[] { 0x13 },
+                retained));
+        Assert.assertEquals(listener.intervals, retained.intervals);
+    }
+
+    @Test
+    public void testRollover() throws DecodingException {
+        TestListener listener = new TestListener();
+        IntervalAggregator aggregator = new IntervalAggregator(HOUR, 0, listener);
+
+        aggregator.add(address, volumeRecord(0x0c, 99999990), 0);
+        aggregator.add(address, volumeRecord(0x0c, 5), 1000);
+        aggregator.closeIntervals(HOUR);
+
+        Assert.assertEquals(1, listener.deltas.size());
+        Assert.assertEquals(0.015, listener.deltas.get(0), 1e-6);
+    }
+
+    @Test
+    public void testRingBufferKeepsNewestIntervals() throws DecodingException {
+        IntervalAggregator aggregator = new IntervalAggregator(HOUR, 3, null);
+        for (int i = 0; i < 10; i++) {
+            aggregator.add(address, volumeRecord(0x0c, i * 10), i * HOUR);
+        }
+        aggregator.closeIntervals(10 * HOUR);
+
+        final List<Long> starts = new ArrayList<Long>();
+        aggregator.getClosedIntervals(address, new byte[] { 0x0c }, new byte[] { 0x13 }, new IntervalListener() {
+            @Override
+            public void intervalClosed(ConsumptionInterval interval) {
+                starts.add(interval.getStart());
+            }
+        });
+        Assert.assertEquals(3, starts.size());
+        Assert.assertEquals(7 * HOUR, starts.get(0).longValue());
+        Assert.assertEquals(9 * HOUR, starts.get(2).longValue());
+        Assert.assertEquals(1, aggregator.getSeriesCount());
+    }
+
+}
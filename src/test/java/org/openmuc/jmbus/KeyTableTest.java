@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KeyTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] ADDRESS = HexConverter.fromShortHexString("6532821851582c06");
+    private static final byte[] KEY = HexConverter.fromShortHexString("000102030405060708090a0b0c0d0e0f");
+
+    @Test
+    public void testTextFormat() throws IOException {
+        String text = "\ufeff# address;key\r\n" + "6532821851582c06;000102030405060708090A0B0C0D0E0F\r\n" + "\r\n"
+                + "  6532821851582c07,ffffffffffffffffffffffffffffffff  \n"
+                + "6532821851582c07 0f0e0d0c0b0a09080706050403020100\n"
+                + "1234567812345678\t00000000000000000000000000000000";
+        KeyTable table = KeyTable.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(3, table.size());
+        SecondaryAddress address = SecondaryAddress.getFromWMBusLinkLayerHeader(ADDRESS, 0);
+        Assert.assertArrayEquals(KEY, table.getKey(address));
+        // the last key of an address wins
+        Assert.assertArrayEquals(HexConverter.fromShortHexString("0f0e0d0c0b0a09080706050403020100"),
+                table.getKey(SecondaryAddress.getFromWMBusLinkLayerHeader(
+                        HexConverter.fromShortHexString("6532821851582c07"), 0)));
+        Assert.assertNull(table.getKey(address.asLong() + 1000));
+    }
+
+    @Test
+    public void testInvalidLine() {
+        String text = "6532821851582c06;000102030405060708090a0b0c0d0e0f\n6532821851582c07;0001020304\n";
+        try {
+            KeyTable.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+
+    @Test
+    public void testBinaryFormat() throws IOException {
+        KeyTable.Builder builder = new KeyTable.Builder();
+        byte[] key = new byte[16];
+        for (int i = 0; i < 100000; i++) {
+            key[0] = (byte) i;
+            key[15] = (byte) (i >> 8);
+            builder.put(i * 31L + 7, key, 0);
+        }
+        KeyTable table = builder.build();
+
+        File file = folder.newFile("keys.bin");
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            table.write(os);
+        } finally {
+            os.close();
+        }
+
+        KeyTable loaded = KeyTable.load(file.toPath());
+        Assert.assertEquals(100000, loaded.size());
+        for (int i = 0; i < 100000; i += 997) {
+            byte[] loadedKey = loaded.getKey(i * 31L + 7);
+            Assert.assertEquals((byte) i, loadedKey[0]);
+            Assert.assertEquals((byte) (i >> 8), loadedKey[15]);
+        }
+
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        loaded.write(truncated);
+        try {
+            KeyTable.parse(ByteBuffer.wrap(truncated.toByteArray(), 0, truncated.size() - 1));
+            Assert.fail();
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testDecryptWithKeyTable() throws Exception {
+        byte[] plain = new byte[] { 0x2f, 0x2f, 0x04, 0x6d, 0x19, 0x06, (byte) 0xd9, 0x18, 0x0c, 0x13, 0x34, 0x12,
+                0x00, 0x00, 0x2f, 0x2f };
+        byte[] iv = new byte[16];
+        System.arraycopy(ADDRESS, 0, iv, 0, 8);
+        for (int i = 8; i < 16; i++) {
+            iv[i] = (byte) 0xe1;
+        }
+        AesCrypt crypt = new AesCrypt(KEY, iv);
+        crypt.encrypt(plain, plain.length);
+
+        // short header with access number 0xe1, one encrypted block and encryption mode 5
+        byte[] message = new byte[31];
+        message[0] = 30;
+        message[1] = 0x44;
+        System.arraycopy(ADDRESS, 0, message, 2, 8);
+        message[10] = 0x7a;
+        message[11] = (byte) 0xe1;
+        message[13] = 0x10;
+        message[14] = 0x05;
+        System.arraycopy(crypt.getResult(), 0, message, 15, 16);
+
+        WMBusMessage withoutKey = new WMBusMessage(message, 100, new HashMap<String, byte[]>());
+        try {
+            withoutKey.decodeDeep();
+            Assert.fail();
+        } catch (DecodingException e) {
+        }
+
+        WMBusMessage withKey = new WMBusMessage(message, 100, new HashMap<String, byte[]>());
+        withKey.keyTable = new KeyTable.Builder().put(SecondaryAddress.getFromWMBusLinkLayerHeader(ADDRESS, 0), KEY)
+                .build();
+        withKey.decodeDeep();
+        Assert.assertEquals(2, withKey.getVariableDataResponse().getDataRecords().size());
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmuc.jmbus.DataRecord.Description;
+import org.openmuc.jmbus.LoadProfileExtractor.Series;
+
+public class LoadProfileExtractorTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static List<DataRecord> decode(byte[] bytes) {
+        WMBusMessage message = new WMBusMessage(bytes, -60, new HashMap<String, byte[]>());
+        Assert.assertEquals(DecodingStatus.OK, message.tryDecodeDeep());
+        return message.getVariableDataResponse().getDataRecords();
+    }
+
+    @Test
+    public void testExtract() {
+        List<DataRecord> dataRecords = decode(testMessage);
+        LoadProfileExtractor extractor = new LoadProfileExtractor();
+
+        extractor.extract(dataRecords);
+        Series volume = extractor.getSeries(Description.VOLUME, 0, 0);
+        Assert.assertNotNull(volume);
+        Assert.assertEquals(2, volume.getLength());
+        Assert.assertEquals(-3, volume.getMultiplierExponent());
+        Assert.assertEquals(1234, volume.getMantissas()[0]);
+        Assert.assertEquals(1.234, volume.getValues()[0], 1e-9);
+        Assert.assertTrue(volume.isPresent(1));
+        Assert.assertEquals(0, volume.getValues()[1], 1e-9);
+        Assert.assertFalse(volume.isPresent(2));
+
+        // the date time of storage number 0 and the date of storage number 1, not the date of the error
+        Assert.assertEquals(((Date) dataRecords.get(0).getDataValue()).getTime(), volume.getTimestamps()[0]);
+        Assert.assertEquals(((Date) dataRecords.get(2).getDataValue()).getTime(), volume.getTimestamps()[1]);
+
+        // the series and its arrays are reused
+        double[] values = volume.getValues();
+        int seriesCount = extractor.extract(dataRecords);
+        Assert.assertSame(volume, extractor.getSeries(Description.VOLUME, 0, 0));
+        Assert.assertSame(values, volume.getValues());
+        Assert.assertEquals(seriesCount, extractor.getSeriesCount());
+
+        // a telegram without historic values
+        extractor.extract(dataRecords.subList(0, 2));
+        Assert.assertEquals(1, extractor.getSeriesCount());
+        Assert.assertEquals(1, extractor.getSeries(0).getLength());
+        Assert.assertFalse(extractor.getSeries(0).isPresent(1));
+    }
+
+    @Test
+    public void testMaxStorageNumber() {
+        LoadProfileExtractor extractor = new LoadProfileExtractor(0);
+        extractor.extract(decode(testMessage));
+        Assert.assertEquals(1, extractor.getSeries(Description.VOLUME, 0, 0).getLength());
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmuc.jmbus.MBusFrameReceiver.Status;
+
+public class MBusFrameReceiverTest {
+
+    private static Status feed(MBusFrameReceiver receiver, byte[] bytes) {
+        Status status = Status.INCOMPLETE;
+        for (int i = 0; i < bytes.length && status == Status.INCOMPLETE; i++) {
+            status = receiver.feed(bytes[i]);
+        }
+        return status;
+    }
+
+    @Test
+    public void testNoiseBeforeFrameIsSkipped() {
+        MBusFrameReceiver receiver = new MBusFrameReceiver();
+        byte[] message = MessagesTest.testMsg4;
+        byte[] bytes = new byte[message.length + 2];
+        bytes[0] = 0x00;
+        bytes[1] = (byte) 0xff;
+        System.arraycopy(message, 0, bytes, 2, message.length);
+
+        Assert.assertEquals(Status.COMPLETE, feed(receiver, bytes));
+        Assert.assertEquals(2, receiver.getSkippedCount());
+        Assert.assertArrayEquals(message, Arrays.copyOf(receiver.getBuffer(), receiver.getLength()));
+        Assert.assertEquals(0, receiver.getBytesExpected());
+
+        receiver.reset();
+        Assert.assertEquals(Status.COMPLETE, feed(receiver, new byte[] { (byte) 0xe5 }));
+    }
+
+    @Test
+    public void testBytesExpected() {
+        MBusFrameReceiver receiver = new MBusFrameReceiver();
+        byte[] message = MessagesTest.testMsg4;
+        feed(receiver, Arrays.copyOf(message, 4));
+        // the remaining bytes of the frame, none of a following frame
+        Assert.assertEquals(message.length - 4, receiver.getBytesExpected());
+    }
+
+    @Test
+    public void testErrorsAreDetectedImmediately() {
+        byte[] message = MessagesTest.testMsg4;
+
+        assertError(new byte[] { 0x68, 0x02 }, "length field");
+        assertError(new byte[] { 0x68, 0x59, 0x58 }, "Length fields");
+        assertError(new byte[] { 0x68, 0x59, 0x59, 0x67 }, "second start byte");
+
+        byte[] badChecksum = message.clone();
+        badChecksum[message.length - 2]++;
+        assertError(badChecksum, "checksum");
+
+        byte[] badStop = message.clone();
+        badStop[message.length - 1] = 0x17;
+        assertError(badStop, "stop byte");
+
+        // the checksum error is reported before the stop byte is received
+        MBusFrameReceiver receiver = new MBusFrameReceiver();
+        Assert.assertEquals(Status.ERROR, feed(receiver, Arrays.copyOf(badChecksum, message.length - 1)));
+    }
+
+    private static void assertError(byte[] bytes, String error) {
+        MBusFrameReceiver receiver = new MBusFrameReceiver();
+        Assert.assertEquals(Status.ERROR, feed(receiver, bytes));
+        Assert.assertTrue(receiver.getError(), receiver.getError().contains(error));
+    }
+
+}
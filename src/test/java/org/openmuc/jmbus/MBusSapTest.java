@@ -20,12 +20,436 @@
  */
 package org.openmuc.jmbus;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 public class MBusSapTest {
+
+    /**
+     * Answers every request with the next scripted response. A null response means that the meter stays silent.
+     */
+    private static class ScriptedBus implements Transceiver {
+
+        final LinkedList<byte[]> responses = new LinkedList<byte[]>();
+        final List<byte[]> requests = new ArrayList<byte[]>();
+        // true to send every request back in front of the response like some level converters do
+        boolean echo = false;
+        private ByteArrayInputStream response = new ByteArrayInputStream(new byte[0]);
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public DataOutputStream getOutputStream() {
+            return new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    requests.add(Arrays.copyOfRange(b, off, off + len));
+                    byte[] next = responses.poll();
+                    if (next == null) {
+                        next = new byte[0];
+                    }
+                    if (echo) {
+                        byte[] withEcho = Arrays.copyOf(b, len + next.length);
+                        System.arraycopy(next, 0, withEcho, len, next.length);
+                        next = withEcho;
+                    }
+                    response = new ByteArrayInputStream(next);
+                }
+            });
+        }
+
+        @Override
+        public DataInputStream getInputStream() {
+            return new DataInputStream(new InputStream() {
+                @Override
+                public int read() {
+                    return response.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return response.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return response.available();
+                }
+            });
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+
+    private static byte[] garbled(byte[] message) {
+        byte[] copy = message.clone();
+        copy[copy.length - 2]++;
+        return copy;
+    }
+
+    @Test
+    public void testGarbledResponseIsRepeatedWithSameFcb() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.open();
+
+        bus.responses.add(garbled(MessagesTest.testMsg4));
+        bus.responses.add(MessagesTest.testMsg4);
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+
+        Assert.assertEquals(3, bus.requests.size());
+        Assert.assertEquals(0x7b, bus.requests.get(0)[1]);
+        Assert.assertEquals(0x7b, bus.requests.get(1)[1]);
+        Assert.assertEquals(0x5b, bus.requests.get(2)[1]);
+    }
+
+    @Test
+    public void testNoiseBeforeResponseIsSkipped() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setTimeout(50);
+        sap.open();
+
+        byte[] response = new byte[MessagesTest.testMsg4.length + 1];
+        System.arraycopy(MessagesTest.testMsg4, 0, response, 1, MessagesTest.testMsg4.length);
+        bus.responses.add(response);
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+
+        // noise without a frame is a garbled response, not a timeout
+        bus.responses.add(new byte[] { 0x00 });
+        bus.responses.add(new byte[] { 0x00 });
+        bus.responses.add(new byte[] { 0x00 });
+        try {
+            sap.read(0);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            Assert.fail();
+        } catch (IOException e) {
+        }
+        Assert.assertEquals(4, bus.requests.size());
+    }
+
+    @Test
+    public void testEchoCancellation() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        bus.echo = true;
+        MBusSap sap = new MBusSap(bus);
+        sap.setTimeout(50);
+        sap.open();
+
+        SecondaryAddress address = SecondaryAddress.getFromHexString("7856341293153303");
+
+        // the echo of a long frame is taken for the response
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        try {
+            sap.selectComponent(address);
+            Assert.fail();
+        } catch (IOException e) {
+        }
+
+        sap.setEchoCancellation(MBusSap.EchoCancellation.ON);
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+
+        sap.setEchoCancellation(MBusSap.EchoCancellation.AUTO);
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        sap.selectComponent(address);
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(0xfd).getDataRecords().size());
+
+        bus.echo = false;
+        sap.setEchoCancellation(MBusSap.EchoCancellation.AUTO);
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(0).getDataRecords().size());
+
+        sap.setEchoCancellation(MBusSap.EchoCancellation.ON);
+        sap.setRetryPolicy(MBusSap.Operation.READ, RetryPolicy.NONE);
+        bus.responses.add(MessagesTest.testMsg4);
+        try {
+            sap.read(0);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            Assert.fail();
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testTimeoutRetry() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setTimeout(50);
+        sap.open();
+
+        bus.responses.add(null);
+        try {
+            sap.read(1);
+            Assert.fail();
+        } catch (TimeoutException e) {
+        }
+
+        sap.setRetryPolicy(MBusSap.Operation.READ, new RetryPolicy(0, 1, 10, 10, 0.5));
+        bus.responses.add(null);
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(1);
+
+        // the FCB of a failed request is used again
+        Assert.assertEquals(3, bus.requests.size());
+        for (byte[] request : bus.requests) {
+            Assert.assertEquals(0x7b, request[1]);
+        }
+    }
+
+    @Test
+    public void testSecondaryReadSkipsRedundantSelection() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.open();
+        SecondaryAddress address = SecondaryAddress.getFromLongHeader(
+                HexConverter.fromShortHexString("8213020865329906"), 0);
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(address);
+        sap.read(address);
+
+        Assert.assertEquals(3, bus.requests.size());
+        Assert.assertEquals(0x52, bus.requests.get(0)[6]);
+        Assert.assertEquals(0x7b, bus.requests.get(1)[1]);
+        Assert.assertEquals(0x5b, bus.requests.get(2)[1]);
+    }
+
+    @Test
+    public void testSelectionIsRenewed() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setRetryPolicy(MBusSap.Operation.READ, RetryPolicy.NONE);
+        sap.open();
+        SecondaryAddress address = SecondaryAddress.getFromLongHeader(
+                HexConverter.fromShortHexString("8213020865329906"), 0);
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(address);
+
+        // a scan selects other meters
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        Assert.assertTrue(sap.scanSelection(SecondaryAddress.getFromHexString("ffffffffffffffff")));
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(address);
+        Assert.assertEquals(5, bus.requests.size());
+        Assert.assertEquals(0x52, bus.requests.get(3)[6]);
+
+        // several meters answer because another master selected a further meter
+        bus.responses.add(garbled(MessagesTest.testMsg4));
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        Assert.assertEquals(9, sap.read(address).getDataRecords().size());
+        Assert.assertEquals(8, bus.requests.size());
+        Assert.assertEquals(0x52, bus.requests.get(6)[6]);
+    }
+
+    @Test
+    public void testResponseOfOtherMeterIsRejected() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.open();
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        try {
+            sap.read(SecondaryAddress.getFromLongHeader(HexConverter.fromShortHexString("8313020865329906"), 0));
+            Assert.fail();
+        } catch (IOException e) {
+        }
+
+        // wildcards match any digit
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(SecondaryAddress.getFromLongHeader(HexConverter.fromShortHexString("ff13020865329906"), 0));
+    }
+
+    @Test
+    public void testPipelinedSelection() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setPipelinedSelection(true);
+        sap.open();
+        SecondaryAddress address = SecondaryAddress.getFromLongHeader(
+                HexConverter.fromShortHexString("8213020865329906"), 0);
+
+        byte[] responses = new byte[MessagesTest.testMsg4.length + 1];
+        responses[0] = (byte) 0xe5;
+        System.arraycopy(MessagesTest.testMsg4, 0, responses, 1, MessagesTest.testMsg4.length);
+        bus.responses.add(responses);
+
+        Assert.assertEquals(9, sap.read(address).getDataRecords().size());
+        // selection and REQ_UD2 in a single write
+        Assert.assertEquals(1, bus.requests.size());
+        Assert.assertEquals(8 + 9 + 5, bus.requests.get(0).length);
+    }
+
+    @Test
+    public void testMultiFrameReadout() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.open();
+
+        bus.responses.addAll(MessagesTest.test_ABB_A41_messages);
+        List<VariableDataStructure> frames = sap.readAll(9);
+
+        Assert.assertEquals(MessagesTest.test_ABB_A41_messages.size(), frames.size());
+        Assert.assertFalse(frames.get(frames.size() - 1).moreRecordsFollow());
+    }
+
+    /**
+     * Returns testMsg4 with only its first two records (volume and on time).
+     */
+    private static byte[] selectedRecordsResponse() {
+        byte[] records = new byte[] { 0x0c, 0x13, 0x01, 0x01, 0x00, 0x00, 0x0b, 0x22, 0x52, 0x09, 0x02, 0x2f, 0x2f };
+        byte[] frame = new byte[19 + records.length + 2];
+        System.arraycopy(MessagesTest.testMsg4, 0, frame, 0, 19);
+        System.arraycopy(records, 0, frame, 19, records.length);
+        frame[1] = frame[2] = (byte) (frame.length - 6);
+        int checksum = 0;
+        for (int i = 4; i < frame.length - 2; i++) {
+            checksum += frame[i];
+        }
+        frame[frame.length - 2] = (byte) checksum;
+        frame[frame.length - 1] = 0x16;
+        return frame;
+    }
+
+    @Test
+    public void testReadoutProfile() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.open();
+
+        MBusMessage completeReadout = new MBusMessage(MessagesTest.testMsg4, MessagesTest.testMsg4.length);
+        completeReadout.getVariableDataResponse().decode();
+        ReadoutProfile profile = new ReadoutProfile("billing",
+                completeReadout.getVariableDataResponse().getDataRecords().subList(0, 2));
+        sap.setReadoutProfile(0, profile);
+        Assert.assertEquals(ReadoutProfile.State.PENDING, sap.getReadoutProfileState(0));
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(selectedRecordsResponse());
+        Assert.assertEquals(2, sap.read(0).getDataRecords().size());
+        Assert.assertEquals(ReadoutProfile.State.APPLIED, sap.getReadoutProfileState(0));
+        // SND_UD with CI 0x51 and the data field of the DIFs set to "selection for readout"
+        Assert.assertArrayEquals(new byte[] { 0x53, 0x00, 0x51, 0x08, 0x13, 0x08, 0x22 },
+                Arrays.copyOfRange(bus.requests.get(0), 4, 11));
+
+        bus.responses.add(selectedRecordsResponse());
+        sap.read(0);
+        Assert.assertEquals(3, bus.requests.size());
+
+        // the meter returns all records again, e.g. after a power failure
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(0);
+        Assert.assertEquals(ReadoutProfile.State.PENDING, sap.getReadoutProfileState(0));
+
+        // the profile is sent again but ignored
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(0);
+        Assert.assertEquals(ReadoutProfile.State.IGNORED, sap.getReadoutProfileState(0));
+        Assert.assertEquals(6, bus.requests.size());
+
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(0);
+        Assert.assertEquals(7, bus.requests.size());
+
+        // a link reset makes the meter forget the selection
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        sap.linkReset(0);
+        Assert.assertEquals(ReadoutProfile.State.PENDING, sap.getReadoutProfileState(0));
+    }
+
+    @Test
+    public void testReadoutProfileOfMeterThatLostSelection() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setTimeout(50);
+        sap.open();
+        SecondaryAddress address = SecondaryAddress.getFromLongHeader(
+                HexConverter.fromShortHexString("8213020865329906"), 0);
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(MessagesTest.testMsg4);
+        sap.read(address);
+
+        MBusMessage completeReadout = new MBusMessage(MessagesTest.testMsg4, MessagesTest.testMsg4.length);
+        completeReadout.getVariableDataResponse().decode();
+        sap.setReadoutProfile(address, new ReadoutProfile("billing",
+                completeReadout.getVariableDataResponse().getDataRecords().subList(0, 2)));
+
+        // the meter does not answer the profile because it is no longer selected
+        bus.responses.add(null);
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        bus.responses.add(selectedRecordsResponse());
+        Assert.assertEquals(2, sap.read(address).getDataRecords().size());
+        Assert.assertEquals(ReadoutProfile.State.APPLIED, sap.getReadoutProfileState(address));
+        Assert.assertEquals(6, bus.requests.size());
+        Assert.assertEquals(0x51, bus.requests.get(2)[6]);
+        Assert.assertEquals(0x52, bus.requests.get(3)[6]);
+        Assert.assertEquals(0x51, bus.requests.get(4)[6]);
+    }
+
+    @Test
+    public void testScanDistinguishesCollisionFromSilence() throws Exception {
+        ScriptedBus bus = new ScriptedBus();
+        MBusSap sap = new MBusSap(bus);
+        sap.setTimeout(50);
+        sap.open();
+        SecondaryAddress wildcard = SecondaryAddress.getFromLongHeader(
+                HexConverter.fromShortHexString("ffffffffffffffff"), 0);
+
+        bus.responses.add(new byte[] { (byte) 0xe5 });
+        Assert.assertTrue(sap.scanSelection(wildcard));
+        // two overlapping responses
+        bus.responses.add(new byte[] { (byte) 0xf5, 0x21 });
+        Assert.assertTrue(sap.scanSelection(wildcard));
+        bus.responses.add(null);
+        Assert.assertFalse(sap.scanSelection(wildcard));
+
+        // a collision is never repeated
+        Assert.assertEquals(3, bus.requests.size());
+    }
     public void testResponseParser() {
 
     }
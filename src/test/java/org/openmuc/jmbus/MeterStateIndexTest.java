@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MeterStateIndexTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    // device type in the lowest byte
+    private static long address(int id, int deviceType) {
+        return (0x3265L << 48) | ((long) id << 16) | deviceType;
+    }
+
+    @Test
+    public void testUpdateFromMessage() {
+        MeterStateIndex index = new MeterStateIndex(100);
+        WMBusMessage message = new WMBusMessage(testMessage, -60, new HashMap<String, byte[]>());
+        Assert.assertEquals(DecodingStatus.OK, message.tryDecodeDeep());
+        Assert.assertTrue(index.update(message, 1000));
+
+        long address = message.getSecondaryAddress().asLong();
+        Assert.assertEquals(1, index.size());
+        Assert.assertEquals(1000, index.getLastSeen(address));
+        Assert.assertEquals(-60, index.getRssi(address));
+        Assert.assertEquals(0xe1, index.getAccessNumber(address));
+        // the first record is the date and time, the first numeric one the volume
+        Assert.assertEquals(1.234, index.getReading(address), 0.0001);
+    }
+
+    @Test
+    public void testSilentMeters() {
+        MeterStateIndex index = new MeterStateIndex(100);
+        index.update(address(1, 7), 1000, -70, 1, 1.0);
+        index.update(address(2, 7), 5000, -70, 1, 1.0);
+        index.update(address(3, 7), 2000, -70, 1, 1.0);
+        // out of order messages do not replace the newer state
+        index.update(address(3, 7), 500, -80, 2, 2.0);
+
+        long[] silentMeters = index.getSilentMeters(3000);
+        Assert.assertEquals(2, silentMeters.length);
+        Assert.assertEquals(2000, index.getLastSeen(address(3, 7)));
+        Assert.assertEquals(1, index.getAccessNumber(address(3, 7)));
+        Assert.assertEquals(-70, index.getRssi(address(3, 7)));
+        Assert.assertEquals(1.0, index.getReading(address(3, 7)), 0);
+    }
+
+    @Test
+    public void testTopRssi() {
+        MeterStateIndex index = new MeterStateIndex(1000);
+        for (int i = 1; i <= 500; i++) {
+            index.update(address(i, i % 2 == 0 ? 7 : 6), 0, -100 + (i % 97), -1, Double.NaN);
+        }
+
+        long[] top = index.getTopRssi(DeviceType.WATER_METER, 3);
+        Assert.assertEquals(3, top.length);
+        Assert.assertTrue(index.getRssi(top[0]) >= index.getRssi(top[1]));
+        Assert.assertTrue(index.getRssi(top[1]) >= index.getRssi(top[2]));
+        Assert.assertEquals(-4, index.getRssi(top[0]));
+        for (long address : top) {
+            Assert.assertEquals(7, address & 0xff);
+        }
+
+        Assert.assertEquals(0, index.getTopRssi(DeviceType.WATER_METER, 0).length);
+        Assert.assertEquals(0, index.getTopRssi(DeviceType.WATER_METER, -1).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxMetersLimit() {
+        new MeterStateIndex((1 << 28) + 1);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final MeterStateIndex index = new MeterStateIndex(10000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 10000; i++) {
+                        index.update(address(i, 7), i, -50, i & 0xff, i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(10000, index.size());
+        Assert.assertFalse(index.update(address(10001, 7), 0, -50, 0, 0));
+        Assert.assertEquals(4711, index.getLastSeen(address(4711, 7)));
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReceiverFusionTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static class Collector implements WMBusListener {
+
+        List<WMBusMessage> messages = new ArrayList<WMBusMessage>();
+
+        @Override
+        public void newMessage(WMBusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void discardedBytes(byte[] bytes) {
+        }
+
+        @Override
+        public void stoppedListening(IOException e) {
+        }
+    }
+
+    private static WMBusMessage copy(byte[] bytes, int rssi) {
+        return new WMBusMessage(bytes.clone(), rssi, new HashMap<String, byte[]>());
+    }
+
+    @Test
+    public void testBestCopyIsForwardedOnce() {
+        Collector collector = new Collector();
+        ReceiverFusion fusion = new ReceiverFusion(100, collector, false);
+        fusion.addReceiver("a");
+        fusion.addReceiver("b");
+        fusion.addReceiver("c");
+
+        fusion.received(0, copy(testMessage, -80), 1000);
+        fusion.received(1, copy(testMessage, -60), 1020);
+        fusion.received(2, copy(testMessage, -70), 1050);
+
+        fusion.flush(1099);
+        Assert.assertEquals(0, collector.messages.size());
+
+        fusion.flush(1100);
+        Assert.assertEquals(1, collector.messages.size());
+        Assert.assertEquals(-60, (int) collector.messages.get(0).getRssi());
+
+        // late copy after the telegram has been forwarded
+        fusion.received(0, copy(testMessage, -50), 1150);
+        fusion.flush(2000);
+        Assert.assertEquals(1, collector.messages.size());
+        Assert.assertEquals(1, fusion.getTelegramCount());
+        Assert.assertEquals(3, fusion.getDuplicateCount());
+
+        long address = SecondaryAddress.getFromWMBusLinkLayerHeader(testMessage, 2).asLong();
+        Assert.assertEquals(2, fusion.getMessageCount(address, 0));
+        Assert.assertEquals(1, fusion.getBestCount(address, 1));
+        Assert.assertEquals(0, fusion.getBestCount(address, 0));
+        Assert.assertEquals(-65.0, fusion.getMeanRssi(address, 0), 0.001);
+        Assert.assertEquals(-80, fusion.getMinRssi(address, 0));
+        Assert.assertEquals(-50, fusion.getMaxRssi(address, 0));
+        Assert.assertEquals(1150, fusion.getLastSeen(address, 0));
+    }
+
+    @Test
+    public void testRepeatedTelegramAfterWindows() {
+        Collector collector = new Collector();
+        ReceiverFusion fusion = new ReceiverFusion(100, collector, false);
+        fusion.addReceiver("a");
+
+        fusion.received(0, copy(testMessage, -80), 1000);
+        fusion.flush(1100);
+        // same bytes again much later, e.g. a meter that does not change its access number
+        fusion.received(0, copy(testMessage, -80), 5000);
+        fusion.flush(5100);
+
+        Assert.assertEquals(2, collector.messages.size());
+        Assert.assertEquals(0, fusion.getDuplicateCount());
+    }
+
+    @Test
+    public void testCoverageGaps() {
+        Collector collector = new Collector();
+        ReceiverFusion fusion = new ReceiverFusion(100, collector, false);
+        fusion.addReceiver("a");
+        fusion.addReceiver("b");
+
+        byte[] otherMeter = testMessage.clone();
+        otherMeter[4] = 0x11;
+
+        fusion.received(0, copy(testMessage, -80), 1000);
+        fusion.received(1, copy(testMessage, -90), 1010);
+        fusion.received(0, copy(otherMeter, -70), 1020);
+        fusion.flush(1200);
+
+        Assert.assertEquals(2, collector.messages.size());
+        Assert.assertEquals(2, fusion.getMeters().length);
+        long[] notReceived = fusion.getMetersNotReceivedBy(1);
+        Assert.assertEquals(1, notReceived.length);
+        Assert.assertEquals(SecondaryAddress.getFromWMBusLinkLayerHeader(otherMeter, 2).asLong(), notReceived[0]);
+        Assert.assertEquals(0, fusion.getMetersNotReceivedBy(0).length);
+    }
+
+}
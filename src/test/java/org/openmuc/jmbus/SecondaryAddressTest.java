@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SecondaryAddressTest {
+
+    @Test
+    public void testLinkLayerAndLongHeaderAreEqual() {
+        SecondaryAddress linkLayerAddress = SecondaryAddress
+                .getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString("6532821851582c06"), 0);
+        SecondaryAddress longHeaderAddress = SecondaryAddress
+                .getFromLongHeader(HexConverter.fromShortHexString("8218515865322c06"), 0);
+
+        Assert.assertEquals("LSE", linkLayerAddress.getManufacturerId());
+        Assert.assertEquals("58511882", linkLayerAddress.getDeviceId().toString());
+        Assert.assertEquals(0x2c, linkLayerAddress.getVersion());
+        Assert.assertEquals(DeviceType.WARM_WATER_METER, linkLayerAddress.getDeviceType());
+
+        Assert.assertEquals(0x3265585118822c06L, linkLayerAddress.asLong());
+        Assert.assertEquals(linkLayerAddress.asLong(), longHeaderAddress.asLong());
+        Assert.assertEquals(linkLayerAddress, longHeaderAddress);
+        Assert.assertEquals(linkLayerAddress.hashCode(), longHeaderAddress.hashCode());
+        Assert.assertSame(linkLayerAddress.getManufacturerId(), longHeaderAddress.getManufacturerId());
+
+        // the bytes keep the order of the header
+        Assert.assertEquals("8218515865322c06", HexConverter.toShortHexString(longHeaderAddress.asByteArray()));
+    }
+
+    @Test
+    public void testInterning() {
+        byte[] message1 = HexConverter.fromShortHexString("2c446532821851582c067ae1");
+        byte[] message2 = HexConverter.fromShortHexString("2c446532821851582c067ae2");
+        SecondaryAddress address1 = SecondaryAddress.getFromWMBusLinkLayerHeader(message1, 2);
+        SecondaryAddress address2 = SecondaryAddress.getFromWMBusLinkLayerHeader(message2, 2);
+        Assert.assertSame(address1, address2);
+
+        message2[5] = 0x19;
+        SecondaryAddress address3 = SecondaryAddress.getFromWMBusLinkLayerHeader(message2, 2);
+        Assert.assertNotEquals(address1, address3);
+        Assert.assertEquals(SecondaryAddress.toLong(message2, 2, false), address3.asLong());
+    }
+
+    @Test
+    public void testMapKey() {
+        Map<SecondaryAddress, String> map = new HashMap<SecondaryAddress, String>();
+        map.put(SecondaryAddress.getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString("6532821851582c06"), 0),
+                "meter");
+        Assert.assertEquals("meter", map.get(
+                SecondaryAddress.getFromLongHeader(HexConverter.fromShortHexString("8218515865322c06"), 0)));
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TcpTransportTest {
+
+    private static final byte[] wMBusMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private ServerSocket serverSocket;
+    private TcpEventLoop eventLoop;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverSocket.setSoTimeout(5000);
+        eventLoop = new TcpEventLoop();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.close();
+        serverSocket.close();
+    }
+
+    private InetSocketAddress serverAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    @Test
+    public void testWirelessMessageOverTcp() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final WMBusMessage[] message = new WMBusMessage[1];
+
+        WMBusSapAmber sap = new WMBusSapAmber(serverAddress(), eventLoop, WMBusMode.T, new WMBusListener() {
+            @Override
+            public void newMessage(WMBusMessage newMessage) {
+                message[0] = newMessage;
+                received.countDown();
+            }
+
+            @Override
+            public void discardedBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void stoppedListening(IOException e) {
+            }
+        });
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    // mode and RSSI registers
+                    confirmSetRequests(socket, 2, 0x00);
+                    opened.await(5, TimeUnit.SECONDS);
+                    OutputStream os = socket.getOutputStream();
+
+                    // the stick includes the appended RSSI byte in the length field
+                    byte[] frame = new byte[wMBusMessage.length + 1];
+                    System.arraycopy(wMBusMessage, 0, frame, 0, wMBusMessage.length);
+                    frame[0] = (byte) (frame[0] + 1);
+                    frame[frame.length - 1] = (byte) 0x30;
+
+                    // split the frame to check that it is reassembled
+                    os.write(frame, 0, 20);
+                    os.flush();
+                    Thread.sleep(50);
+                    os.write(frame, 20, frame.length - 20);
+                    os.flush();
+
+                    Thread.sleep(1000);
+                    socket.close();
+                } catch (Exception e) {
+                }
+            }
+        };
+        server.start();
+
+        long start = System.currentTimeMillis();
+        sap.open();
+        opened.countDown();
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(-50, message[0].getRssi().intValue());
+        message[0].decodeDeep();
+        Assert.assertEquals(6, message[0].getVariableDataResponse().getDataRecords().size());
+        Assert.assertEquals(1, eventLoop.getConnectionCount());
+
+        sap.close();
+        server.join();
+    }
+
+    /**
+     * Simulates an Amber module that answers every CMD_SET_REQ with a CMD_SET_CNF.
+     */
+    private static void confirmSetRequests(Socket socket, int numRequests, int status) throws IOException {
+        InputStream is = socket.getInputStream();
+        OutputStream os = socket.getOutputStream();
+        byte[] request = new byte[7];
+        for (int i = 0; i < numRequests; i++) {
+            int numBytesRead = 0;
+            while (numBytesRead < request.length) {
+                numBytesRead += is.read(request, numBytesRead, request.length - numBytesRead);
+            }
+            Assert.assertEquals(0x09, request[1]);
+            byte[] confirmation = new byte[] { (byte) 0xff, (byte) 0x89, 0x01, (byte) status, 0 };
+            confirmation[4] = (byte) (confirmation[0] ^ confirmation[1] ^ confirmation[2] ^ confirmation[3]);
+            os.write(confirmation);
+            os.flush();
+        }
+    }
+
+    @Test
+    public void testRejectedConfiguration() throws Exception {
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    confirmSetRequests(socket, 1, 0x01);
+                    Thread.sleep(1000);
+                    socket.close();
+                } catch (Exception e) {
+                }
+            }
+        };
+        server.start();
+
+        WMBusSapAmber sap = new WMBusSapAmber(serverAddress(), eventLoop, WMBusMode.T, new WMBusListener() {
+            @Override
+            public void newMessage(WMBusMessage message) {
+            }
+
+            @Override
+            public void discardedBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void stoppedListening(IOException e) {
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        try {
+            sap.open();
+            Assert.fail("open should fail if the module rejects the configuration");
+        } catch (IOException e) {
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+        server.join();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRawFrameModeIsRejected() {
+        WMBusSapAmber sap = new WMBusSapAmber(serverAddress(), eventLoop, WMBusMode.C, new WMBusListener() {
+            @Override
+            public void newMessage(WMBusMessage message) {
+            }
+
+            @Override
+            public void discardedBytes(byte[] bytes) {
+            }
+
+            @Override
+            public void stoppedListening(IOException e) {
+            }
+        });
+        sap.setRawFrameMode(true);
+    }
+
+    @Test
+    public void testWiredReadOverTcp() throws Exception {
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    InputStream is = socket.getInputStream();
+                    byte[] request = new byte[5];
+                    int numBytesRead = 0;
+                    while (numBytesRead < request.length) {
+                        numBytesRead += is.read(request, numBytesRead, request.length - numBytesRead);
+                    }
+                    OutputStream os = socket.getOutputStream();
+                    os.write(MessagesTest.testMsg4);
+                    os.flush();
+                    Thread.sleep(1000);
+                    socket.close();
+                } catch (Exception e) {
+                }
+            }
+        };
+        server.start();
+
+        MBusSap sap = new MBusSap(serverAddress(), eventLoop);
+        sap.open();
+        VariableDataStructure vds = sap.read(0);
+        vds.decode();
+        Assert.assertEquals(9, vds.getDataRecords().size());
+
+        sap.close();
+        server.join();
+    }
+
+}
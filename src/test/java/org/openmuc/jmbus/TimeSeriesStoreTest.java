@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TimeSeriesStoreTest {
+
+    private static final SecondaryAddress ADDRESS = SecondaryAddress
+            .getFromWMBusLinkLayerHeader(HexConverter.fromShortHexString("6532821851582c06"), 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndQuery() throws IOException, DecodingException {
+        File directory = folder.newFolder("store");
+        TimeSeriesStore store = new TimeSeriesStore(directory, 64 * 1024);
+
+        long start = 1466000000000l;
+        long volume = 123456;
+        for (int i = 0; i < 2000; i++) {
+            if (i % 20 == 0) {
+                volume += 7;
+            }
+            // slight jitter as transmitted by a real meter
+            long timestamp = start + i * 16000l + (i % 3) * 5;
+            Assert.assertTrue(store.append(ADDRESS, volumeRecord(volume), timestamp));
+            Assert.assertTrue(store.append(ADDRESS, temperatureRecord(20.5f + (i % 10) / 10f), timestamp));
+        }
+        Assert.assertEquals(2, store.getSeriesCount());
+
+        DataRecord volumeRecord = volumeRecord(0);
+        TimeSeries series = new TimeSeries();
+
+        Assert.assertEquals(2000, store.query(ADDRESS, volumeRecord.getDib(), volumeRecord.getVib(), Long.MIN_VALUE,
+                Long.MAX_VALUE, series));
+        Assert.assertEquals(123463, series.getValue(0));
+        Assert.assertEquals(volume, series.getValue(1999));
+        Assert.assertEquals(start + 1999 * 16000l + 1 * 5, series.getTimestamp(1999));
+        Assert.assertEquals(volume / 1000d, series.getScaledValue(1999), 0.0000001);
+
+        Assert.assertEquals(10, store.query(ADDRESS, volumeRecord.getDib(), volumeRecord.getVib(),
+                start + 1000 * 16000l, start + 1009 * 16000l + 5, series));
+        Assert.assertEquals(start + 1000 * 16000l + 1 * 5, series.getTimestamp(0));
+
+        // older samples are rejected
+        Assert.assertFalse(store.append(ADDRESS, volumeRecord(volume), start));
+
+        store.close();
+
+        store = new TimeSeriesStore(directory, 64 * 1024);
+        Assert.assertEquals(2, store.getSeriesCount());
+
+        DataRecord temperatureRecord = temperatureRecord(0);
+        Assert.assertEquals(2000, store.query(ADDRESS, temperatureRecord.getDib(), temperatureRecord.getVib(),
+                Long.MIN_VALUE, Long.MAX_VALUE, series));
+        Assert.assertTrue(series.isFloatingPoint());
+        Assert.assertEquals(21.4, series.getScaledValue(9), 0.00001);
+
+        Assert.assertEquals(0, store.query(ADDRESS, new byte[] { 0x0c }, new byte[] { 0x13 }, Long.MIN_VALUE,
+                Long.MAX_VALUE, series));
+        store.close();
+    }
+
+    @Test
+    public void testReopenWithOtherSegmentSize() throws IOException, DecodingException {
+        File directory = folder.newFolder("store");
+        Random random = new Random(1);
+        long start = 1466000000000l;
+
+        TimeSeriesStore store = new TimeSeriesStore(directory, 64 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(store.append(ADDRESS, volumeRecord(random.nextInt()), start + i * 1000l));
+        }
+        store.close();
+        Assert.assertTrue(directory.list().length > 1);
+
+        // the last segment keeps its size of 64 KiB and is filled up before a larger segment is added
+        store = new TimeSeriesStore(directory, 1024 * 1024);
+        for (int i = 10000; i < 20000; i++) {
+            Assert.assertTrue(store.append(ADDRESS, volumeRecord(random.nextInt()), start + i * 1000l));
+        }
+        store.close();
+
+        store = new TimeSeriesStore(directory, 64 * 1024);
+        DataRecord volumeRecord = volumeRecord(0);
+        Assert.assertEquals(20000, store.query(ADDRESS, volumeRecord.getDib(), volumeRecord.getVib(), Long.MIN_VALUE,
+                Long.MAX_VALUE, new TimeSeries()));
+        store.close();
+    }
+
+    private static DataRecord volumeRecord(long volume) throws DecodingException {
+        // INT32, volume in 10^-3 m^3
+        byte[] bytes = new byte[] { 0x04, 0x13, (byte) volume, (byte) (volume >> 8), (byte) (volume >> 16),
+                (byte) (volume >> 24) };
+        DataRecord dataRecord = new DataRecord();
+        dataRecord.decode(bytes, 0, bytes.length);
+        return dataRecord;
+    }
+
+    private static DataRecord temperatureRecord(float temperature) throws DecodingException {
+        // FLOAT32, flow temperature in degree Celsius
+        int bits = Float.floatToIntBits(temperature);
+        byte[] bytes = new byte[] { 0x05, 0x5b, (byte) bits, (byte) (bits >> 8), (byte) (bits >> 16),
+                (byte) (bits >> 24) };
+        DataRecord dataRecord = new DataRecord();
+        dataRecord.decode(bytes, 0, bytes.length);
+        return dataRecord;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010-16 Fraunhofer ISE
+ *
+ * This file is part of jMBus.
+ * For more information visit http://www.openmuc.org
+ *
+ * jMBus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jMBus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jMBus.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.openmuc.jmbus;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WMBusFramerTest {
+
+    private static final byte[] testMessage = new byte[] { (byte) 0x2c, (byte) 0x44, (byte) 0x65, (byte) 0x32,
+            (byte) 0x82, (byte) 0x18, (byte) 0x51, (byte) 0x58, (byte) 0x2c, (byte) 0x06, (byte) 0x7a, (byte) 0xe1,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x6d, (byte) 0x19, (byte) 0x06, (byte) 0xd9,
+            (byte) 0x18, (byte) 0x0c, (byte) 0x13, (byte) 0x34, (byte) 0x12, (byte) 0x00, (byte) 0x00, (byte) 0x42,
+            (byte) 0x6c, (byte) 0xbf, (byte) 0x1c, (byte) 0x4c, (byte) 0x13, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x32, (byte) 0x6c, (byte) 0xff, (byte) 0xff, (byte) 0x01, (byte) 0xfd, (byte) 0x73,
+            (byte) 0x00 };
+
+    private static class TestHandler implements WMBusFramer.Handler {
+
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final List<Integer> rssis = new ArrayList<Integer>();
+        final List<Long> firstByteTimes = new ArrayList<Long>();
+        int discarded = 0;
+        AddressFilter filter;
+
+        @Override
+        public boolean accept(long address) {
+            return filter == null || filter.accept(address);
+        }
+
+        @Override
+        public void frameReceived(byte[] frame, int rssi, long firstByteNanos) {
+            frames.add(frame);
+            rssis.add(rssi);
+            firstByteTimes.add(firstByteNanos);
+        }
+
+        @Override
+        public void bytesDiscarded(byte[] bytes) {
+            discarded++;
+        }
+    }
+
+    private static void appendCrc(byte[] bytes, int offset, int length) {
+        int crc = WMBusCrc.compute(bytes, offset, length);
+        bytes[offset + length] = (byte) (crc >> 8);
+        bytes[offset + length + 1] = (byte) crc;
+    }
+
+    private static byte[] toFormatA(byte[] message, int rssi) {
+        int dataLength = message.length - 10;
+        int numBlocks = 1 + (dataLength + 15) / 16;
+        byte[] frame = new byte[message.length + 2 * numBlocks + 1];
+        System.arraycopy(message, 0, frame, 0, 10);
+        appendCrc(frame, 0, 10);
+        int readIndex = 10;
+        int writeIndex = 12;
+        while (readIndex < message.length) {
+            int blockLength = Math.min(16, message.length - readIndex);
+            System.arraycopy(message, readIndex, frame, writeIndex, blockLength);
+            appendCrc(frame, writeIndex, blockLength);
+            readIndex += blockLength;
+            writeIndex += blockLength + 2;
+        }
+        frame[frame.length - 1] = (byte) rssi;
+        return frame;
+    }
+
+    // the L-field of format B includes the CRCs and is covered by the first CRC
+    private static byte[] toFormatB(byte[] message, int rssi) {
+        byte[] frame;
+        if (message.length + 2 <= 128) {
+            frame = new byte[message.length + 3];
+            System.arraycopy(message, 0, frame, 0, message.length);
+            frame[0] = (byte) (frame.length - 2);
+            appendCrc(frame, 0, message.length);
+        }
+        else {
+            frame = new byte[message.length + 5];
+            System.arraycopy(message, 0, frame, 0, 126);
+            frame[0] = (byte) (frame.length - 2);
+            appendCrc(frame, 0, 126);
+            System.arraycopy(message, 126, frame, 128, message.length - 126);
+            appendCrc(frame, 128, message.length - 126);
+        }
+        frame[frame.length - 1] = (byte) rssi;
+        return frame;
+    }
+
+    private static byte[] longMessage() {
+        byte[] message = new byte[200];
+        System.arraycopy(testMessage, 0, message, 0, testMessage.length);
+        for (int i = testMessage.length; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        message[0] = (byte) (message.length - 1);
+        return message;
+    }
+
+    @Test
+    public void testCrc() throws UnsupportedEncodingException {
+        byte[] bytes = "123456789".getBytes("US-ASCII");
+        Assert.assertEquals(0xc2b7, WMBusCrc.compute(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void testFormatA() {
+        TestHandler handler = new TestHandler();
+        WMBusFramer framer = new WMBusFramer(handler, true);
+
+        byte[] frame1 = toFormatA(testMessage, 0x30);
+        byte[] frame2 = toFormatA(longMessage(), 0x31);
+        byte[] stream = new byte[frame1.length + frame2.length];
+        System.arraycopy(frame1, 0, stream, 0, frame1.length);
+        System.arraycopy(frame2, 0, stream, frame1.length, frame2.length);
+
+        // deliver in small chunks to check the reassembly
+        for (int i = 0; i < stream.length; i += 7) {
+            framer.feed(stream, i, Math.min(7, stream.length - i), 0);
+        }
+
+        Assert.assertEquals(0, handler.discarded);
+        Assert.assertEquals(2, handler.frames.size());
+        Assert.assertTrue(Arrays.equals(testMessage, handler.frames.get(0)));
+        Assert.assertTrue(Arrays.equals(longMessage(), handler.frames.get(1)));
+        Assert.assertEquals(0x31, handler.rssis.get(1).intValue());
+    }
+
+    @Test
+    public void testFirstByteTime() throws InterruptedException {
+        TestHandler handler = new TestHandler();
+        WMBusFramer framer = new WMBusFramer(handler);
+
+        byte[] message = new byte[testMessage.length + 1];
+        System.arraycopy(testMessage, 0, message, 0, testMessage.length);
+        message[0]++;
+
+        long before = System.nanoTime();
+        framer.feed(message, 0, 10, 0);
+        Thread.sleep(20);
+        long secondChunk = System.nanoTime();
+        framer.feed(message, 10, message.length - 10, 20);
+
+        Assert.assertEquals(1, handler.frames.size());
+        long firstByteNanos = handler.firstByteTimes.get(0);
+        Assert.assertTrue(firstByteNanos >= before && firstByteNanos < secondChunk);
+    }
+
+    @Test
+    public void testFormatB() {
+        TestHandler handler = new TestHandler();
+        WMBusFramer framer = new WMBusFramer(handler, true);
+
+        byte[] frame1 = toFormatB(testMessage, 0x30);
+        framer.feed(frame1, 0, frame1.length, 0);
+        byte[] frame2 = toFormatB(longMessage(), 0x30);
+        framer.feed(frame2, 0, frame2.length, 0);
+
+        Assert.assertEquals(0, handler.discarded);
+        Assert.assertEquals(2, handler.frames.size());
+        Assert.assertTrue(Arrays.equals(testMessage, handler.frames.get(0)));
+        Assert.assertTrue(Arrays.equals(longMessage(), handler.frames.get(1)));
+    }
+
+    @Test
+    public void testCorruptedFrameIsDiscarded() {
+        TestHandler handler = new TestHandler();
+        WMBusFramer framer = new WMBusFramer(handler, true);
+
+        byte[] frame = toFormatA(testMessage, 0x30);
+        frame[20] ^= 0x01;
+        framer.feed(frame, 0, frame.length, 0);
+
+        Assert.assertEquals(0, handler.frames.size());
+        Assert.assertEquals(1, handler.discarded);
+    }
+
+    @Test
+    public void testFilteredFrameIsDropped() {
+        TestHandler handler = new TestHandler();
+        handler.filter = new AddressFilter.Builder().addManufacturer("ABC").build();
+        WMBusFramer framer = new WMBusFramer(handler, true);
+
+        byte[] frame = toFormatA(testMessage, 0x30);
+        framer.feed(frame, 0, frame.length, 0);
+        // the CRC is not checked for dropped frames
+        frame[20] ^= 0x01;
+        framer.feed(frame, 0, frame.length, 0);
+
+        Assert.assertEquals(0, handler.frames.size());
+        Assert.assertEquals(0, handler.discarded);
+        Assert.assertEquals(2, handler.filter.getRejectedCount());
+    }
+
+}